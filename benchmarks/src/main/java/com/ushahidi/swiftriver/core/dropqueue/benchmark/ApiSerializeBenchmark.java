@@ -0,0 +1,159 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/agpl.html>
+ * 
+ * Copyright (C) Ushahidi Inc. All Rights Reserved.
+ */
+package com.ushahidi.swiftriver.core.dropqueue.benchmark;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.ObjectWriter;
+import org.codehaus.jackson.map.PropertyNamingStrategy;
+import org.codehaus.jackson.map.annotate.JsonSerialize.Inclusion;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.ushahidi.swiftriver.core.api.client.model.Drop;
+import com.ushahidi.swiftriver.core.dropqueue.Publisher;
+import com.ushahidi.swiftriver.core.dropqueue.model.RawDrop;
+import com.ushahidi.swiftriver.core.dropqueue.support.ApiDropWriter;
+import com.ushahidi.swiftriver.core.dropqueue.support.RawDropDecoder;
+
+/**
+ * Measures converting a batch to the API client's model with
+ * {@link Publisher#toDrops(List)}, and compares building a batch's request
+ * body by converting the drops and serializing the model with writing it
+ * straight from the {@link RawDrop}s with {@link ApiDropWriter}. The client's own serializer is stood in for by
+ * Jackson binding the <code>Drop</code> graph with underscored names.
+ * 
+ * The drops are decoded from the corpus and given the links, tags, media
+ * and places a metadata extractor would add. Run with
+ * <code>-prof gc</code> to compare the allocation per batch.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ApiSerializeBenchmark {
+
+	@Param({Corpus.TWEET, Corpus.RSS, Corpus.SMS})
+	public String drop;
+
+	@Param({"100", "10000"})
+	public int batchSize;
+
+	private List<RawDrop> rawDrops;
+
+	private ObjectWriter dropGraphWriter;
+
+	private ApiDropWriter dropWriter;
+
+	private OutputStream out;
+
+	@Setup
+	public void setup(final Blackhole blackhole) throws IOException {
+		ObjectMapper objectMapper = new ObjectMapper();
+		RawDropDecoder decoder = new RawDropDecoder(objectMapper);
+		byte[] body = Corpus.load(drop);
+		rawDrops = new ArrayList<RawDrop>();
+		for (int i = 0; i < batchSize; i++) {
+			RawDrop rawDrop = decoder.decode(ByteBuffer.wrap(body));
+			addMetadata(rawDrop, i);
+			rawDrops.add(rawDrop);
+		}
+
+		ObjectMapper dropGraphMapper = new ObjectMapper();
+		dropGraphMapper.setPropertyNamingStrategy(
+				PropertyNamingStrategy.CAMEL_CASE_TO_LOWER_CASE_WITH_UNDERSCORES);
+		dropGraphMapper.setSerializationInclusion(Inclusion.NON_NULL);
+		dropGraphWriter = dropGraphMapper.writer();
+		dropWriter = new ApiDropWriter(objectMapper);
+
+		// Stands in for the connection: consumes the bytes without keeping them
+		out = new OutputStream() {
+			public void write(int b) {
+				blackhole.consume(b);
+			}
+
+			public void write(byte[] b, int off, int len) {
+				blackhole.consume(b);
+			}
+		};
+	}
+
+	private static void addMetadata(RawDrop rawDrop, int i) {
+		RawDrop.Link link = new RawDrop.Link();
+		link.setUrl("http://example.com/story/" + i);
+		link.setOriginalUrl(true);
+		rawDrop.setLinks(Arrays.asList(link));
+
+		RawDrop.Tag person = new RawDrop.Tag();
+		person.setName("Sally Davies");
+		person.setType("person");
+		RawDrop.Tag organization = new RawDrop.Tag();
+		organization.setName("Department of Health");
+		organization.setType("organization");
+		rawDrop.setTags(Arrays.asList(person, organization));
+
+		RawDrop.Thumbnail thumbnail = new RawDrop.Thumbnail();
+		thumbnail.setSize(80);
+		thumbnail.setUrl("http://example.com/images/" + i + "_80.jpg");
+		RawDrop.Media media = new RawDrop.Media();
+		media.setUrl("http://example.com/images/" + i + ".jpg");
+		media.setType("image");
+		media.setDropImage(true);
+		media.setThumbnails(Arrays.asList(thumbnail));
+		rawDrop.setMedia(Arrays.asList(media));
+
+		RawDrop.Place place = new RawDrop.Place();
+		place.setName("London");
+		place.setLatitude(51.5f);
+		place.setLongitude(-0.12f);
+		rawDrop.setPlaces(Arrays.asList(place));
+	}
+
+	@Benchmark
+	public List<Drop> convert() {
+		return Publisher.toDrops(rawDrops);
+	}
+
+	@Benchmark
+	public void viaDropGraph() throws IOException {
+		dropGraphWriter.writeValue(out, Publisher.toDrops(rawDrops));
+	}
+
+	@Benchmark
+	public void direct() throws IOException {
+		dropWriter.writeDrops(rawDrops, out);
+	}
+}
@@ -0,0 +1,65 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/agpl.html>
+ * 
+ * Copyright (C) Ushahidi Inc. All Rights Reserved.
+ */
+package com.ushahidi.swiftriver.core.dropqueue.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Loads the sample drops checked in under <code>corpus/</code>
+ */
+public final class Corpus {
+
+	/** A tweet as posted by the Twitter channel app */
+	public static final String TWEET = "tweet";
+
+	/** A long RSS item as posted by the RSS channel app */
+	public static final String RSS = "rss";
+
+	/** A text message as posted by the SMS channel app */
+	public static final String SMS = "sms";
+
+	private Corpus() {
+	}
+
+	/**
+	 * @param name name of the sample drop
+	 * @return the UTF-8 JSON for the sample drop
+	 */
+	public static byte[] load(String name) {
+		InputStream in = Corpus.class.getResourceAsStream("/corpus/" + name + ".json");
+		if (in == null) {
+			throw new IllegalArgumentException("No sample drop named " + name);
+		}
+		try {
+			try {
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				byte[] buffer = new byte[4096];
+				int read;
+				while ((read = in.read(buffer)) != -1) {
+					out.write(buffer, 0, read);
+				}
+				return out.toByteArray();
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
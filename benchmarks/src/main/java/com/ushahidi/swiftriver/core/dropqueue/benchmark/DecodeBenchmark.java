@@ -0,0 +1,104 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/agpl.html>
+ * 
+ * Copyright (C) Ushahidi Inc. All Rights Reserved.
+ */
+package com.ushahidi.swiftriver.core.dropqueue.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+
+import com.ushahidi.swiftriver.core.dropqueue.model.RawDrop;
+import com.ushahidi.swiftriver.core.dropqueue.support.MetadataReplyDecoder;
+import com.ushahidi.swiftriver.core.dropqueue.support.RawDropDecoder;
+
+/**
+ * Compares decoding drops through an intermediate String, as the handlers
+ * used to, with {@link RawDropDecoder} which parses the message bytes, and
+ * decoding a whole metadata reply with {@link MetadataReplyDecoder} which
+ * binds only the fields the replying source owns.
+ * 
+ * Run with <code>-prof gc</code> to compare the allocation rates
+ * (<code>gc.alloc.rate.norm</code> is bytes allocated per decode).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecodeBenchmark {
+
+	@Param({Corpus.TWEET, Corpus.RSS, Corpus.SMS})
+	public String drop;
+
+	private ObjectMapper objectMapper;
+
+	private RawDropDecoder dropDecoder;
+
+	private MetadataReplyDecoder replyDecoder;
+
+	private Message message;
+
+	private Message reply;
+
+	@Setup
+	public void setup() throws IOException {
+		objectMapper = new ObjectMapper();
+		dropDecoder = new RawDropDecoder(objectMapper);
+		replyDecoder = new MetadataReplyDecoder(objectMapper);
+		byte[] body = Corpus.load(drop);
+		message = new Message(body, new MessageProperties());
+
+		// A semantics reply echoes the drop with the source appended
+		String json = new String(body, "UTF-8").trim();
+		json = json.substring(0, json.lastIndexOf('}')) + ", \"source\": \"semantics\"}";
+		reply = new Message(json.getBytes("UTF-8"), new MessageProperties());
+	}
+
+	@Benchmark
+	public RawDrop viaString() throws IOException {
+		return objectMapper.readValue(new String(message.getBody()), RawDrop.class);
+	}
+
+	@Benchmark
+	public RawDrop fromBytes() throws IOException {
+		return dropDecoder.decode(message);
+	}
+
+	@Benchmark
+	public RawDrop replyFull() throws IOException {
+		return dropDecoder.decode(reply);
+	}
+
+	@Benchmark
+	public RawDrop replyPartial() throws IOException {
+		return replyDecoder.decode(reply);
+	}
+}
@@ -0,0 +1,147 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/agpl.html>
+ * 
+ * Copyright (C) Ushahidi Inc. All Rights Reserved.
+ */
+package com.ushahidi.swiftriver.core.dropqueue.benchmark;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.support.converter.JsonMessageConverter;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.ushahidi.swiftriver.core.dropqueue.DropHandler;
+import com.ushahidi.swiftriver.core.dropqueue.InFlightDrop;
+import com.ushahidi.swiftriver.core.dropqueue.InFlightDropExpiry;
+import com.ushahidi.swiftriver.core.dropqueue.InFlightDropStore;
+import com.ushahidi.swiftriver.core.dropqueue.MetadataPublisher;
+import com.ushahidi.swiftriver.core.dropqueue.support.CorrelationIds;
+import com.ushahidi.swiftriver.core.dropqueue.support.RawDropDecoder;
+
+/**
+ * Measures {@link DropHandler#onMessage} throughput with 1 to 8 concurrent
+ * consumers. With no handler-wide lock the ops/s reported for each thread
+ * count should grow roughly linearly up to the number of available cores.
+ * 
+ * Drops are published through a running {@link MetadataPublisher}. The
+ * broker is replaced by an {@link InMemoryConnectionFactory} that confirms
+ * and completes every drop as soon as it is published so the in-flight store
+ * only fills when the publisher falls behind.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DropHandlerBenchmark {
+
+	private DropHandler dropHandler;
+
+	private InFlightDropStore inFlightDropStore;
+
+	private InFlightDropExpiry inFlightDropExpiry;
+
+	private MetadataPublisher metadataPublisher;
+
+	private byte[] body;
+
+	private final AtomicLong deliveryTags = new AtomicLong();
+
+	@Setup
+	public void setup() {
+		inFlightDropStore = new InFlightDropStore(10000);
+
+		// Completed drops are skipped when their timeouts fire
+		inFlightDropExpiry = new InFlightDropExpiry();
+		inFlightDropExpiry.setInFlightDropStore(inFlightDropStore);
+		inFlightDropExpiry.setDaemon(true);
+		inFlightDropExpiry.start();
+		body = Corpus.load(Corpus.TWEET);
+
+		metadataPublisher = new MetadataPublisher();
+		metadataPublisher.setMetadataQueue(new LinkedBlockingQueue<InFlightDrop>());
+		metadataPublisher.setMessageConverter(new JsonMessageConverter());
+		metadataPublisher.setCallbackQueueName("DROP_CB_QUEUE_benchmark");
+		metadataPublisher.setInFlightDropStore(inFlightDropStore);
+		metadataPublisher.setInFlightDropExpiry(inFlightDropExpiry);
+		metadataPublisher.setConnectionFactory(new InMemoryConnectionFactory(
+				new InMemoryConnectionFactory.MessageSink() {
+					public void onPublish(String exchange, String routingKey,
+							BasicProperties properties, byte[] body) {
+						inFlightDropStore.remove(CorrelationIds.fromBytes(properties
+								.getCorrelationId().getBytes()));
+					}
+				}));
+		metadataPublisher.start();
+
+		dropHandler = new DropHandler();
+		dropHandler.setDropDecoder(new RawDropDecoder(new ObjectMapper()));
+		dropHandler.setInFlightDropStore(inFlightDropStore);
+		dropHandler.setPipeline(StageReplies.pipeline(metadataPublisher, null));
+	}
+
+	@TearDown
+	public void tearDown() throws InterruptedException {
+		metadataPublisher.shutdown();
+		inFlightDropExpiry.interrupt();
+	}
+
+	private void ingest() throws Exception {
+		MessageProperties messageProperties = new MessageProperties();
+		messageProperties.setDeliveryTag(deliveryTags.incrementAndGet());
+		dropHandler.onMessage(new Message(body, messageProperties), null);
+	}
+
+	@Benchmark
+	@Threads(1)
+	public void oneConsumer() throws Exception {
+		ingest();
+	}
+
+	@Benchmark
+	@Threads(2)
+	public void twoConsumers() throws Exception {
+		ingest();
+	}
+
+	@Benchmark
+	@Threads(4)
+	public void fourConsumers() throws Exception {
+		ingest();
+	}
+
+	@Benchmark
+	@Threads(8)
+	public void eightConsumers() throws Exception {
+		ingest();
+	}
+}
@@ -0,0 +1,122 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/agpl.html>
+ * 
+ * Copyright (C) Ushahidi Inc. All Rights Reserved.
+ */
+package com.ushahidi.swiftriver.core.dropqueue.benchmark;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.rabbit.connection.Connection;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.amqp.rabbit.connection.ConnectionListener;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+
+/**
+ * {@link ConnectionFactory} stand-in whose channels hand published messages
+ * to a {@link MessageSink} instead of a broker. Channels in confirm mode
+ * acknowledge each message as soon as it has been passed to the sink.
+ */
+public class InMemoryConnectionFactory implements ConnectionFactory {
+
+	/**
+	 * Receives the messages published on the factory's channels
+	 */
+	public interface MessageSink {
+		void onPublish(String exchange, String routingKey,
+				BasicProperties properties, byte[] body);
+	}
+
+	private final MessageSink sink;
+
+	public InMemoryConnectionFactory(MessageSink sink) {
+		this.sink = sink;
+	}
+
+	public Connection createConnection() throws AmqpException {
+		return new Connection() {
+			public Channel createChannel(boolean transactional) {
+				return (Channel) Proxy.newProxyInstance(
+						Channel.class.getClassLoader(),
+						new Class<?>[] {Channel.class}, new InMemoryChannel());
+			}
+
+			public void close() {
+			}
+
+			public boolean isOpen() {
+				return true;
+			}
+		};
+	}
+
+	public String getHost() {
+		return "localhost";
+	}
+
+	public int getPort() {
+		return 5672;
+	}
+
+	public String getVirtualHost() {
+		return "/";
+	}
+
+	public void addConnectionListener(ConnectionListener listener) {
+	}
+
+	private class InMemoryChannel implements InvocationHandler {
+
+		private final List<ConfirmListener> confirmListeners = new CopyOnWriteArrayList<ConfirmListener>();
+
+		private long nextPublishSeqNo = 1;
+
+		public Object invoke(Object proxy, Method method, Object[] args)
+				throws Throwable {
+			String name = method.getName();
+			if (name.equals("basicPublish")) {
+				int n = args.length;
+				sink.onPublish((String) args[0], (String) args[1],
+						(BasicProperties) args[n - 2], (byte[]) args[n - 1]);
+				long seqNo = nextPublishSeqNo++;
+				for (ConfirmListener listener : confirmListeners) {
+					listener.handleAck(seqNo, false);
+				}
+				return null;
+			} else if (name.equals("getNextPublishSeqNo")) {
+				return nextPublishSeqNo;
+			} else if (name.equals("addConfirmListener")) {
+				confirmListeners.add((ConfirmListener) args[0]);
+				return null;
+			} else if (name.equals("removeConfirmListener")) {
+				return confirmListeners.remove(args[0]);
+			} else if (name.equals("isOpen")) {
+				return true;
+			} else if (name.equals("hashCode")) {
+				return System.identityHashCode(proxy);
+			} else if (name.equals("equals")) {
+				return proxy == args[0];
+			}
+			return null;
+		}
+	}
+}
@@ -0,0 +1,61 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/agpl.html>
+ * 
+ * Copyright (C) Ushahidi Inc. All Rights Reserved.
+ */
+package com.ushahidi.swiftriver.core.dropqueue.benchmark;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+
+/**
+ * {@link HttpTransport} stand-in for the API. Request bodies are written
+ * out as a connection would, to a stream that only counts the bytes, and
+ * every request succeeds.
+ */
+public class InMemoryHttpTransport extends MockHttpTransport {
+
+	private final AtomicLong bytesWritten = new AtomicLong();
+
+	private final OutputStream sink = new OutputStream() {
+		public void write(int b) {
+			bytesWritten.incrementAndGet();
+		}
+
+		public void write(byte[] b, int off, int len) {
+			bytesWritten.addAndGet(len);
+		}
+	};
+
+	public LowLevelHttpRequest buildPostRequest(String url) {
+		return new MockLowLevelHttpRequest(url) {
+			public LowLevelHttpResponse execute() throws IOException {
+				getContent().writeTo(sink);
+				return new MockLowLevelHttpResponse();
+			}
+		};
+	}
+
+	public long getBytesWritten() {
+		return bytesWritten.get();
+	}
+}
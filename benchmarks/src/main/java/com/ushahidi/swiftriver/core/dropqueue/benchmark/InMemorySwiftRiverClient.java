@@ -0,0 +1,46 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/agpl.html>
+ * 
+ * Copyright (C) Ushahidi Inc. All Rights Reserved.
+ */
+package com.ushahidi.swiftriver.core.dropqueue.benchmark;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.ushahidi.swiftriver.core.api.client.SwiftRiverClient;
+import com.ushahidi.swiftriver.core.api.client.model.Drop;
+
+/**
+ * {@link SwiftRiverClient} stand-in that accepts every batch of drops
+ * without sending it anywhere
+ */
+public class InMemorySwiftRiverClient extends SwiftRiverClient {
+
+	private final AtomicLong postedCount = new AtomicLong();
+
+	public InMemorySwiftRiverClient() {
+		super(new NetHttpTransport(), null, "http://localhost/v1/drops");
+	}
+
+	public List<Drop> postDrops(List<Drop> drops) {
+		postedCount.addAndGet(drops.size());
+		return drops;
+	}
+
+	public long getPostedCount() {
+		return postedCount.get();
+	}
+}
@@ -0,0 +1,239 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/agpl.html>
+ * 
+ * Copyright (C) Ushahidi Inc. All Rights Reserved.
+ */
+package com.ushahidi.swiftriver.core.dropqueue.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.support.converter.JsonMessageConverter;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
+import com.ushahidi.swiftriver.core.dropqueue.DropFilterPublisher;
+import com.ushahidi.swiftriver.core.dropqueue.DropHandler;
+import com.ushahidi.swiftriver.core.dropqueue.InFlightDrop;
+import com.ushahidi.swiftriver.core.dropqueue.InFlightDropExpiry;
+import com.ushahidi.swiftriver.core.dropqueue.InFlightDropStore;
+import com.ushahidi.swiftriver.core.dropqueue.MetadataPublisher;
+import com.ushahidi.swiftriver.core.dropqueue.MetadataResponseHandler;
+import com.ushahidi.swiftriver.core.dropqueue.Pipeline;
+import com.ushahidi.swiftriver.core.dropqueue.model.RawDrop;
+import com.ushahidi.swiftriver.core.dropqueue.support.MetadataReplyDecoder;
+import com.ushahidi.swiftriver.core.dropqueue.support.RawDropDecoder;
+
+/**
+ * Measures drops through the whole pipeline: {@link DropHandler} ingest,
+ * publishing for extraction, the media and semantics replies merged by
+ * {@link MetadataResponseHandler}, the rules round trip and handoff to the
+ * publish queue.
+ * 
+ * The broker is an {@link InMemoryConnectionFactory} whose sinks answer
+ * every publish with the replies the stages would send. The replies are
+ * consumed from an in-memory queue by <code>replyConsumers</code> threads,
+ * like the callback queue listeners, so merges contend with ingest and
+ * with each other. Ingest blocks while the in-flight store is full, so the
+ * score is the rate at which drops complete once the store has filled.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PipelineBenchmark {
+
+	@Param({Corpus.TWEET, Corpus.RSS, Corpus.SMS})
+	public String drop;
+
+	@Param({"2"})
+	public int replyConsumers;
+
+	private InFlightDropStore inFlightDropStore;
+
+	private InFlightDropExpiry inFlightDropExpiry;
+
+	private MetadataPublisher metadataPublisher;
+
+	private DropFilterPublisher dropFilterPublisher;
+
+	private DropHandler dropHandler;
+
+	/** Channel the drops are delivered and acked on */
+	private Channel channel;
+
+	private final BlockingQueue<Message> replyQueue = new LinkedBlockingQueue<Message>();
+
+	private final BlockingQueue<RawDrop> publishQueue = new LinkedBlockingQueue<RawDrop>();
+
+	private final List<Thread> threads = new ArrayList<Thread>();
+
+	private byte[] body;
+
+	private final AtomicLong deliveryTags = new AtomicLong();
+
+	@Setup
+	public void setup() {
+		ObjectMapper objectMapper = new ObjectMapper();
+		body = Corpus.load(drop);
+		inFlightDropStore = new InFlightDropStore(10000);
+
+		inFlightDropExpiry = new InFlightDropExpiry();
+		inFlightDropExpiry.setInFlightDropStore(inFlightDropStore);
+		inFlightDropExpiry.setDaemon(true);
+		inFlightDropExpiry.start();
+
+		BlockingQueue<InFlightDrop> dropFilterQueue = new LinkedBlockingQueue<InFlightDrop>();
+		final MetadataResponseHandler metadataResponseHandler = new MetadataResponseHandler();
+		metadataResponseHandler.setReplyDecoder(new MetadataReplyDecoder(objectMapper));
+		metadataResponseHandler.setInFlightDropStore(inFlightDropStore);
+		metadataResponseHandler.setPublishQueue(publishQueue);
+
+		metadataPublisher = new MetadataPublisher();
+		metadataPublisher.setMetadataQueue(new LinkedBlockingQueue<InFlightDrop>());
+		metadataPublisher.setMessageConverter(new JsonMessageConverter());
+		metadataPublisher.setCallbackQueueName("DROP_CB_QUEUE_benchmark");
+		metadataPublisher.setInFlightDropStore(inFlightDropStore);
+		metadataPublisher.setInFlightDropExpiry(inFlightDropExpiry);
+		metadataPublisher.setConnectionFactory(new InMemoryConnectionFactory(
+				new InMemoryConnectionFactory.MessageSink() {
+					public void onPublish(String exchange, String routingKey,
+							BasicProperties properties, byte[] body) {
+						reply(properties, StageReplies.MEDIA);
+						reply(properties, StageReplies.SEMANTICS);
+					}
+				}));
+		metadataPublisher.start();
+
+		dropFilterPublisher = new DropFilterPublisher();
+		dropFilterPublisher.setDropFilterQueue(dropFilterQueue);
+		dropFilterPublisher.setMessageConverter(new JsonMessageConverter());
+		dropFilterPublisher.setCallbackQueueName("DROP_CB_QUEUE_benchmark");
+		dropFilterPublisher.setInFlightDropStore(inFlightDropStore);
+		dropFilterPublisher.setInFlightDropExpiry(inFlightDropExpiry);
+		dropFilterPublisher.setConnectionFactory(new InMemoryConnectionFactory(
+				new InMemoryConnectionFactory.MessageSink() {
+					public void onPublish(String exchange, String routingKey,
+							BasicProperties properties, byte[] body) {
+						reply(properties, StageReplies.RULES);
+					}
+				}));
+		dropFilterPublisher.start();
+
+		Pipeline pipeline = StageReplies.pipeline(metadataPublisher, dropFilterPublisher);
+		metadataResponseHandler.setPipeline(pipeline);
+
+		dropHandler = new DropHandler();
+		dropHandler.setDropDecoder(new RawDropDecoder(objectMapper));
+		dropHandler.setInFlightDropStore(inFlightDropStore);
+		dropHandler.setPipeline(pipeline);
+
+		channel = new InMemoryConnectionFactory(null).createConnection()
+				.createChannel(false);
+		for (int i = 0; i < replyConsumers; i++) {
+			startThread("Reply-Consumer-" + i, new Runnable() {
+				public void run() {
+					try {
+						while (true) {
+							metadataResponseHandler.onMessage(replyQueue.take(), channel);
+						}
+					} catch (InterruptedException e) {
+						// Torn down
+					} catch (Exception e) {
+						throw new IllegalStateException(e);
+					}
+				}
+			});
+		}
+
+		// Stands in for the API publisher
+		startThread("Publish-Queue-Drain", new Runnable() {
+			public void run() {
+				List<RawDrop> batch = new ArrayList<RawDrop>();
+				try {
+					while (true) {
+						batch.add(publishQueue.take());
+						publishQueue.drainTo(batch);
+						batch.clear();
+					}
+				} catch (InterruptedException e) {
+					// Torn down
+				}
+			}
+		});
+	}
+
+	private void startThread(String name, Runnable runnable) {
+		Thread thread = new Thread(runnable, name);
+		thread.setDaemon(true);
+		thread.start();
+		threads.add(thread);
+	}
+
+	private void reply(BasicProperties properties, byte[] reply) {
+		MessageProperties messageProperties = new MessageProperties();
+		messageProperties.setCorrelationId(properties.getCorrelationId().getBytes());
+		replyQueue.add(new Message(reply, messageProperties));
+	}
+
+	@TearDown
+	public void tearDown() throws InterruptedException {
+		metadataPublisher.shutdown();
+		dropFilterPublisher.shutdown();
+		inFlightDropExpiry.interrupt();
+		for (Thread thread : threads) {
+			thread.interrupt();
+		}
+	}
+
+	private void ingest() throws Exception {
+		MessageProperties messageProperties = new MessageProperties();
+		messageProperties.setDeliveryTag(deliveryTags.incrementAndGet());
+		dropHandler.onMessage(new Message(body, messageProperties), channel);
+	}
+
+	@Benchmark
+	@Threads(1)
+	public void oneConsumer() throws Exception {
+		ingest();
+	}
+
+	@Benchmark
+	@Threads(4)
+	public void fourConsumers() throws Exception {
+		ingest();
+	}
+}
@@ -0,0 +1,98 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/agpl.html>
+ * 
+ * Copyright (C) Ushahidi Inc. All Rights Reserved.
+ */
+package com.ushahidi.swiftriver.core.dropqueue.benchmark;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ushahidi.swiftriver.core.dropqueue.Publisher;
+import com.ushahidi.swiftriver.core.dropqueue.model.RawDrop;
+import com.ushahidi.swiftriver.core.dropqueue.support.ApiDropWriter;
+import com.ushahidi.swiftriver.core.dropqueue.support.RawDropDecoder;
+
+/**
+ * Measures {@link Publisher#postDrops(List)} for a batch of drops through
+ * each of the ways the publisher can post: the API client, which converts
+ * the batch to its own model, a buffered JSON body and a streamed one. The
+ * API is stood in for by an {@link InMemorySwiftRiverClient} and an
+ * {@link InMemoryHttpTransport}, so the scores are the processor's own
+ * cost of posting a batch.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PublisherBenchmark {
+
+	@Param({Corpus.TWEET, Corpus.RSS, Corpus.SMS})
+	public String drop;
+
+	@Param({"client", "buffered", "streamed"})
+	public String mode;
+
+	@Param({"1000"})
+	public int batchSize;
+
+	private Publisher publisher;
+
+	private List<RawDrop> rawDrops;
+
+	@Setup
+	public void setup() throws IOException {
+		ObjectMapper objectMapper = new ObjectMapper();
+		RawDropDecoder decoder = new RawDropDecoder(objectMapper);
+		byte[] body = Corpus.load(drop);
+		rawDrops = new ArrayList<RawDrop>();
+		for (int i = 0; i < batchSize; i++) {
+			rawDrops.add(decoder.decode(ByteBuffer.wrap(body)));
+		}
+
+		publisher = new Publisher();
+		if (mode.equals("client")) {
+			publisher.setApiClient(new InMemorySwiftRiverClient());
+		} else {
+			publisher.setRequestFactory(new InMemoryHttpTransport()
+					.createRequestFactory());
+			publisher.setDropPostUrl("http://localhost/v1/drops");
+			publisher.setDropWriter(new ApiDropWriter(objectMapper));
+			publisher.setStreaming(mode.equals("streamed"));
+		}
+	}
+
+	@Benchmark
+	public boolean postBatch() {
+		return publisher.postDrops(rawDrops);
+	}
+}
@@ -0,0 +1,109 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/agpl.html>
+ * 
+ * Copyright (C) Ushahidi Inc. All Rights Reserved.
+ */
+package com.ushahidi.swiftriver.core.dropqueue.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Control;
+
+import com.ushahidi.swiftriver.core.dropqueue.support.Batches;
+
+/**
+ * Measures handing drops between pipeline threads through a
+ * {@link LinkedBlockingQueue}, as the processor's queues are, or an
+ * {@link ArrayBlockingQueue}. Four producers, like the drop queue
+ * consumers, offer drops to the queue while one consumer drains it in
+ * batches with {@link Batches#drain}, as the publishers do. The queues
+ * are bounded as the in-flight store bounds them in the processor, and a
+ * producer keeps retrying its offer until the drop is taken or the
+ * iteration ends, so the <code>put</code> score is the handoff rate.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueueHandoffBenchmark {
+
+	@Param({"linked", "array"})
+	public String queueType;
+
+	@Param({"100"})
+	public int batchSize;
+
+	private static final int CAPACITY = 10000;
+
+	private BlockingQueue<Object> queue;
+
+	private final Object drop = new Object();
+
+	/**
+	 * The consumer's batch, reused across drains
+	 */
+	@State(Scope.Thread)
+	public static class Batch {
+
+		final List<Object> drops = new ArrayList<Object>();
+	}
+
+	@Setup
+	public void setup() {
+		if (queueType.equals("linked")) {
+			queue = new LinkedBlockingQueue<Object>(CAPACITY);
+		} else {
+			queue = new ArrayBlockingQueue<Object>(CAPACITY);
+		}
+	}
+
+	@Benchmark
+	@Group("handoff")
+	@GroupThreads(4)
+	public void put(Control control) throws InterruptedException {
+		while (!control.stopMeasurement) {
+			if (queue.offer(drop, 1, TimeUnit.MILLISECONDS)) {
+				return;
+			}
+		}
+	}
+
+	@Benchmark
+	@Group("handoff")
+	@GroupThreads(1)
+	public int drain(Batch batch) throws InterruptedException {
+		batch.drops.clear();
+		return Batches.drain(queue, batch.drops, batchSize, 0, 1);
+	}
+}
@@ -0,0 +1,118 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/agpl.html>
+ * 
+ * Copyright (C) Ushahidi Inc. All Rights Reserved.
+ */
+package com.ushahidi.swiftriver.core.dropqueue.benchmark;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+
+import com.rabbitmq.client.Channel;
+import com.ushahidi.swiftriver.core.dropqueue.InFlightDrop;
+import com.ushahidi.swiftriver.core.dropqueue.InFlightDropStore;
+import com.ushahidi.swiftriver.core.dropqueue.MetadataResponseHandler;
+import com.ushahidi.swiftriver.core.dropqueue.model.RawDrop;
+import com.ushahidi.swiftriver.core.dropqueue.support.CorrelationIds;
+import com.ushahidi.swiftriver.core.dropqueue.support.MetadataReplyDecoder;
+import com.ushahidi.swiftriver.core.dropqueue.support.RawDropDecoder;
+
+/**
+ * Measures {@link MetadataResponseHandler#onMessage} merging media replies
+ * from 4 consumers into <code>sharedDrops</code> in-flight drops. With
+ * one shared drop every merge contends for the same drop's lock; with
+ * many, merges only contend on the store's segments.
+ * 
+ * The drops never receive a semantics reply so they stay in flight.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class ReplyMergeBenchmark {
+
+	@Param({"1", "16", "1024"})
+	public int sharedDrops;
+
+	private MetadataResponseHandler metadataResponseHandler;
+
+	private Message[] replies;
+
+	private Channel channel;
+
+	/**
+	 * Each consumer's position in the replies
+	 */
+	@State(Scope.Thread)
+	public static class Cursor {
+
+		int next;
+	}
+
+	@Setup
+	public void setup() throws IOException, InterruptedException {
+		ObjectMapper objectMapper = new ObjectMapper();
+		RawDropDecoder decoder = new RawDropDecoder(objectMapper);
+		byte[] body = Corpus.load(Corpus.TWEET);
+		InFlightDropStore inFlightDropStore = new InFlightDropStore(sharedDrops);
+
+		String json = "{\"source\": \"mediaextractor\","
+				+ " \"links\": [{\"url\": \"http://example.com/story\", \"original_url\": true}],"
+				+ " \"media\": [{\"url\": \"http://example.com/image.jpg\", \"type\": \"image\"}]}";
+		replies = new Message[sharedDrops];
+		for (int i = 0; i < sharedDrops; i++) {
+			RawDrop drop = decoder.decode(ByteBuffer.wrap(body));
+			InFlightDrop inFlightDrop = inFlightDropStore.register(drop, null);
+			MessageProperties messageProperties = new MessageProperties();
+			messageProperties.setCorrelationId(CorrelationIds.toBytes(inFlightDrop.getId()));
+			replies[i] = new Message(json.getBytes("UTF-8"), messageProperties);
+		}
+
+		metadataResponseHandler = new MetadataResponseHandler();
+		metadataResponseHandler.setReplyDecoder(new MetadataReplyDecoder(objectMapper));
+		metadataResponseHandler.setInFlightDropStore(inFlightDropStore);
+		metadataResponseHandler.setPublishQueue(new LinkedBlockingQueue<RawDrop>());
+		metadataResponseHandler.setPipeline(StageReplies.pipeline(null, null));
+		channel = new InMemoryConnectionFactory(null).createConnection()
+				.createChannel(false);
+	}
+
+	@Benchmark
+	public void mergeMediaReply(Cursor cursor) throws Exception {
+		int next = cursor.next;
+		cursor.next = next + 1 == replies.length ? 0 : next + 1;
+		metadataResponseHandler.onMessage(replies[next], channel);
+	}
+}
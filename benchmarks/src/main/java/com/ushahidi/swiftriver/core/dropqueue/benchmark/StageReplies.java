@@ -0,0 +1,73 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/agpl.html>
+ * 
+ * Copyright (C) Ushahidi Inc. All Rights Reserved.
+ */
+package com.ushahidi.swiftriver.core.dropqueue.benchmark;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+
+import com.ushahidi.swiftriver.core.dropqueue.InFlightDropPublisher;
+import com.ushahidi.swiftriver.core.dropqueue.Pipeline;
+import com.ushahidi.swiftriver.core.dropqueue.Stage;
+
+/**
+ * Replies like those the media extractor, semantics and rules processors
+ * send for a drop
+ */
+public final class StageReplies {
+
+	public static final byte[] MEDIA = json("{\"source\": \"mediaextractor\","
+			+ " \"links\": [{\"url\": \"http://example.com/story\", \"original_url\": true}],"
+			+ " \"media\": [{\"url\": \"http://example.com/image.jpg\", \"type\": \"image\","
+			+ " \"droplet_image\": true}]}");
+
+	public static final byte[] SEMANTICS = json("{\"source\": \"semantics\","
+			+ " \"tags\": [{\"tag_name\": \"Nairobi\", \"tag_type\": \"place\"}],"
+			+ " \"places\": [{\"place_name\": \"Nairobi\", \"latitude\": -1.28,"
+			+ " \"longitude\": 36.82}]}");
+
+	public static final byte[] RULES = json("{\"source\": \"rules\","
+			+ " \"river_id\": [2, 7], \"bucket_id\": [4], \"mark_as_read\": []}");
+
+	private StageReplies() {
+	}
+
+	/**
+	 * @param metadataPublisher sends drops to the media extractor and
+	 *            semantics processors
+	 * @param dropFilterPublisher sends drops to the rules processor
+	 * @return the pipeline the processor is configured with out of the box
+	 */
+	public static Pipeline pipeline(InFlightDropPublisher metadataPublisher,
+			InFlightDropPublisher dropFilterPublisher) {
+		Stage media = new Stage("media", "mediaextractor", "media", "links");
+		media.setPublisher(metadataPublisher);
+		Stage semantics = new Stage("semantics", "semantics", "tags", "places");
+		semantics.setPublisher(metadataPublisher);
+		Stage rules = new Stage("rules", "rules", "bucket_id", "river_id", "mark_as_read");
+		rules.setPublisher(dropFilterPublisher);
+		rules.setDependsOn(Arrays.asList(media, semantics));
+		return new Pipeline(media, semantics, rules);
+	}
+
+	private static byte[] json(String json) {
+		try {
+			return json.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
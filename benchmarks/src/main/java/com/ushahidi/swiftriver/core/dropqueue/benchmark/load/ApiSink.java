@@ -0,0 +1,212 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/agpl.html>
+ * 
+ * Copyright (C) Ushahidi Inc. All Rights Reserved.
+ */
+package com.ushahidi.swiftriver.core.dropqueue.benchmark.load;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local HTTP server standing in for the SwiftRiver API. It grants a token at
+ * <code>/token</code> and accepts drop batches at <code>/drops</code>,
+ * plain or gzipped and whole or chunked, after a delay drawn from its
+ * {@link Delay}.
+ * 
+ * The original ID of each drop posted is handed to the
+ * {@link LoadGenerator}, which set it when publishing the drop, to record
+ * the drop's end to end latency.
+ */
+public class ApiSink {
+
+	final static Logger logger = LoggerFactory.getLogger(ApiSink.class);
+
+	private static final byte[] TOKEN = ("{\"access_token\": \"load-test\","
+			+ " \"token_type\": \"Bearer\", \"expires_in\": 86400}").getBytes();
+
+	private final JsonFactory jsonFactory = new JsonFactory();
+
+	private final AtomicLong batches = new AtomicLong();
+
+	private final AtomicLong bytes = new AtomicLong();
+
+	private final Delay delay;
+
+	private final LoadGenerator loadGenerator;
+
+	private HttpServer server;
+
+	private ExecutorService executor;
+
+	public ApiSink(Delay delay, LoadGenerator loadGenerator) {
+		this.delay = delay;
+		this.loadGenerator = loadGenerator;
+		jsonFactory.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+	}
+
+	public long getBatches() {
+		return batches.get();
+	}
+
+	public long getBytes() {
+		return bytes.get();
+	}
+
+	/**
+	 * @return base URL of the API, without a trailing slash
+	 */
+	public String getUrl() {
+		return "http://127.0.0.1:" + server.getAddress().getPort();
+	}
+
+	public void start() throws IOException {
+		executor = Executors.newCachedThreadPool(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "ApiSink");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.setExecutor(executor);
+		server.createContext("/token", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				drain(exchange.getRequestBody());
+				respond(exchange, TOKEN);
+			}
+		});
+		server.createContext("/drops", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					receive(exchange);
+				} catch (Exception e) {
+					logger.error("Failed to read posted drops", e);
+					exchange.sendResponseHeaders(400, -1);
+					exchange.close();
+				}
+			}
+		});
+		server.start();
+	}
+
+	public void shutdown() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	private void receive(HttpExchange exchange) throws Exception {
+		InputStream in = exchange.getRequestBody();
+		CountingInputStream counted = new CountingInputStream(in);
+		in = counted;
+		if ("gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst(
+				"Content-Encoding"))) {
+			in = new GZIPInputStream(in);
+		}
+
+		long[] publishedAt = new long[64];
+		int n = 0;
+		JsonParser parser = jsonFactory.createJsonParser(in);
+		try {
+			JsonToken token;
+			while ((token = parser.nextToken()) != null) {
+				if (token == JsonToken.FIELD_NAME
+						&& parser.getCurrentName().equals("original_id")
+						&& parser.nextToken() == JsonToken.VALUE_STRING) {
+					long time = LoadGenerator.publishedAt(parser.getText());
+					if (n == publishedAt.length) {
+						long[] grown = new long[n * 2];
+						System.arraycopy(publishedAt, 0, grown, 0, n);
+						publishedAt = grown;
+					}
+					publishedAt[n++] = time;
+				}
+			}
+		} finally {
+			parser.close();
+		}
+		drain(in);
+
+		long wait = delay.sample();
+		if (wait > 0) {
+			TimeUnit.MILLISECONDS.sleep(wait);
+		}
+		// Only count the drops once the post has succeeded
+		respond(exchange, "{}".getBytes());
+		batches.incrementAndGet();
+		bytes.addAndGet(counted.count);
+		loadGenerator.posted(publishedAt, n);
+	}
+
+	private static void respond(HttpExchange exchange, byte[] body)
+			throws IOException {
+		exchange.getResponseHeaders().set("Content-Type",
+				"application/json; charset=UTF-8");
+		exchange.sendResponseHeaders(200, body.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(body);
+		out.close();
+	}
+
+	private static void drain(InputStream in) throws IOException {
+		byte[] buffer = new byte[4096];
+		while (in.read(buffer) != -1) {
+		}
+		in.close();
+	}
+
+	private static class CountingInputStream extends FilterInputStream {
+
+		private long count;
+
+		private CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		public int read() throws IOException {
+			int b = super.read();
+			if (b != -1) {
+				count++;
+			}
+			return b;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			int read = super.read(b, off, len);
+			if (read > 0) {
+				count += read;
+			}
+			return read;
+		}
+	}
+}
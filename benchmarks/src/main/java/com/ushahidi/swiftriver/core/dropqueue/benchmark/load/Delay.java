@@ -0,0 +1,82 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/agpl.html>
+ * 
+ * Copyright (C) Ushahidi Inc. All Rights Reserved.
+ */
+package com.ushahidi.swiftriver.core.dropqueue.benchmark.load;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A distribution of delays in milliseconds, parsed from one of
+ * 
+ * <pre>
+ * 25            always 25ms
+ * 5-50          uniform between 5ms and 50ms
+ * exp:20        exponential with a mean of 20ms
+ * </pre>
+ */
+public abstract class Delay {
+
+	/**
+	 * @return a delay in milliseconds
+	 */
+	public abstract long sample();
+
+	public static Delay parse(String spec) {
+		spec = spec.trim();
+		if (spec.startsWith("exp:")) {
+			final double mean = Double.parseDouble(spec.substring(4));
+			return new Delay() {
+				public long sample() {
+					double u = ThreadLocalRandom.current().nextDouble();
+					return Math.round(-mean * Math.log(1 - u));
+				}
+
+				public String toString() {
+					return "exp:" + mean;
+				}
+			};
+		}
+
+		int dash = spec.indexOf('-');
+		if (dash > 0) {
+			final long min = Long.parseLong(spec.substring(0, dash));
+			final long max = Long.parseLong(spec.substring(dash + 1));
+			if (max < min) {
+				throw new IllegalArgumentException("Bad delay range " + spec);
+			}
+			return new Delay() {
+				public long sample() {
+					return min + ThreadLocalRandom.current().nextLong(max - min + 1);
+				}
+
+				public String toString() {
+					return min + "-" + max;
+				}
+			};
+		}
+
+		final long delay = Long.parseLong(spec);
+		return new Delay() {
+			public long sample() {
+				return delay;
+			}
+
+			public String toString() {
+				return Long.toString(delay);
+			}
+		};
+	}
+}
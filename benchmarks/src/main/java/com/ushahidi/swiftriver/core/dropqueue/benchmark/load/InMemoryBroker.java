@@ -0,0 +1,651 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/agpl.html>
+ * 
+ * Copyright (C) Ushahidi Inc. All Rights Reserved.
+ */
+package com.ushahidi.swiftriver.core.dropqueue.benchmark.load;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.rabbit.connection.Connection;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.amqp.rabbit.connection.ConnectionListener;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.Consumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.impl.AMQImpl;
+
+/**
+ * {@link ConnectionFactory} standing in for a RabbitMQ broker in the load
+ * harness. It supports what the processor and the simulated stages use:
+ * direct and fanout exchanges and the default exchange, named and
+ * server-named queues, consumers limited by <code>basicQos</code>, acks,
+ * nacks and rejects with requeueing, and publisher confirms. Nothing is
+ * persisted and every channel shares the one connection.
+ * 
+ * Each consuming channel hands deliveries to its consumers on a thread of
+ * its own in delivery tag order, as the AMQP client's dispatcher does.
+ */
+public class InMemoryBroker implements ConnectionFactory {
+
+	final static Logger logger = LoggerFactory.getLogger(InMemoryBroker.class);
+
+	private final ConcurrentMap<String, Exchange> exchanges = new ConcurrentHashMap<String, Exchange>();
+
+	private final ConcurrentMap<String, BrokerQueue> queues = new ConcurrentHashMap<String, BrokerQueue>();
+
+	private final List<ConnectionListener> connectionListeners = new CopyOnWriteArrayList<ConnectionListener>();
+
+	private boolean connected;
+
+	private final AtomicInteger channelNumbers = new AtomicInteger();
+
+	private final AtomicInteger generatedNames = new AtomicInteger();
+
+	private final Connection connection = new Connection() {
+		public Channel createChannel(boolean transactional) {
+			return (Channel) Proxy.newProxyInstance(
+					Channel.class.getClassLoader(),
+					new Class<?>[] {Channel.class}, new BrokerChannel());
+		}
+
+		public void close() {
+		}
+
+		public boolean isOpen() {
+			return true;
+		}
+	};
+
+	/**
+	 * Returns the broker's single connection, notifying the connection
+	 * listeners the first time so that <code>RabbitAdmin</code>s declare
+	 * their exchanges, queues and bindings. Other callers wait until they
+	 * have.
+	 */
+	public synchronized Connection createConnection() throws AmqpException {
+		if (!connected) {
+			connected = true;
+			for (ConnectionListener listener : connectionListeners) {
+				listener.onCreate(connection);
+			}
+		}
+		return connection;
+	}
+
+	public String getHost() {
+		return "localhost";
+	}
+
+	public int getPort() {
+		return 5672;
+	}
+
+	public String getVirtualHost() {
+		return "/";
+	}
+
+	public synchronized void addConnectionListener(ConnectionListener listener) {
+		connectionListeners.add(listener);
+		if (connected) {
+			listener.onCreate(connection);
+		}
+	}
+
+	/**
+	 * @param queueName
+	 * @return the number of messages ready for delivery on the queue or 0
+	 *         if there is no such queue
+	 */
+	public int getMessageCount(String queueName) {
+		BrokerQueue queue = queues.get(queueName);
+		return queue == null ? 0 : queue.getMessageCount();
+	}
+
+	private List<BrokerQueue> route(String exchangeName, String routingKey)
+			throws IOException {
+		List<BrokerQueue> routed = new ArrayList<BrokerQueue>();
+		if (exchangeName.length() == 0) {
+			BrokerQueue queue = queues.get(routingKey);
+			if (queue != null) {
+				routed.add(queue);
+			}
+			return routed;
+		}
+
+		Exchange exchange = exchanges.get(exchangeName);
+		if (exchange == null) {
+			throw new IOException("NOT_FOUND - no exchange '" + exchangeName + "'");
+		}
+		for (Binding binding : exchange.bindings) {
+			if (exchange.fanout || binding.routingKey.equals(routingKey)) {
+				routed.add(binding.queue);
+			}
+		}
+		return routed;
+	}
+
+	private BrokerQueue getQueue(String queueName) throws IOException {
+		BrokerQueue queue = queues.get(queueName);
+		if (queue == null) {
+			throw new IOException("NOT_FOUND - no queue '" + queueName + "'");
+		}
+		return queue;
+	}
+
+	private static class Exchange {
+
+		private final boolean fanout;
+
+		private final List<Binding> bindings = new CopyOnWriteArrayList<Binding>();
+
+		private Exchange(String type) {
+			this.fanout = type.equals("fanout");
+		}
+
+		private synchronized void bind(BrokerQueue queue, String routingKey) {
+			for (Binding binding : bindings) {
+				if (binding.queue == queue && binding.routingKey.equals(routingKey)) {
+					return;
+				}
+			}
+			bindings.add(new Binding(queue, routingKey));
+		}
+	}
+
+	private static class Binding {
+
+		private final BrokerQueue queue;
+
+		private final String routingKey;
+
+		private Binding(BrokerQueue queue, String routingKey) {
+			this.queue = queue;
+			this.routingKey = routingKey;
+		}
+	}
+
+	private static class Message {
+
+		private final String exchange;
+
+		private final String routingKey;
+
+		private final BasicProperties properties;
+
+		private final byte[] body;
+
+		private volatile boolean redelivered;
+
+		private Message(String exchange, String routingKey,
+				BasicProperties properties, byte[] body) {
+			this.exchange = exchange;
+			this.routingKey = routingKey;
+			this.properties = properties;
+			this.body = body;
+		}
+	}
+
+	private static class Subscription {
+
+		private final String consumerTag;
+
+		private final Consumer consumer;
+
+		private final boolean noAck;
+
+		private final BrokerChannel channel;
+
+		private Subscription(String consumerTag, Consumer consumer,
+				boolean noAck, BrokerChannel channel) {
+			this.consumerTag = consumerTag;
+			this.consumer = consumer;
+			this.noAck = noAck;
+			this.channel = channel;
+		}
+	}
+
+	private static class Unacked {
+
+		private final BrokerQueue queue;
+
+		private final Message message;
+
+		private Unacked(BrokerQueue queue, Message message) {
+			this.queue = queue;
+			this.message = message;
+		}
+	}
+
+	/**
+	 * Messages waiting on a queue, handed to its consumers in turn. The
+	 * queue is locked before any of the consumers' channels.
+	 */
+	private static class BrokerQueue {
+
+		private final String name;
+
+		private final Deque<Message> messages = new ArrayDeque<Message>();
+
+		private final List<Subscription> subscriptions = new ArrayList<Subscription>();
+
+		private int nextSubscription;
+
+		private BrokerQueue(String name) {
+			this.name = name;
+		}
+
+		private synchronized int getMessageCount() {
+			return messages.size();
+		}
+
+		private synchronized int getConsumerCount() {
+			return subscriptions.size();
+		}
+
+		private synchronized void enqueue(Message message) {
+			messages.addLast(message);
+			dispatch();
+		}
+
+		private synchronized void requeue(List<Message> requeued) {
+			for (int i = requeued.size() - 1; i >= 0; i--) {
+				Message message = requeued.get(i);
+				message.redelivered = true;
+				messages.addFirst(message);
+			}
+			dispatch();
+		}
+
+		private synchronized void subscribe(Subscription subscription) {
+			subscriptions.add(subscription);
+			dispatch();
+		}
+
+		private synchronized boolean unsubscribe(Subscription subscription) {
+			return subscriptions.remove(subscription);
+		}
+
+		/**
+		 * Hands out messages round robin until the queue is empty or every
+		 * consumer has used up its prefetch.
+		 */
+		private synchronized void dispatch() {
+			while (!messages.isEmpty() && !subscriptions.isEmpty()) {
+				int n = subscriptions.size();
+				boolean delivered = false;
+				for (int i = 0; i < n && !delivered; i++) {
+					int index = (nextSubscription + i) % n;
+					Subscription subscription = subscriptions.get(index);
+					if (subscription.channel.deliver(subscription, this,
+							messages.peekFirst())) {
+						messages.pollFirst();
+						nextSubscription = (index + 1) % n;
+						delivered = true;
+					}
+				}
+				if (!delivered) {
+					return;
+				}
+			}
+		}
+	}
+
+	private class BrokerChannel implements InvocationHandler {
+
+		private final int channelNumber = channelNumbers.incrementAndGet();
+
+		private final TreeMap<Long, Unacked> unacked = new TreeMap<Long, Unacked>();
+
+		private final Map<String, Subscription> subscriptions = new HashMap<String, Subscription>();
+
+		private final Map<Subscription, BrokerQueue> subscribedQueues = new HashMap<Subscription, BrokerQueue>();
+
+		private final List<ConfirmListener> confirmListeners = new CopyOnWriteArrayList<ConfirmListener>();
+
+		private ExecutorService dispatcher;
+
+		private long deliveryTag;
+
+		private int prefetch;
+
+		private boolean confirms;
+
+		private long nextPublishSeqNo = 1;
+
+		private volatile boolean open = true;
+
+		public Object invoke(Object proxy, Method method, Object[] args)
+				throws Throwable {
+			try {
+				return handle(proxy, method, args);
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+		}
+
+		private Object handle(Object proxy, Method method, Object[] args)
+				throws Exception {
+			String name = method.getName();
+			switch (name) {
+			case "basicPublish":
+				publish((String) args[0], (String) args[1],
+						(BasicProperties) args[args.length - 2],
+						(byte[]) args[args.length - 1]);
+				return null;
+			case "basicConsume":
+				return consume(args);
+			case "basicCancel":
+				cancel((String) args[0]);
+				return null;
+			case "basicAck":
+				settle((Long) args[0], (Boolean) args[1], false);
+				return null;
+			case "basicNack":
+				settle((Long) args[0], (Boolean) args[1], (Boolean) args[2]);
+				return null;
+			case "basicReject":
+				settle((Long) args[0], false, (Boolean) args[1]);
+				return null;
+			case "basicRecover":
+				recover();
+				return new AMQImpl.Basic.RecoverOk();
+			case "basicQos":
+				synchronized (this) {
+					prefetch = (Integer) args[args.length == 1 ? 0 : 1];
+				}
+				return null;
+			case "confirmSelect":
+				synchronized (this) {
+					confirms = true;
+				}
+				return new AMQImpl.Confirm.SelectOk();
+			case "getNextPublishSeqNo":
+				synchronized (this) {
+					return confirms ? nextPublishSeqNo : 0L;
+				}
+			case "addConfirmListener":
+				confirmListeners.add((ConfirmListener) args[0]);
+				return null;
+			case "removeConfirmListener":
+				return confirmListeners.remove(args[0]);
+			case "exchangeDeclare":
+				exchanges.putIfAbsent((String) args[0], new Exchange(args[1].toString()));
+				return new AMQImpl.Exchange.DeclareOk();
+			case "exchangeDeclarePassive":
+				if (!exchanges.containsKey(args[0])) {
+					throw new IOException("NOT_FOUND - no exchange '" + args[0] + "'");
+				}
+				return new AMQImpl.Exchange.DeclareOk();
+			case "queueDeclare":
+				return declareQueue(args == null ? "" : (String) args[0]);
+			case "queueDeclarePassive":
+				BrokerQueue queue = getQueue((String) args[0]);
+				return new AMQImpl.Queue.DeclareOk(queue.name,
+						queue.getMessageCount(), queue.getConsumerCount());
+			case "queueBind":
+				Exchange exchange = exchanges.get(args[1]);
+				if (exchange == null) {
+					throw new IOException("NOT_FOUND - no exchange '" + args[1] + "'");
+				}
+				exchange.bind(getQueue((String) args[0]), (String) args[2]);
+				return new AMQImpl.Queue.BindOk();
+			case "close":
+			case "abort":
+				close();
+				return null;
+			case "isOpen":
+				return open;
+			case "getChannelNumber":
+				return channelNumber;
+			case "hashCode":
+				return System.identityHashCode(proxy);
+			case "equals":
+				return proxy == args[0];
+			case "toString":
+				return "InMemoryBroker channel " + channelNumber;
+			default:
+				// Shutdown listeners, transactions and flow control are not
+				// simulated
+				Class<?> returnType = method.getReturnType();
+				if (returnType == boolean.class) {
+					return false;
+				} else if (returnType == int.class) {
+					return 0;
+				} else if (returnType == long.class) {
+					return 0L;
+				}
+				return null;
+			}
+		}
+
+		private Object declareQueue(String queueName) {
+			if (queueName.length() == 0) {
+				queueName = "amq.gen-" + generatedNames.incrementAndGet();
+			}
+			queues.putIfAbsent(queueName, new BrokerQueue(queueName));
+			BrokerQueue queue = queues.get(queueName);
+			return new AMQImpl.Queue.DeclareOk(queue.name,
+					queue.getMessageCount(), queue.getConsumerCount());
+		}
+
+		private void publish(String exchange, String routingKey,
+				BasicProperties properties, byte[] body) throws IOException {
+			if (properties == null) {
+				properties = new BasicProperties();
+			}
+			for (BrokerQueue queue : route(exchange, routingKey)) {
+				queue.enqueue(new Message(exchange, routingKey, properties, body));
+			}
+
+			long seqNo;
+			synchronized (this) {
+				if (!confirms) {
+					return;
+				}
+				seqNo = nextPublishSeqNo++;
+			}
+			for (ConfirmListener listener : confirmListeners) {
+				listener.handleAck(seqNo, false);
+			}
+		}
+
+		private String consume(Object[] args) throws IOException {
+			BrokerQueue queue = getQueue((String) args[0]);
+			boolean noAck = args.length > 2 && (Boolean) args[1];
+			String consumerTag = args.length > 3 && args[2] instanceof String ? (String) args[2] : "";
+			if (consumerTag.length() == 0) {
+				consumerTag = "amq.ctag-" + generatedNames.incrementAndGet();
+			}
+
+			final Consumer consumer = (Consumer) args[args.length - 1];
+			final Subscription subscription = new Subscription(consumerTag,
+					consumer, noAck, this);
+			synchronized (this) {
+				if (dispatcher == null) {
+					dispatcher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+						public Thread newThread(Runnable r) {
+							Thread thread = new Thread(r, "InMemoryBroker-Channel-" + channelNumber);
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+				}
+				subscriptions.put(consumerTag, subscription);
+				subscribedQueues.put(subscription, queue);
+				dispatcher.execute(new Runnable() {
+					public void run() {
+						consumer.handleConsumeOk(subscription.consumerTag);
+					}
+				});
+			}
+			queue.subscribe(subscription);
+			return consumerTag;
+		}
+
+		private void cancel(String consumerTag) throws IOException {
+			final Subscription subscription;
+			BrokerQueue queue;
+			synchronized (this) {
+				subscription = subscriptions.remove(consumerTag);
+				if (subscription == null) {
+					throw new IOException("NOT_FOUND - no consumer '" + consumerTag + "'");
+				}
+				queue = subscribedQueues.remove(subscription);
+			}
+			queue.unsubscribe(subscription);
+			synchronized (this) {
+				dispatcher.execute(new Runnable() {
+					public void run() {
+						subscription.consumer.handleCancelOk(subscription.consumerTag);
+					}
+				});
+			}
+		}
+
+		/**
+		 * Hands a message to a consumer on this channel unless it is closed or
+		 * has used up its prefetch. Called with the queue locked.
+		 */
+		private synchronized boolean deliver(final Subscription subscription,
+				BrokerQueue queue, final Message message) {
+			if (!open || (!subscription.noAck && prefetch > 0 && unacked.size() >= prefetch)) {
+				return false;
+			}
+
+			long tag = ++deliveryTag;
+			if (!subscription.noAck) {
+				unacked.put(tag, new Unacked(queue, message));
+			}
+			final Envelope envelope = new Envelope(tag, message.redelivered,
+					message.exchange, message.routingKey);
+			dispatcher.execute(new Runnable() {
+				public void run() {
+					if (!open) {
+						// Requeued on close
+						return;
+					}
+					try {
+						subscription.consumer.handleDelivery(subscription.consumerTag,
+								envelope, message.properties, message.body);
+					} catch (Exception e) {
+						logger.error("Consumer " + subscription.consumerTag
+								+ " failed to handle a delivery", e);
+					}
+				}
+			});
+			return true;
+		}
+
+		private void settle(long tag, boolean multiple, boolean requeue)
+				throws IOException {
+			List<Unacked> settled = new ArrayList<Unacked>();
+			synchronized (this) {
+				if (multiple) {
+					SortedMap<Long, Unacked> head = unacked.headMap(tag, true);
+					settled.addAll(head.values());
+					head.clear();
+				} else {
+					Unacked entry = unacked.remove(tag);
+					if (entry == null) {
+						throw new IOException("PRECONDITION_FAILED - unknown delivery tag " + tag);
+					}
+					settled.add(entry);
+				}
+			}
+			release(settled, requeue);
+		}
+
+		private void recover() {
+			List<Unacked> settled;
+			synchronized (this) {
+				settled = new ArrayList<Unacked>(unacked.values());
+				unacked.clear();
+			}
+			release(settled, true);
+		}
+
+		private void close() {
+			List<Unacked> settled;
+			Map<Subscription, BrokerQueue> subscribed;
+			synchronized (this) {
+				if (!open) {
+					return;
+				}
+				open = false;
+				settled = new ArrayList<Unacked>(unacked.values());
+				unacked.clear();
+				subscribed = new HashMap<Subscription, BrokerQueue>(subscribedQueues);
+				subscriptions.clear();
+				subscribedQueues.clear();
+				if (dispatcher != null) {
+					dispatcher.shutdown();
+				}
+			}
+			for (Map.Entry<Subscription, BrokerQueue> entry : subscribed.entrySet()) {
+				entry.getValue().unsubscribe(entry.getKey());
+			}
+			release(settled, true);
+		}
+
+		/**
+		 * Requeues settled messages or lets their queues hand out more now
+		 * that the prefetch has room. Called with the channel unlocked.
+		 */
+		private void release(List<Unacked> settled, boolean requeue) {
+			Map<BrokerQueue, List<Message>> byQueue = new LinkedHashMap<BrokerQueue, List<Message>>();
+			for (Unacked entry : settled) {
+				List<Message> messages = byQueue.get(entry.queue);
+				if (messages == null) {
+					messages = new ArrayList<Message>();
+					byQueue.put(entry.queue, messages);
+				}
+				messages.add(entry.message);
+			}
+			for (Map.Entry<BrokerQueue, List<Message>> entry : byQueue.entrySet()) {
+				if (requeue) {
+					entry.getKey().requeue(entry.getValue());
+				} else {
+					entry.getKey().dispatch();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,226 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/agpl.html>
+ * 
+ * Copyright (C) Ushahidi Inc. All Rights Reserved.
+ */
+package com.ushahidi.swiftriver.core.dropqueue.benchmark.load;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.node.ObjectNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
+import com.ushahidi.swiftriver.core.dropqueue.metrics.Histogram;
+
+/**
+ * Stands in for the channel apps, publishing copies of a sample drop to the
+ * drops exchange at a steady rate. Each copy gets an original ID made of a
+ * sequence number and the time it was published, which the
+ * {@link ApiSink} hands back once the drop has been posted to the API so
+ * that its end to end latency can be recorded.
+ * 
+ * Publishing pauses while <code>maxOutstanding</code> drops are yet to be
+ * posted, so a processor that cannot keep up sees a backlog of at most that
+ * many drops and the rate achieved falls below the target.
+ */
+public class LoadGenerator {
+
+	final static Logger logger = LoggerFactory.getLogger(LoadGenerator.class);
+
+	private static final String ID_PREFIX = "load-";
+
+	private static final String ID_PLACEHOLDER = "LOAD_GENERATOR_ID";
+
+	private final byte[] head;
+
+	private final byte[] tail;
+
+	private final int rate;
+
+	private final int maxOutstanding;
+
+	private final Histogram latency = new Histogram();
+
+	private final Histogram intervalLatency = new Histogram();
+
+	private final AtomicLong published = new AtomicLong();
+
+	private final AtomicLong posted = new AtomicLong();
+
+	private volatile boolean running;
+
+	private Thread thread;
+
+	/**
+	 * @param drop JSON of the sample drop
+	 * @param rate drops to publish per second, or 0 for as many as the
+	 *            outstanding limit allows
+	 * @param maxOutstanding drops published but not yet posted to the API
+	 *            at which publishing pauses
+	 */
+	public LoadGenerator(byte[] drop, int rate, int maxOutstanding) {
+		this.rate = rate;
+		this.maxOutstanding = maxOutstanding;
+
+		byte[] template;
+		try {
+			ObjectMapper objectMapper = new ObjectMapper();
+			ObjectNode node = (ObjectNode) objectMapper.readTree(drop);
+			node.put("droplet_orig_id", ID_PLACEHOLDER);
+			template = objectMapper.writeValueAsBytes(node);
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Unreadable sample drop", e);
+		}
+		int at = indexOf(template, ID_PLACEHOLDER.getBytes());
+		head = new byte[at];
+		System.arraycopy(template, 0, head, 0, at);
+		int end = at + ID_PLACEHOLDER.length();
+		tail = new byte[template.length - end];
+		System.arraycopy(template, end, tail, 0, tail.length);
+	}
+
+	/**
+	 * @return latency in milliseconds from publishing a drop to the API
+	 *         accepting it
+	 */
+	public Histogram getLatency() {
+		return latency;
+	}
+
+	/**
+	 * @return latency of the drops posted since the histogram was last reset
+	 */
+	public Histogram getIntervalLatency() {
+		return intervalLatency;
+	}
+
+	public long getPublished() {
+		return published.get();
+	}
+
+	public long getPosted() {
+		return posted.get();
+	}
+
+	/**
+	 * @param originalId
+	 * @return the {@link System#nanoTime()} at which the drop with the given
+	 *         original ID was published or -1 if it is not one of ours
+	 */
+	public static long publishedAt(String originalId) {
+		if (!originalId.startsWith(ID_PREFIX)) {
+			return -1;
+		}
+		return Long.parseLong(originalId.substring(originalId.lastIndexOf('-') + 1));
+	}
+
+	/**
+	 * Records the drops posted to the API
+	 * 
+	 * @param publishedAt times at which the drops were published, or -1
+	 * @param count number of drops
+	 */
+	public void posted(long[] publishedAt, int count) {
+		long now = System.nanoTime();
+		for (int i = 0; i < count; i++) {
+			if (publishedAt[i] >= 0) {
+				long millis = TimeUnit.NANOSECONDS.toMillis(now - publishedAt[i]);
+				latency.record(millis);
+				intervalLatency.record(millis);
+			}
+		}
+		posted.addAndGet(count);
+	}
+
+	/**
+	 * Starts publishing drops on a thread of its own
+	 * 
+	 * @param channel
+	 * @param exchange
+	 * @param routingKey
+	 */
+	public void start(final Channel channel, final String exchange,
+			final String routingKey) {
+		running = true;
+		thread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					generate(channel, exchange, routingKey);
+				} catch (IOException e) {
+					logger.error("Failed to publish drops", e);
+				}
+			}
+		}, "Load-Generator");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public void stop() throws InterruptedException {
+		running = false;
+		thread.join();
+	}
+
+	private void generate(Channel channel, String exchange, String routingKey)
+			throws IOException {
+		BasicProperties properties = new BasicProperties.Builder()
+				.contentType("application/json").deliveryMode(2).build();
+		ByteArrayOutputStream body = new ByteArrayOutputStream(head.length
+				+ tail.length + 64);
+		long start = System.nanoTime();
+		long sent = 0;
+		long sequence = 0;
+		while (running) {
+			long due = rate > 0 ? (System.nanoTime() - start) * rate / 1000000000L
+					: Long.MAX_VALUE;
+			if (rate > 0 && due - sent > rate) {
+				// Held back by the outstanding limit. Carry on at the target
+				// rate rather than bursting to catch up
+				sent = due - rate;
+			}
+			if (sent >= due || published.get() - posted.get() >= maxOutstanding) {
+				LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+				continue;
+			}
+
+			sent++;
+			sequence++;
+			body.reset();
+			body.write(head);
+			body.write((ID_PREFIX + sequence + "-" + System.nanoTime()).getBytes());
+			body.write(tail);
+			channel.basicPublish(exchange, routingKey, properties, body.toByteArray());
+			published.incrementAndGet();
+		}
+	}
+
+	private static int indexOf(byte[] bytes, byte[] target) {
+		outer: for (int i = 0; i <= bytes.length - target.length; i++) {
+			for (int j = 0; j < target.length; j++) {
+				if (bytes[i + j] != target[j]) {
+					continue outer;
+				}
+			}
+			return i;
+		}
+		throw new IllegalStateException("Placeholder not found");
+	}
+}
@@ -0,0 +1,291 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/agpl.html>
+ * 
+ * Copyright (C) Ushahidi Inc. All Rights Reserved.
+ */
+package com.ushahidi.swiftriver.core.dropqueue.benchmark.load;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.context.support.AbstractApplicationContext;
+
+import com.rabbitmq.client.Channel;
+import com.ushahidi.swiftriver.core.dropqueue.DropQueueProcessor;
+import com.ushahidi.swiftriver.core.dropqueue.InFlightDropStore;
+import com.ushahidi.swiftriver.core.dropqueue.benchmark.Corpus;
+import com.ushahidi.swiftriver.core.dropqueue.benchmark.StageReplies;
+import com.ushahidi.swiftriver.core.dropqueue.metrics.Histogram;
+import com.ushahidi.swiftriver.core.dropqueue.metrics.MetricRegistry;
+
+/**
+ * Runs the whole processor, as wired in <code>appContext.xml</code>, under a
+ * sustained load and reports the rate at which drops are posted to the API,
+ * their end to end latency and the heap in use.
+ * 
+ * The broker is an {@link InMemoryBroker}, the media extractor, semantics
+ * and rules processors are {@link StageResponder}s, the channel apps are a
+ * {@link LoadGenerator} and the API is an {@link ApiSink}. Build the
+ * benchmarks and run from the benchmarks directory with
+ * 
+ * <pre>
+ * java -cp target/benchmarks.jar \
+ *     com.ushahidi.swiftriver.core.dropqueue.benchmark.load.LoadHarness \
+ *     rate=5000 duration=120 media=exp:200 loss.semantics=0.01
+ * </pre>
+ * 
+ * Arguments are <code>name=value</code> pairs:
+ * 
+ * <pre>
+ * duration   seconds to measure for, after the warmup (60)
+ * warmup     seconds of load before measuring (10)
+ * rate       drops published per second, 0 for as many as outstanding allows (2000)
+ * outstanding drops published but not yet posted at which publishing pauses (50000)
+ * drop       sample drop to publish: tweet, rss or sms (tweet)
+ * media, semantics, rules, api
+ *            reply delays in milliseconds of each stage and the API as
+ *            25, 5-50 or exp:20 (exp:50, exp:20, 5, 10)
+ * loss.media, loss.semantics, loss.rules
+ *            fraction of drops the stage never replies to (0)
+ * config     processor properties to start from (../config/queue-processor.properties)
+ * </pre>
+ * 
+ * Any other name containing a dot overrides the processor property of that
+ * name, for example <code>drops.expiry.media_timeout_ms=5000</code> so that
+ * lost replies are retried within the run.
+ */
+public class LoadHarness {
+
+	private static final Set<String> OPTIONS = new HashSet<String>(Arrays.asList(
+			"duration", "warmup", "rate", "outstanding", "drop", "media",
+			"semantics", "rules", "api", "loss.media", "loss.semantics",
+			"loss.rules", "config"));
+
+	private static final long MB = 1024 * 1024;
+
+	private final Map<String, String> options = new LinkedHashMap<String, String>();
+
+	private final Map<String, String> overrides = new LinkedHashMap<String, String>();
+
+	private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+	private long peakHeap;
+
+	public LoadHarness(String[] args) {
+		options.put("duration", "60");
+		options.put("warmup", "10");
+		options.put("rate", "2000");
+		options.put("outstanding", "50000");
+		options.put("drop", Corpus.TWEET);
+		options.put("media", "exp:50");
+		options.put("semantics", "exp:20");
+		options.put("rules", "5");
+		options.put("api", "10");
+		options.put("loss.media", "0");
+		options.put("loss.semantics", "0");
+		options.put("loss.rules", "0");
+		options.put("config", "../config/queue-processor.properties");
+
+		for (String arg : args) {
+			int eq = arg.indexOf('=');
+			if (eq <= 0) {
+				throw new IllegalArgumentException("Expected name=value but got " + arg);
+			}
+			String name = arg.substring(0, eq);
+			String value = arg.substring(eq + 1);
+			if (OPTIONS.contains(name)) {
+				options.put(name, value);
+			} else if (name.indexOf('.') > 0) {
+				overrides.put(name, value);
+			} else {
+				throw new IllegalArgumentException("Unknown option " + name);
+			}
+		}
+	}
+
+	public static void main(String[] args) {
+		int status = 0;
+		try {
+			new LoadHarness(args).run();
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = 1;
+		}
+		// Stray non-daemon threads are no reason to hang about
+		System.exit(status);
+	}
+
+	public void run() throws Exception {
+		LoadGenerator loadGenerator = new LoadGenerator(
+				Corpus.load(options.get("drop")), intOption("rate"),
+				intOption("outstanding"));
+		ApiSink apiSink = new ApiSink(Delay.parse(options.get("api")), loadGenerator);
+		apiSink.start();
+
+		File propertiesDir = writeProperties(apiSink.getUrl());
+		System.setProperty("ext.prop.dir", propertiesDir.getAbsolutePath());
+		AbstractApplicationContext context = DropQueueProcessor.start(
+				"appContext.xml", "load/loadContext.xml");
+
+		ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(4,
+				new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "Stage-Responder");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		InMemoryBroker broker = context.getBean(InMemoryBroker.class);
+		StageResponder[] responders = {
+				responder("MEDIA_QUEUE", StageReplies.MEDIA, "media"),
+				responder("SEMANTICS_QUEUE", StageReplies.SEMANTICS, "semantics"),
+				responder("RULES_QUEUE", StageReplies.RULES, "rules") };
+		responders[0].start(broker, "metadata", "", scheduler);
+		responders[1].start(broker, "metadata", "", scheduler);
+		responders[2].start(broker, "dropFilter", "", scheduler);
+
+		InFlightDropStore inFlightDropStore = context.getBean(InFlightDropStore.class);
+		Channel channel = broker.createConnection().createChannel(false);
+		loadGenerator.start(channel, "drops", "");
+		System.out.printf(Locale.US, "Publishing %s drops at %s/s, %s%n",
+				options.get("drop"), intOption("rate") > 0 ? options.get("rate")
+						: "max", Arrays.toString(responders));
+
+		int warmup = intOption("warmup");
+		int duration = intOption("duration");
+		long measureFrom = 0;
+		long postedBefore = loadGenerator.getPosted();
+		long publishedBefore = loadGenerator.getPublished();
+		long gcBefore = 0;
+		long start = System.nanoTime();
+		for (int second = 1; second <= warmup + duration; second++) {
+			long next = start + TimeUnit.SECONDS.toNanos(second);
+			TimeUnit.NANOSECONDS.sleep(next - System.nanoTime());
+
+			long published = loadGenerator.getPublished();
+			long posted = loadGenerator.getPosted();
+			long heap = memory.getHeapMemoryUsage().getUsed();
+			peakHeap = Math.max(peakHeap, heap);
+			Histogram latency = loadGenerator.getIntervalLatency();
+			System.out.printf(Locale.US, "%s%4ds  published %6d/s  posted %6d/s"
+					+ "  in flight %5d  backlog %6d  latency p50 %5d p99 %5d max %5d ms"
+					+ "  heap %4d MB%n", second <= warmup ? "w" : " ", second,
+					published - publishedBefore, posted - postedBefore,
+					inFlightDropStore.size(), broker.getMessageCount("DROPLET_QUEUE"),
+					latency.getPercentile(50), latency.getPercentile(99),
+					latency.getMax(), heap / MB);
+			latency.reset();
+			publishedBefore = published;
+			postedBefore = posted;
+
+			if (second == warmup) {
+				loadGenerator.getLatency().reset();
+				peakHeap = heap;
+				gcBefore = gcTime();
+				measureFrom = posted;
+			}
+		}
+		long measured = loadGenerator.getPosted() - measureFrom;
+		long gcTime = gcTime() - gcBefore;
+		loadGenerator.stop();
+
+		Histogram latency = loadGenerator.getLatency();
+		System.out.println();
+		System.out.printf(Locale.US, "Sustained       %.1f drops/s over %ds%n",
+				(double) measured / duration, duration);
+		System.out.printf(Locale.US, "Latency         p50 %d  p90 %d  p99 %d  p99.9 %d  max %d ms%n",
+				latency.getPercentile(50), latency.getPercentile(90),
+				latency.getPercentile(99), latency.getPercentile(99.9),
+				latency.getMax());
+		System.gc();
+		System.out.printf(Locale.US, "Heap            peak %d MB, %d MB after GC, %d ms in GC%n",
+				peakHeap / MB, memory.getHeapMemoryUsage().getUsed() / MB, gcTime);
+		System.out.printf(Locale.US, "API             %d batches, %d MB%n",
+				apiSink.getBatches(), apiSink.getBytes() / MB);
+		for (StageResponder responder : responders) {
+			System.out.printf(Locale.US, "%-16s%d replied, %d lost%n",
+					responder.getQueueName(), responder.getReplied(),
+					responder.getLost());
+		}
+		System.out.println();
+		System.out.println("Processor metrics:");
+		context.getBean(MetricRegistry.class).writeText(System.out);
+
+		context.close();
+		scheduler.shutdownNow();
+		apiSink.shutdown();
+	}
+
+	private StageResponder responder(String queueName, byte[] reply, String stage) {
+		return new StageResponder(queueName, reply, Delay.parse(options.get(stage)),
+				Double.parseDouble(options.get("loss." + stage)));
+	}
+
+	private int intOption(String name) {
+		return Integer.parseInt(options.get(name));
+	}
+
+	/**
+	 * Writes the processor properties, with the overrides and the API
+	 * pointed at the sink, to a directory of their own for the
+	 * <code>ext.prop.dir</code> placeholder
+	 */
+	private File writeProperties(String apiUrl) throws IOException {
+		overrides.put("api.token.server.url", apiUrl + "/token");
+		overrides.put("api.drops.post.url", apiUrl + "/drops");
+
+		File dir = Files.createTempDirectory("dropqueue-load").toFile();
+		dir.deleteOnExit();
+		File file = new File(dir, "queue-processor.properties");
+		file.deleteOnExit();
+		OutputStream out = new FileOutputStream(file);
+		try {
+			// Later definitions win
+			out.write(Files.readAllBytes(new File(options.get("config")).toPath()));
+			StringBuilder lines = new StringBuilder("\n# Load harness\n");
+			for (Map.Entry<String, String> override : overrides.entrySet()) {
+				lines.append(override.getKey()).append('=')
+						.append(override.getValue()).append('\n');
+			}
+			out.write(lines.toString().getBytes("ISO-8859-1"));
+		} finally {
+			out.close();
+		}
+		return dir;
+	}
+
+	private static long gcTime() {
+		long total = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			total += Math.max(0, gc.getCollectionTime());
+		}
+		return total;
+	}
+}
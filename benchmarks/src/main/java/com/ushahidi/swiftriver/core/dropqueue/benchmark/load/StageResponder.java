@@ -0,0 +1,133 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/agpl.html>
+ * 
+ * Copyright (C) Ushahidi Inc. All Rights Reserved.
+ */
+package com.ushahidi.swiftriver.core.dropqueue.benchmark.load;
+
+import java.io.IOException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+
+/**
+ * Simulates a processing stage: consumes the drops published to it on the
+ * {@link InMemoryBroker} and, after a delay drawn from its {@link Delay},
+ * sends a fixed reply to each drop's reply queue with the drop's
+ * correlation ID. A <code>loss</code> fraction of the drops is never
+ * replied to, as when an extractor dies part way through.
+ */
+public class StageResponder {
+
+	final static Logger logger = LoggerFactory.getLogger(StageResponder.class);
+
+	private final String queueName;
+
+	private final byte[] reply;
+
+	private final Delay delay;
+
+	private final double loss;
+
+	private final AtomicLong replied = new AtomicLong();
+
+	private final AtomicLong lost = new AtomicLong();
+
+	private Channel replyChannel;
+
+	/**
+	 * @param queueName queue the stage consumes
+	 * @param reply body of the replies
+	 * @param delay delay before each reply
+	 * @param loss fraction of the drops not replied to
+	 */
+	public StageResponder(String queueName, byte[] reply, Delay delay,
+			double loss) {
+		this.queueName = queueName;
+		this.reply = reply;
+		this.delay = delay;
+		this.loss = loss;
+	}
+
+	public String getQueueName() {
+		return queueName;
+	}
+
+	public long getReplied() {
+		return replied.get();
+	}
+
+	public long getLost() {
+		return lost.get();
+	}
+
+	/**
+	 * Binds the stage's queue to the exchange and starts replying
+	 * 
+	 * @param broker
+	 * @param exchange exchange the processor publishes the stage's drops to
+	 * @param routingKey
+	 * @param scheduler runs the delayed replies
+	 * @throws IOException
+	 */
+	public void start(InMemoryBroker broker, String exchange,
+			String routingKey, final ScheduledExecutorService scheduler)
+			throws IOException {
+		replyChannel = broker.createConnection().createChannel(false);
+		Channel channel = broker.createConnection().createChannel(false);
+		channel.queueDeclare(queueName, false, false, true, null);
+		channel.queueBind(queueName, exchange, routingKey);
+		channel.basicConsume(queueName, true, new DefaultConsumer(channel) {
+			public void handleDelivery(String consumerTag, Envelope envelope,
+					final BasicProperties properties, byte[] body) {
+				if (loss > 0 && ThreadLocalRandom.current().nextDouble() < loss) {
+					lost.incrementAndGet();
+					return;
+				}
+
+				scheduler.schedule(new Runnable() {
+					public void run() {
+						send(properties);
+					}
+				}, delay.sample(), TimeUnit.MILLISECONDS);
+			}
+		});
+	}
+
+	private void send(BasicProperties properties) {
+		BasicProperties replyProperties = new BasicProperties.Builder()
+				.contentType("application/json")
+				.correlationId(properties.getCorrelationId()).build();
+		try {
+			replyChannel.basicPublish("", properties.getReplyTo(),
+					replyProperties, reply);
+			replied.incrementAndGet();
+		} catch (IOException e) {
+			logger.error("{} failed to reply", queueName, e);
+		}
+	}
+
+	public String toString() {
+		return queueName + " delay=" + delay + " loss=" + loss;
+	}
+}
@@ -0,0 +1,374 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/agpl.html>
+ * 
+ * Copyright (C) Ushahidi Inc. All Rights Reserved.
+ */
+package com.ushahidi.swiftriver.core.dropqueue;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.rabbit.connection.ChannelProxy;
+
+import com.rabbitmq.client.Channel;
+
+/**
+ * Settles DROPLET_QUEUE deliveries, coalescing acks per channel.
+ * 
+ * Once started, acks and nacks made on any thread are only queued on a
+ * lock-free queue of the channel the delivery arrived on. The queue is
+ * drained by the consumer that owns the channel each time it registers a
+ * new delivery, so that channel operations stay on its thread, and by a
+ * flusher every <code>flushInterval</code> milliseconds for consumers
+ * that have gone idle. Only one thread drains a channel at a time.
+ * 
+ * Acks are sent as a single <code>basicAck(tag, multiple=true)</code> for
+ * the highest acked delivery tag below the channel's lowest delivery that
+ * is still outstanding, once <code>batchSize</code> of them have built up
+ * or on the next flush. That requires every delivery to be registered
+ * when it is received and settled through this tracker, so that a
+ * multiple ack never covers a drop still in flight. Nacks are sent on the
+ * next drain.
+ * 
+ * Deliveries are tracked by the underlying channel they arrived on rather
+ * than the cached channel proxy, which is reconnected to a new channel
+ * after a failure. Once a channel has closed its queued settlements are
+ * discarded, since the broker redelivers the drops, and its tags are
+ * never sent to its successor.
+ * 
+ * Until it is started the tracker settles each delivery on the calling
+ * thread as it is acked and keeps no state.
+ * 
+ */
+public class AckTracker {
+
+	final Logger logger = LoggerFactory.getLogger(AckTracker.class);
+
+	private long flushInterval = 100;
+
+	private int batchSize = 100;
+
+	private final ConcurrentMap<Channel, ChannelAcks> channels = new ConcurrentHashMap<Channel, ChannelAcks>();
+
+	private volatile ScheduledExecutorService flusher;
+
+	private final AtomicLong ackedCount = new AtomicLong();
+
+	private final AtomicLong ackFrameCount = new AtomicLong();
+
+	private final AtomicLong abandonedCount = new AtomicLong();
+
+	/**
+	 * @param flushInterval milliseconds between flushes of idle channels
+	 */
+	public void setFlushInterval(long flushInterval) {
+		this.flushInterval = flushInterval;
+	}
+
+	/**
+	 * @param batchSize acks the owning consumer coalesces before sending
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * @return the number of deliveries acked
+	 */
+	public long getAckedCount() {
+		return ackedCount.get();
+	}
+
+	/**
+	 * @return the number of <code>basicAck</code> calls made for them
+	 */
+	public long getAckFrameCount() {
+		return ackFrameCount.get();
+	}
+
+	/**
+	 * @return the number of deliveries left to the broker to redeliver
+	 *         because their channel closed before they were settled
+	 */
+	public long getAbandonedCount() {
+		return abandonedCount.get();
+	}
+
+	/**
+	 * Returns the underlying channel a delivery on the given channel arrived
+	 * on. Delivery tags are only valid on that channel.
+	 * 
+	 * @param channel
+	 * @return
+	 */
+	public static Channel targetChannel(Channel channel) {
+		if (channel instanceof ChannelProxy) {
+			return ((ChannelProxy) channel).getTargetChannel();
+		}
+		return channel;
+	}
+
+	/**
+	 * Starts coalescing acks
+	 */
+	public synchronized void start() {
+		flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "Ack-Flusher");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		flusher.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				flush();
+			}
+		}, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops the flusher after sending the acks that can be sent
+	 * 
+	 * @throws InterruptedException
+	 */
+	public synchronized void shutdown() throws InterruptedException {
+		if (flusher == null) {
+			return;
+		}
+		flusher.shutdown();
+		flusher.awaitTermination(flushInterval, TimeUnit.MILLISECONDS);
+		flush();
+		flusher = null;
+		logger.info("Ack tracker stopped after {} acks in {} frames",
+				ackedCount.get(), ackFrameCount.get());
+	}
+
+	/**
+	 * Records a delivery as outstanding and settles what has been queued
+	 * for its channel. Must be called by the consumer that received the
+	 * delivery before the delivery is settled.
+	 * 
+	 * @param deliveryFrame
+	 */
+	public void register(DeliveryFrame deliveryFrame) {
+		if (flusher == null) {
+			return;
+		}
+		ChannelAcks acks = channelAcks(deliveryFrame.getChannel());
+		acks.settlements.add(new Settlement(Settlement.REGISTER,
+				deliveryFrame.getDeliveryTag()));
+		acks.drain(false);
+	}
+
+	/**
+	 * Acks a delivery
+	 * 
+	 * @param deliveryFrame
+	 */
+	public void ack(DeliveryFrame deliveryFrame) {
+		ackedCount.incrementAndGet();
+		if (flusher == null) {
+			try {
+				deliveryFrame.getChannel().basicAck(
+						deliveryFrame.getDeliveryTag(), false);
+				ackFrameCount.incrementAndGet();
+			} catch (Exception e) {
+				logger.error("Error acking delivery " + deliveryFrame.getDeliveryTag(), e);
+			}
+			return;
+		}
+		channelAcks(deliveryFrame.getChannel()).settlements.add(new Settlement(
+				Settlement.ACK, deliveryFrame.getDeliveryTag()));
+	}
+
+	/**
+	 * Nacks a delivery
+	 * 
+	 * @param deliveryFrame
+	 * @param requeue whether the broker should redeliver it
+	 */
+	public void nack(DeliveryFrame deliveryFrame, boolean requeue) {
+		if (flusher == null) {
+			try {
+				deliveryFrame.getChannel().basicNack(
+						deliveryFrame.getDeliveryTag(), false, requeue);
+			} catch (Exception e) {
+				logger.error("Error nacking delivery " + deliveryFrame.getDeliveryTag(), e);
+			}
+			return;
+		}
+		channelAcks(deliveryFrame.getChannel()).settlements.add(new Settlement(
+				requeue ? Settlement.NACK_REQUEUE : Settlement.NACK,
+				deliveryFrame.getDeliveryTag()));
+	}
+
+	/**
+	 * Sends every channel's queued settlements, including acks short of a
+	 * batch, and forgets channels that have closed.
+	 */
+	public void flush() {
+		for (Iterator<ChannelAcks> it = channels.values().iterator(); it.hasNext();) {
+			ChannelAcks acks = it.next();
+			acks.drain(true);
+			if (acks.closed) {
+				it.remove();
+			}
+		}
+	}
+
+	private ChannelAcks channelAcks(Channel channel) {
+		ChannelAcks acks = channels.get(channel);
+		if (acks == null) {
+			ChannelAcks created = new ChannelAcks(channel);
+			acks = channels.putIfAbsent(channel, created);
+			if (acks == null) {
+				acks = created;
+			}
+		}
+		return acks;
+	}
+
+	/**
+	 * A delivery registered, acked or nacked on any thread
+	 */
+	private static final class Settlement {
+
+		static final int REGISTER = 0;
+
+		static final int ACK = 1;
+
+		static final int NACK = 2;
+
+		static final int NACK_REQUEUE = 3;
+
+		final int type;
+
+		final long deliveryTag;
+
+		Settlement(int type, long deliveryTag) {
+			this.type = type;
+			this.deliveryTag = deliveryTag;
+		}
+	}
+
+	/**
+	 * The settlements queued for one channel, and the delivery tags still
+	 * outstanding and acked but not yet sent, which only the thread
+	 * draining the channel touches.
+	 */
+	private final class ChannelAcks {
+
+		final Channel channel;
+
+		final Queue<Settlement> settlements = new ConcurrentLinkedQueue<Settlement>();
+
+		private final AtomicBoolean draining = new AtomicBoolean();
+
+		private final SortedSet<Long> outstanding = new TreeSet<Long>();
+
+		private final SortedSet<Long> acked = new TreeSet<Long>();
+
+		volatile boolean closed;
+
+		ChannelAcks(Channel channel) {
+			this.channel = channel;
+		}
+
+		/**
+		 * Applies the queued settlements unless another thread is already
+		 * doing so.
+		 * 
+		 * @param force whether to send acks short of a batch
+		 */
+		void drain(boolean force) {
+			if (!draining.compareAndSet(false, true)) {
+				return;
+			}
+			try {
+				if (closed || !channel.isOpen()) {
+					close();
+					return;
+				}
+
+				Settlement settlement;
+				while ((settlement = settlements.poll()) != null) {
+					switch (settlement.type) {
+					case Settlement.REGISTER:
+						outstanding.add(settlement.deliveryTag);
+						break;
+					case Settlement.ACK:
+						outstanding.remove(settlement.deliveryTag);
+						acked.add(settlement.deliveryTag);
+						break;
+					default:
+						outstanding.remove(settlement.deliveryTag);
+						channel.basicNack(settlement.deliveryTag, false,
+								settlement.type == Settlement.NACK_REQUEUE);
+					}
+				}
+
+				SortedSet<Long> ackable = outstanding.isEmpty() ? acked : acked
+						.headSet(outstanding.first());
+				if (!ackable.isEmpty() && (force || ackable.size() >= batchSize)) {
+					channel.basicAck(ackable.last(), true);
+					ackFrameCount.incrementAndGet();
+					ackable.clear();
+				}
+			} catch (IOException e) {
+				// Close the channel so that its consumer is restarted and the
+				// broker redelivers what could not be settled
+				logger.warn("Error settling deliveries, closing channel", e);
+				try {
+					channel.abort();
+				} catch (IOException ignored) {
+				}
+				close();
+			} catch (RuntimeException e) {
+				// The channel closed while in use
+				close();
+			} finally {
+				draining.set(false);
+			}
+		}
+
+		private void close() {
+			if (!closed) {
+				closed = true;
+				int unsettled = outstanding.size() + acked.size();
+				abandonedCount.addAndGet(unsettled);
+				if (unsettled > 0) {
+					logger.warn("Channel closed with {} drops unacked, they will be redelivered",
+							unsettled);
+				}
+			}
+			outstanding.clear();
+			acked.clear();
+			settlements.clear();
+		}
+	}
+}
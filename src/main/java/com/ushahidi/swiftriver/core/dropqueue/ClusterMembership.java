@@ -0,0 +1,328 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/agpl.html>
+ * 
+ * Copyright (C) Ushahidi Inc. All Rights Reserved.
+ */
+package com.ushahidi.swiftriver.core.dropqueue;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.core.BindingBuilder;
+import org.springframework.amqp.core.FanoutExchange;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageListener;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.core.Queue;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.amqp.rabbit.core.RabbitAdmin;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
+
+/**
+ * Tracks the processors sharing the DROPLET_QUEUE for the
+ * {@link PartitionCoordinator}.
+ * 
+ * Every <code>heartbeatInterval</code> milliseconds each processor
+ * publishes a heartbeat naming the partitions it claims to a fanout
+ * exchange, which every processor consumes through a queue of its own. A
+ * processor not heard from for <code>nodeTimeout</code> milliseconds is
+ * taken to have left. The coordinator is given the view of the cluster
+ * after each heartbeat, once the processor has been listening for
+ * <code>nodeTimeout</code> milliseconds after starting.
+ * 
+ * On shutdown the processor announces that it is leaving, which takes it
+ * off the other processors' rings, and keeps heartbeating until it has
+ * handed over its partitions.
+ * 
+ */
+public class ClusterMembership implements MessageListener {
+
+	final Logger logger = LoggerFactory.getLogger(ClusterMembership.class);
+
+	/**
+	 * The state of a processor as published in its heartbeats
+	 */
+	public static class Heartbeat {
+
+		private String node;
+
+		private Set<Integer> partitions;
+
+		private boolean leaving;
+
+		public String getNode() {
+			return node;
+		}
+
+		public void setNode(String node) {
+			this.node = node;
+		}
+
+		public Set<Integer> getPartitions() {
+			return partitions;
+		}
+
+		public void setPartitions(Set<Integer> partitions) {
+			this.partitions = partitions;
+		}
+
+		public boolean isLeaving() {
+			return leaving;
+		}
+
+		public void setLeaving(boolean leaving) {
+			this.leaving = leaving;
+		}
+	}
+
+	private static class Peer {
+
+		private Set<Integer> partitions;
+
+		private boolean leaving;
+
+		private long lastSeen;
+	}
+
+	private ConnectionFactory connectionFactory;
+
+	private String exchange = "dropqueue.cluster";
+
+	private long heartbeatInterval = 1000;
+
+	private long nodeTimeout = 5000;
+
+	private PartitionCoordinator partitionCoordinator;
+
+	private ObjectMapper objectMapper;
+
+	private final Map<String, Peer> peers = new HashMap<String, Peer>();
+
+	private SimpleMessageListenerContainer container;
+
+	private RabbitTemplate rabbitTemplate;
+
+	private ScheduledExecutorService executor;
+
+	private long startTime;
+
+	private volatile boolean leaving;
+
+	public void setConnectionFactory(ConnectionFactory connectionFactory) {
+		this.connectionFactory = connectionFactory;
+	}
+
+	public void setExchange(String exchange) {
+		this.exchange = exchange;
+	}
+
+	public void setHeartbeatInterval(long heartbeatInterval) {
+		this.heartbeatInterval = heartbeatInterval;
+	}
+
+	public void setNodeTimeout(long nodeTimeout) {
+		this.nodeTimeout = nodeTimeout;
+	}
+
+	public void setPartitionCoordinator(
+			PartitionCoordinator partitionCoordinator) {
+		this.partitionCoordinator = partitionCoordinator;
+	}
+
+	public void setObjectMapper(ObjectMapper objectMapper) {
+		this.objectMapper = objectMapper;
+	}
+
+	/**
+	 * Joins the cluster when partitioning is enabled
+	 */
+	public synchronized void start() {
+		if (!partitionCoordinator.isEnabled() || executor != null) {
+			return;
+		}
+
+		RabbitAdmin admin = new RabbitAdmin(connectionFactory);
+		FanoutExchange fanoutExchange = new FanoutExchange(exchange, false, false);
+		admin.declareExchange(fanoutExchange);
+		Queue queue = admin.declareQueue();
+		admin.declareBinding(BindingBuilder.bind(queue).to(fanoutExchange));
+
+		container = new SimpleMessageListenerContainer(connectionFactory);
+		container.setQueues(queue);
+		container.setMessageListener(this);
+		container.afterPropertiesSet();
+		container.start();
+
+		rabbitTemplate = new RabbitTemplate(connectionFactory);
+		rabbitTemplate.setExchange(exchange);
+
+		startTime = System.currentTimeMillis();
+		executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "Cluster-Membership");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		executor.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					tick();
+				} catch (Exception e) {
+					logger.error("Cluster heartbeat failed", e);
+				}
+			}
+		}, 0, heartbeatInterval, TimeUnit.MILLISECONDS);
+		logger.info("Joined the cluster as {}", partitionCoordinator.getNodeId());
+	}
+
+	/**
+	 * Leaves the cluster, waiting up to the coordinator's handoff timeout
+	 * for the partitions this processor claims to be handed over
+	 * 
+	 * @throws InterruptedException
+	 */
+	public void shutdown() throws InterruptedException {
+		synchronized (this) {
+			if (executor == null) {
+				return;
+			}
+			partitionCoordinator.leave();
+			leaving = true;
+		}
+
+		long deadline = System.currentTimeMillis()
+				+ partitionCoordinator.getHandoffTimeout();
+		while (!partitionCoordinator.getClaimed().isEmpty()
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(heartbeatInterval);
+		}
+
+		synchronized (this) {
+			executor.shutdownNow();
+			executor.awaitTermination(heartbeatInterval, TimeUnit.MILLISECONDS);
+			executor = null;
+			try {
+				publish();
+			} catch (Exception e) {
+				logger.warn("Unable to announce leaving the cluster", e);
+			}
+			container.stop();
+			container.shutdown();
+		}
+		logger.info("Left the cluster");
+	}
+
+	/**
+	 * Publishes this processor's heartbeat and passes the current view of
+	 * the cluster to the coordinator
+	 * 
+	 * @throws IOException
+	 */
+	void tick() throws IOException {
+		publish();
+
+		long now = System.currentTimeMillis();
+		Map<String, Set<Integer>> view = new HashMap<String, Set<Integer>>();
+		Set<String> leavingPeers = new HashSet<String>();
+		synchronized (peers) {
+			for (Iterator<Map.Entry<String, Peer>> it = peers.entrySet()
+					.iterator(); it.hasNext();) {
+				Map.Entry<String, Peer> entry = it.next();
+				if (now - entry.getValue().lastSeen > nodeTimeout) {
+					logger.info("Processor {} timed out", entry.getKey());
+					it.remove();
+				} else {
+					view.put(entry.getKey(), entry.getValue().partitions);
+					if (entry.getValue().leaving) {
+						leavingPeers.add(entry.getKey());
+					}
+				}
+			}
+		}
+
+		// Hear from the running processors before claiming partitions
+		if (now - startTime >= nodeTimeout) {
+			partitionCoordinator.viewChanged(view, leavingPeers);
+		}
+	}
+
+	private void publish() throws IOException {
+		Heartbeat heartbeat = new Heartbeat();
+		heartbeat.setNode(partitionCoordinator.getNodeId());
+		heartbeat.setPartitions(partitionCoordinator.getClaimed());
+		heartbeat.setLeaving(leaving);
+
+		MessageProperties messageProperties = new MessageProperties();
+		messageProperties.setContentType(MessageProperties.CONTENT_TYPE_JSON);
+		messageProperties.setExpiration(Long.toString(nodeTimeout));
+		rabbitTemplate.send(new Message(objectMapper.writeValueAsBytes(heartbeat),
+				messageProperties));
+	}
+
+	/**
+	 * Receives a heartbeat
+	 */
+	public void onMessage(Message message) {
+		Heartbeat heartbeat;
+		try {
+			heartbeat = objectMapper.readValue(message.getBody(), Heartbeat.class);
+		} catch (IOException e) {
+			logger.error("Invalid heartbeat", e);
+			return;
+		}
+		heartbeatReceived(heartbeat);
+	}
+
+	void heartbeatReceived(Heartbeat heartbeat) {
+		String node = heartbeat.getNode();
+		if (node == null || node.equals(partitionCoordinator.getNodeId())) {
+			return;
+		}
+
+		Set<Integer> partitions = heartbeat.getPartitions() != null ? heartbeat
+				.getPartitions() : new TreeSet<Integer>();
+		synchronized (peers) {
+			// A leaving processor is gone once it has handed over everything
+			if (heartbeat.isLeaving() && partitions.isEmpty()) {
+				if (peers.remove(node) != null) {
+					logger.info("Processor {} left", node);
+				}
+				return;
+			}
+			Peer peer = peers.get(node);
+			if (peer == null) {
+				logger.info("Processor {} joined", node);
+				peer = new Peer();
+				peers.put(node, peer);
+			}
+			peer.partitions = partitions;
+			peer.leaving = heartbeat.isLeaving();
+			peer.lastSeen = System.currentTimeMillis();
+		}
+	}
+}
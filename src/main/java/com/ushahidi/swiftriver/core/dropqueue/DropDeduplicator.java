@@ -0,0 +1,200 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/agpl.html>
+ * 
+ * Copyright (C) Ushahidi Inc. All Rights Reserved.
+ */
+package com.ushahidi.swiftriver.core.dropqueue;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.springframework.amqp.core.Message;
+
+import com.ushahidi.swiftriver.core.dropqueue.support.DropFingerprint;
+
+/**
+ * Remembers the drops taken off the DROPLET_QUEUE so that copies of a drop
+ * pushed again by a channel app, such as a tweet seen on a re-crawl, can be
+ * acked straight away instead of going through every stage again.
+ * 
+ * Drops are remembered by their {@link DropFingerprint} for
+ * <code>window</code> milliseconds after they were first seen, and at most
+ * <code>capacity</code> of them at a time, the oldest being forgotten first.
+ * The fingerprints are split between segments each with a lock of its own
+ * so that the drop queue consumers seldom contend. Drops redelivered by the
+ * broker are never taken for copies since they may be drops this processor
+ * returned to the queue itself.
+ * 
+ * Each processor remembers only the drops it took itself. A capacity of 0,
+ * the default, turns deduplication off.
+ * 
+ */
+public class DropDeduplicator {
+
+	private static final int SEGMENTS = 16;
+
+	private final Segment[] segments = new Segment[SEGMENTS];
+
+	private final AtomicLong checkedCount = new AtomicLong();
+
+	private final AtomicLong duplicateCount = new AtomicLong();
+
+	private JsonFactory jsonFactory = new JsonFactory();
+
+	private int capacity;
+
+	private int segmentCapacity;
+
+	private long window = 3600000;
+
+	private boolean hashContent;
+
+	public DropDeduplicator() {
+		for (int i = 0; i < SEGMENTS; i++) {
+			segments[i] = new Segment();
+		}
+	}
+
+	public void setObjectMapper(ObjectMapper objectMapper) {
+		this.jsonFactory = objectMapper.getJsonFactory();
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @param capacity drops to remember at most, or 0 to remember none
+	 */
+	public void setCapacity(int capacity) {
+		this.capacity = capacity;
+		this.segmentCapacity = (capacity + SEGMENTS - 1) / SEGMENTS;
+	}
+
+	public long getWindow() {
+		return window;
+	}
+
+	/**
+	 * @param window milliseconds to remember a drop for
+	 */
+	public void setWindow(long window) {
+		this.window = window;
+	}
+
+	/**
+	 * @param hashContent whether drops with the same original ID but a
+	 *            different title or content are told apart
+	 */
+	public void setHashContent(boolean hashContent) {
+		this.hashContent = hashContent;
+	}
+
+	public boolean isEnabled() {
+		return capacity > 0;
+	}
+
+	/**
+	 * @return the number of drops checked against those remembered
+	 */
+	public long getCheckedCount() {
+		return checkedCount.get();
+	}
+
+	/**
+	 * @return the number of drops found to be copies
+	 */
+	public long getDuplicateCount() {
+		return duplicateCount.get();
+	}
+
+	/**
+	 * @return the number of drops remembered
+	 */
+	public int size() {
+		int size = 0;
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				size += segment.size();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Checks whether the drop in a message is a copy of one seen within the
+	 * window, remembering it if not.
+	 * 
+	 * @param message
+	 * @return whether the drop is a copy
+	 * @throws IOException if the body is not a JSON object
+	 */
+	public boolean isDuplicate(Message message) throws IOException {
+		if (!isEnabled()
+				|| Boolean.TRUE.equals(message.getMessageProperties().isRedelivered())) {
+			return false;
+		}
+		DropFingerprint fingerprint = DropFingerprint.read(jsonFactory,
+				message, hashContent);
+		if (fingerprint == null) {
+			return false;
+		}
+		return isDuplicate(fingerprint, System.currentTimeMillis());
+	}
+
+	boolean isDuplicate(DropFingerprint fingerprint, long now) {
+		checkedCount.incrementAndGet();
+		Segment segment = segments[fingerprint.hashCode() & (SEGMENTS - 1)];
+		boolean seen;
+		synchronized (segment) {
+			seen = segment.seen(fingerprint, now);
+		}
+		if (seen) {
+			duplicateCount.incrementAndGet();
+		}
+		return seen;
+	}
+
+	/**
+	 * Fingerprints in the order they were first seen, with the time they
+	 * were
+	 */
+	private final class Segment extends LinkedHashMap<DropFingerprint, Long> {
+
+		private static final long serialVersionUID = 1L;
+
+		boolean seen(DropFingerprint fingerprint, long now) {
+			long expiredBefore = now - window;
+			Iterator<Long> seenAt = values().iterator();
+			while (seenAt.hasNext() && seenAt.next() < expiredBefore) {
+				seenAt.remove();
+			}
+
+			if (containsKey(fingerprint)) {
+				return true;
+			}
+			put(fingerprint, now);
+			return false;
+		}
+
+		protected boolean removeEldestEntry(Map.Entry<DropFingerprint, Long> eldest) {
+			return size() > segmentCapacity;
+		}
+	}
+}
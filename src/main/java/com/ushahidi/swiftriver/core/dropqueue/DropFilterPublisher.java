@@ -17,108 +17,28 @@
 package com.ushahidi.swiftriver.core.dropqueue;
 
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ConcurrentMap;
-
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-import org.springframework.amqp.AmqpException;
-import org.springframework.amqp.core.AmqpTemplate;
-import org.springframework.amqp.core.Message;
-import org.springframework.amqp.core.MessagePostProcessor;
-
-import com.ushahidi.swiftriver.core.dropqueue.model.RawDrop;
 
 /**
  * Daemon that posts drops that have undergone semantic and metadata extraction
  * to the RULES_QUEUE for additional processing by the rules engine
+ * 
+ * The rules stage is the tail of the pipeline so the drop filter queue is
+ * drained by a pool of dispatchers; see {@link InFlightDropPublisher}.
  *  
  * @author ekala
  *
  */
-public class DropFilterPublisher extends Thread {
-	
-	private BlockingQueue<String> dropFilterQueue;
-	
-	private ConcurrentMap<String, RawDrop> dropsMap;
-	
-	private AmqpTemplate amqpTemplate;
-	
-	private String callbackQueueName;
-	
-	final static Logger LOG = LoggerFactory.getLogger(DropFilterPublisher.class);
-	
-	public BlockingQueue<String> getDropFilterQueue() {
-		return dropFilterQueue;
-	}
-
-	public void setDropFilterQueue(BlockingQueue<String> dropFilterQueue) {
-		this.dropFilterQueue = dropFilterQueue;
-	}
-
-	public AmqpTemplate getAmqpTemplate() {
-		return amqpTemplate;
-	}
-
-	public void setAmqpTemplate(AmqpTemplate amqpTemplate) {
-		this.amqpTemplate = amqpTemplate;
-	}
+public class DropFilterPublisher extends InFlightDropPublisher {
 
-	public ConcurrentMap<String, RawDrop> getDropsMap() {
-		return dropsMap;
+	public DropFilterPublisher() {
+		setExchange("dropFilter");
 	}
 
-	public void setDropsMap(ConcurrentMap<String, RawDrop> dropsMap) {
-		this.dropsMap = dropsMap;
+	public BlockingQueue<InFlightDrop> getDropFilterQueue() {
+		return getQueue();
 	}
 
-	public String getCallbackQueueName() {
-		return callbackQueueName;
-	}
-
-	public void setCallbackQueueName(String callbackQueueName) {
-		this.callbackQueueName = callbackQueueName;
-	}
-
-	/*
-	 * (non-Javadoc)
-	 * @see java.lang.Thread#run()
-	 */
-	public void run() {
-		LOG.debug("Rules publisher started");
-
-		try {
-			while (true) {
-				publishDrop(dropFilterQueue.take());
-			}
-		} catch (InterruptedException e) {
-			LOG.error(e.getMessage());
-		}
-	}
-	
-	public void publishDrop(String dropsMapKey) {
-		LOG.debug(String.format("Sending drop with correlation id %s to rules processor",
-				dropsMapKey));
-		
-		synchronized (dropsMap) {
-			RawDrop drop  = dropsMap.get(dropsMapKey);
-
-			// Drop doesn't exist; purge
-			if (drop == null) {
-				LOG.info("Drop with correlation ID '{}' not found", dropsMapKey);
-				return;
-			}
-
-			final byte[] correlationId = dropsMapKey.getBytes();
-			final String replyTo = this.getCallbackQueueName();
-
-			amqpTemplate.convertAndSend(drop, new MessagePostProcessor() {
-				public Message postProcessMessage(Message message) throws AmqpException {
-					message.getMessageProperties().setCorrelationId(correlationId);
-					message.getMessageProperties().setReplyTo(replyTo);
-					return message;
-				}
-			});
-		}
+	public void setDropFilterQueue(BlockingQueue<InFlightDrop> dropFilterQueue) {
+		setQueue(dropFilterQueue);
 	}
-	
 }
@@ -17,126 +17,225 @@
 package com.ushahidi.swiftriver.core.dropqueue;
 
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
-import java.util.Map;
-import java.util.UUID;
 
 import org.codehaus.jackson.JsonParseException;
 import org.codehaus.jackson.map.JsonMappingException;
-import org.codehaus.jackson.map.ObjectMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.amqp.AmqpException;
-import org.springframework.amqp.core.AmqpTemplate;
 import org.springframework.amqp.core.Message;
-import org.springframework.amqp.core.MessagePostProcessor;
-import org.springframework.amqp.core.Queue;
 import org.springframework.amqp.rabbit.core.ChannelAwareMessageListener;
 import org.springframework.util.ErrorHandler;
 
 import com.rabbitmq.client.Channel;
+import com.ushahidi.swiftriver.core.dropqueue.metrics.Histogram;
 import com.ushahidi.swiftriver.core.dropqueue.model.RawDrop;
+import com.ushahidi.swiftriver.core.dropqueue.support.RawDropDecoder;
 
 /**
  * Handler for incoming drops on the Drop Queue
  * 
- * Assigns incoming drops a correlation ID and places them in an in memory up
- * before publishing them for meta-data extraction.
+ * Registers incoming drops in the {@link InFlightDropStore}, which assigns
+ * them a correlation ID, before sending them to the first stages of the
+ * {@link Pipeline}. When the store keeps drops compact, UTF-8 drops
+ * are only checked to be JSON objects and stored as they arrived; their
+ * fields are not decoded until a later stage needs them. Copies of drops
+ * recently taken are acked without being processed again when a
+ * {@link DropDeduplicator} is enabled.
+ * 
+ * The handler keeps no per-message state of its own and is invoked
+ * concurrently by every consumer in the DROPLET_QUEUE listener container.
  * 
  */
 public class DropHandler implements ChannelAwareMessageListener, ErrorHandler {
 
 	final Logger logger = LoggerFactory.getLogger(DropQueueProcessor.class);
 
-	private ObjectMapper objectMapper;
+	private RawDropDecoder dropDecoder;
+
+	private Pipeline pipeline;
+
+	private InFlightDropStore inFlightDropStore;
+
+	private AckTracker ackTracker = new AckTracker();
+
+	private DropJournal dropJournal = new DropJournal();
+
+	private DropDeduplicator dropDeduplicator = new DropDeduplicator();
+
+	private MetadataResponseHandler metadataResponseHandler;
 
-	private AmqpTemplate amqpTemplate;
+	private final Histogram ingestTime = new Histogram();
 
-	private Map<String, RawDrop> dropsMap;
+	public RawDropDecoder getDropDecoder() {
+		return dropDecoder;
+	}
 
-	private Queue callbackQueue;
-	
-	private Map<String, DeliveryFrame> deliveryFramesMap;
+	public void setDropDecoder(RawDropDecoder dropDecoder) {
+		this.dropDecoder = dropDecoder;
+	}
 
-	public ObjectMapper getObjectMapper() {
-		return objectMapper;
+	public Pipeline getPipeline() {
+		return pipeline;
 	}
 
-	public void setObjectMapper(ObjectMapper objectMapper) {
-		this.objectMapper = objectMapper;
+	public void setPipeline(Pipeline pipeline) {
+		this.pipeline = pipeline;
 	}
 
-	public AmqpTemplate getAmqpTemplate() {
-		return amqpTemplate;
+	public InFlightDropStore getInFlightDropStore() {
+		return inFlightDropStore;
 	}
 
-	public void setAmqpTemplate(AmqpTemplate amqpTemplate) {
-		this.amqpTemplate = amqpTemplate;
+	public void setInFlightDropStore(InFlightDropStore inFlightDropStore) {
+		this.inFlightDropStore = inFlightDropStore;
 	}
 
-	public Map<String, RawDrop> getDropsMap() {
-		return dropsMap;
+	public void setAckTracker(AckTracker ackTracker) {
+		this.ackTracker = ackTracker;
 	}
 
-	public void setDropsMap(Map<String, RawDrop> dropsMap) {
-		this.dropsMap = dropsMap;
+	public void setDropJournal(DropJournal dropJournal) {
+		this.dropJournal = dropJournal;
 	}
 
-	public Queue getCallbackQueue() {
-		return callbackQueue;
+	public void setDropDeduplicator(DropDeduplicator dropDeduplicator) {
+		this.dropDeduplicator = dropDeduplicator;
 	}
 
-	public void setCallbackQueue(Queue callbackQueue) {
-		this.callbackQueue = callbackQueue;
+	public void setMetadataResponseHandler(
+			MetadataResponseHandler metadataResponseHandler) {
+		this.metadataResponseHandler = metadataResponseHandler;
 	}
 
-	public void setDeliveryFramesMap(Map<String, DeliveryFrame> deliveryFramesMap) {
-		this.deliveryFramesMap = deliveryFramesMap;
+	/**
+	 * @return microseconds from receiving a drop to queueing it for
+	 *         its first stages, including any wait for room in the in-flight
+	 *         store
+	 */
+	public Histogram getIngestTime() {
+		return ingestTime;
 	}
 
 	/**
 	 * Receive drops placed on the DROPLET_QUEUE by channel apps.
 	 * 
-	 * Caches the drop in the dropsMap for metadata updates and then publishes
-	 * the drop to the metadata exchange for metadata extraction to be
-	 * performed.
+	 * Caches the drop in the in-flight store for metadata updates and then
+	 * queues the drop for publishing to the stages that do not depend on
+	 * any other. Blocks while the in-flight store is full.
+	 * 
+	 * The drop and its delivery frame are registered, with the in-flight
+	 * store and the {@link AckTracker}, before the drop is published so that
+	 * a fast metadata response always finds them.
+	 * 
+	 * A drop redelivered after a restart whose state was found in the
+	 * {@link DropJournal} is resumed instead, and a copy of a drop taken
+	 * within the {@link DropDeduplicator}'s window is acked and dropped.
 	 * 
 	 * @param message
 	 * @throws IOException
 	 * @throws JsonMappingException
 	 * @throws JsonParseException
+	 * @throws InterruptedException 
 	 */
-	public synchronized void onMessage(Message message, Channel channel)
-			throws JsonParseException, JsonMappingException, IOException {
-
-		RawDrop drop = objectMapper.readValue(new String(message.getBody()),
-				RawDrop.class);
+	public void onMessage(Message message, Channel channel)
+			throws JsonParseException, JsonMappingException, IOException,
+			InterruptedException {
 
-		final String correlationId = UUID.randomUUID().toString();
-		final String replyTo = callbackQueue.getName();
+		long start = System.nanoTime();
 		long deliveryTag = message.getMessageProperties().getDeliveryTag();
-		
-		dropsMap.put(correlationId, drop);
-		DeliveryFrame deliveryFrame = new DeliveryFrame(deliveryTag, channel);
-		deliveryFramesMap.put(correlationId, deliveryFrame);
-		
-		logger.debug("Sending drop with correlation ID {} to {}", correlationId, replyTo);
-		amqpTemplate.convertAndSend(drop, new MessagePostProcessor() {
-			public Message postProcessMessage(Message message)
-					throws AmqpException {
-				message.getMessageProperties().setReplyTo(replyTo);
-				try {
-					message.getMessageProperties().setCorrelationId(
-							correlationId.getBytes("UTF-8"));
-				} catch (UnsupportedEncodingException e) {
-					throw new AmqpException(e);
+		DeliveryFrame deliveryFrame = new DeliveryFrame(deliveryTag,
+				AckTracker.targetChannel(channel));
+
+		DropJournal.Recovered recovered = dropJournal.claim(message.getBody());
+		if (recovered != null) {
+			resume(recovered, message, deliveryFrame);
+			return;
+		}
+
+		if (dropDeduplicator.isDuplicate(message)) {
+			logger.debug("Dropping copy of a drop taken within the last {} ms",
+					dropDeduplicator.getWindow());
+			ackTracker.register(deliveryFrame);
+			ackTracker.ack(deliveryFrame);
+			return;
+		}
+
+		InFlightDrop inFlightDrop = null;
+		if (isCompactable(message)) {
+			dropDecoder.validate(message);
+			inFlightDrop = inFlightDropStore.register(message.getBody(),
+					deliveryFrame);
+		}
+		if (inFlightDrop == null) {
+			RawDrop drop = dropDecoder.decode(message);
+			inFlightDrop = inFlightDropStore.register(drop, deliveryFrame);
+		}
+		ackTracker.register(deliveryFrame);
+		dropJournal.registered(inFlightDrop.getId(), message.getBody());
+
+		dispatch(inFlightDrop);
+		ingestTime.record((System.nanoTime() - start) / 1000);
+	}
+
+	/**
+	 * Restores a redelivered drop under its old correlation ID with the
+	 * replies journalled for it, and moves it on to the stages it had not
+	 * completed.
+	 * 
+	 * @param recovered
+	 * @param message
+	 * @param deliveryFrame
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private void resume(DropJournal.Recovered recovered, Message message,
+			DeliveryFrame deliveryFrame) throws IOException,
+			InterruptedException {
+		RawDrop drop;
+		try {
+			drop = dropDecoder.decode(message);
+		} catch (IOException e) {
+			dropJournal.removed(recovered.getId());
+			throw e;
+		}
+
+		InFlightDrop inFlightDrop = inFlightDropStore.restore(
+				recovered.getId(), drop, deliveryFrame);
+		ackTracker.register(deliveryFrame);
+		logger.info("Resuming drop with correlation ID {} from the journal",
+				inFlightDrop.getId());
+
+		synchronized (inFlightDrop) {
+			for (Stage stage : pipeline.getStages()) {
+				RawDrop update = recovered.getUpdate(stage);
+				if (update != null) {
+					stage.merge(inFlightDrop.getDrop(), update);
+					inFlightDrop.complete(stage);
 				}
-				return message;
 			}
-		});
+			metadataResponseHandler.advance(inFlightDrop,
+					pipeline.next(inFlightDrop));
+		}
+	}
+
+	/**
+	 * Queues an in-flight drop for publishing to the stages that do not
+	 * depend on any other. The expiry clock for each stage starts once the
+	 * broker confirms the publish.
+	 * 
+	 * @param inFlightDrop
+	 * @throws InterruptedException
+	 */
+	public void dispatch(InFlightDrop inFlightDrop) throws InterruptedException {
+		logger.debug("Queueing drop with correlation ID {} for its first stages",
+				inFlightDrop.getId());
+		pipeline.dispatch(inFlightDrop, pipeline.ready(0));
+	}
 
-		logger.debug("Drop sent for metadata extraction with correlation id '{}'",
-				correlationId);
+	private boolean isCompactable(Message message) {
+		String encoding = message.getMessageProperties().getContentEncoding();
+		return inFlightDropStore.isCompact()
+				&& (encoding == null || encoding.equalsIgnoreCase("UTF-8"));
 	}
 
 	public void handleError(Throwable t) {
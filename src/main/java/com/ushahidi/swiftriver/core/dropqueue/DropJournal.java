@@ -0,0 +1,496 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/agpl.html>
+ * 
+ * Copyright (C) Ushahidi Inc. All Rights Reserved.
+ */
+package com.ushahidi.swiftriver.core.dropqueue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ushahidi.swiftriver.core.dropqueue.model.RawDrop;
+import com.ushahidi.swiftriver.core.dropqueue.support.MappedJournal;
+import com.ushahidi.swiftriver.core.dropqueue.support.RawDropDecoder;
+
+/**
+ * Write-ahead journal of the state of the drops being processed, so that a
+ * restarted processor resumes each drop where it left off instead of
+ * extracting its metadata again.
+ * 
+ * Every transition is appended to a {@link MappedJournal} under the drop's
+ * correlation ID: its registration, with a hash of its DROPLET_QUEUE
+ * message body, each reply merged into it and its completion. A completed
+ * drop whose delivery has already been acked is journalled in full since
+ * the broker will not redeliver it. The drop is removed from the journal
+ * once it has been posted to the API or has otherwise left the processor.
+ * Appends are forced to disk every <code>syncInterval</code> milliseconds
+ * and the journal is compacted every <code>compactInterval</code>
+ * milliseconds once <code>compactSegments</code> segments have been sealed.
+ * 
+ * On {@link #open()} the journal is replayed. Completed drops that were
+ * acked are queued for posting straight away. The other drops are
+ * redelivered by the broker; {@link #claim} matches each redelivery to its
+ * journalled state by the hash of its body, and the {@link DropHandler}
+ * restores it under its old correlation ID with the replies it had
+ * received. Replies for such drops that arrive before the drop has been
+ * redelivered, from a durable callback queue, are kept with the journalled
+ * state by {@link #mergeRecovered}. Journalled drops that have not been
+ * claimed within
+ * <code>recoveryTimeout</code> milliseconds are forgotten.
+ * 
+ * Until it is opened, and when no <code>directory</code> is set, the
+ * journal records nothing.
+ * 
+ */
+public class DropJournal {
+
+	private static final byte REGISTER = 1;
+
+	private static final byte MERGE = 2;
+
+	private static final byte COMPLETE = 3;
+
+	final Logger logger = LoggerFactory.getLogger(DropJournal.class);
+
+	private String directory;
+
+	private int segmentSize = 64 * 1024 * 1024;
+
+	private long syncInterval = 100;
+
+	private long compactInterval = 60000;
+
+	private int compactSegments = 4;
+
+	private long recoveryTimeout = 600000;
+
+	private ObjectMapper objectMapper;
+
+	private RawDropDecoder dropDecoder;
+
+	private InFlightDropStore inFlightDropStore;
+
+	private BlockingQueue<RawDrop> publishQueue;
+
+	private volatile MappedJournal journal;
+
+	private ScheduledExecutorService executor;
+
+	/** Journalled drops waiting to be redelivered, by body hash */
+	private final ConcurrentMap<Long, Recovered> recovered = new ConcurrentHashMap<Long, Recovered>();
+
+	/** The same drops by correlation ID */
+	private final ConcurrentMap<Long, Recovered> recoveredById = new ConcurrentHashMap<Long, Recovered>();
+
+	/**
+	 * @param directory directory holding the journal segments, the journal
+	 *            is disabled if empty
+	 */
+	public void setDirectory(String directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * @param segmentSize size in bytes of each journal segment
+	 */
+	public void setSegmentSize(int segmentSize) {
+		this.segmentSize = segmentSize;
+	}
+
+	/**
+	 * @param syncInterval milliseconds between forcing appends to disk
+	 */
+	public void setSyncInterval(long syncInterval) {
+		this.syncInterval = syncInterval;
+	}
+
+	/**
+	 * @param compactInterval milliseconds between compaction checks
+	 */
+	public void setCompactInterval(long compactInterval) {
+		this.compactInterval = compactInterval;
+	}
+
+	/**
+	 * @param compactSegments sealed segments that trigger a compaction
+	 */
+	public void setCompactSegments(int compactSegments) {
+		this.compactSegments = compactSegments;
+	}
+
+	/**
+	 * @param recoveryTimeout milliseconds to wait for journalled drops to be
+	 *            redelivered after a restart
+	 */
+	public void setRecoveryTimeout(long recoveryTimeout) {
+		this.recoveryTimeout = recoveryTimeout;
+	}
+
+	public void setObjectMapper(ObjectMapper objectMapper) {
+		this.objectMapper = objectMapper;
+	}
+
+	public void setDropDecoder(RawDropDecoder dropDecoder) {
+		this.dropDecoder = dropDecoder;
+	}
+
+	public void setInFlightDropStore(InFlightDropStore inFlightDropStore) {
+		this.inFlightDropStore = inFlightDropStore;
+	}
+
+	public void setPublishQueue(BlockingQueue<RawDrop> publishQueue) {
+		this.publishQueue = publishQueue;
+	}
+
+	/**
+	 * @return <code>true</code> if drop transitions are being journalled
+	 */
+	public boolean isOpen() {
+		return journal != null;
+	}
+
+	/**
+	 * @return the number of journalled drops waiting to be redelivered
+	 */
+	public int getRecoveredCount() {
+		return recovered.size();
+	}
+
+	/**
+	 * Replays the journal and starts journalling. Must be called before the
+	 * DROPLET_QUEUE consumers start.
+	 * 
+	 * @throws IOException
+	 */
+	public synchronized void open() throws IOException {
+		if (directory == null || directory.trim().length() == 0) {
+			logger.info("No journal directory set, drops are not journalled");
+			return;
+		}
+
+		final Map<Long, Recovered> entries = new HashMap<Long, Recovered>();
+		final long[] lastId = new long[1];
+		MappedJournal mappedJournal = new MappedJournal(new File(directory),
+				segmentSize);
+		mappedJournal.open(new MappedJournal.Handler() {
+			public void record(byte type, long id, byte[] payload)
+					throws IOException {
+				lastId[0] = Math.max(lastId[0], id);
+				if (type == REGISTER) {
+					entries.put(id, new Recovered(id,
+							ByteBuffer.wrap(payload).getLong()));
+					return;
+				}
+
+				Recovered entry = entries.get(id);
+				if (type == MappedJournal.TOMBSTONE) {
+					entries.remove(id);
+				} else if (entry == null) {
+					return;
+				} else if (type == MERGE) {
+					entry.updates[payload[0]] = dropDecoder.decode(ByteBuffer
+							.wrap(payload, 1, payload.length - 1));
+				} else if (type == COMPLETE && payload.length > 0) {
+					entry.drop = dropDecoder.decode(ByteBuffer.wrap(payload));
+				}
+			}
+		});
+		inFlightDropStore.skipPast(lastId[0]);
+
+		final List<RawDrop> acked = new ArrayList<RawDrop>();
+		for (Recovered entry : entries.values()) {
+			if (entry.drop != null) {
+				entry.drop.setCorrelationId(entry.id);
+				acked.add(entry.drop);
+			} else {
+				recovered.put(entry.key, entry);
+				recoveredById.put(entry.id, entry);
+			}
+		}
+		logger.info("Journal replayed with {} drops to be redelivered and {} to be posted",
+				recovered.size(), acked.size());
+
+		journal = mappedJournal;
+		executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "Drop-Journal");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		executor.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				sync();
+			}
+		}, syncInterval, syncInterval, TimeUnit.MILLISECONDS);
+		executor.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				compact();
+			}
+		}, compactInterval, compactInterval, TimeUnit.MILLISECONDS);
+		executor.schedule(new Runnable() {
+			public void run() {
+				forgetUnclaimed();
+			}
+		}, recoveryTimeout, TimeUnit.MILLISECONDS);
+
+		// The publish queue may not have room for them all until the
+		// publisher is running
+		executor.execute(new Runnable() {
+			public void run() {
+				try {
+					for (RawDrop drop : acked) {
+						publishQueue.put(drop);
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Stops journalling after forcing the journal to disk
+	 * 
+	 * @throws InterruptedException
+	 * @throws IOException
+	 */
+	public synchronized void close() throws InterruptedException, IOException {
+		if (journal == null) {
+			return;
+		}
+		executor.shutdownNow();
+		executor.awaitTermination(syncInterval, TimeUnit.MILLISECONDS);
+		journal.close();
+		journal = null;
+	}
+
+	/**
+	 * Journals the registration of a drop. Must be called before the drop
+	 * is published to any stage.
+	 * 
+	 * @param id
+	 * @param body the DROPLET_QUEUE message body of the drop
+	 */
+	public void registered(long id, byte[] body) {
+		append(REGISTER, id, ByteBuffer.allocate(8).putLong(hash(body)).array());
+	}
+
+	/**
+	 * Journals a reply merged into a drop
+	 * 
+	 * @param id
+	 * @param stage
+	 * @param update the reply
+	 */
+	public void merged(long id, Stage stage, RawDrop update) {
+		if (journal == null) {
+			return;
+		}
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			out.write(stage.getIndex());
+			objectMapper.writeValue(out, update);
+			append(MERGE, id, out.toByteArray());
+		} catch (IOException e) {
+			logger.error("Error journalling reply for drop " + id, e);
+		}
+	}
+
+	/**
+	 * Journals a drop that has completed processing and is waiting to be
+	 * posted to the API.
+	 * 
+	 * @param drop the drop, carrying its correlation ID
+	 * @param acked whether the drop's delivery has been acked
+	 */
+	public void completed(RawDrop drop, boolean acked) {
+		if (journal == null) {
+			return;
+		}
+		try {
+			append(COMPLETE, drop.getCorrelationId(),
+					acked ? objectMapper.writeValueAsBytes(drop) : new byte[0]);
+		} catch (IOException e) {
+			logger.error("Error journalling drop " + drop.getCorrelationId(), e);
+		}
+	}
+
+	/**
+	 * Removes a drop that has left the processor from the journal
+	 * 
+	 * @param id
+	 */
+	public void removed(long id) {
+		MappedJournal mappedJournal = journal;
+		if (mappedJournal == null || id == 0) {
+			return;
+		}
+		try {
+			mappedJournal.remove(id);
+		} catch (IOException e) {
+			logger.error("Error journalling removal of drop " + id, e);
+		}
+	}
+
+	/**
+	 * Claims the journalled state of a redelivered drop
+	 * 
+	 * @param body the DROPLET_QUEUE message body of the drop
+	 * @return the drop's state or <code>null</code> if it was not journalled
+	 */
+	public Recovered claim(byte[] body) {
+		if (recovered.isEmpty()) {
+			return null;
+		}
+		Recovered entry = recovered.remove(hash(body));
+		if (entry != null) {
+			recoveredById.remove(entry.id);
+		}
+		return entry;
+	}
+
+	/**
+	 * Keeps a reply for a journalled drop that has not been redelivered yet
+	 * 
+	 * @param id
+	 * @param stage
+	 * @param update the reply
+	 * @return <code>false</code> if no such drop is waiting to be
+	 *         redelivered
+	 */
+	public boolean mergeRecovered(long id, Stage stage, RawDrop update) {
+		Recovered entry = recoveredById.get(id);
+		if (entry == null) {
+			return false;
+		}
+		entry.setUpdate(stage, update);
+		merged(id, stage, update);
+		return true;
+	}
+
+	private void append(byte type, long id, byte[] payload) {
+		MappedJournal mappedJournal = journal;
+		if (mappedJournal == null) {
+			return;
+		}
+		try {
+			mappedJournal.append(type, id, payload);
+		} catch (IOException e) {
+			logger.error("Error journalling drop " + id, e);
+		}
+	}
+
+	private void sync() {
+		try {
+			journal.sync();
+		} catch (IOException e) {
+			logger.error("Error syncing the journal", e);
+		}
+	}
+
+	private void compact() {
+		try {
+			if (journal.getSealedCount() >= compactSegments) {
+				journal.compact();
+			}
+		} catch (IOException e) {
+			logger.error("Error compacting the journal", e);
+		}
+	}
+
+	private void forgetUnclaimed() {
+		int forgotten = 0;
+		for (Recovered entry : recovered.values()) {
+			// Unless claimed meanwhile
+			if (recovered.remove(entry.key, entry)) {
+				recoveredById.remove(entry.id);
+				removed(entry.id);
+				forgotten++;
+			}
+		}
+		if (forgotten > 0) {
+			logger.warn("{} journalled drops were not redelivered", forgotten);
+		}
+	}
+
+	/**
+	 * 64-bit FNV-1a hash
+	 */
+	static long hash(byte[] bytes) {
+		long hash = 0xcbf29ce484222325L;
+		for (byte b : bytes) {
+			hash ^= b & 0xff;
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	/**
+	 * Journalled state of a drop
+	 */
+	public static final class Recovered {
+
+		private final long id;
+
+		private final long key;
+
+		/** Replies by the index of their stage in the pipeline */
+		private final RawDrop[] updates = new RawDrop[Pipeline.MAX_STAGES];
+
+		/** The complete drop, if its delivery was acked */
+		private RawDrop drop;
+
+		Recovered(long id, long key) {
+			this.id = id;
+			this.key = key;
+		}
+
+		/**
+		 * @return the correlation ID the drop had
+		 */
+		public long getId() {
+			return id;
+		}
+
+		/**
+		 * @param stage
+		 * @return the reply received from the stage or <code>null</code>
+		 */
+		public synchronized RawDrop getUpdate(Stage stage) {
+			return updates[stage.getIndex()];
+		}
+
+		synchronized void setUpdate(Stage stage, RawDrop update) {
+			updates[stage.getIndex()] = update;
+		}
+	}
+}
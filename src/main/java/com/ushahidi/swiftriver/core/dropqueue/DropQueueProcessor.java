@@ -33,16 +33,35 @@ public class DropQueueProcessor  {
 
 	final static Logger logger = LoggerFactory.getLogger(DropQueueProcessor.class);
 
-	@SuppressWarnings("resource")
 	public static void main(String[] args) {
-		AbstractApplicationContext context = new ClassPathXmlApplicationContext(
-				"appContext.xml");
+		AbstractApplicationContext context = start("appContext.xml");
 		context.registerShutdownHook();
+	}
+
+	/**
+	 * Loads the application context from the given locations on the class
+	 * path and starts the publishers and the drop expiry.
+	 * 
+	 * @param configLocations
+	 * @return the started context
+	 */
+	public static AbstractApplicationContext start(String... configLocations) {
+		AbstractApplicationContext context = new ClassPathXmlApplicationContext(
+				configLocations);
+
+		for (InFlightDropPublisher inFlightDropPublisher : context
+				.getBeansOfType(InFlightDropPublisher.class).values()) {
+			inFlightDropPublisher.start();
+		}
+
+		InFlightDropExpiry inFlightDropExpiry = context.getBean(InFlightDropExpiry.class);
+		inFlightDropExpiry.start();
 
-		DropFilterPublisher dropFilterPublisher = context.getBean(DropFilterPublisher.class);
-		dropFilterPublisher.start();
+		Publisher publisher = context.getBean(Publisher.class);
+		publisher.start();
 
 		logger.info("Drop queue processor started");
+		return context;
 	}
 
 }
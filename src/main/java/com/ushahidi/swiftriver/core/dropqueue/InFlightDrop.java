@@ -0,0 +1,167 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/agpl.html>
+ * 
+ * Copyright (C) Ushahidi Inc. All Rights Reserved.
+ */
+package com.ushahidi.swiftriver.core.dropqueue;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+import com.ushahidi.swiftriver.core.dropqueue.model.RawDrop;
+
+/**
+ * Entry in the {@link InFlightDropStore}. Holds a drop that is undergoing
+ * metadata extraction together with the {@link DeliveryFrame} of the
+ * DROPLET_QUEUE message it arrived in and its completion state.
+ * 
+ * The entry is its own lock: the drop must only be read or changed while
+ * holding the entry's monitor, which lets replies for different drops be
+ * merged concurrently.
+ * 
+ * The stages the drop has completed are kept in a bitmask with a bit for
+ * each {@link Stage} of the {@link Pipeline}. {@link #complete(Stage)} sets
+ * a stage's bit and claims the transitions it enables in one compare and
+ * set, so the drop is sent to each stage and finished exactly once however
+ * replies, expiries and journal recovery interleave. The state may be read
+ * without the lock.
+ * 
+ * A drop kept compact by the store arrives as an off-heap record of its
+ * original JSON. Its {@link #getDrop()} then starts out empty and only
+ * gathers the metadata merged from the stages' replies; the complete drop
+ * is decoded by {@link InFlightDropStore#getDrop(InFlightDrop)}.
+ * 
+ */
+public class InFlightDrop {
+
+	private static final AtomicIntegerFieldUpdater<InFlightDrop> COMPLETED = AtomicIntegerFieldUpdater
+			.newUpdater(InFlightDrop.class, "completed");
+
+	/** Correlation ID */
+	private final long id;
+
+	private final RawDrop drop;
+
+	private final DeliveryFrame deliveryFrame;
+
+	/** Off-heap JSON of a compact drop, released when the entry is removed */
+	ByteBuffer record;
+
+	/** Bits of the completed stages */
+	private volatile int completed;
+
+	/**
+	 * Number of times each stage has been retried after expiring, by the
+	 * index of the stage. Allocated on the first retry.
+	 */
+	private int[] expiryAttempts;
+
+	/** Next entry in the same {@link InFlightDropStore} bucket */
+	InFlightDrop next;
+
+	/** Set once the entry has been removed from the store */
+	volatile boolean removed;
+
+	/** System.nanoTime() when the drop was last published to a stage */
+	volatile long publishedAt;
+
+	public InFlightDrop(long id, RawDrop drop, DeliveryFrame deliveryFrame) {
+		this.id = id;
+		this.drop = drop;
+		this.deliveryFrame = deliveryFrame;
+	}
+
+	public InFlightDrop(long id, ByteBuffer record, DeliveryFrame deliveryFrame) {
+		this(id, new RawDrop(), deliveryFrame);
+		this.record = record;
+	}
+
+	public long getId() {
+		return id;
+	}
+
+	public RawDrop getDrop() {
+		return drop;
+	}
+
+	/**
+	 * @return the off-heap JSON of the drop as it arrived or
+	 *         <code>null</code> if the drop is held on the heap
+	 */
+	public ByteBuffer getRecord() {
+		return record;
+	}
+
+	public DeliveryFrame getDeliveryFrame() {
+		return deliveryFrame;
+	}
+
+	/**
+	 * @return <code>true</code> if the drop is no longer in flight
+	 */
+	public boolean isRemoved() {
+		return removed;
+	}
+
+	/**
+	 * @param stage
+	 * @return the number of times the stage has been retried for the drop
+	 *         after expiring
+	 */
+	public int getExpiryAttempts(Stage stage) {
+		return expiryAttempts == null ? 0 : expiryAttempts[stage.getIndex()];
+	}
+
+	public void setExpiryAttempts(Stage stage, int attempts) {
+		if (expiryAttempts == null) {
+			expiryAttempts = new int[Pipeline.MAX_STAGES];
+		}
+		expiryAttempts[stage.getIndex()] = attempts;
+	}
+
+	public boolean isComplete(Stage stage) {
+		return (completed & stage.mask()) != 0;
+	}
+
+	/**
+	 * @return the bits of the stages the drop has completed
+	 */
+	public int getCompleted() {
+		return completed;
+	}
+
+	/**
+	 * Marks a stage complete and claims the transitions this enables. Only
+	 * the caller completing the last dependency of a stage is told to send
+	 * the drop to it and only the caller completing the last stage is told
+	 * to finish the drop.
+	 * 
+	 * @param stage
+	 * @return {@link Pipeline#FINISH} if the drop has completed every stage,
+	 *         otherwise the bits of the stages to send it to, which are none
+	 *         if the stage was already complete
+	 */
+	public int complete(Stage stage) {
+		int mask = stage.mask();
+		while (true) {
+			int current = completed;
+			if ((current & mask) != 0) {
+				return 0;
+			}
+			if (COMPLETED.compareAndSet(this, current, current | mask)) {
+				return stage.getPipeline().transitions(current, current | mask);
+			}
+		}
+	}
+}
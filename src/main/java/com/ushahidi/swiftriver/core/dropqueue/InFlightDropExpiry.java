@@ -0,0 +1,245 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/agpl.html>
+ * 
+ * Copyright (C) Ushahidi Inc. All Rights Reserved.
+ */
+package com.ushahidi.swiftriver.core.dropqueue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ushahidi.swiftriver.core.dropqueue.support.TimerWheel;
+
+/**
+ * Daemon that expires drops that have been waiting too long for a reply
+ * from one of the processing stages.
+ * 
+ * A timeout of the stage's own length is scheduled for each stage when the
+ * drop is sent to it. When the timeout fires and the stage has still not
+ * replied the configured {@link ExpiryAction} is applied so that the drop's
+ * delivery does not sit unacknowledged in the DROPLET_QUEUE prefetch window
+ * forever. Retries are counted for each stage of the drop, so a stage that
+ * expires after an earlier one was retried gets its own attempts.
+ * 
+ */
+public class InFlightDropExpiry extends Thread {
+
+	/**
+	 * What to do with a drop when a stage fails to reply in time
+	 */
+	public enum ExpiryAction {
+
+		/** Remove the drop and return its delivery to the DROPLET_QUEUE */
+		NACK_REQUEUE,
+
+		/**
+		 * Send the drop to the stage that has not replied again. Falls back to
+		 * {@link #PUBLISH_PARTIAL} after <code>maxAttempts</code> retries.
+		 */
+		REPUBLISH,
+
+		/** Treat the stage as complete and carry on with the metadata we have */
+		PUBLISH_PARTIAL
+	}
+
+	final static Logger LOG = LoggerFactory.getLogger(InFlightDropExpiry.class);
+
+	private static final long TICK_DURATION = 500;
+
+	private static final int TICKS_PER_WHEEL = 1024;
+
+	private final TimerWheel<Timeout> timerWheel = new TimerWheel<Timeout>(
+			TICK_DURATION, TICKS_PER_WHEEL, System.currentTimeMillis());
+
+	/** By the index of the stage in the pipeline */
+	private final AtomicLong[] expiredCounts = new AtomicLong[Pipeline.MAX_STAGES];
+
+	private InFlightDropStore inFlightDropStore;
+
+	private AckTracker ackTracker = new AckTracker();
+
+	private DropJournal dropJournal = new DropJournal();
+
+	private MetadataResponseHandler metadataResponseHandler;
+
+	private ExpiryAction expiryAction = ExpiryAction.REPUBLISH;
+
+	private int maxAttempts = 3;
+
+	public InFlightDropExpiry() {
+		for (int i = 0; i < expiredCounts.length; i++) {
+			expiredCounts[i] = new AtomicLong();
+		}
+	}
+
+	public void setInFlightDropStore(InFlightDropStore inFlightDropStore) {
+		this.inFlightDropStore = inFlightDropStore;
+	}
+
+	public void setAckTracker(AckTracker ackTracker) {
+		this.ackTracker = ackTracker;
+	}
+
+	public void setDropJournal(DropJournal dropJournal) {
+		this.dropJournal = dropJournal;
+	}
+
+	public void setMetadataResponseHandler(
+			MetadataResponseHandler metadataResponseHandler) {
+		this.metadataResponseHandler = metadataResponseHandler;
+	}
+
+	public void setExpiryAction(ExpiryAction expiryAction) {
+		this.expiryAction = expiryAction;
+	}
+
+	public void setMaxAttempts(int maxAttempts) {
+		this.maxAttempts = maxAttempts;
+	}
+
+	/**
+	 * @param stage
+	 * @return the number of drops that have expired waiting for the stage
+	 */
+	public long getExpiredCount(Stage stage) {
+		return expiredCounts[stage.getIndex()].get();
+	}
+
+	/**
+	 * Starts the clock on a stage for the given drop. Called each time the
+	 * drop is sent to the stage.
+	 * 
+	 * @param inFlightDrop
+	 * @param stage
+	 */
+	public void schedule(InFlightDrop inFlightDrop, Stage stage) {
+		int attempt;
+		synchronized (inFlightDrop) {
+			attempt = inFlightDrop.getExpiryAttempts(stage);
+		}
+		// Only the ID is kept so that completed drops can be collected
+		// before their timeouts fire
+		timerWheel.schedule(new Timeout(inFlightDrop.getId(), stage, attempt),
+				System.currentTimeMillis() + stage.getTimeout());
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.lang.Thread#run()
+	 */
+	public void run() {
+		LOG.debug("In-flight drop expiry started");
+
+		List<Timeout> expired = new ArrayList<Timeout>();
+		try {
+			while (true) {
+				Thread.sleep(TICK_DURATION);
+
+				timerWheel.expire(System.currentTimeMillis(), expired);
+				for (Timeout timeout : expired) {
+					try {
+						expire(timeout.correlationId, timeout.stage, timeout.attempt);
+					} catch (Exception e) {
+						LOG.error("Error expiring drop with correlation id '"
+								+ timeout.correlationId + "'", e);
+					}
+				}
+				expired.clear();
+			}
+		} catch (InterruptedException e) {
+			LOG.error(e.getMessage());
+		}
+	}
+
+	/**
+	 * Applies the expiry action to a drop whose timeout has fired, unless
+	 * the drop has since completed the stage, been retried or left the store.
+	 * 
+	 * @param correlationId
+	 * @param stage
+	 * @param attempt the stage's expiry attempts when the timeout was
+	 *            scheduled
+	 * @throws Exception
+	 */
+	public void expire(long correlationId, Stage stage, int attempt)
+			throws Exception {
+		InFlightDrop inFlightDrop = inFlightDropStore.get(correlationId);
+		if (inFlightDrop == null) {
+			return;
+		}
+
+		synchronized (inFlightDrop) {
+			if (inFlightDrop.isRemoved() || inFlightDrop.isComplete(stage)
+					|| inFlightDrop.getExpiryAttempts(stage) != attempt) {
+				return;
+			}
+
+			ExpiryAction action = expiryAction;
+			if (action == ExpiryAction.REPUBLISH && attempt >= maxAttempts) {
+				action = ExpiryAction.PUBLISH_PARTIAL;
+			}
+
+			LOG.warn("Drop with correlation id '{}' expired waiting for '{}', action {}",
+					new Object[] {correlationId, stage.getSource(), action});
+
+			switch (action) {
+			case NACK_REQUEUE:
+				expiredCounts[stage.getIndex()].incrementAndGet();
+				inFlightDropStore.remove(correlationId);
+				dropJournal.removed(correlationId);
+				ackTracker.nack(inFlightDrop.getDeliveryFrame(), true);
+				break;
+
+			case REPUBLISH:
+				// Stages sharing a publisher are sent the drop together so they
+				// are retried together and each uses up an attempt
+				InFlightDropPublisher publisher = stage.getPublisher();
+				for (Stage retried : publisher.getStages()) {
+					if (retried.isReady(inFlightDrop)) {
+						expiredCounts[retried.getIndex()].incrementAndGet();
+						inFlightDrop.setExpiryAttempts(retried,
+								inFlightDrop.getExpiryAttempts(retried) + 1);
+					}
+				}
+				publisher.publish(inFlightDrop);
+				break;
+
+			case PUBLISH_PARTIAL:
+				expiredCounts[stage.getIndex()].incrementAndGet();
+				metadataResponseHandler.advance(inFlightDrop,
+						inFlightDrop.complete(stage));
+				break;
+			}
+		}
+	}
+
+	private static final class Timeout {
+
+		final long correlationId;
+
+		final Stage stage;
+
+		final int attempt;
+
+		Timeout(long correlationId, Stage stage, int attempt) {
+			this.correlationId = correlationId;
+			this.stage = stage;
+			this.attempt = attempt;
+		}
+	}
+}
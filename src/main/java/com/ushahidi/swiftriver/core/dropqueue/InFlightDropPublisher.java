@@ -0,0 +1,510 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/agpl.html>
+ * 
+ * Copyright (C) Ushahidi Inc. All Rights Reserved.
+ */
+package com.ushahidi.swiftriver.core.dropqueue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.amqp.rabbit.support.DefaultMessagePropertiesConverter;
+import org.springframework.amqp.rabbit.support.MessagePropertiesConverter;
+import org.springframework.amqp.support.converter.ClassMapper;
+import org.springframework.amqp.support.converter.DefaultClassMapper;
+import org.springframework.amqp.support.converter.MessageConverter;
+
+import com.ushahidi.swiftriver.core.dropqueue.metrics.Histogram;
+import com.ushahidi.swiftriver.core.dropqueue.model.RawDrop;
+import com.ushahidi.swiftriver.core.dropqueue.support.Batches;
+import com.ushahidi.swiftriver.core.dropqueue.support.ConfirmingChannel;
+import com.ushahidi.swiftriver.core.dropqueue.support.CorrelationIds;
+
+/**
+ * Daemon that publishes in-flight drops to an exchange for the processing
+ * stages consuming from it. The {@link Pipeline} tells the publisher which
+ * stages those are.
+ * 
+ * A pool of dispatcher threads drains the publisher's queue in batches of up
+ * to <code>batchSize</code>, waiting at most <code>linger</code>
+ * milliseconds for a batch to fill. Each dispatcher pipelines its batches
+ * onto its own channel in publisher confirm mode. A drop only counts as sent
+ * once the broker has confirmed it, at which point {@link #confirmed} starts
+ * the expiry clocks of the stages it was sent to. A drop the broker
+ * rejects, or whose confirm is lost with the channel, is removed from the
+ * {@link InFlightDropStore} and its delivery is returned to the
+ * DROPLET_QUEUE.
+ * 
+ * Stages without dependencies only need the drop as it arrived, so
+ * compact drops are sent to them as a copy of their record without being
+ * decoded.
+ * 
+ * {@link #shutdown()} stops the dispatchers once the queue is empty and
+ * their outstanding confirms are in, or <code>drainTimeout</code> has passed.
+ * 
+ * Publish latency (publish to confirm, in microseconds), batch sizes and the
+ * queue depth are logged periodically.
+ * 
+ */
+public class InFlightDropPublisher {
+
+	final Logger logger = LoggerFactory.getLogger(getClass());
+
+	private static final long REPORT_INTERVAL = 60000;
+
+	private static final long POLL_INTERVAL = 100;
+
+	private final ClassMapper classMapper = new DefaultClassMapper();
+
+	private final MessagePropertiesConverter messagePropertiesConverter = new DefaultMessagePropertiesConverter();
+
+	private final Histogram publishLatency = new Histogram();
+
+	private final Histogram batchSizes = new Histogram();
+
+	private final AtomicLong failedCount = new AtomicLong();
+
+	private final List<Dispatcher> dispatchers = new ArrayList<Dispatcher>();
+
+	private volatile boolean running;
+
+	private volatile long drainDeadline;
+
+	private String name = getClass().getSimpleName();
+
+	private List<Stage> stages = Collections.emptyList();
+
+	private BlockingQueue<InFlightDrop> queue;
+
+	private ConnectionFactory connectionFactory;
+
+	private MessageConverter messageConverter;
+
+	private String exchange;
+
+	private String routingKey = "";
+
+	private String callbackQueueName;
+
+	private PartitionCoordinator partitionCoordinator;
+
+	private InFlightDropStore inFlightDropStore;
+
+	private AckTracker ackTracker = new AckTracker();
+
+	private DropJournal dropJournal = new DropJournal();
+
+	private InFlightDropExpiry inFlightDropExpiry;
+
+	private int dispatcherCount = 1;
+
+	private int batchSize = 100;
+
+	private long linger = 10;
+
+	private long drainTimeout = 10000;
+
+	/**
+	 * @param name prefix for the dispatcher thread names
+	 */
+	public void setName(String name) {
+		this.name = name;
+	}
+
+	public void setConnectionFactory(ConnectionFactory connectionFactory) {
+		this.connectionFactory = connectionFactory;
+	}
+
+	public MessageConverter getMessageConverter() {
+		return messageConverter;
+	}
+
+	public void setMessageConverter(MessageConverter messageConverter) {
+		this.messageConverter = messageConverter;
+	}
+
+	public void setExchange(String exchange) {
+		this.exchange = exchange;
+	}
+
+	public void setRoutingKey(String routingKey) {
+		this.routingKey = routingKey;
+	}
+
+	public String getCallbackQueueName() {
+		return callbackQueueName;
+	}
+
+	public void setCallbackQueueName(String callbackQueueName) {
+		this.callbackQueueName = callbackQueueName;
+	}
+
+	/**
+	 * @param partitionCoordinator when enabled, gives the reply queue of each
+	 *            drop's partition in place of the callback queue
+	 */
+	public void setPartitionCoordinator(
+			PartitionCoordinator partitionCoordinator) {
+		this.partitionCoordinator = partitionCoordinator;
+	}
+
+	public void setInFlightDropStore(InFlightDropStore inFlightDropStore) {
+		this.inFlightDropStore = inFlightDropStore;
+	}
+
+	public void setAckTracker(AckTracker ackTracker) {
+		this.ackTracker = ackTracker;
+	}
+
+	public void setDropJournal(DropJournal dropJournal) {
+		this.dropJournal = dropJournal;
+	}
+
+	public InFlightDropExpiry getInFlightDropExpiry() {
+		return inFlightDropExpiry;
+	}
+
+	public void setInFlightDropExpiry(InFlightDropExpiry inFlightDropExpiry) {
+		this.inFlightDropExpiry = inFlightDropExpiry;
+	}
+
+	/**
+	 * @param dispatcherCount number of threads publishing from the queue
+	 */
+	public void setDispatchers(int dispatcherCount) {
+		this.dispatcherCount = dispatcherCount;
+	}
+
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * @param linger milliseconds to wait for a batch to fill
+	 */
+	public void setLinger(long linger) {
+		this.linger = linger;
+	}
+
+	/**
+	 * @param drainTimeout milliseconds to wait for the queue to drain on
+	 *            shutdown
+	 */
+	public void setDrainTimeout(long drainTimeout) {
+		this.drainTimeout = drainTimeout;
+	}
+
+	protected BlockingQueue<InFlightDrop> getQueue() {
+		return queue;
+	}
+
+	/**
+	 * @param queue drops waiting to be published
+	 */
+	public void setQueue(BlockingQueue<InFlightDrop> queue) {
+		this.queue = queue;
+	}
+
+	/**
+	 * @return the stages drops are published to through this publisher
+	 */
+	public List<Stage> getStages() {
+		return stages;
+	}
+
+	void setStages(List<Stage> stages) {
+		this.stages = Collections.unmodifiableList(new ArrayList<Stage>(stages));
+	}
+
+	/**
+	 * @return microseconds from publish to broker confirm
+	 */
+	public Histogram getPublishLatency() {
+		return publishLatency;
+	}
+
+	public Histogram getBatchSizes() {
+		return batchSizes;
+	}
+
+	/**
+	 * @return the number of drops the broker failed to confirm
+	 */
+	public long getFailedCount() {
+		return failedCount.get();
+	}
+
+	/**
+	 * @return the number of drops published and awaiting confirmation
+	 */
+	public int getOutstanding() {
+		int outstanding = 0;
+		synchronized (dispatchers) {
+			for (Dispatcher dispatcher : dispatchers) {
+				outstanding += dispatcher.confirmingChannel.getOutstanding();
+			}
+		}
+		return outstanding;
+	}
+
+	/**
+	 * @return the number of drops waiting to be published
+	 */
+	public int getQueueDepth() {
+		return queue.size();
+	}
+
+	/**
+	 * Queues an in-flight drop for publishing
+	 * 
+	 * @param inFlightDrop
+	 * @throws InterruptedException
+	 */
+	public void publish(InFlightDrop inFlightDrop) throws InterruptedException {
+		queue.put(inFlightDrop);
+	}
+
+	/**
+	 * Starts the dispatcher threads
+	 */
+	public void start() {
+		synchronized (dispatchers) {
+			running = true;
+			for (int i = 0; i < dispatcherCount; i++) {
+				Dispatcher dispatcher = new Dispatcher(name + "-" + i, i == 0);
+				dispatchers.add(dispatcher);
+				dispatcher.start();
+			}
+		}
+		logger.debug("{} started with {} dispatchers", name, dispatcherCount);
+	}
+
+	/**
+	 * Stops the dispatchers after they have drained the queue and received
+	 * the confirms for what they published, waiting at most
+	 * <code>drainTimeout</code> milliseconds. Drops still unconfirmed after
+	 * that are requeued on the DROPLET_QUEUE.
+	 * 
+	 * @throws InterruptedException
+	 */
+	public void shutdown() throws InterruptedException {
+		List<Dispatcher> stopping;
+		synchronized (dispatchers) {
+			drainDeadline = System.currentTimeMillis() + drainTimeout;
+			running = false;
+			stopping = new ArrayList<Dispatcher>(dispatchers);
+			dispatchers.clear();
+		}
+
+		for (Dispatcher dispatcher : stopping) {
+			dispatcher.join(Math.max(1, drainDeadline + POLL_INTERVAL
+					- System.currentTimeMillis()));
+			if (dispatcher.isAlive()) {
+				dispatcher.interrupt();
+			}
+		}
+		logger.info("{} stopped with {} drops queued", name, queue.size());
+	}
+
+	/**
+	 * Starts the expiry clock for the stages the drop was sent to once the
+	 * broker has accepted it. Stages the drop has completed since, such as
+	 * stages that replied to an earlier publish, are left alone.
+	 * 
+	 * @param inFlightDrop
+	 */
+	protected void confirmed(InFlightDrop inFlightDrop) {
+		for (Stage stage : stages) {
+			if (stage.isReady(inFlightDrop)) {
+				inFlightDropExpiry.schedule(inFlightDrop, stage);
+			}
+		}
+	}
+
+	private String replyQueue(InFlightDrop inFlightDrop) {
+		if (partitionCoordinator != null && partitionCoordinator.isEnabled()) {
+			return partitionCoordinator.replyQueue(inFlightDrop.getId());
+		}
+		return callbackQueueName;
+	}
+
+	/**
+	 * Converts an in-flight drop into the message published to the stage.
+	 * Called while holding the monitor of the drop.
+	 * 
+	 * @param inFlightDrop
+	 * @param messageProperties
+	 * @return
+	 * @throws IOException if a compact drop cannot be decoded
+	 */
+	protected Message toMessage(InFlightDrop inFlightDrop,
+			MessageProperties messageProperties) throws IOException {
+		ByteBuffer record = inFlightDrop.getRecord();
+		if (record == null || stages.isEmpty()
+				|| stages.get(0).getDependencyMask() != 0) {
+			return messageConverter.toMessage(
+					inFlightDropStore.getDrop(inFlightDrop), messageProperties);
+		}
+
+		byte[] body = new byte[record.remaining()];
+		record.duplicate().get(body);
+		messageProperties.setContentType(MessageProperties.CONTENT_TYPE_JSON);
+		messageProperties.setContentEncoding("UTF-8");
+		messageProperties.setContentLength(body.length);
+		classMapper.fromClass(RawDrop.class, messageProperties);
+		return new Message(body, messageProperties);
+	}
+
+	/**
+	 * Removes a drop the broker did not accept and returns its delivery to
+	 * the DROPLET_QUEUE to be retried.
+	 * 
+	 * @param inFlightDrop
+	 */
+	protected void failed(InFlightDrop inFlightDrop) {
+		failedCount.incrementAndGet();
+
+		synchronized (inFlightDrop) {
+			if (inFlightDrop.isRemoved()) {
+				return;
+			}
+			inFlightDropStore.remove(inFlightDrop.getId());
+			dropJournal.removed(inFlightDrop.getId());
+		}
+
+		logger.warn("Drop with correlation id '{}' was not confirmed, requeueing",
+				inFlightDrop.getId());
+		ackTracker.nack(inFlightDrop.getDeliveryFrame(), true);
+	}
+
+	/**
+	 * Publishes a batch of drops without waiting for their confirms
+	 * 
+	 * @param confirmingChannel
+	 * @param batch
+	 */
+	private void publishBatch(ConfirmingChannel<InFlightDrop> confirmingChannel,
+			List<InFlightDrop> batch) {
+		batchSizes.record(batch.size());
+
+		for (InFlightDrop inFlightDrop : batch) {
+			MessageProperties messageProperties = new MessageProperties();
+			messageProperties.setReplyTo(replyQueue(inFlightDrop));
+			messageProperties.setCorrelationId(CorrelationIds.toBytes(inFlightDrop.getId()));
+
+			// Serialize while holding the drop's lock but send without it so
+			// that a slow broker write does not hold up metadata merges
+			Message message;
+			synchronized (inFlightDrop) {
+				// Drop is no longer in flight; purge
+				if (inFlightDrop.isRemoved()) {
+					logger.info("Drop with correlation ID '{}' not found",
+							inFlightDrop.getId());
+					continue;
+				}
+				try {
+					message = toMessage(inFlightDrop, messageProperties);
+				} catch (IOException e) {
+					// Not going to decode any better on redelivery
+					logger.error("Unable to decode drop with correlation ID "
+							+ inFlightDrop.getId() + ", discarding", e);
+					inFlightDropStore.remove(inFlightDrop.getId());
+					dropJournal.removed(inFlightDrop.getId());
+					ackTracker.nack(inFlightDrop.getDeliveryFrame(), false);
+					continue;
+				}
+				inFlightDrop.publishedAt = System.nanoTime();
+			}
+
+			logger.debug("Sending drop with correlation ID {} to {}",
+					inFlightDrop.getId(), exchange);
+			confirmingChannel.publish(exchange, routingKey,
+					messagePropertiesConverter.fromMessageProperties(
+							message.getMessageProperties(), "UTF-8"),
+					message.getBody(), inFlightDrop);
+		}
+	}
+
+	private void report() {
+		logger.info("{} queue depth: {}, outstanding: {}",
+				new Object[] {name, getQueueDepth(), getOutstanding()});
+		logger.info("{} publish latency (us): {}", name, publishLatency);
+		logger.info("{} batch sizes: {}", name, batchSizes);
+	}
+
+	private class Dispatcher extends Thread implements
+			ConfirmingChannel.Callback<InFlightDrop> {
+
+		final ConfirmingChannel<InFlightDrop> confirmingChannel;
+
+		final boolean reporter;
+
+		Dispatcher(String name, boolean reporter) {
+			super(name);
+			setDaemon(true);
+			this.reporter = reporter;
+			this.confirmingChannel = new ConfirmingChannel<InFlightDrop>(
+					connectionFactory, this);
+		}
+
+		public void run() {
+			List<InFlightDrop> batch = new ArrayList<InFlightDrop>(batchSize);
+			long lastReport = System.currentTimeMillis();
+			try {
+				// Keep going after shutdown until the queue is drained
+				while (running || !queue.isEmpty()) {
+					if (Batches.drain(queue, batch, batchSize, linger,
+							POLL_INTERVAL) > 0) {
+						publishBatch(confirmingChannel, batch);
+						batch.clear();
+					}
+
+					long now = System.currentTimeMillis();
+					if (reporter && now - lastReport >= REPORT_INTERVAL) {
+						report();
+						lastReport = now;
+					}
+				}
+				if (!confirmingChannel.awaitConfirms(drainDeadline
+						- System.currentTimeMillis())) {
+					logger.warn("{} stopping with {} unconfirmed drops", getName(),
+							confirmingChannel.getOutstanding());
+				}
+			} catch (InterruptedException e) {
+				logger.warn("{} interrupted before draining", getName());
+			} finally {
+				confirmingChannel.close();
+			}
+		}
+
+		public void confirmed(InFlightDrop inFlightDrop, long latency) {
+			publishLatency.record(latency / 1000);
+			InFlightDropPublisher.this.confirmed(inFlightDrop);
+		}
+
+		public void failed(InFlightDrop inFlightDrop) {
+			InFlightDropPublisher.this.failed(inFlightDrop);
+		}
+	}
+}
@@ -0,0 +1,375 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/agpl.html>
+ * 
+ * Copyright (C) Ushahidi Inc. All Rights Reserved.
+ */
+package com.ushahidi.swiftriver.core.dropqueue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Semaphore;
+
+import com.ushahidi.swiftriver.core.dropqueue.model.RawDrop;
+import com.ushahidi.swiftriver.core.dropqueue.support.CorrelationIdGenerator;
+import com.ushahidi.swiftriver.core.dropqueue.support.RawDropDecoder;
+import com.ushahidi.swiftriver.core.dropqueue.support.SequenceIdGenerator;
+import com.ushahidi.swiftriver.core.dropqueue.support.SlabAllocator;
+
+/**
+ * Bounded store for the drops that are undergoing metadata extraction.
+ * 
+ * Each drop is assigned a <code>long</code> correlation ID by the
+ * {@link CorrelationIdGenerator} when it is registered. Entries are kept
+ * in a fixed number of lock striped segments, each a chained hash table
+ * that never resizes, so lookups by correlation ID do not allocate.
+ * 
+ * The store holds at most <code>capacity</code> drops. {@link #register}
+ * blocks while the store is full which stalls the DROPLET_QUEUE consumers
+ * and leaves further drops on the broker until the extractors catch up.
+ * 
+ * With a {@link SlabAllocator} the store can also keep drops compact: the
+ * drop's JSON is copied off-heap as it arrived and only decoded, by
+ * {@link #getDrop(InFlightDrop)}, for the stages that need its fields.
+ * The record is freed when the drop is removed.
+ * 
+ * With an enabled {@link PartitionCoordinator} the store only assigns
+ * correlation IDs from the partitions this processor owns.
+ * 
+ */
+public class InFlightDropStore {
+
+	private static final int SEGMENT_COUNT = 16;
+
+	private final int capacity;
+
+	private final Semaphore permits;
+
+	private final Segment[] segments;
+
+	private CorrelationIdGenerator idGenerator = new SequenceIdGenerator();
+
+	private SlabAllocator slabAllocator;
+
+	private RawDropDecoder dropDecoder;
+
+	private Pipeline pipeline;
+
+	private PartitionCoordinator partitionCoordinator;
+
+	public InFlightDropStore(int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("Capacity must be positive");
+		}
+		this.capacity = capacity;
+		this.permits = new Semaphore(capacity);
+
+		int bucketsPerSegment = 1;
+		while (bucketsPerSegment * SEGMENT_COUNT < capacity * 2) {
+			bucketsPerSegment <<= 1;
+		}
+		segments = new Segment[SEGMENT_COUNT];
+		for (int i = 0; i < SEGMENT_COUNT; i++) {
+			segments[i] = new Segment(bucketsPerSegment);
+		}
+	}
+
+	/**
+	 * Adds a drop to the store and assigns it a correlation ID, waiting for
+	 * space to become available if the store is full.
+	 * 
+	 * @param drop
+	 * @param deliveryFrame
+	 * @return the store entry for the drop
+	 * @throws InterruptedException
+	 */
+	public InFlightDrop register(RawDrop drop, DeliveryFrame deliveryFrame)
+			throws InterruptedException {
+		permits.acquire();
+		InFlightDrop inFlightDrop;
+		try {
+			inFlightDrop = new InFlightDrop(nextId(), drop, deliveryFrame);
+		} catch (InterruptedException e) {
+			permits.release();
+			throw e;
+		}
+		segmentFor(inFlightDrop.getId()).put(inFlightDrop);
+		return inFlightDrop;
+	}
+
+	/**
+	 * Adds a drop recovered from the {@link DropJournal} back to the store
+	 * under the correlation ID it had before, waiting for space to become
+	 * available if the store is full.
+	 * 
+	 * @param id
+	 * @param drop
+	 * @param deliveryFrame
+	 * @return the store entry for the drop
+	 * @throws InterruptedException
+	 */
+	public InFlightDrop restore(long id, RawDrop drop,
+			DeliveryFrame deliveryFrame) throws InterruptedException {
+		permits.acquire();
+		InFlightDrop inFlightDrop = new InFlightDrop(id, drop, deliveryFrame);
+		segmentFor(id).put(inFlightDrop);
+		return inFlightDrop;
+	}
+
+	/**
+	 * Ensures that correlation IDs assigned from now on are greater than the
+	 * given ID
+	 * 
+	 * @param id
+	 */
+	public void skipPast(long id) {
+		idGenerator.skipPast(id);
+	}
+
+	/**
+	 * Adds a drop to the store as a compact record of its JSON, waiting for
+	 * space to become available if the store is full. The JSON must be
+	 * UTF-8 encoded.
+	 * 
+	 * @param body
+	 * @param deliveryFrame
+	 * @return the store entry for the drop or <code>null</code> if the store
+	 *         does not keep drops compact or has no room left for the record
+	 * @throws InterruptedException
+	 */
+	public InFlightDrop register(byte[] body, DeliveryFrame deliveryFrame)
+			throws InterruptedException {
+		if (!isCompact()) {
+			return null;
+		}
+		ByteBuffer record = slabAllocator.store(body);
+		if (record == null) {
+			return null;
+		}
+
+		try {
+			permits.acquire();
+		} catch (InterruptedException e) {
+			slabAllocator.free(record);
+			throw e;
+		}
+		InFlightDrop inFlightDrop;
+		try {
+			inFlightDrop = new InFlightDrop(nextId(), record, deliveryFrame);
+		} catch (InterruptedException e) {
+			permits.release();
+			slabAllocator.free(record);
+			throw e;
+		}
+		segmentFor(inFlightDrop.getId()).put(inFlightDrop);
+		return inFlightDrop;
+	}
+
+	/**
+	 * Gets the complete drop of an entry. The drop of a compact entry is
+	 * decoded from its record with the metadata merged so far laid over
+	 * it, so changes to the returned drop are not kept.
+	 * 
+	 * Callers must hold the monitor of the entry and check that it has not
+	 * been removed.
+	 * 
+	 * @param inFlightDrop
+	 * @return
+	 * @throws IOException if a compact drop cannot be decoded
+	 */
+	public RawDrop getDrop(InFlightDrop inFlightDrop) throws IOException {
+		ByteBuffer record = inFlightDrop.getRecord();
+		if (record == null) {
+			return inFlightDrop.getDrop();
+		}
+
+		RawDrop drop = dropDecoder.decode(record);
+		pipeline.overlay(drop, inFlightDrop.getDrop());
+		return drop;
+	}
+
+	/**
+	 * Gets the entry with the given correlation ID
+	 * 
+	 * @param id
+	 * @return the entry or <code>null</code> if there is no such drop in flight
+	 */
+	public InFlightDrop get(long id) {
+		return segmentFor(id).get(id);
+	}
+
+	/**
+	 * Removes the entry with the given correlation ID freeing up its slot.
+	 * 
+	 * @param id
+	 * @return the removed entry or <code>null</code> if there was no such drop
+	 */
+	public InFlightDrop remove(long id) {
+		InFlightDrop removed = segmentFor(id).remove(id);
+		if (removed != null) {
+			if (removed.record != null) {
+				// Wait out any reader that got hold of the entry first
+				synchronized (removed) {
+					slabAllocator.free(removed.record);
+					removed.record = null;
+				}
+			}
+			permits.release();
+		}
+		return removed;
+	}
+
+	/**
+	 * Counts the drops in flight in a partition of the correlation IDs
+	 * 
+	 * @param partitionCount
+	 * @param partition
+	 * @return the number of drops whose correlation ID modulo
+	 *         <code>partitionCount</code> is <code>partition</code>
+	 */
+	public int count(int partitionCount, int partition) {
+		int count = 0;
+		for (Segment segment : segments) {
+			count += segment.count(partitionCount, partition);
+		}
+		return count;
+	}
+
+	/**
+	 * @return the number of drops currently in flight
+	 */
+	public int size() {
+		return capacity - permits.availablePermits();
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return <code>true</code> if the store keeps drops as compact records
+	 */
+	public boolean isCompact() {
+		return slabAllocator != null && slabAllocator.getCapacity() > 0;
+	}
+
+	public SlabAllocator getSlabAllocator() {
+		return slabAllocator;
+	}
+
+	public void setSlabAllocator(SlabAllocator slabAllocator) {
+		this.slabAllocator = slabAllocator;
+	}
+
+	public RawDropDecoder getDropDecoder() {
+		return dropDecoder;
+	}
+
+	public void setDropDecoder(RawDropDecoder dropDecoder) {
+		this.dropDecoder = dropDecoder;
+	}
+
+	/**
+	 * @param pipeline owner of the fields laid over compact drops
+	 */
+	public void setPipeline(Pipeline pipeline) {
+		this.pipeline = pipeline;
+	}
+
+	public void setIdGenerator(CorrelationIdGenerator idGenerator) {
+		this.idGenerator = idGenerator;
+	}
+
+	public void setPartitionCoordinator(PartitionCoordinator partitionCoordinator) {
+		this.partitionCoordinator = partitionCoordinator;
+	}
+
+	private long nextId() throws InterruptedException {
+		long next = idGenerator.nextId();
+		if (partitionCoordinator != null && partitionCoordinator.isEnabled()) {
+			return partitionCoordinator.assign(next);
+		}
+		return next;
+	}
+
+	private Segment segmentFor(long id) {
+		return segments[(int) (hash(id) >>> 32) & (SEGMENT_COUNT - 1)];
+	}
+
+	static long hash(long id) {
+		long h = id * 0x9E3779B97F4A7C15L;
+		return h ^ (h >>> 29);
+	}
+
+	/**
+	 * A chained hash table guarded by its own monitor
+	 */
+	private static final class Segment {
+
+		private final InFlightDrop[] buckets;
+
+		Segment(int size) {
+			buckets = new InFlightDrop[size];
+		}
+
+		private int indexFor(long id) {
+			return (int) hash(id) & (buckets.length - 1);
+		}
+
+		synchronized void put(InFlightDrop inFlightDrop) {
+			int index = indexFor(inFlightDrop.getId());
+			inFlightDrop.next = buckets[index];
+			buckets[index] = inFlightDrop;
+		}
+
+		synchronized InFlightDrop get(long id) {
+			for (InFlightDrop e = buckets[indexFor(id)]; e != null; e = e.next) {
+				if (e.getId() == id) {
+					return e;
+				}
+			}
+			return null;
+		}
+
+		synchronized int count(int partitionCount, int partition) {
+			int count = 0;
+			for (InFlightDrop head : buckets) {
+				for (InFlightDrop e = head; e != null; e = e.next) {
+					if (e.getId() % partitionCount == partition) {
+						count++;
+					}
+				}
+			}
+			return count;
+		}
+
+		synchronized InFlightDrop remove(long id) {
+			int index = indexFor(id);
+			InFlightDrop previous = null;
+			for (InFlightDrop e = buckets[index]; e != null; e = e.next) {
+				if (e.getId() == id) {
+					if (previous == null) {
+						buckets[index] = e.next;
+					} else {
+						previous.next = e.next;
+					}
+					e.next = null;
+					e.removed = true;
+					return e;
+				}
+				previous = e;
+			}
+			return null;
+		}
+	}
+}
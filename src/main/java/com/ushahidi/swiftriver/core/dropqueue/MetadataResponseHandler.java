@@ -14,10 +14,10 @@
  */
 package com.ushahidi.swiftriver.core.dropqueue;
 
-import java.util.Map;
+import java.io.IOException;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
-import org.codehaus.jackson.map.ObjectMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.amqp.core.Message;
@@ -25,16 +25,20 @@ import org.springframework.amqp.rabbit.core.ChannelAwareMessageListener;
 import org.springframework.util.ErrorHandler;
 
 import com.rabbitmq.client.Channel;
+import com.ushahidi.swiftriver.core.dropqueue.metrics.Histogram;
 import com.ushahidi.swiftriver.core.dropqueue.model.RawDrop;
+import com.ushahidi.swiftriver.core.dropqueue.support.CorrelationIds;
+import com.ushahidi.swiftriver.core.dropqueue.support.MetadataReplyDecoder;
 
 /**
  * Handler for incoming drops from metadata extractors.
  * 
- * Update the in memory drops map with the response from the metadata
+ * Update the in-flight drop store with the response from the metadata
  * extractors.
  * 
- * Puts drops that have completed metadata extraction onto a publish queue for
- * posting to the SwiftRiver REST API.
+ * Sends drops on to the stages of the {@link Pipeline} that depend on the
+ * stage that replied and puts drops that have completed every stage onto a
+ * publish queue for posting to the SwiftRiver REST API.
  * 
  */
 public class MetadataResponseHandler implements ChannelAwareMessageListener,
@@ -43,116 +47,232 @@ public class MetadataResponseHandler implements ChannelAwareMessageListener,
 	final Logger logger = LoggerFactory
 			.getLogger(MetadataResponseHandler.class);
 
-	private ObjectMapper objectMapper;
+	private MetadataReplyDecoder replyDecoder;
 
-	private Map<String, RawDrop> dropsMap;
+	private InFlightDropStore inFlightDropStore;
 
 	private BlockingQueue<RawDrop> publishQueue;
-	
-	private BlockingQueue<String> dropFilterQueue;
-	
-	private Map<String, DeliveryFrame> deliveryFramesMap;
-	
-	public void setObjectMapper(ObjectMapper objectMapper) {
-		this.objectMapper = objectMapper;
+
+	private Pipeline pipeline;
+
+	private AckTracker ackTracker = new AckTracker();
+
+	private boolean ackAfterPublish;
+
+	private DropJournal dropJournal = new DropJournal();
+
+	/** By the index of the stage in the pipeline */
+	private final Histogram[] replyLatencies = new Histogram[Pipeline.MAX_STAGES];
+
+	private final AtomicLong unmatchedCount = new AtomicLong();
+
+	private final AtomicLong duplicateCount = new AtomicLong();
+
+	public MetadataResponseHandler() {
+		for (int i = 0; i < replyLatencies.length; i++) {
+			replyLatencies[i] = new Histogram();
+		}
+	}
+
+	public void setReplyDecoder(MetadataReplyDecoder replyDecoder) {
+		this.replyDecoder = replyDecoder;
 	}
 
-	public void setDropsMap(Map<String, RawDrop> dropsMap) {
-		this.dropsMap = dropsMap;
+	public void setInFlightDropStore(InFlightDropStore inFlightDropStore) {
+		this.inFlightDropStore = inFlightDropStore;
 	}
 
 	public void setPublishQueue(BlockingQueue<RawDrop> publishQueue) {
 		this.publishQueue = publishQueue;
 	}
 
-	public void setDropFilterQueue(BlockingQueue<String> dropFilterQueue) {
-		this.dropFilterQueue = dropFilterQueue;
+	public void setPipeline(Pipeline pipeline) {
+		this.pipeline = pipeline;
 	}
 
-	public void setDeliveryFramesMap(Map<String, DeliveryFrame> deliveryFramesMap) {
-		this.deliveryFramesMap = deliveryFramesMap;
+	public void setAckTracker(AckTracker ackTracker) {
+		this.ackTracker = ackTracker;
+	}
+
+	public void setDropJournal(DropJournal dropJournal) {
+		this.dropJournal = dropJournal;
 	}
 
 	/**
-	 * Receive drop that has completed metadata extraction.
+	 * @param ackAfterPublish whether completed drops are left for the
+	 *            {@link Publisher} to ack once they have been posted
+	 */
+	public void setAckAfterPublish(boolean ackAfterPublish) {
+		this.ackAfterPublish = ackAfterPublish;
+	}
+
+	/**
+	 * @param stage
+	 * @return microseconds from publishing drops to the stage to receiving
+	 *         its replies
+	 */
+	public Histogram getReplyLatency(Stage stage) {
+		return replyLatencies[stage.getIndex()];
+	}
+
+	/**
+	 * @return the number of replies for drops no longer in flight
+	 */
+	public long getUnmatchedCount() {
+		return unmatchedCount.get();
+	}
+
+	/**
+	 * @return the number of replies from stages the drop had already
+	 *         completed, such as replies to republished drops
+	 */
+	public long getDuplicateCount() {
+		return duplicateCount.get();
+	}
+
+	/**
+	 * Receive a reply from one of the processing stages.
 	 * 
-	 * Updates the locally cached drop with received metadata. 
-	 * Drops that have completed both media and sematic extraction
-	 * get added to the publishQueue for posting to the API.
+	 * Updates the locally cached drop with the fields the stage owns and
+	 * moves the drop on; see {@link #advance(InFlightDrop, int)}.
+	 * 
+	 * Merges only lock the drop being updated so the handler can be run
+	 * by several consumers at once. A reply from a stage the drop has
+	 * already completed is dropped.
 	 * 
 	 * @param message
 	 * @param channel
 	 * @throws Exception
 	 */
 	public void onMessage(Message message, Channel channel) throws Exception {
-		String correlationId = new String(message.getMessageProperties()
-				.getCorrelationId());
-		RawDrop updatedDrop = objectMapper.readValue(
-				new String(message.getBody()), RawDrop.class);
+		long correlationId = CorrelationIds.fromBytes(message
+				.getMessageProperties().getCorrelationId());
+		RawDrop updatedDrop = replyDecoder.decode(message);
+		Stage stage = pipeline.getStage(updatedDrop.getSource());
 
 		logger.info("Metadata Response received from '{}' with correlation_id '{}'",
 						updatedDrop.getSource(), correlationId);
 
-		synchronized (dropsMap) {
-			RawDrop cachedDrop = dropsMap.get(correlationId);
+		if (stage == null) {
+			logger.error("Reply with correlation id '{}' from unknown source '{}'",
+					correlationId, updatedDrop.getSource());
+			return;
+		}
 
-			// Verify that the drop exists in the in-memory cache
-			if (cachedDrop == null) {
+		InFlightDrop inFlightDrop = inFlightDropStore.get(correlationId);
+
+		// Verify that the drop exists in the in-memory cache
+		if (inFlightDrop == null) {
+			unmatchedCount.incrementAndGet();
+			if (dropJournal.mergeRecovered(correlationId, stage, updatedDrop)) {
+				logger.info("Reply for drop with correlation id '{}' kept until the drop is redelivered",
+						correlationId);
+			} else {
 				logger.error("Drop with correlation id '{}' not found in cache",
 						correlationId);
+			}
 
-				// Acknowledge receipt
-				channel.basicAck(message.getMessageProperties().getDeliveryTag(), false);
+			// Acked by the listener container, like every other reply
+			return;
+		}
+
+		synchronized (inFlightDrop) {
+			// Completed or expired while waiting for the lock
+			if (inFlightDrop.isRemoved()) {
+				logger.info("Drop with correlation id '{}' is no longer in flight",
+						correlationId);
 				return;
 			}
 
-			if (updatedDrop.getSource().equals("mediaextractor")) {
-				cachedDrop.setMediaComplete(true);
-				cachedDrop.setMedia(updatedDrop.getMedia());
-				cachedDrop.setLinks(updatedDrop.getLinks());
-			} else if (updatedDrop.getSource().equals("semantics")) {
-				cachedDrop.setSemanticsComplete(true);
-				cachedDrop.setTags(updatedDrop.getTags());
-				cachedDrop.setPlaces(updatedDrop.getPlaces());
-			} else if (updatedDrop.getSource().equals("rules")) {
-				cachedDrop.setBucketIds(updatedDrop.getBucketIds());
-				cachedDrop.setRiverIds(updatedDrop.getRiverIds());
-				cachedDrop.setMarkAsRead(updatedDrop.getMarkAsRead());
-				cachedDrop.setRulesComplete(true);
+			if (inFlightDrop.isComplete(stage)) {
+				duplicateCount.incrementAndGet();
+				logger.info("Drop with correlation id '{}' has already completed '{}'",
+						correlationId, stage.getSource());
+				return;
 			}
 
-			// When semantics and metadata extraction are complete,
-			// submit for rules processing
-			if (cachedDrop.isSemanticsComplete() && cachedDrop.isMediaComplete()) {
-				logger.info("Sending drop with correlation id '{}' for rules processing",
-						correlationId);
-				dropFilterQueue.put(correlationId);
+			// Resumed drops were published before the restart
+			if (inFlightDrop.publishedAt != 0) {
+				replyLatencies[stage.getIndex()].record(
+						(System.nanoTime() - inFlightDrop.publishedAt) / 1000);
 			}
+			stage.merge(inFlightDrop.getDrop(), updatedDrop);
+			dropJournal.merged(correlationId, stage, updatedDrop);
+			advance(inFlightDrop, inFlightDrop.complete(stage));
+		}
+	}
 
-			if (cachedDrop.isSemanticsComplete()
-					&& cachedDrop.isMediaComplete() && cachedDrop.isRulesComplete()) {
+	/**
+	 * Takes the transitions a drop claimed on completing a stage: the drop
+	 * is sent to the stages whose dependencies it has now completed or,
+	 * once it has completed every stage, queued for posting to the API,
+	 * removed from the in-flight store and acknowledged. With
+	 * <code>ackAfterPublish</code> the drops queued for posting carry their
+	 * delivery frame instead and are acknowledged by the {@link Publisher}
+	 * once the API has accepted them.
+	 * 
+	 * Callers must hold the monitor of the in-flight drop.
+	 * 
+	 * @param inFlightDrop
+	 * @param next returned by {@link InFlightDrop#complete(Stage)} or
+	 *            {@link Pipeline#next(InFlightDrop)}
+	 * @throws InterruptedException
+	 * @throws IOException
+	 */
+	public void advance(InFlightDrop inFlightDrop, int next)
+			throws InterruptedException, IOException {
+		if (next == Pipeline.FINISH) {
+			finish(inFlightDrop);
+		} else if (next != 0) {
+			logger.info("Sending drop with correlation id '{}' to its next stages",
+					inFlightDrop.getId());
+			pipeline.dispatch(inFlightDrop, next);
+		}
+	}
 
-				// Queue the drop for posting via the API
-				if (cachedDrop.getRiverIds() != null && 
-						!cachedDrop.getRiverIds().isEmpty()) {
-					publishQueue.put(cachedDrop);
-				} else {
-					logger.info("No destination rivers for drop with correlation id '{}'",
-							correlationId);
-				}
+	private void finish(InFlightDrop inFlightDrop) throws InterruptedException,
+			IOException {
+		long correlationId = inFlightDrop.getId();
+		DeliveryFrame deliveryFrame = inFlightDrop.getDeliveryFrame();
+		RawDrop cachedDrop;
+		try {
+			cachedDrop = inFlightDropStore.getDrop(inFlightDrop);
+		} catch (IOException e) {
+			// Not going to decode any better on redelivery
+			logger.error("Unable to decode drop with correlation id '"
+					+ correlationId + "', discarding", e);
+			inFlightDropStore.remove(correlationId);
+			dropJournal.removed(correlationId);
+			ackTracker.nack(deliveryFrame, false);
+			return;
+		}
 
-				dropsMap.remove(correlationId);
+		// Queue the drop for posting via the API
+		boolean publish = cachedDrop.getRiverIds() != null
+				&& !cachedDrop.getRiverIds().isEmpty();
+		if (publish) {
+			if (ackAfterPublish) {
+				cachedDrop.setDeliveryFrame(deliveryFrame);
+			}
+			cachedDrop.setCorrelationId(correlationId);
+			dropJournal.completed(cachedDrop, !ackAfterPublish);
+			publishQueue.put(cachedDrop);
+		} else {
+			logger.info("No destination rivers for drop with correlation id '{}'",
+					correlationId);
+			dropJournal.removed(correlationId);
+		}
 
-				// Confirm the drop has completed processing
-				DeliveryFrame deliveryFrame = deliveryFramesMap.remove(correlationId);
-				Channel confirmChannel = deliveryFrame.getChannel();
-				confirmChannel.basicAck(deliveryFrame.getDeliveryTag(), false);
+		inFlightDropStore.remove(correlationId);
 
-				// Log
-				logger.info("Drop with correlation id '{}' has completed metadata extraction",
-						correlationId);
-			}
+		// Confirm the drop has completed processing
+		if (!publish || !ackAfterPublish) {
+			ackTracker.ack(deliveryFrame);
 		}
+
+		// Log
+		logger.info("Drop with correlation id '{}' has completed metadata extraction",
+				correlationId);
 	}
 
 	public void handleError(Throwable t) {
@@ -0,0 +1,286 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/agpl.html>
+ * 
+ * Copyright (C) Ushahidi Inc. All Rights Reserved.
+ */
+package com.ushahidi.swiftriver.core.dropqueue;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ushahidi.swiftriver.core.dropqueue.support.ConsistentHashRing;
+
+/**
+ * Partitions the correlation state of several processors sharing the
+ * DROPLET_QUEUE.
+ * 
+ * Correlation IDs are split into <code>partitionCount</code> partitions,
+ * the partition of an ID being the ID modulo the partition count, and each
+ * partition has a durable reply queue of its own. The live processors are
+ * placed on a {@link ConsistentHashRing} and each owns the partitions the
+ * ring maps to it: it assigns its drops IDs from those partitions only,
+ * has the stages reply to their queues and consumes them.
+ * 
+ * Whenever the {@link ClusterMembership} sees processors join or leave,
+ * {@link #viewChanged} moves partitions to their new owners. A processor
+ * stops assigning IDs from a partition it has lost straight away but keeps
+ * consuming the partition's replies until its drops in the partition have
+ * left the store, or <code>handoffTimeout</code> milliseconds have passed.
+ * The new owner only starts consuming once no other live processor claims
+ * the partition, so a partition's replies are never split between two
+ * processors.
+ * 
+ * Partitioning is disabled while <code>partitionCount</code> is 0.
+ * 
+ */
+public class PartitionCoordinator {
+
+	/**
+	 * Starts and stops consuming the reply queues of partitions
+	 */
+	public interface Listener {
+
+		void start(int partition);
+
+		void stop(int partition);
+	}
+
+	final Logger logger = LoggerFactory.getLogger(PartitionCoordinator.class);
+
+	private String nodeId;
+
+	private int partitionCount;
+
+	private int virtualNodes = 100;
+
+	private String queuePrefix = "DROP_CB_PARTITION_";
+
+	private long handoffTimeout = 120000;
+
+	private InFlightDropStore inFlightDropStore;
+
+	private Listener listener;
+
+	/** Partitions whose reply queues are being consumed */
+	private final Set<Integer> consuming = new TreeSet<Integer>();
+
+	/** Lost partitions still being consumed, with their handoff deadlines */
+	private final Map<Integer, Long> releasing = new HashMap<Integer, Long>();
+
+	/** Partitions new drops are assigned to */
+	private volatile int[] assignable = new int[0];
+
+	private boolean leaving;
+
+	/**
+	 * @param nodeId name of this processor, the host name if empty
+	 */
+	public void setNodeId(String nodeId) {
+		this.nodeId = nodeId;
+	}
+
+	public synchronized String getNodeId() {
+		if (nodeId == null || nodeId.trim().length() == 0) {
+			try {
+				nodeId = InetAddress.getLocalHost().getHostName();
+			} catch (UnknownHostException e) {
+				throw new IllegalStateException("Unable to name the node", e);
+			}
+		}
+		return nodeId.trim();
+	}
+
+	/**
+	 * @param partitionCount number of partitions, 0 to disable partitioning
+	 */
+	public void setPartitionCount(int partitionCount) {
+		this.partitionCount = partitionCount;
+	}
+
+	public int getPartitionCount() {
+		return partitionCount;
+	}
+
+	public void setVirtualNodes(int virtualNodes) {
+		this.virtualNodes = virtualNodes;
+	}
+
+	public void setQueuePrefix(String queuePrefix) {
+		this.queuePrefix = queuePrefix;
+	}
+
+	/**
+	 * @param handoffTimeout milliseconds to wait for the drops in a lost
+	 *            partition to complete before handing it over
+	 */
+	public void setHandoffTimeout(long handoffTimeout) {
+		this.handoffTimeout = handoffTimeout;
+	}
+
+	public long getHandoffTimeout() {
+		return handoffTimeout;
+	}
+
+	public void setInFlightDropStore(InFlightDropStore inFlightDropStore) {
+		this.inFlightDropStore = inFlightDropStore;
+	}
+
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	public boolean isEnabled() {
+		return partitionCount > 0;
+	}
+
+	public int partitionOf(long id) {
+		return (int) (id % partitionCount);
+	}
+
+	/**
+	 * @param partition
+	 * @return the name of the partition's reply queue
+	 */
+	public String queueName(int partition) {
+		return queuePrefix + partition;
+	}
+
+	/**
+	 * @param id
+	 * @return the name of the queue replies for the correlation ID go to
+	 */
+	public String replyQueue(long id) {
+		return queueName(partitionOf(id));
+	}
+
+	/**
+	 * Turns the next value of a sequence into a correlation ID in one of
+	 * the partitions this processor owns, spreading consecutive values over
+	 * the partitions. Waits until the processor owns a partition.
+	 * 
+	 * @param sequence
+	 * @return
+	 * @throws InterruptedException
+	 */
+	public long assign(long sequence) throws InterruptedException {
+		int[] partitions = assignable;
+		if (partitions.length == 0) {
+			synchronized (this) {
+				while (assignable.length == 0) {
+					wait();
+				}
+				partitions = assignable;
+			}
+		}
+		return sequence * partitionCount
+				+ partitions[(int) (sequence % partitions.length)];
+	}
+
+	/**
+	 * @return the partitions whose replies this processor consumes
+	 */
+	public synchronized Set<Integer> getClaimed() {
+		return new TreeSet<Integer>(consuming);
+	}
+
+	/**
+	 * Gives up every partition. The partitions are released by the
+	 * following calls to {@link #viewChanged} as their drops complete.
+	 */
+	public synchronized void leave() {
+		leaving = true;
+		assignable = new int[0];
+	}
+
+	/**
+	 * Moves partitions to the owners given by the current view of the
+	 * cluster. Called periodically with the partitions each live peer
+	 * claims.
+	 * 
+	 * @param peers the claimed partitions by the name of each other live
+	 *            processor
+	 * @param leavingPeers the peers handing over their partitions
+	 */
+	public synchronized void viewChanged(Map<String, Set<Integer>> peers,
+			Set<String> leavingPeers) {
+		Set<String> nodes = new HashSet<String>(peers.keySet());
+		nodes.removeAll(leavingPeers);
+		if (!leaving) {
+			nodes.add(getNodeId());
+		}
+		ConsistentHashRing ring = new ConsistentHashRing(nodes, virtualNodes);
+		Set<Integer> claimedByPeers = new HashSet<Integer>();
+		for (Set<Integer> claimed : peers.values()) {
+			claimedByPeers.addAll(claimed);
+		}
+
+		long now = System.currentTimeMillis();
+		List<Integer> owned = new ArrayList<Integer>();
+		List<Integer> lost = new ArrayList<Integer>();
+		for (int partition = 0; partition < partitionCount; partition++) {
+			if (getNodeId().equals(ring.ownerOf(partition))) {
+				releasing.remove(partition);
+				if (!consuming.contains(partition)) {
+					// Wait for the previous owner to hand it over
+					if (claimedByPeers.contains(partition)) {
+						continue;
+					}
+					listener.start(partition);
+					consuming.add(partition);
+					logger.info("Took over partition {}", partition);
+				}
+				owned.add(partition);
+			} else if (consuming.contains(partition)) {
+				lost.add(partition);
+			}
+		}
+
+		int[] partitions = new int[owned.size()];
+		for (int i = 0; i < partitions.length; i++) {
+			partitions[i] = owned.get(i);
+		}
+		assignable = partitions;
+		if (partitions.length > 0) {
+			notifyAll();
+		}
+
+		for (Integer partition : lost) {
+			Long deadline = releasing.get(partition);
+			if (deadline == null) {
+				// Give registrations that picked the partition before it
+				// was lost until the next view to show up in the store
+				releasing.put(partition, now + handoffTimeout);
+				continue;
+			}
+			int inFlight = inFlightDropStore.count(partitionCount, partition);
+			if (inFlight == 0 || now >= deadline) {
+				listener.stop(partition);
+				consuming.remove(partition);
+				releasing.remove(partition);
+				logger.info("Handed over partition {} with {} drops in flight",
+						partition, inFlight);
+			}
+		}
+	}
+}
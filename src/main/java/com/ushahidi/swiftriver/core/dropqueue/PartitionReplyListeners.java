@@ -0,0 +1,105 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/agpl.html>
+ * 
+ * Copyright (C) Ushahidi Inc. All Rights Reserved.
+ */
+package com.ushahidi.swiftriver.core.dropqueue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.springframework.amqp.core.Queue;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.amqp.rabbit.core.RabbitAdmin;
+import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
+import org.springframework.util.ErrorHandler;
+
+/**
+ * Consumes the reply queues of the partitions a {@link PartitionCoordinator}
+ * hands this processor, each with a listener container of its own.
+ * 
+ * Partition reply queues are durable so that replies wait in them while a
+ * partition moves between processors.
+ * 
+ */
+public class PartitionReplyListeners implements PartitionCoordinator.Listener {
+
+	private ConnectionFactory connectionFactory;
+
+	private Object messageListener;
+
+	private ErrorHandler errorHandler;
+
+	private int concurrentConsumers = 1;
+
+	private PartitionCoordinator partitionCoordinator;
+
+	private final Map<Integer, SimpleMessageListenerContainer> containers = new HashMap<Integer, SimpleMessageListenerContainer>();
+
+	public void setConnectionFactory(ConnectionFactory connectionFactory) {
+		this.connectionFactory = connectionFactory;
+	}
+
+	public void setMessageListener(Object messageListener) {
+		this.messageListener = messageListener;
+	}
+
+	public void setErrorHandler(ErrorHandler errorHandler) {
+		this.errorHandler = errorHandler;
+	}
+
+	public void setConcurrentConsumers(int concurrentConsumers) {
+		this.concurrentConsumers = concurrentConsumers;
+	}
+
+	public void setPartitionCoordinator(
+			PartitionCoordinator partitionCoordinator) {
+		this.partitionCoordinator = partitionCoordinator;
+	}
+
+	public synchronized void start(int partition) {
+		String queueName = partitionCoordinator.queueName(partition);
+		new RabbitAdmin(connectionFactory).declareQueue(new Queue(queueName,
+				true, false, false));
+
+		SimpleMessageListenerContainer container = new SimpleMessageListenerContainer(
+				connectionFactory);
+		container.setQueueNames(queueName);
+		container.setMessageListener(messageListener);
+		container.setErrorHandler(errorHandler);
+		container.setConcurrentConsumers(concurrentConsumers);
+		container.afterPropertiesSet();
+		container.start();
+		containers.put(partition, container);
+	}
+
+	public synchronized void stop(int partition) {
+		SimpleMessageListenerContainer container = containers.remove(partition);
+		if (container != null) {
+			container.stop();
+			container.shutdown();
+		}
+	}
+
+	/**
+	 * Stops consuming every partition
+	 */
+	public synchronized void shutdown() {
+		for (SimpleMessageListenerContainer container : containers.values()) {
+			container.stop();
+			container.shutdown();
+		}
+		containers.clear();
+	}
+}
@@ -0,0 +1,303 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/agpl.html>
+ * 
+ * Copyright (C) Ushahidi Inc. All Rights Reserved.
+ */
+package com.ushahidi.swiftriver.core.dropqueue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.ushahidi.swiftriver.core.dropqueue.model.RawDrop;
+import com.ushahidi.swiftriver.core.dropqueue.support.DropField;
+
+/**
+ * The graph of {@link Stage}s a drop goes through before it is posted to
+ * the API.
+ * 
+ * A drop is sent to the stages without dependencies when it arrives and to
+ * each other stage as soon as the stages it depends on have replied, so
+ * stages that do not depend on one another run in parallel and a stage only
+ * lengthens the path of the drops through the pipeline if others wait on
+ * it. The drop is posted once every stage has replied.
+ * 
+ * Stages sharing a publisher are sent a single message and so must depend
+ * on the same stages. The stages are kept in an order where each comes
+ * after its dependencies; a stage's position gives its bit in the state of
+ * an {@link InFlightDrop}, which limits a pipeline to 31 stages.
+ * 
+ */
+public class Pipeline {
+
+	/**
+	 * Returned by {@link InFlightDrop#complete(Stage)} to the caller
+	 * completing the drop's last stage
+	 */
+	public static final int FINISH = 1 << 31;
+
+	/** Stages that fit in the state of an {@link InFlightDrop} */
+	public static final int MAX_STAGES = 31;
+
+	private List<Stage> stages = Collections.emptyList();
+
+	private Map<String, Stage> sources = new HashMap<String, Stage>();
+
+	private int allMask;
+
+	public Pipeline() {
+	}
+
+	public Pipeline(Stage... stages) {
+		setStages(Arrays.asList(stages));
+	}
+
+	/**
+	 * @return the stages, each after the stages it depends on
+	 */
+	public List<Stage> getStages() {
+		return stages;
+	}
+
+	/**
+	 * Sets the stages of the pipeline, ordering them so that each comes
+	 * after the stages it depends on.
+	 * 
+	 * @param stages
+	 * @throws IllegalArgumentException if two stages reply with the same
+	 *             source, a stage depends on one outside the pipeline, the
+	 *             dependencies form a cycle or stages sharing a publisher
+	 *             depend on different stages
+	 */
+	public void setStages(List<Stage> stages) {
+		if (stages.size() > MAX_STAGES) {
+			throw new IllegalArgumentException("A pipeline can have at most "
+					+ MAX_STAGES + " stages");
+		}
+
+		Map<String, Stage> sources = new HashMap<String, Stage>();
+		for (Stage stage : stages) {
+			if (sources.put(stage.getSource(), stage) != null) {
+				throw new IllegalArgumentException("More than one stage replies as '"
+						+ stage.getSource() + "'");
+			}
+		}
+		for (Stage stage : stages) {
+			for (Stage dependency : stage.getDependsOn()) {
+				if (!stages.contains(dependency)) {
+					throw new IllegalArgumentException("Stage '" + stage
+							+ "' depends on '" + dependency
+							+ "' which is not in the pipeline");
+				}
+			}
+		}
+
+		// Take the stages whose dependencies have all been taken until
+		// there are none left
+		List<Stage> ordered = new ArrayList<Stage>(stages.size());
+		List<Stage> remaining = new ArrayList<Stage>(stages);
+		while (!remaining.isEmpty()) {
+			Stage next = null;
+			for (Stage stage : remaining) {
+				if (ordered.containsAll(stage.getDependsOn())) {
+					next = stage;
+					break;
+				}
+			}
+			if (next == null) {
+				throw new IllegalArgumentException("The dependencies of stages "
+						+ remaining + " form a cycle");
+			}
+			remaining.remove(next);
+			ordered.add(next);
+		}
+
+		int allMask = 0;
+		for (int i = 0; i < ordered.size(); i++) {
+			Stage stage = ordered.get(i);
+			stage.attach(this, i);
+			allMask |= stage.mask();
+		}
+
+		Map<InFlightDropPublisher, List<Stage>> publishers = new IdentityHashMap<InFlightDropPublisher, List<Stage>>();
+		for (Stage stage : ordered) {
+			int dependencyMask = 0;
+			for (Stage dependency : stage.getDependsOn()) {
+				dependencyMask |= dependency.mask();
+			}
+			stage.setDependencyMask(dependencyMask);
+
+			InFlightDropPublisher publisher = stage.getPublisher();
+			if (publisher == null) {
+				continue;
+			}
+			List<Stage> shared = publishers.get(publisher);
+			if (shared == null) {
+				shared = new ArrayList<Stage>();
+				publishers.put(publisher, shared);
+			} else if (shared.get(0).getDependencyMask() != dependencyMask) {
+				throw new IllegalArgumentException("Stages '" + shared.get(0)
+						+ "' and '" + stage
+						+ "' share a publisher but depend on different stages");
+			}
+			shared.add(stage);
+		}
+		for (Map.Entry<InFlightDropPublisher, List<Stage>> entry : publishers.entrySet()) {
+			entry.getKey().setStages(entry.getValue());
+		}
+
+		this.stages = Collections.unmodifiableList(ordered);
+		this.sources = sources;
+		this.allMask = allMask;
+	}
+
+	/**
+	 * @param source
+	 * @return the stage replying with the given source or <code>null</code>
+	 */
+	public Stage getStage(String source) {
+		return sources.get(source);
+	}
+
+	/**
+	 * @return the JSON fields each stage owns, by the source it replies as
+	 */
+	public Map<String, List<String>> getSourceFields() {
+		Map<String, List<String>> sourceFields = new LinkedHashMap<String, List<String>>();
+		for (Stage stage : stages) {
+			sourceFields.put(stage.getSource(), stage.getFields());
+		}
+		return sourceFields;
+	}
+
+	/**
+	 * @return the fields owned by stages that {@link RawDrop} keeps among its
+	 *         additional properties
+	 */
+	public Set<String> getAdditionalFields() {
+		Set<String> additionalFields = new LinkedHashSet<String>();
+		for (Stage stage : stages) {
+			for (DropField field : stage.getDropFields()) {
+				if (field.isAdditional()) {
+					additionalFields.add(field.getName());
+				}
+			}
+		}
+		return additionalFields;
+	}
+
+	/**
+	 * @param completed bits of the stages a drop has completed
+	 * @return bits of the stages the drop can be sent to: those it has not
+	 *         completed whose dependencies it has
+	 */
+	public int ready(int completed) {
+		int ready = 0;
+		for (Stage stage : stages) {
+			int dependencyMask = stage.getDependencyMask();
+			if ((completed & stage.mask()) == 0
+					&& (completed & dependencyMask) == dependencyMask) {
+				ready |= stage.mask();
+			}
+		}
+		return ready;
+	}
+
+	/**
+	 * @param current bits of the stages a drop had completed
+	 * @param next the bits after it completed another
+	 * @return {@link #FINISH} if the drop has completed every stage,
+	 *         otherwise the bits of the stages it can now be sent to that it
+	 *         could not be before
+	 */
+	int transitions(int current, int next) {
+		if (next == allMask) {
+			return FINISH;
+		}
+		return ready(next) & ~ready(current);
+	}
+
+	/**
+	 * @param inFlightDrop
+	 * @return {@link #FINISH} if the drop has completed every stage,
+	 *         otherwise the bits of the stages it can be sent to
+	 */
+	public int next(InFlightDrop inFlightDrop) {
+		int completed = inFlightDrop.getCompleted();
+		return completed == allMask ? FINISH : ready(completed);
+	}
+
+	/**
+	 * Queues a drop for publishing to the given stages, once for each
+	 * publisher they use. The expiry clock of each stage starts once the
+	 * broker confirms the publish.
+	 * 
+	 * @param inFlightDrop
+	 * @param stageMask bits of the stages
+	 * @throws InterruptedException
+	 */
+	public void dispatch(InFlightDrop inFlightDrop, int stageMask)
+			throws InterruptedException {
+		for (int i = 0; i < stages.size(); i++) {
+			Stage stage = stages.get(i);
+			if ((stageMask & stage.mask()) == 0) {
+				continue;
+			}
+			InFlightDropPublisher publisher = stage.getPublisher();
+			if (publisher == null) {
+				throw new IllegalStateException("Stage '" + stage
+						+ "' has no publisher");
+			}
+			if (!isPublishedBefore(publisher, stageMask, i)) {
+				publisher.publish(inFlightDrop);
+			}
+		}
+	}
+
+	/**
+	 * @return whether one of the stages in the mask before the given index
+	 *         shares the publisher
+	 */
+	private boolean isPublishedBefore(InFlightDropPublisher publisher,
+			int stageMask, int index) {
+		for (int i = 0; i < index; i++) {
+			Stage stage = stages.get(i);
+			if ((stageMask & stage.mask()) != 0
+					&& stage.getPublisher() == publisher) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Lays the fields set in the metadata gathered for a drop over the
+	 * drop
+	 * 
+	 * @param drop
+	 * @param metadata
+	 */
+	public void overlay(RawDrop drop, RawDrop metadata) {
+		for (Stage stage : stages) {
+			stage.overlay(drop, metadata);
+		}
+	}
+}
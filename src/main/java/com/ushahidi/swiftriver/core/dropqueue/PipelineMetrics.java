@@ -0,0 +1,308 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/agpl.html>
+ * 
+ * Copyright (C) Ushahidi Inc. All Rights Reserved.
+ */
+package com.ushahidi.swiftriver.core.dropqueue;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import com.ushahidi.swiftriver.core.dropqueue.metrics.Gauge;
+import com.ushahidi.swiftriver.core.dropqueue.metrics.MetricRegistry;
+import com.ushahidi.swiftriver.core.dropqueue.support.CircuitBreaker;
+import com.ushahidi.swiftriver.core.dropqueue.support.SlabAllocator;
+
+/**
+ * Registers the metrics every stage of the pipeline keeps with the
+ * {@link MetricRegistry}.
+ * 
+ * The stages record into histograms and counters of their own, which cost
+ * a few atomic increments, and everything else is read from them only
+ * when the metrics are reported. Stages that are not set are left out.
+ * 
+ * Latencies are in microseconds except for <code>api.post_ms</code>.
+ * 
+ */
+public class PipelineMetrics {
+
+	private MetricRegistry metricRegistry;
+
+	private DropHandler dropHandler;
+
+	private DropDeduplicator dropDeduplicator;
+
+	private InFlightDropStore inFlightDropStore;
+
+	private Pipeline pipeline;
+
+	private Map<String, InFlightDropPublisher> publishers = Collections.emptyMap();
+
+	private MetadataResponseHandler metadataResponseHandler;
+
+	private InFlightDropExpiry inFlightDropExpiry;
+
+	private Publisher publisher;
+
+	private AckTracker ackTracker;
+
+	private DropJournal dropJournal;
+
+	public void setMetricRegistry(MetricRegistry metricRegistry) {
+		this.metricRegistry = metricRegistry;
+	}
+
+	public void setDropHandler(DropHandler dropHandler) {
+		this.dropHandler = dropHandler;
+	}
+
+	public void setDropDeduplicator(DropDeduplicator dropDeduplicator) {
+		this.dropDeduplicator = dropDeduplicator;
+	}
+
+	public void setInFlightDropStore(InFlightDropStore inFlightDropStore) {
+		this.inFlightDropStore = inFlightDropStore;
+	}
+
+	/**
+	 * @param pipeline stages whose replies and expiries are reported
+	 */
+	public void setPipeline(Pipeline pipeline) {
+		this.pipeline = pipeline;
+	}
+
+	/**
+	 * @param publishers the stage publishers by the prefix of their metrics
+	 */
+	public void setPublishers(Map<String, InFlightDropPublisher> publishers) {
+		this.publishers = publishers;
+	}
+
+	public void setMetadataResponseHandler(
+			MetadataResponseHandler metadataResponseHandler) {
+		this.metadataResponseHandler = metadataResponseHandler;
+	}
+
+	public void setInFlightDropExpiry(InFlightDropExpiry inFlightDropExpiry) {
+		this.inFlightDropExpiry = inFlightDropExpiry;
+	}
+
+	public void setPublisher(Publisher publisher) {
+		this.publisher = publisher;
+	}
+
+	public void setAckTracker(AckTracker ackTracker) {
+		this.ackTracker = ackTracker;
+	}
+
+	public void setDropJournal(DropJournal dropJournal) {
+		this.dropJournal = dropJournal;
+	}
+
+	/**
+	 * Registers the metrics of the stages that are set
+	 */
+	public void register() {
+		if (dropHandler != null) {
+			metricRegistry.register("ingest.time_us", dropHandler.getIngestTime());
+		}
+
+		if (dropDeduplicator != null && dropDeduplicator.isEnabled()) {
+			final DropDeduplicator deduplicator = dropDeduplicator;
+			metricRegistry.register("dedup.checked", new Gauge() {
+				public long getValue() {
+					return deduplicator.getCheckedCount();
+				}
+			});
+			metricRegistry.register("dedup.duplicates", new Gauge() {
+				public long getValue() {
+					return deduplicator.getDuplicateCount();
+				}
+			});
+			metricRegistry.register("dedup.hit_rate_pct", new Gauge() {
+				public long getValue() {
+					long checked = deduplicator.getCheckedCount();
+					return checked == 0 ? 0 : deduplicator.getDuplicateCount() * 100 / checked;
+				}
+			});
+			metricRegistry.register("dedup.remembered", new Gauge() {
+				public long getValue() {
+					return deduplicator.size();
+				}
+			});
+		}
+
+		if (inFlightDropStore != null) {
+			final InFlightDropStore store = inFlightDropStore;
+			metricRegistry.register("store.in_flight", new Gauge() {
+				public long getValue() {
+					return store.size();
+				}
+			});
+			metricRegistry.register("store.capacity", new Gauge() {
+				public long getValue() {
+					return store.getCapacity();
+				}
+			});
+			if (store.isCompact()) {
+				final SlabAllocator slabAllocator = store.getSlabAllocator();
+				metricRegistry.register("store.off_heap_used_bytes", new Gauge() {
+					public long getValue() {
+						return slabAllocator.getUsedBytes();
+					}
+				});
+				metricRegistry.register("store.off_heap_reserved_bytes", new Gauge() {
+					public long getValue() {
+						return slabAllocator.getReservedBytes();
+					}
+				});
+			}
+		}
+
+		for (Map.Entry<String, InFlightDropPublisher> entry : publishers.entrySet()) {
+			registerPublisher(entry.getKey(), entry.getValue());
+		}
+
+		if (metadataResponseHandler != null) {
+			final MetadataResponseHandler handler = metadataResponseHandler;
+			for (Stage stage : getStages()) {
+				metricRegistry.register("replies." + stage.getName() + ".latency_us",
+						handler.getReplyLatency(stage));
+			}
+			metricRegistry.register("replies.unmatched", new Gauge() {
+				public long getValue() {
+					return handler.getUnmatchedCount();
+				}
+			});
+			metricRegistry.register("replies.duplicate", new Gauge() {
+				public long getValue() {
+					return handler.getDuplicateCount();
+				}
+			});
+		}
+
+		if (inFlightDropExpiry != null) {
+			final InFlightDropExpiry expiry = inFlightDropExpiry;
+			for (final Stage stage : getStages()) {
+				metricRegistry.register("expiry." + stage.getName(), new Gauge() {
+					public long getValue() {
+						return expiry.getExpiredCount(stage);
+					}
+				});
+			}
+		}
+
+		if (publisher != null) {
+			registerApi(publisher);
+		}
+
+		if (ackTracker != null) {
+			final AckTracker tracker = ackTracker;
+			metricRegistry.register("acks.acked", new Gauge() {
+				public long getValue() {
+					return tracker.getAckedCount();
+				}
+			});
+			metricRegistry.register("acks.frames", new Gauge() {
+				public long getValue() {
+					return tracker.getAckFrameCount();
+				}
+			});
+			metricRegistry.register("acks.abandoned", new Gauge() {
+				public long getValue() {
+					return tracker.getAbandonedCount();
+				}
+			});
+		}
+
+		if (dropJournal != null) {
+			final DropJournal journal = dropJournal;
+			metricRegistry.register("journal.recovered", new Gauge() {
+				public long getValue() {
+					return journal.getRecoveredCount();
+				}
+			});
+		}
+	}
+
+	private List<Stage> getStages() {
+		if (pipeline == null) {
+			return Collections.emptyList();
+		}
+		return pipeline.getStages();
+	}
+
+	private void registerPublisher(String prefix,
+			final InFlightDropPublisher inFlightDropPublisher) {
+		metricRegistry.register(prefix + ".publish_latency_us",
+				inFlightDropPublisher.getPublishLatency());
+		metricRegistry.register(prefix + ".batch_size",
+				inFlightDropPublisher.getBatchSizes());
+		metricRegistry.register(prefix + ".queue_depth", new Gauge() {
+			public long getValue() {
+				return inFlightDropPublisher.getQueueDepth();
+			}
+		});
+		metricRegistry.register(prefix + ".outstanding", new Gauge() {
+			public long getValue() {
+				return inFlightDropPublisher.getOutstanding();
+			}
+		});
+		metricRegistry.register(prefix + ".failed", new Gauge() {
+			public long getValue() {
+				return inFlightDropPublisher.getFailedCount();
+			}
+		});
+	}
+
+	private void registerApi(final Publisher publisher) {
+		metricRegistry.register("api.post_ms", publisher.getPostTime());
+		metricRegistry.register("api.queue_depth", new Gauge() {
+			public long getValue() {
+				Collection<?> queue = publisher.getPublishQueue();
+				return queue == null ? 0 : queue.size();
+			}
+		});
+		metricRegistry.register("api.posted", new Gauge() {
+			public long getValue() {
+				return publisher.getPostedCount();
+			}
+		});
+		metricRegistry.register("api.failed_posts", new Gauge() {
+			public long getValue() {
+				return publisher.getFailedPostCount();
+			}
+		});
+		metricRegistry.register("api.discarded", new Gauge() {
+			public long getValue() {
+				return publisher.getDiscardedCount();
+			}
+		});
+		metricRegistry.register("api.in_flight_batches", new Gauge() {
+			public long getValue() {
+				return publisher.getInFlightBatches();
+			}
+		});
+		final CircuitBreaker circuitBreaker = publisher.getCircuitBreaker();
+		if (circuitBreaker != null) {
+			metricRegistry.register("api.circuit_opens", new Gauge() {
+				public long getValue() {
+					return circuitBreaker.getOpenCount();
+				}
+			});
+		}
+	}
+}
@@ -16,31 +16,169 @@
  */
 package com.ushahidi.swiftriver.core.dropqueue;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
 
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonProcessingException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpContent;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestFactory;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.json.Json;
 import com.ushahidi.swiftriver.core.api.client.SwiftRiverClient;
+import com.ushahidi.swiftriver.core.dropqueue.metrics.Histogram;
 import com.ushahidi.swiftriver.core.dropqueue.model.RawDrop;
 import com.ushahidi.swiftriver.core.api.client.model.Drop;
+import com.ushahidi.swiftriver.core.dropqueue.support.ApiDropWriter;
+import com.ushahidi.swiftriver.core.dropqueue.support.Backoff;
+import com.ushahidi.swiftriver.core.dropqueue.support.Batches;
+import com.ushahidi.swiftriver.core.dropqueue.support.CircuitBreaker;
 
 /**
  * Publisher for drops that have completed metadata extraction.
  * 
+ * Once started, a dispatcher thread takes drops from the publish queue as
+ * they arrive and flushes a batch to the API as soon as it holds
+ * <code>dropBatchSize</code> drops or <code>linger</code> milliseconds have
+ * passed since its first drop. Up to <code>maxInFlightBatches</code> batches
+ * are posted concurrently; beyond that the dispatcher waits and drops
+ * accumulate in the publish queue.
+ * 
+ * A failed post is retried after a jittered exponential {@link Backoff}
+ * without blocking a thread in the meantime. The batch keeps its in-flight
+ * slot while it waits so that, with the API down, the dispatcher stops,
+ * the bounded publish queue fills and the AMQP consumers feeding it block.
+ * 
+ * Calls go through a {@link CircuitBreaker}. A batch the API rejects is
+ * split in half and the halves retried separately so that a drop the API
+ * will not take is isolated. A single drop that still fails after
+ * <code>maxAttempts</code> is discarded, but only once the API has taken
+ * other drops since it was split off, so that drops are not lost to an API
+ * that takes nothing; until then the drop keeps its batch's in-flight slot.
+ * Rejections count towards opening the breaker until part of the batch has
+ * been posted.
+ * 
+ * Server errors, I/O errors and the responses that say the request may
+ * succeed later (401, 403, 407, 408 and 429) count as failures to reach
+ * the API. The batch is retried whole after a backoff, without counting
+ * attempts, until the breaker opens, and nothing is posted while it is
+ * open. Other error responses, drops that cannot be written and failures
+ * of the API client, which does not say why a post failed, are rejections.
+ * 
+ * When a <code>requestFactory</code> is set, batches are written straight
+ * from the {@link RawDrop}s to the request body by the {@link ApiDropWriter}
+ * and posted to <code>dropPostUrl</code>. Otherwise they are converted to
+ * the API client's {@link Drop}s and posted through the client.
+ * 
+ * With <code>streaming</code> on, the body is sent with chunked transfer
+ * encoding through a buffer of <code>streamBufferSize</code> bytes. The
+ * post starts as soon as the first drop of a batch arrives and the rest
+ * are written as they are taken from the publish queue, so the API
+ * receives the batch while it fills and the memory a batch takes is
+ * bounded by the buffer rather than the batch size.
+ * 
+ * Drops that carry a {@link DeliveryFrame} are acked through the
+ * {@link AckTracker} once the API has accepted them, and rejected without
+ * requeueing if they are discarded. Drops still queued or unposted at
+ * shutdown are left unacked for the broker to redeliver.
+ * 
+ * Bodies are gzipped when <code>gzip</code> is on. The compression is done
+ * here rather than by the HTTP client, which would write a streamed body
+ * twice to compute its compressed length.
+ * 
  */
 public class Publisher {
 
 	final Logger logger = LoggerFactory.getLogger(Publisher.class);
 
+	private static final long POLL_INTERVAL = 100;
+
+	/**
+	 * How a post ended
+	 */
+	private enum PostResult {
+
+		POSTED,
+
+		/** The API answered but would not take the drops */
+		REJECTED,
+
+		/** The API could not be reached or was unavailable */
+		UNREACHABLE
+	}
+
 	private BlockingQueue<RawDrop> publishQueue;
 
 	private SwiftRiverClient apiClient;
+
+	private HttpRequestFactory requestFactory;
+
+	private String dropPostUrl;
+
+	private ApiDropWriter dropWriter;
+
+	private boolean streaming;
+
+	private int streamBufferSize = 65536;
+
+	private boolean gzip;
 	
 	private int dropBatchSize;
+
+	private long linger = 1000;
+
+	private int maxInFlightBatches = 1;
+
+	private long drainTimeout = 10000;
+
+	private volatile boolean running;
+
+	private Thread dispatcher;
+
+	private ScheduledExecutorService postExecutor;
+
+	private Semaphore inFlightBatches;
+
+	private Backoff backoff = new Backoff();
+
+	private CircuitBreaker circuitBreaker = new CircuitBreaker();
+
+	private int maxAttempts = 5;
+
+	private AckTracker ackTracker = new AckTracker();
+
+	private DropJournal dropJournal = new DropJournal();
+
+	private final AtomicLong postedCount = new AtomicLong();
+
+	private final AtomicLong failedPostCount = new AtomicLong();
+
+	private final AtomicLong discardedCount = new AtomicLong();
+
+	private final Histogram postTime = new Histogram();
 	
 	public BlockingQueue<RawDrop> getPublishQueue() {
 		return publishQueue;
@@ -58,10 +196,231 @@ public class Publisher {
 		this.apiClient = apiClient;
 	}
 	
+	/**
+	 * @param requestFactory factory for authorized requests to the API
+	 */
+	public void setRequestFactory(HttpRequestFactory requestFactory) {
+		this.requestFactory = requestFactory;
+	}
+
+	public void setDropPostUrl(String dropPostUrl) {
+		this.dropPostUrl = dropPostUrl;
+	}
+
+	public void setDropWriter(ApiDropWriter dropWriter) {
+		this.dropWriter = dropWriter;
+	}
+
+	/**
+	 * @param streaming whether to stream batches to the API as they fill
+	 */
+	public void setStreaming(boolean streaming) {
+		this.streaming = streaming;
+	}
+
+	/**
+	 * @param streamBufferSize bytes of a streamed body buffered before
+	 *            they are written to the connection
+	 */
+	public void setStreamBufferSize(int streamBufferSize) {
+		this.streamBufferSize = streamBufferSize;
+	}
+
+	/**
+	 * @param gzip whether to gzip request bodies
+	 */
+	public void setGzip(boolean gzip) {
+		this.gzip = gzip;
+	}
+
 	public void setDropBatchSize(int dropBatchSize) {
 		this.dropBatchSize = dropBatchSize;
 	}
 
+	/**
+	 * @param linger milliseconds to wait for a batch to fill
+	 */
+	public void setLinger(long linger) {
+		this.linger = linger;
+	}
+
+	/**
+	 * @param maxInFlightBatches number of batches posted concurrently
+	 */
+	public void setMaxInFlightBatches(int maxInFlightBatches) {
+		this.maxInFlightBatches = maxInFlightBatches;
+	}
+
+	/**
+	 * @param drainTimeout milliseconds to keep posting queued drops on shutdown
+	 */
+	public void setDrainTimeout(long drainTimeout) {
+		this.drainTimeout = drainTimeout;
+	}
+
+	public void setBackoff(Backoff backoff) {
+		this.backoff = backoff;
+	}
+
+	public CircuitBreaker getCircuitBreaker() {
+		return circuitBreaker;
+	}
+
+	public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+		this.circuitBreaker = circuitBreaker;
+	}
+
+	/**
+	 * @param maxAttempts posts of a single drop before it is discarded
+	 */
+	public void setMaxAttempts(int maxAttempts) {
+		this.maxAttempts = maxAttempts;
+	}
+
+	public void setAckTracker(AckTracker ackTracker) {
+		this.ackTracker = ackTracker;
+	}
+
+	public void setDropJournal(DropJournal dropJournal) {
+		this.dropJournal = dropJournal;
+	}
+
+	/**
+	 * @return the number of drops posted to the API
+	 */
+	public long getPostedCount() {
+		return postedCount.get();
+	}
+
+	/**
+	 * @return the number of failed posts
+	 */
+	public long getFailedPostCount() {
+		return failedPostCount.get();
+	}
+
+	/**
+	 * @return the number of drops discarded after repeated failures
+	 */
+	public long getDiscardedCount() {
+		return discardedCount.get();
+	}
+
+	/**
+	 * @return milliseconds taken by each post to the API, successful or not
+	 */
+	public Histogram getPostTime() {
+		return postTime;
+	}
+
+	/**
+	 * @return the number of batches being posted or waiting to be retried
+	 */
+	public int getInFlightBatches() {
+		return inFlightBatches == null ? 0 : maxInFlightBatches
+				- inFlightBatches.availablePermits();
+	}
+
+	/**
+	 * Starts the dispatcher and the threads posting batches to the API
+	 */
+	public synchronized void start() {
+		inFlightBatches = new Semaphore(maxInFlightBatches);
+		postExecutor = Executors.newScheduledThreadPool(maxInFlightBatches,
+				new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "API-Publisher-"
+								+ count.getAndIncrement());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+
+		running = true;
+		dispatcher = new Thread("API-Publisher") {
+			public void run() {
+				dispatch();
+			}
+		};
+		dispatcher.setDaemon(true);
+		dispatcher.start();
+		logger.debug("API publisher started");
+	}
+
+	/**
+	 * Stops taking new batches once the publish queue is empty and waits for
+	 * the batches being posted or retried to complete, for at most
+	 * <code>drainTimeout</code> milliseconds in all.
+	 * 
+	 * @throws InterruptedException
+	 */
+	public synchronized void shutdown() throws InterruptedException {
+		if (dispatcher == null) {
+			return;
+		}
+
+		long deadline = System.currentTimeMillis() + drainTimeout;
+		running = false;
+		dispatcher.join(drainTimeout);
+		if (dispatcher.isAlive()) {
+			dispatcher.interrupt();
+		}
+		dispatcher = null;
+
+		postExecutor.shutdown();
+		if (!postExecutor.awaitTermination(Math.max(1,
+				deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS)) {
+			postExecutor.shutdownNow();
+		}
+		logger.info("API publisher stopped with {} drops queued and {} batches unposted",
+				publishQueue.size(), getInFlightBatches());
+	}
+
+	private void dispatch() {
+		try {
+			// Keep going after shutdown until the queue is drained
+			while (running || !publishQueue.isEmpty()) {
+				if (streaming && requestFactory != null) {
+					dispatchStream();
+					continue;
+				}
+
+				final List<RawDrop> rawDrops = new ArrayList<RawDrop>();
+				if (Batches.drain(publishQueue, rawDrops, dropBatchSize, linger,
+						POLL_INTERVAL) == 0) {
+					continue;
+				}
+
+				inFlightBatches.acquire();
+				postExecutor.execute(new PostTask(rawDrops));
+			}
+		} catch (InterruptedException e) {
+			logger.error(e.getMessage());
+		}
+	}
+
+	/**
+	 * Starts posting a batch once its first drop arrives and waits until
+	 * the batch has been filled from the publish queue.
+	 * 
+	 * @throws InterruptedException
+	 */
+	private void dispatchStream() throws InterruptedException {
+		RawDrop first = publishQueue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+		if (first == null) {
+			return;
+		}
+
+		inFlightBatches.acquire();
+		List<RawDrop> rawDrops = new ArrayList<RawDrop>();
+		rawDrops.add(first);
+		DropStream stream = new DropStream(rawDrops, true);
+		postExecutor.execute(new PostTask(stream));
+		stream.filled.await();
+	}
+
 	/**
 	 * Publishes drops the the SwiftRiver REST API
 	 * 
@@ -77,10 +436,153 @@ public class Publisher {
 
 		List<RawDrop> rawDrops = new ArrayList<RawDrop>();
 		publishQueue.drainTo(rawDrops, dropBatchSize);
+		postDrops(rawDrops);
+	}
 
+	/**
+	 * Posts a batch of drops to the SwiftRiver REST API once, without
+	 * retrying.
+	 * 
+	 * @param rawDrops
+	 * @return true if the API accepted the drops
+	 */
+	public boolean postDrops(List<RawDrop> rawDrops) {
+		return post(rawDrops) == PostResult.POSTED;
+	}
+
+	private PostResult post(List<RawDrop> rawDrops) {
 		logger.debug(String.format("Posting %d drops to API", rawDrops.size()));
 
-		// Convert instances of RawDrop in Drop for posting to API
+		try {
+			if (requestFactory != null) {
+				postJson(streaming ? new DropStream(rawDrops, false)
+						: bufferDrops(rawDrops));
+			} else if (apiClient.postDrops(toDrops(rawDrops)) == null) {
+				logger.error("An error occurred while posting the drops to the API");
+				failedPostCount.incrementAndGet();
+				return PostResult.REJECTED;
+			}
+		} catch (Exception e) {
+			logger.error("Error posting drops to the API", e);
+			failedPostCount.incrementAndGet();
+			return failure(e);
+		}
+		
+		postedCount.addAndGet(rawDrops.size());
+		logger.debug("Successfully posted {} drops to the API", rawDrops.size());
+		ack(rawDrops);
+		return PostResult.POSTED;
+	}
+
+	/**
+	 * Posts a batch that is filled from the publish queue as it is sent.
+	 * 
+	 * @param stream
+	 */
+	private PostResult post(DropStream stream) {
+		try {
+			postJson(stream);
+		} catch (Exception e) {
+			logger.error("Error posting drops to the API", e);
+			failedPostCount.incrementAndGet();
+			return failure(e);
+		} finally {
+			// The post may fail before the body is written
+			stream.filled.countDown();
+		}
+
+		postedCount.addAndGet(stream.rawDrops.size());
+		logger.debug("Successfully streamed {} drops to the API",
+				stream.rawDrops.size());
+		ack(stream.rawDrops);
+		return PostResult.POSTED;
+	}
+
+	/**
+	 * @param e the exception a post failed with
+	 * @return {@link PostResult#UNREACHABLE} for a server error, a response
+	 *         saying the request may succeed later or an I/O error,
+	 *         otherwise {@link PostResult#REJECTED}
+	 */
+	private static PostResult failure(Exception e) {
+		if (e instanceof HttpResponseException) {
+			int statusCode = ((HttpResponseException) e).getStatusCode();
+			switch (statusCode) {
+			case 401: // Unauthorized
+			case 403: // Forbidden
+			case 407: // Proxy Authentication Required
+			case 408: // Request Timeout
+			case 429: // Too Many Requests
+				return PostResult.UNREACHABLE;
+			default:
+				return statusCode >= 500 ? PostResult.UNREACHABLE
+						: PostResult.REJECTED;
+			}
+		}
+		if (e instanceof JsonProcessingException) {
+			// A drop could not be written
+			return PostResult.REJECTED;
+		}
+		return e instanceof IOException ? PostResult.UNREACHABLE
+				: PostResult.REJECTED;
+	}
+
+	/**
+	 * Acks the deliveries of posted drops and removes them from the journal
+	 * 
+	 * @param rawDrops
+	 */
+	private void ack(List<RawDrop> rawDrops) {
+		for (RawDrop rawDrop : rawDrops) {
+			DeliveryFrame deliveryFrame = rawDrop.getDeliveryFrame();
+			if (deliveryFrame != null) {
+				ackTracker.ack(deliveryFrame);
+			}
+			dropJournal.removed(rawDrop.getCorrelationId());
+		}
+	}
+
+	/**
+	 * Posts a JSON body generated directly from {@link RawDrop}s to
+	 * <code>dropPostUrl</code>.
+	 * 
+	 * @param content
+	 * @throws IOException if the post fails or the API does not accept it
+	 */
+	private void postJson(HttpContent content) throws IOException {
+		HttpRequest request = requestFactory.buildPostRequest(new GenericUrl(
+				dropPostUrl), content);
+		// Failed posts are retried by the PostTask; a single retry is kept
+		// so that the credential can refresh an expired access token
+		request.setNumberOfRetries(1);
+		long start = System.currentTimeMillis();
+		try {
+			request.execute().ignore();
+		} finally {
+			postTime.record(System.currentTimeMillis() - start);
+		}
+	}
+
+	private HttpContent bufferDrops(List<RawDrop> rawDrops) throws IOException {
+		RequestBody body = new RequestBody();
+		if (!gzip) {
+			dropWriter.writeDrops(rawDrops, body);
+			return body.toContent();
+		}
+
+		GZIPOutputStream gzipped = new GZIPOutputStream(body);
+		dropWriter.writeDrops(rawDrops, gzipped);
+		gzipped.finish();
+		return body.toContent().setEncoding("gzip");
+	}
+
+	/**
+	 * Converts drops to the API client's model
+	 * 
+	 * @param rawDrops
+	 * @return
+	 */
+	public static List<Drop> toDrops(List<RawDrop> rawDrops) {
 		List<Drop> drops = new ArrayList<Drop>();
 		for (RawDrop rawDrop : rawDrops) {
 			Drop drop = new Drop();
@@ -173,16 +675,264 @@ public class Publisher {
 			drops.add(drop);
 		}
 
-		List<Drop> result = null;
-		while (result == null) {
-			result = apiClient.postDrops(drops);
-			if (result == null) {
-				logger.error("An error occurred while posting the drops to the API. " +
-						"Retrying after 30s");
-				Thread.sleep(30000);
+		return drops;
+	}
+
+	/**
+	 * Rejects the delivery of a discarded drop without requeueing it
+	 * 
+	 * @param rawDrop
+	 */
+	private void reject(RawDrop rawDrop) {
+		DeliveryFrame deliveryFrame = rawDrop.getDeliveryFrame();
+		if (deliveryFrame != null) {
+			ackTracker.nack(deliveryFrame, false);
+		}
+		dropJournal.removed(rawDrop.getCorrelationId());
+	}
+
+	/**
+	 * Posts a batch, and the halves it is split into, until every drop has
+	 * been posted or discarded. Runs on the post executor and reschedules
+	 * itself rather than sleeping between attempts. Holds one in-flight
+	 * batch permit until it completes.
+	 */
+	private class PostTask implements Runnable {
+
+		private final LinkedList<Part> parts = new LinkedList<Part>();
+
+		/** Whether the API has taken part of the batch */
+		private boolean partPosted;
+
+		/** Consecutive posts that could not reach the API */
+		private int unreachableAttempts;
+
+		PostTask(List<RawDrop> rawDrops) {
+			parts.add(new Part(rawDrops, postedCount.get()));
+		}
+
+		PostTask(DropStream stream) {
+			Part part = new Part(stream.rawDrops, postedCount.get());
+			part.stream = stream;
+			parts.add(part);
+		}
+
+		public void run() {
+			try {
+				while (!parts.isEmpty()) {
+					Part part = parts.getFirst();
+					long wait = circuitBreaker.allowRequest();
+					if (wait > 0) {
+						// Post what there is of an unstarted stream later
+						part.closeStream();
+						retryAfter(wait);
+						return;
+					}
+
+					PostResult result = part.stream != null ? post(part.stream)
+							: post(part.rawDrops);
+					part.closeStream();
+					if (result == PostResult.POSTED) {
+						circuitBreaker.recordSuccess();
+						parts.removeFirst();
+						partPosted = true;
+						unreachableAttempts = 0;
+						continue;
+					}
+
+					if (result == PostResult.UNREACHABLE) {
+						// Nothing to do with these drops. Try again until the
+						// breaker opens and then once it lets us
+						circuitBreaker.recordFailure();
+						retryAfter(backoff.delay(++unreachableAttempts));
+						return;
+					}
+
+					if (partPosted) {
+						// The API takes the rest of the batch, it is only
+						// these drops it will not take
+						circuitBreaker.recordSuccess();
+					} else {
+						circuitBreaker.recordFailure();
+					}
+
+					part.attempts++;
+					parts.removeFirst();
+					int size = part.rawDrops.size();
+					if (size > 1) {
+						// The other parts are posted before the halves so
+						// that the API gets to take some of the batch
+						long posted = postedCount.get();
+						parts.addLast(new Part(part.rawDrops.subList(0, size / 2), posted));
+						parts.addLast(new Part(part.rawDrops.subList(size / 2, size), posted));
+						logger.warn("Splitting failed batch of {} drops", size);
+					} else if (part.attempts < maxAttempts) {
+						parts.addFirst(part);
+						retryAfter(backoff.delay(part.attempts));
+						return;
+					} else if (postedCount.get() > part.postedBefore) {
+						discardedCount.incrementAndGet();
+						logger.error("Discarding drop '{}' after {} failed posts",
+								part.rawDrops.get(0).getDropOriginalId(), part.attempts);
+						reject(part.rawDrops.get(0));
+					} else {
+						// Keep the drop until the API takes something else
+						parts.addLast(part);
+						retryAfter(backoff.delay(part.attempts));
+						return;
+					}
+				}
+			} catch (RuntimeException e) {
+				logger.error("Error posting drops to the API", e);
+				if (!parts.isEmpty()) {
+					parts.getFirst().closeStream();
+				}
+				retryAfter(backoff.delay(1));
+				return;
 			}
+			inFlightBatches.release();
+		}
+
+		private void retryAfter(long delay) {
+			logger.debug("Retrying post in {}ms", delay);
+			try {
+				postExecutor.schedule(this, delay, TimeUnit.MILLISECONDS);
+			} catch (RejectedExecutionException e) {
+				int remaining = 0;
+				for (Part part : parts) {
+					remaining += part.rawDrops.size();
+				}
+				logger.error("Shutting down with {} drops not posted", remaining);
+				inFlightBatches.release();
+			}
+		}
+	}
+
+	private static final class Part {
+
+		final List<RawDrop> rawDrops;
+
+		/** The publisher's posted count when the part was made */
+		final long postedBefore;
+
+		int attempts;
+
+		DropStream stream;
+
+		Part(List<RawDrop> rawDrops, long postedBefore) {
+			this.rawDrops = rawDrops;
+			this.postedBefore = postedBefore;
+		}
+
+		/**
+		 * Stops the stream this part started as from taking any more drops.
+		 * Later attempts post the drops it took as a list.
+		 */
+		void closeStream() {
+			if (stream != null) {
+				stream.filled.countDown();
+				stream = null;
+			}
+		}
+	}
+
+	/**
+	 * Request body written with chunked transfer encoding. When
+	 * <code>draining</code>, it takes drops from the publish queue until
+	 * the batch is full or <code>linger</code> milliseconds have passed,
+	 * adding each to <code>rawDrops</code> before writing it; otherwise it
+	 * writes the given drops. What has been written is flushed to the
+	 * connection whenever the queue runs dry, less what a gzip compressor
+	 * holds back. Peak memory is bounded by the buffers between the JSON
+	 * generator and the connection.
+	 */
+	private final class DropStream implements HttpContent {
+
+		final List<RawDrop> rawDrops;
+
+		final CountDownLatch filled = new CountDownLatch(1);
+
+		private final boolean draining;
+
+		DropStream(List<RawDrop> rawDrops, boolean draining) {
+			this.rawDrops = rawDrops;
+			this.draining = draining;
+		}
+
+		public long getLength() {
+			return -1;
+		}
+
+		public String getEncoding() {
+			return gzip ? "gzip" : null;
+		}
+
+		public String getType() {
+			return Json.MEDIA_TYPE;
+		}
+
+		public boolean retrySupported() {
+			// A drained body cannot be written again
+			return !draining;
+		}
+
+		public void writeTo(OutputStream out) throws IOException {
+			OutputStream buffered = new BufferedOutputStream(out, streamBufferSize);
+			GZIPOutputStream gzipped = gzip ? new GZIPOutputStream(buffered) : null;
+			JsonGenerator generator = dropWriter.startDrops(gzipped != null ? gzipped
+					: buffered);
+			try {
+				for (RawDrop rawDrop : rawDrops) {
+					dropWriter.writeDrop(rawDrop, generator);
+				}
+				if (draining) {
+					drain(generator);
+				}
+			} finally {
+				filled.countDown();
+			}
+			dropWriter.endDrops(generator);
+			if (gzipped != null) {
+				gzipped.finish();
+			}
+			buffered.flush();
+		}
+
+		private void drain(JsonGenerator generator) throws IOException {
+			long deadline = System.currentTimeMillis() + linger;
+			while (rawDrops.size() < dropBatchSize) {
+				RawDrop rawDrop = publishQueue.poll();
+				try {
+					if (rawDrop == null) {
+						// Send what has been written before waiting
+						generator.flush();
+						rawDrop = publishQueue.poll(Math.max(0, deadline
+								- System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException(e.getMessage());
+				}
+				if (rawDrop == null) {
+					return;
+				}
+				rawDrops.add(rawDrop);
+				dropWriter.writeDrop(rawDrop, generator);
+			}
+		}
+	}
+
+	/**
+	 * Request body that is handed to the transport without copying
+	 */
+	private static final class RequestBody extends ByteArrayOutputStream {
+
+		RequestBody() {
+			super(8192);
+		}
+
+		ByteArrayContent toContent() {
+			return new ByteArrayContent(Json.MEDIA_TYPE, buf, 0, count);
 		}
-		
-		logger.debug("Successfully posted {} drops to the API", result.size());
 	}
 }
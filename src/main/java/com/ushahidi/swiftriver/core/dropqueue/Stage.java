@@ -0,0 +1,234 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/agpl.html>
+ * 
+ * Copyright (C) Ushahidi Inc. All Rights Reserved.
+ */
+package com.ushahidi.swiftriver.core.dropqueue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import com.ushahidi.swiftriver.core.dropqueue.model.RawDrop;
+import com.ushahidi.swiftriver.core.dropqueue.support.DropField;
+
+/**
+ * A processing stage a drop goes through before it is published to the
+ * API. Each stage is performed by an external worker that is sent the drop
+ * by the stage's publisher and replies with the stage's source name and the
+ * fields of the drop the stage owns.
+ * 
+ * A stage is sent the drop once the stages it depends on have replied; see
+ * {@link Pipeline}. Stages are declared in the application context so that
+ * adding one does not need any code.
+ * 
+ */
+public class Stage {
+
+	private String name;
+
+	private String source;
+
+	private List<Stage> dependsOn = Collections.emptyList();
+
+	private List<DropField> fields = Collections.emptyList();
+
+	private InFlightDropPublisher publisher;
+
+	private long timeout = 120000;
+
+	/** Set by the pipeline the stage belongs to */
+	private Pipeline pipeline;
+
+	private int index = -1;
+
+	private int dependencyMask;
+
+	public Stage() {
+	}
+
+	/**
+	 * @param name
+	 * @param source
+	 * @param fields the JSON names of the fields the stage owns
+	 */
+	public Stage(String name, String source, String... fields) {
+		setName(name);
+		setSource(source);
+		setFields(Arrays.asList(fields));
+	}
+
+	/**
+	 * @return the name the stage's metrics are reported under
+	 */
+	public String getName() {
+		return name;
+	}
+
+	public void setName(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * @return the <code>source</code> set on the replies from this stage
+	 */
+	public String getSource() {
+		return source != null ? source : name;
+	}
+
+	public void setSource(String source) {
+		this.source = source;
+	}
+
+	public List<Stage> getDependsOn() {
+		return dependsOn;
+	}
+
+	/**
+	 * @param dependsOn the stages that must reply before this one is sent
+	 *            the drop
+	 */
+	public void setDependsOn(List<Stage> dependsOn) {
+		this.dependsOn = new ArrayList<Stage>(dependsOn);
+	}
+
+	/**
+	 * @return the JSON names of the fields the stage owns
+	 */
+	public List<String> getFields() {
+		List<String> names = new ArrayList<String>(fields.size());
+		for (DropField field : fields) {
+			names.add(field.getName());
+		}
+		return names;
+	}
+
+	/**
+	 * @param fields the JSON names of the fields the stage owns. Names that
+	 *            {@link RawDrop} has no property for are kept among its
+	 *            additional properties.
+	 */
+	public void setFields(List<String> fields) {
+		List<DropField> dropFields = new ArrayList<DropField>(fields.size());
+		for (String field : fields) {
+			dropFields.add(new DropField(field));
+		}
+		this.fields = dropFields;
+	}
+
+	List<DropField> getDropFields() {
+		return fields;
+	}
+
+	public InFlightDropPublisher getPublisher() {
+		return publisher;
+	}
+
+	/**
+	 * @param publisher publisher of the exchange the stage consumes from.
+	 *            Stages sharing a publisher are sent the drop together.
+	 */
+	public void setPublisher(InFlightDropPublisher publisher) {
+		this.publisher = publisher;
+	}
+
+	/**
+	 * @return milliseconds to wait for a reply before the drop is expired
+	 */
+	public long getTimeout() {
+		return timeout;
+	}
+
+	public void setTimeout(long timeout) {
+		this.timeout = timeout;
+	}
+
+	public Pipeline getPipeline() {
+		return pipeline;
+	}
+
+	/**
+	 * @return the position of the stage in its pipeline
+	 */
+	public int getIndex() {
+		return index;
+	}
+
+	void attach(Pipeline pipeline, int index) {
+		this.pipeline = pipeline;
+		this.index = index;
+	}
+
+	/**
+	 * @return the bit of this stage in an {@link InFlightDrop}'s state
+	 */
+	int mask() {
+		return 1 << index;
+	}
+
+	/**
+	 * @return the bits of the stages this one depends on
+	 */
+	int getDependencyMask() {
+		return dependencyMask;
+	}
+
+	void setDependencyMask(int dependencyMask) {
+		this.dependencyMask = dependencyMask;
+	}
+
+	/**
+	 * @param inFlightDrop
+	 * @return <code>true</code> if the drop has completed the stages this
+	 *         one depends on but not this one
+	 */
+	public boolean isReady(InFlightDrop inFlightDrop) {
+		int completed = inFlightDrop.getCompleted();
+		return (completed & mask()) == 0
+				&& (completed & dependencyMask) == dependencyMask;
+	}
+
+	/**
+	 * Copies the fields this stage owns from its reply into the drop
+	 * 
+	 * @param drop
+	 * @param reply
+	 */
+	public void merge(RawDrop drop, RawDrop reply) {
+		for (DropField field : fields) {
+			field.set(drop, field.get(reply));
+		}
+	}
+
+	/**
+	 * Copies the fields this stage owns that are set in the metadata
+	 * gathered for a drop onto the drop
+	 * 
+	 * @param drop
+	 * @param metadata
+	 */
+	void overlay(RawDrop drop, RawDrop metadata) {
+		for (DropField field : fields) {
+			Object value = field.get(metadata);
+			if (value != null) {
+				field.set(drop, value);
+			}
+		}
+	}
+
+	public String toString() {
+		return getName();
+	}
+}
@@ -0,0 +1,121 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/agpl.html>
+ * 
+ * Copyright (C) Ushahidi Inc. All Rights Reserved.
+ */
+package com.ushahidi.swiftriver.core.dropqueue.metrics;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Named counters, gauges and histograms of the pipeline.
+ * 
+ * Components keep their metrics in fields and only the registry holds
+ * them by name, so recording never involves a lookup. Reading the metrics
+ * takes a {@link #snapshot()} in which every histogram is flattened into
+ * its count, mean, percentiles and maximum, e.g.
+ * <code>api.post_ms.p99</code>.
+ * 
+ */
+public class MetricRegistry {
+
+	private final ConcurrentMap<String, Object> metrics = new ConcurrentHashMap<String, Object>();
+
+	/**
+	 * @param name
+	 * @return the counter registered under the name, registering a new one
+	 *         if there is none
+	 */
+	public Counter counter(String name) {
+		Counter counter = new Counter();
+		Object existing = metrics.putIfAbsent(name, counter);
+		return existing != null ? (Counter) existing : counter;
+	}
+
+	/**
+	 * @param name
+	 * @return the histogram registered under the name, registering a new
+	 *         one if there is none
+	 */
+	public Histogram histogram(String name) {
+		Histogram histogram = new Histogram();
+		Object existing = metrics.putIfAbsent(name, histogram);
+		return existing != null ? (Histogram) existing : histogram;
+	}
+
+	/**
+	 * Registers a metric kept by a component, replacing any metric of the
+	 * same name
+	 * 
+	 * @param name
+	 * @param gauge
+	 */
+	public void register(String name, Gauge gauge) {
+		metrics.put(name, gauge);
+	}
+
+	public void register(String name, Histogram histogram) {
+		metrics.put(name, histogram);
+	}
+
+	/**
+	 * @return the current value of every metric by name
+	 */
+	public SortedMap<String, Number> snapshot() {
+		SortedMap<String, Number> values = new TreeMap<String, Number>();
+		for (Map.Entry<String, Object> entry : metrics.entrySet()) {
+			String name = entry.getKey();
+			Object metric = entry.getValue();
+			if (metric instanceof Histogram) {
+				Histogram histogram = (Histogram) metric;
+				values.put(name + ".count", histogram.getCount());
+				values.put(name + ".mean", histogram.getMean());
+				values.put(name + ".p50", histogram.getPercentile(50));
+				values.put(name + ".p90", histogram.getPercentile(90));
+				values.put(name + ".p99", histogram.getPercentile(99));
+				values.put(name + ".p999", histogram.getPercentile(99.9));
+				values.put(name + ".max", histogram.getMax());
+			} else {
+				values.put(name, ((Gauge) metric).getValue());
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Writes a snapshot as text, one <code>name value</code> line per
+	 * metric
+	 * 
+	 * @param out
+	 * @throws IOException
+	 */
+	public void writeText(Appendable out) throws IOException {
+		for (Map.Entry<String, Number> entry : snapshot().entrySet()) {
+			out.append(entry.getKey()).append(' ');
+			Number value = entry.getValue();
+			if (value instanceof Double) {
+				out.append(String.format(Locale.US, "%.3f", value.doubleValue()));
+			} else {
+				out.append(value.toString());
+			}
+			out.append('\n');
+		}
+	}
+}
@@ -0,0 +1,167 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/agpl.html>
+ * 
+ * Copyright (C) Ushahidi Inc. All Rights Reserved.
+ */
+package com.ushahidi.swiftriver.core.dropqueue.metrics;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Serves a text snapshot of a {@link MetricRegistry} over HTTP.
+ * 
+ * Every GET request is answered with the registry's text format, one
+ * <code>name value</code> line per metric. Requests are handled one at a
+ * time on a single daemon thread, which is plenty for a scraper or
+ * <code>curl</code>. The server listens on <code>host</code>, the loopback
+ * address by default, and is disabled while <code>port</code> is 0.
+ * 
+ */
+public class MetricsHttpServer implements Runnable {
+
+	final Logger logger = LoggerFactory.getLogger(MetricsHttpServer.class);
+
+	private static final int READ_TIMEOUT = 5000;
+
+	private MetricRegistry metricRegistry;
+
+	private String host = "127.0.0.1";
+
+	private int port;
+
+	private volatile ServerSocket serverSocket;
+
+	private Thread thread;
+
+	public void setMetricRegistry(MetricRegistry metricRegistry) {
+		this.metricRegistry = metricRegistry;
+	}
+
+	public void setHost(String host) {
+		this.host = host;
+	}
+
+	/**
+	 * @param port port to listen on, 0 to disable the server
+	 */
+	public void setPort(int port) {
+		this.port = port;
+	}
+
+	/**
+	 * @return the port the server is listening on or -1 if it is not
+	 */
+	public int getLocalPort() {
+		ServerSocket socket = serverSocket;
+		return socket == null ? -1 : socket.getLocalPort();
+	}
+
+	public synchronized void start() throws IOException {
+		if (port <= 0 || serverSocket != null) {
+			return;
+		}
+		ServerSocket socket = new ServerSocket();
+		socket.bind(new InetSocketAddress(InetAddress.getByName(host), port));
+		serverSocket = socket;
+
+		thread = new Thread(this, "Metrics-HTTP");
+		thread.setDaemon(true);
+		thread.start();
+		logger.info("Serving metrics on http://{}:{}/", host, socket.getLocalPort());
+	}
+
+	public synchronized void shutdown() throws InterruptedException {
+		ServerSocket socket = serverSocket;
+		if (socket == null) {
+			return;
+		}
+		serverSocket = null;
+		try {
+			socket.close();
+		} catch (IOException e) {
+			logger.warn("Unable to close the metrics server", e);
+		}
+		thread.join(READ_TIMEOUT);
+	}
+
+	public void run() {
+		ServerSocket socket;
+		while ((socket = serverSocket) != null) {
+			Socket client;
+			try {
+				client = socket.accept();
+			} catch (SocketException e) {
+				// Closed by shutdown
+				break;
+			} catch (IOException e) {
+				logger.warn("Unable to accept a metrics request", e);
+				continue;
+			}
+			try {
+				client.setSoTimeout(READ_TIMEOUT);
+				respond(client);
+			} catch (IOException e) {
+				logger.debug("Metrics request failed", e);
+			} finally {
+				try {
+					client.close();
+				} catch (IOException e) {
+					// Nothing more to do with it
+				}
+			}
+		}
+	}
+
+	private void respond(Socket client) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				client.getInputStream(), "US-ASCII"));
+		String requestLine = reader.readLine();
+		if (requestLine == null) {
+			return;
+		}
+		// Skip the headers
+		String line;
+		while ((line = reader.readLine()) != null && line.length() > 0) {
+		}
+
+		String status;
+		StringBuilder body = new StringBuilder();
+		if (requestLine.startsWith("GET ")) {
+			status = "200 OK";
+			metricRegistry.writeText(body);
+		} else {
+			status = "405 Method Not Allowed";
+		}
+
+		byte[] content = body.toString().getBytes("UTF-8");
+		OutputStream out = client.getOutputStream();
+		out.write(("HTTP/1.0 " + status + "\r\n"
+				+ "Content-Type: text/plain; charset=utf-8\r\n"
+				+ "Content-Length: " + content.length + "\r\n"
+				+ "Connection: close\r\n\r\n").getBytes("US-ASCII"));
+		out.write(content);
+		out.flush();
+	}
+}
@@ -0,0 +1,93 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/agpl.html>
+ * 
+ * Copyright (C) Ushahidi Inc. All Rights Reserved.
+ */
+package com.ushahidi.swiftriver.core.dropqueue.metrics;
+
+import java.util.Map;
+import java.util.SortedMap;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ReflectionException;
+
+/**
+ * Exposes a {@link MetricRegistry} over JMX with one read-only attribute
+ * per metric in its snapshot. There are no operations so that monitoring
+ * tools cannot disturb the pipeline.
+ * 
+ */
+public class MetricsMBean implements DynamicMBean {
+
+	private final MetricRegistry metricRegistry;
+
+	public MetricsMBean(MetricRegistry metricRegistry) {
+		this.metricRegistry = metricRegistry;
+	}
+
+	public Object getAttribute(String attribute)
+			throws AttributeNotFoundException {
+		Number value = metricRegistry.snapshot().get(attribute);
+		if (value == null) {
+			throw new AttributeNotFoundException(attribute);
+		}
+		return value;
+	}
+
+	public AttributeList getAttributes(String[] attributes) {
+		SortedMap<String, Number> snapshot = metricRegistry.snapshot();
+		AttributeList list = new AttributeList();
+		for (String attribute : attributes) {
+			Number value = snapshot.get(attribute);
+			if (value != null) {
+				list.add(new Attribute(attribute, value));
+			}
+		}
+		return list;
+	}
+
+	public MBeanInfo getMBeanInfo() {
+		SortedMap<String, Number> snapshot = metricRegistry.snapshot();
+		MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[snapshot.size()];
+		int i = 0;
+		for (Map.Entry<String, Number> entry : snapshot.entrySet()) {
+			attributes[i++] = new MBeanAttributeInfo(entry.getKey(), entry
+					.getValue().getClass().getName(), entry.getKey(), true,
+					false, false);
+		}
+		return new MBeanInfo(getClass().getName(), "Drop queue metrics",
+				attributes, null, new MBeanOperationInfo[0], null);
+	}
+
+	public Object invoke(String actionName, Object[] params, String[] signature)
+			throws ReflectionException {
+		throw new ReflectionException(new NoSuchMethodException(actionName),
+				"No such operation: " + actionName);
+	}
+
+	public void setAttribute(Attribute attribute)
+			throws AttributeNotFoundException {
+		throw new AttributeNotFoundException("Metrics are read-only");
+	}
+
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+}
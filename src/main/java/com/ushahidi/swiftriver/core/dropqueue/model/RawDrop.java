@@ -14,10 +14,17 @@
  */
 package com.ushahidi.swiftriver.core.dropqueue.model;
 
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
+import org.codehaus.jackson.annotate.JsonAnyGetter;
+import org.codehaus.jackson.annotate.JsonIgnore;
 import org.codehaus.jackson.annotate.JsonProperty;
 
+import com.ushahidi.swiftriver.core.dropqueue.DeliveryFrame;
+
 public class RawDrop {
 	
 	private String channel;
@@ -85,9 +92,20 @@ public class RawDrop {
 
 	private Long deliveryTag;
 
+	/** Delivery to ack once the drop has been posted to the API */
+	@JsonIgnore
+	private DeliveryFrame deliveryFrame;
+
+	/** Correlation ID the drop was processed under, 0 if not known */
+	@JsonIgnore
+	private long correlationId;
+
 	@JsonProperty("rules_complete")
 	private boolean rulesComplete;
 
+	/** Fields not bound to any of the above, created on first use */
+	private Map<String, Object> additionalProperties;
+
 	public String getChannel() {
 		return channel;
 	}
@@ -280,6 +298,26 @@ public class RawDrop {
 		this.deliveryTag = deliveryTag;
 	}
 
+	@JsonIgnore
+	public DeliveryFrame getDeliveryFrame() {
+		return deliveryFrame;
+	}
+
+	@JsonIgnore
+	public void setDeliveryFrame(DeliveryFrame deliveryFrame) {
+		this.deliveryFrame = deliveryFrame;
+	}
+
+	@JsonIgnore
+	public long getCorrelationId() {
+		return correlationId;
+	}
+
+	@JsonIgnore
+	public void setCorrelationId(long correlationId) {
+		this.correlationId = correlationId;
+	}
+
 	public boolean isRulesComplete() {
 		return rulesComplete;
 	}
@@ -288,6 +326,40 @@ public class RawDrop {
 		this.rulesComplete = rulesComplete;
 	}
 
+	/**
+	 * @return the fields of the drop that have no property of their own,
+	 *         such as those filled in by stages added to the pipeline. Only
+	 *         the fields the decoders are told about are kept when a drop
+	 *         is decoded.
+	 */
+	@JsonAnyGetter
+	public Map<String, Object> getAdditionalProperties() {
+		if (additionalProperties == null) {
+			return Collections.emptyMap();
+		}
+		return additionalProperties;
+	}
+
+	/**
+	 * Sets a field that has no property of its own, removing it if the
+	 * value is <code>null</code>
+	 * 
+	 * @param name
+	 * @param value
+	 */
+	public void setAdditionalProperty(String name, Object value) {
+		if (value == null) {
+			if (additionalProperties != null) {
+				additionalProperties.remove(name);
+			}
+			return;
+		}
+		if (additionalProperties == null) {
+			additionalProperties = new LinkedHashMap<String, Object>();
+		}
+		additionalProperties.put(name, value);
+	}
+
 	public static class Link {
 		
 		private String url;
@@ -0,0 +1,243 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/agpl.html>
+ * 
+ * Copyright (C) Ushahidi Inc. All Rights Reserved.
+ */
+package com.ushahidi.swiftriver.core.dropqueue.support;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.map.ObjectMapper;
+
+import com.ushahidi.swiftriver.core.dropqueue.model.RawDrop;
+
+/**
+ * Writes {@link RawDrop}s in the wire format of the API's drops endpoint.
+ * 
+ * The JSON is generated field by field from the {@link RawDrop}s, so
+ * posting a batch no longer builds a copy of it as the API client's
+ * <code>Drop</code> object graph only to have the client serialize that.
+ * The mapping is the one <code>Publisher</code> applies when it posts
+ * through the client: the content falls back to the title, and the
+ * original URL and the drop image are taken from the link and media item
+ * flagged as such. Null fields are omitted.
+ * 
+ * Fields filled in by stages that {@link RawDrop} has no property for are
+ * written under their own names when they are listed in
+ * <code>additionalFields</code>; other unknown fields of the drops are
+ * left out.
+ * 
+ */
+public class ApiDropWriter {
+
+	private final JsonFactory jsonFactory;
+
+	private Set<String> additionalFields = Collections.emptySet();
+
+	public ApiDropWriter(ObjectMapper objectMapper) {
+		this.jsonFactory = objectMapper.getJsonFactory();
+	}
+
+	/**
+	 * @param additionalFields names of the additional properties of drops
+	 *            to post to the API
+	 */
+	public void setAdditionalFields(Collection<String> additionalFields) {
+		this.additionalFields = new LinkedHashSet<String>(additionalFields);
+	}
+
+	/**
+	 * Writes the drops to the stream as a UTF-8 JSON array. The stream is
+	 * flushed but not closed.
+	 * 
+	 * @param rawDrops
+	 * @param out
+	 * @throws IOException
+	 */
+	public void writeDrops(List<RawDrop> rawDrops, OutputStream out)
+			throws IOException {
+		JsonGenerator generator = startDrops(out);
+		for (RawDrop rawDrop : rawDrops) {
+			writeDrop(rawDrop, generator);
+		}
+		endDrops(generator);
+	}
+
+	/**
+	 * Opens the JSON array for drops that are written one at a time with
+	 * {@link #writeDrop(RawDrop, JsonGenerator)}.
+	 * 
+	 * @param out
+	 * @return the generator to write the drops with
+	 * @throws IOException
+	 */
+	public JsonGenerator startDrops(OutputStream out) throws IOException {
+		JsonGenerator generator = jsonFactory.createJsonGenerator(out,
+				JsonEncoding.UTF8);
+		generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+		generator.writeStartArray();
+		return generator;
+	}
+
+	/**
+	 * Closes the array opened by {@link #startDrops(OutputStream)} and
+	 * flushes the generator, leaving the stream open.
+	 * 
+	 * @param generator
+	 * @throws IOException
+	 */
+	public void endDrops(JsonGenerator generator) throws IOException {
+		generator.writeEndArray();
+		generator.close();
+	}
+
+	/**
+	 * Writes a single drop as a JSON object.
+	 * 
+	 * @param rawDrop
+	 * @param generator
+	 * @throws IOException
+	 */
+	public void writeDrop(RawDrop rawDrop, JsonGenerator generator)
+			throws IOException {
+		generator.writeStartObject();
+		writeString(generator, "title", rawDrop.getTitle());
+		writeString(generator, "content", rawDrop.getContent() != null ? rawDrop
+				.getContent() : rawDrop.getTitle());
+		writeString(generator, "channel", rawDrop.getChannel());
+		writeString(generator, "date_published", rawDrop.getDatePublished());
+		writeString(generator, "original_id", rawDrop.getDropOriginalId());
+		writeIds(generator, "river_ids", rawDrop.getRiverIds());
+		writeIds(generator, "bucket_ids", rawDrop.getBucketIds());
+		writeIds(generator, "mark_as_read", rawDrop.getMarkAsRead());
+		writeIds(generator, "channel_ids", rawDrop.getChannelIds());
+
+		generator.writeObjectFieldStart("identity");
+		writeString(generator, "avatar", rawDrop.getIdentityAvatar());
+		writeString(generator, "name", rawDrop.getIdentityName());
+		writeString(generator, "origin_id", rawDrop.getIdentityOriginalId());
+		writeString(generator, "username", rawDrop.getIdentityUsername());
+		generator.writeEndObject();
+
+		String originalUrl = null;
+		if (rawDrop.getLinks() != null) {
+			generator.writeArrayFieldStart("links");
+			for (RawDrop.Link link : rawDrop.getLinks()) {
+				generator.writeStartObject();
+				writeString(generator, "url", link.getUrl());
+				generator.writeEndObject();
+
+				if (link.isOriginalUrl()) {
+					originalUrl = link.getUrl();
+				}
+			}
+			generator.writeEndArray();
+		}
+		writeString(generator, "original_url", originalUrl);
+
+		if (rawDrop.getTags() != null) {
+			generator.writeArrayFieldStart("tags");
+			for (RawDrop.Tag tag : rawDrop.getTags()) {
+				generator.writeStartObject();
+				writeString(generator, "tag", tag.getName());
+				writeString(generator, "type", tag.getType());
+				generator.writeEndObject();
+			}
+			generator.writeEndArray();
+		}
+
+		String image = null;
+		if (rawDrop.getMedia() != null) {
+			generator.writeArrayFieldStart("media");
+			for (RawDrop.Media media : rawDrop.getMedia()) {
+				generator.writeStartObject();
+				writeString(generator, "url", media.getUrl());
+				writeString(generator, "type", media.getType());
+				if (media.getThumbnails() != null) {
+					generator.writeArrayFieldStart("thumbnails");
+					for (RawDrop.Thumbnail thumbnail : media.getThumbnails()) {
+						generator.writeStartObject();
+						if (thumbnail.getSize() != null) {
+							generator.writeNumberField("size", thumbnail.getSize());
+						}
+						writeString(generator, "url", thumbnail.getUrl());
+						generator.writeEndObject();
+					}
+					generator.writeEndArray();
+				}
+				generator.writeEndObject();
+
+				if (media.isDropImage()) {
+					image = media.getUrl();
+				}
+			}
+			generator.writeEndArray();
+		}
+		writeString(generator, "image", image);
+
+		if (rawDrop.getPlaces() != null) {
+			generator.writeArrayFieldStart("places");
+			for (RawDrop.Place place : rawDrop.getPlaces()) {
+				generator.writeStartObject();
+				writeString(generator, "name", place.getName());
+				if (place.getLatitude() != null) {
+					generator.writeNumberField("latitude", place.getLatitude());
+				}
+				if (place.getLongitude() != null) {
+					generator.writeNumberField("longitude", place.getLongitude());
+				}
+				generator.writeEndObject();
+			}
+			generator.writeEndArray();
+		}
+
+		if (!additionalFields.isEmpty()) {
+			for (Map.Entry<String, Object> entry : rawDrop.getAdditionalProperties().entrySet()) {
+				if (additionalFields.contains(entry.getKey())) {
+					generator.writeObjectField(entry.getKey(), entry.getValue());
+				}
+			}
+		}
+		generator.writeEndObject();
+	}
+
+	private static void writeString(JsonGenerator generator, String name,
+			String value) throws IOException {
+		if (value != null) {
+			generator.writeStringField(name, value);
+		}
+	}
+
+	private static void writeIds(JsonGenerator generator, String name,
+			List<Long> ids) throws IOException {
+		if (ids == null) {
+			return;
+		}
+		generator.writeArrayFieldStart(name);
+		for (Long id : ids) {
+			generator.writeNumber(id);
+		}
+		generator.writeEndArray();
+	}
+}
@@ -0,0 +1,62 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/agpl.html>
+ * 
+ * Copyright (C) Ushahidi Inc. All Rights Reserved.
+ */
+package com.ushahidi.swiftriver.core.dropqueue.support;
+
+import java.util.Random;
+
+/**
+ * Jittered exponential backoff.
+ * 
+ * The delay before retry <code>n</code> is drawn uniformly from the upper
+ * half of <code>min(initialDelay * 2^(n-1), maxDelay)</code> so that retries
+ * spread out instead of arriving in waves.
+ * 
+ */
+public class Backoff {
+
+	private final Random random = new Random();
+
+	private long initialDelay = 1000;
+
+	private long maxDelay = 60000;
+
+	public void setInitialDelay(long initialDelay) {
+		this.initialDelay = initialDelay;
+	}
+
+	public void setMaxDelay(long maxDelay) {
+		this.maxDelay = maxDelay;
+	}
+
+	/**
+	 * @param attempt the number of attempts made so far, from 1
+	 * @return milliseconds to wait before the next attempt
+	 */
+	public long delay(int attempt) {
+		int shift = Math.min(Math.max(attempt - 1, 0), 30);
+		long ceiling = Math.min(initialDelay << shift, maxDelay);
+		if (ceiling < initialDelay) {
+			// Overflow
+			ceiling = maxDelay;
+		}
+
+		long half = ceiling / 2;
+		synchronized (random) {
+			return half + (long) (random.nextDouble() * (ceiling - half + 1));
+		}
+	}
+}
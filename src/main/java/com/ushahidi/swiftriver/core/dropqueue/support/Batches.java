@@ -0,0 +1,73 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/agpl.html>
+ * 
+ * Copyright (C) Ushahidi Inc. All Rights Reserved.
+ */
+package com.ushahidi.swiftriver.core.dropqueue.support;
+
+import java.util.Collection;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Helpers for draining work queues in batches
+ * 
+ */
+public final class Batches {
+
+	private Batches() {
+	}
+
+	/**
+	 * Waits up to <code>timeout</code> milliseconds for the first element
+	 * and then keeps draining the queue into the batch until it holds
+	 * <code>maxSize</code> elements or <code>linger</code> milliseconds
+	 * have passed since the first element was taken.
+	 * 
+	 * @param queue
+	 * @param batch
+	 * @param maxSize
+	 * @param linger
+	 * @param timeout
+	 * @return the number of elements added, 0 if the wait timed out
+	 * @throws InterruptedException
+	 */
+	public static <E> int drain(BlockingQueue<E> queue,
+			Collection<? super E> batch, int maxSize, long linger, long timeout)
+			throws InterruptedException {
+		E first = queue.poll(timeout, TimeUnit.MILLISECONDS);
+		if (first == null) {
+			return 0;
+		}
+		batch.add(first);
+
+		int added = 1;
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(linger);
+		while (added < maxSize) {
+			added += queue.drainTo(batch, maxSize - added);
+			long remaining = deadline - System.nanoTime();
+			if (added >= maxSize || remaining <= 0) {
+				break;
+			}
+
+			E next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+			if (next == null) {
+				break;
+			}
+			batch.add(next);
+			added++;
+		}
+		return added;
+	}
+}
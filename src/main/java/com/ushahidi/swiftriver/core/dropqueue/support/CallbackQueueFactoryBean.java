@@ -0,0 +1,89 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/agpl.html>
+ * 
+ * Copyright (C) Ushahidi Inc. All Rights Reserved.
+ */
+package com.ushahidi.swiftriver.core.dropqueue.support;
+
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import org.springframework.amqp.core.Queue;
+import org.springframework.beans.factory.FactoryBean;
+
+/**
+ * Creates the queue the processing stages send their replies to.
+ * 
+ * By default the queue gets a random name and is exclusive and auto-deleted,
+ * so it goes away with the processor. A durable queue is instead named after
+ * the processor instance, <code>instanceId</code> or else the host name, and
+ * outlives restarts so that replies sent while the processor is down are
+ * received once it is back. A durable queue that goes unused for
+ * <code>expires</code> milliseconds is deleted by the broker.
+ * 
+ */
+public class CallbackQueueFactoryBean implements FactoryBean<Queue> {
+
+	private String prefix = "DROP_CB_QUEUE_";
+
+	private boolean durable;
+
+	private String instanceId;
+
+	private long expires;
+
+	public Queue getObject() throws Exception {
+		if (!durable) {
+			return new Queue(prefix + UUID.randomUUID().toString(), false,
+					true, true);
+		}
+
+		String id = instanceId;
+		if (id == null || id.trim().length() == 0) {
+			id = InetAddress.getLocalHost().getHostName();
+		}
+		Map<String, Object> arguments = new HashMap<String, Object>();
+		if (expires > 0) {
+			arguments.put("x-expires", (int) Math.min(expires, Integer.MAX_VALUE));
+		}
+		return new Queue(prefix + id.trim(), true, false, false, arguments);
+	}
+
+	public Class<?> getObjectType() {
+		return Queue.class;
+	}
+
+	public boolean isSingleton() {
+		return true;
+	}
+
+	public void setPrefix(String prefix) {
+		this.prefix = prefix;
+	}
+
+	public void setDurable(boolean durable) {
+		this.durable = durable;
+	}
+
+	public void setInstanceId(String instanceId) {
+		this.instanceId = instanceId;
+	}
+
+	public void setExpires(long expires) {
+		this.expires = expires;
+	}
+
+}
@@ -0,0 +1,135 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/agpl.html>
+ * 
+ * Copyright (C) Ushahidi Inc. All Rights Reserved.
+ */
+package com.ushahidi.swiftriver.core.dropqueue.support;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Circuit breaker around calls to a remote service.
+ * 
+ * After <code>failureThreshold</code> consecutive failures the breaker opens
+ * and callers are told to wait out <code>openTime</code> milliseconds
+ * instead of calling. A single trial call is then let through: success
+ * closes the breaker and failure opens it again.
+ * 
+ */
+public class CircuitBreaker {
+
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	final static Logger LOG = LoggerFactory.getLogger(CircuitBreaker.class);
+
+	/** How long callers wait while the trial call is in progress */
+	private static final long TRIAL_WAIT = 500;
+
+	private final AtomicLong openCount = new AtomicLong();
+
+	private String name = "circuit breaker";
+
+	private int failureThreshold = 5;
+
+	private long openTime = 30000;
+
+	private State state = State.CLOSED;
+
+	private int failures;
+
+	private long openedAt;
+
+	public void setName(String name) {
+		this.name = name;
+	}
+
+	public void setFailureThreshold(int failureThreshold) {
+		this.failureThreshold = failureThreshold;
+	}
+
+	/**
+	 * @param openTime milliseconds to stay open before a trial call
+	 */
+	public void setOpenTime(long openTime) {
+		this.openTime = openTime;
+	}
+
+	public synchronized State getState() {
+		return state;
+	}
+
+	/**
+	 * @return the number of times the breaker has opened
+	 */
+	public long getOpenCount() {
+		return openCount.get();
+	}
+
+	/**
+	 * Asks whether a call may be made now. When the open time has elapsed
+	 * the first caller is let through as the trial call.
+	 * 
+	 * @return 0 if the call may go ahead, otherwise the milliseconds to wait
+	 *         before asking again
+	 */
+	public synchronized long allowRequest() {
+		switch (state) {
+		case OPEN:
+			long remaining = openedAt + openTime - System.currentTimeMillis();
+			if (remaining > 0) {
+				return remaining;
+			}
+			LOG.info("{} half open, trying a call", name);
+			state = State.HALF_OPEN;
+			return 0;
+
+		case HALF_OPEN:
+			return TRIAL_WAIT;
+
+		default:
+			return 0;
+		}
+	}
+
+	public synchronized void recordSuccess() {
+		if (state != State.CLOSED) {
+			LOG.info("{} closed", name);
+		}
+		state = State.CLOSED;
+		failures = 0;
+	}
+
+	/**
+	 * Records a failed call, opening the breaker if it was the trial call or
+	 * the threshold has been reached.
+	 * 
+	 * @return true if the breaker is still closed
+	 */
+	public synchronized boolean recordFailure() {
+		failures++;
+		if (state == State.HALF_OPEN
+				|| (state == State.CLOSED && failures >= failureThreshold)) {
+			LOG.warn("{} open after {} consecutive failures", name, failures);
+			state = State.OPEN;
+			openedAt = System.currentTimeMillis();
+			openCount.incrementAndGet();
+		}
+		return state == State.CLOSED;
+	}
+}
@@ -0,0 +1,283 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/agpl.html>
+ * 
+ * Copyright (C) Ushahidi Inc. All Rights Reserved.
+ */
+package com.ushahidi.swiftriver.core.dropqueue.support;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
+
+/**
+ * Publishes messages on a channel in publisher confirm mode without waiting
+ * for each confirm.
+ * 
+ * Messages are pipelined onto the channel and the broker's acks and nacks
+ * are matched back to the item each message was published for as they
+ * arrive. Every published item is eventually passed to exactly one of
+ * {@link Callback#confirmed(Object, long)} or {@link Callback#failed(Object)}.
+ * Items outstanding when the channel closes are failed and a new channel is
+ * opened on the next publish.
+ * 
+ * Publishing must be done from a single thread. The callbacks are invoked
+ * on the connection's thread, or on the publishing thread when the publish
+ * itself fails, and must not block.
+ * 
+ * @param <T> the type of item tracked for each message
+ */
+public class ConfirmingChannel<T> {
+
+	/**
+	 * Receives the outcome of each publish
+	 */
+	public interface Callback<T> {
+
+		/**
+		 * @param item
+		 * @param latency nanoseconds from publish to confirm
+		 */
+		void confirmed(T item, long latency);
+
+		void failed(T item);
+	}
+
+	final static Logger LOG = LoggerFactory.getLogger(ConfirmingChannel.class);
+
+	private final ConnectionFactory connectionFactory;
+
+	private final Callback<T> callback;
+
+	private Session session;
+
+	private int outstanding;
+
+	public ConfirmingChannel(ConnectionFactory connectionFactory,
+			Callback<T> callback) {
+		this.connectionFactory = connectionFactory;
+		this.callback = callback;
+	}
+
+	/**
+	 * Publishes a message. The outcome is reported to the callback.
+	 * 
+	 * @param exchange
+	 * @param routingKey
+	 * @param properties
+	 * @param body
+	 * @param item
+	 */
+	public void publish(String exchange, String routingKey,
+			BasicProperties properties, byte[] body, T item) {
+		try {
+			if (session == null || !session.channel.isOpen()) {
+				if (session != null) {
+					session.close();
+				}
+				session = null;
+				session = new Session(connectionFactory.createConnection()
+						.createChannel(false));
+			}
+			session.publish(exchange, routingKey, properties, body, item);
+		} catch (IOException e) {
+			LOG.error("Error publishing to exchange '" + exchange + "'", e);
+			callback.failed(item);
+		} catch (AmqpException e) {
+			LOG.error("Error publishing to exchange '" + exchange + "'", e);
+			callback.failed(item);
+		}
+	}
+
+	/**
+	 * @return the number of messages published but not yet confirmed
+	 */
+	public synchronized int getOutstanding() {
+		return outstanding;
+	}
+
+	/**
+	 * Waits for all outstanding messages to be confirmed or failed.
+	 * 
+	 * @param timeout milliseconds
+	 * @return false if messages were still outstanding after the timeout
+	 * @throws InterruptedException
+	 */
+	public synchronized boolean awaitConfirms(long timeout)
+			throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+		while (outstanding > 0) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) {
+				return false;
+			}
+			wait(remaining);
+		}
+		return true;
+	}
+
+	/**
+	 * Closes the channel, failing any messages that are still outstanding.
+	 */
+	public void close() {
+		if (session != null) {
+			session.close();
+			session = null;
+		}
+	}
+
+	/**
+	 * A channel and the messages published on it awaiting confirmation.
+	 * Sequence numbers restart with each channel so every channel gets its
+	 * own session and a late signal from an old channel cannot settle
+	 * messages published on its replacement.
+	 */
+	private class Session implements ConfirmListener, ShutdownListener {
+
+		final Channel channel;
+
+		final SortedMap<Long, Pending<T>> pending = new TreeMap<Long, Pending<T>>();
+
+		Session(Channel channel) throws IOException {
+			this.channel = channel;
+			channel.addConfirmListener(this);
+			channel.addShutdownListener(this);
+			channel.confirmSelect();
+		}
+
+		void publish(String exchange, String routingKey,
+				BasicProperties properties, byte[] body, T item)
+				throws IOException {
+			long seqNo = channel.getNextPublishSeqNo();
+			synchronized (ConfirmingChannel.this) {
+				pending.put(seqNo, new Pending<T>(item, System.nanoTime()));
+				outstanding++;
+			}
+
+			try {
+				channel.basicPublish(exchange, routingKey, properties, body);
+			} catch (IOException e) {
+				// Fail the item unless the channel's shutdown already has
+				synchronized (ConfirmingChannel.this) {
+					if (pending.remove(seqNo) == null) {
+						return;
+					}
+					release(1);
+				}
+				throw e;
+			}
+		}
+
+		public void handleAck(long deliveryTag, boolean multiple) {
+			settle(deliveryTag, multiple, true);
+		}
+
+		public void handleNack(long deliveryTag, boolean multiple) {
+			settle(deliveryTag, multiple, false);
+		}
+
+		public void shutdownCompleted(ShutdownSignalException cause) {
+			if (!cause.isInitiatedByApplication()) {
+				LOG.warn("Publisher channel closed", cause);
+			}
+			failAll();
+		}
+
+		void close() {
+			channel.removeConfirmListener(this);
+			channel.removeShutdownListener(this);
+			failAll();
+			try {
+				channel.close();
+			} catch (IOException e) {
+				LOG.debug("Error closing publisher channel", e);
+			} catch (AmqpException e) {
+				LOG.debug("Error closing publisher channel", e);
+			} catch (ShutdownSignalException e) {
+				LOG.debug("Error closing publisher channel", e);
+			}
+		}
+
+		private void settle(long deliveryTag, boolean multiple, boolean ack) {
+			List<Pending<T>> settled;
+			synchronized (ConfirmingChannel.this) {
+				Map<Long, Pending<T>> confirms = multiple ? pending
+						.headMap(deliveryTag + 1) : pending.subMap(deliveryTag,
+						deliveryTag + 1);
+				settled = new ArrayList<Pending<T>>(confirms.values());
+				confirms.clear();
+				release(settled.size());
+			}
+
+			if (!ack) {
+				LOG.warn("Broker rejected {} published message(s)", settled.size());
+			}
+			long now = System.nanoTime();
+			for (Pending<T> p : settled) {
+				if (ack) {
+					callback.confirmed(p.item, now - p.published);
+				} else {
+					callback.failed(p.item);
+				}
+			}
+		}
+
+		private void failAll() {
+			List<T> items = new ArrayList<T>();
+			synchronized (ConfirmingChannel.this) {
+				for (Pending<T> p : pending.values()) {
+					items.add(p.item);
+				}
+				pending.clear();
+				release(items.size());
+			}
+			for (T item : items) {
+				callback.failed(item);
+			}
+		}
+	}
+
+	// Must hold the monitor
+	private void release(int count) {
+		outstanding -= count;
+		if (outstanding == 0) {
+			notifyAll();
+		}
+	}
+
+	private static final class Pending<T> {
+
+		final T item;
+
+		final long published;
+
+		Pending(T item, long published) {
+			this.item = item;
+			this.published = published;
+		}
+	}
+}
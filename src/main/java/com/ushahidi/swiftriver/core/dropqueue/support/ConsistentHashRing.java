@@ -0,0 +1,80 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/agpl.html>
+ * 
+ * Copyright (C) Ushahidi Inc. All Rights Reserved.
+ */
+package com.ushahidi.swiftriver.core.dropqueue.support;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Collection;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Consistent hash ring mapping <code>long</code> keys to named nodes.
+ * 
+ * Each node is placed on the ring at <code>virtualNodes</code> points and
+ * owns the keys that hash to just before each of its points. Adding or
+ * removing a node only moves the keys next to its points, roughly one
+ * n-th of them, and every ring built from the same nodes maps keys the
+ * same way.
+ * 
+ */
+public class ConsistentHashRing {
+
+	private final TreeMap<Long, String> points = new TreeMap<Long, String>();
+
+	public ConsistentHashRing(Collection<String> nodes, int virtualNodes) {
+		for (String node : nodes) {
+			for (int i = 0; i < virtualNodes; i++) {
+				points.put(hash(node + "#" + i), node);
+			}
+		}
+	}
+
+	/**
+	 * @param key
+	 * @return the node owning the key or <code>null</code> if the ring has
+	 *         no nodes
+	 */
+	public String ownerOf(long key) {
+		if (points.isEmpty()) {
+			return null;
+		}
+		SortedMap<Long, String> tail = points.tailMap(mix(key));
+		return tail.isEmpty() ? points.get(points.firstKey()) : tail
+				.get(tail.firstKey());
+	}
+
+	private static long hash(String name) {
+		byte[] bytes;
+		try {
+			bytes = name.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+		// 64-bit FNV-1a
+		long hash = 0xcbf29ce484222325L;
+		for (byte b : bytes) {
+			hash ^= b & 0xff;
+			hash *= 0x100000001b3L;
+		}
+		return mix(hash);
+	}
+
+	private static long mix(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return h ^ (h >>> 29);
+	}
+}
@@ -0,0 +1,41 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/agpl.html>
+ * 
+ * Copyright (C) Ushahidi Inc. All Rights Reserved.
+ */
+package com.ushahidi.swiftriver.core.dropqueue.support;
+
+/**
+ * Hands out the correlation IDs drops are tracked by while in flight.
+ * 
+ * IDs are positive <code>long</code> values, unique for the lifetime of the
+ * processor, so that they key the in-flight store and travel in the AMQP
+ * correlation-id property without allocating.
+ * 
+ */
+public interface CorrelationIdGenerator {
+
+	/**
+	 * @return a correlation ID not handed out before
+	 */
+	long nextId();
+
+	/**
+	 * Ensures that IDs handed out from now on are greater than the given
+	 * ID
+	 * 
+	 * @param id
+	 */
+	void skipPast(long id);
+}
@@ -0,0 +1,73 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/agpl.html>
+ * 
+ * Copyright (C) Ushahidi Inc. All Rights Reserved.
+ */
+package com.ushahidi.swiftriver.core.dropqueue.support;
+
+/**
+ * Converts the <code>long</code> correlation IDs used by the in-flight drop
+ * store to and from the bytes carried in the AMQP correlation-id property.
+ * 
+ * IDs are written as ASCII decimal digits.
+ * 
+ */
+public final class CorrelationIds {
+
+	private CorrelationIds() {
+	}
+
+	/**
+	 * Writes a non-negative correlation ID without going through a String.
+	 * 
+	 * @param id
+	 * @return
+	 */
+	public static byte[] toBytes(long id) {
+		int length = 1;
+		for (long rest = id / 10; rest > 0; rest /= 10) {
+			length++;
+		}
+		byte[] bytes = new byte[length];
+		for (int i = length - 1; i >= 0; i--) {
+			bytes[i] = (byte) ('0' + id % 10);
+			id /= 10;
+		}
+		return bytes;
+	}
+
+	/**
+	 * Parses a correlation ID without allocating.
+	 * 
+	 * @param bytes
+	 * @return the correlation ID or -1 if the bytes are not a valid ID
+	 */
+	public static long fromBytes(byte[] bytes) {
+		if (bytes == null || bytes.length == 0 || bytes.length > 19) {
+			return -1;
+		}
+		long id = 0;
+		for (int i = 0; i < bytes.length; i++) {
+			int digit = bytes[i] - '0';
+			if (digit < 0 || digit > 9) {
+				return -1;
+			}
+			if (id > (Long.MAX_VALUE - digit) / 10) {
+				return -1;
+			}
+			id = id * 10 + digit;
+		}
+		return id;
+	}
+}
@@ -0,0 +1,114 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/agpl.html>
+ * 
+ * Copyright (C) Ushahidi Inc. All Rights Reserved.
+ */
+package com.ushahidi.swiftriver.core.dropqueue.support;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.codehaus.jackson.map.BeanPropertyDefinition;
+import org.codehaus.jackson.map.DeserializationConfig;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.introspect.BasicBeanDescription;
+
+import com.ushahidi.swiftriver.core.dropqueue.model.RawDrop;
+
+/**
+ * A field of a {@link RawDrop} named as it is in the drop's JSON.
+ * 
+ * Fields bound to a property of {@link RawDrop} are read and written through
+ * its getter and setter, found once by Jackson's own introspection so that
+ * the names agree with the JSON. Any other name is kept among the drop's
+ * additional properties.
+ * 
+ */
+public class DropField {
+
+	private static final Map<String, BeanPropertyDefinition> PROPERTIES = new HashMap<String, BeanPropertyDefinition>();
+
+	static {
+		ObjectMapper objectMapper = new ObjectMapper();
+		DeserializationConfig config = objectMapper.getDeserializationConfig();
+		BasicBeanDescription description = config.introspect(objectMapper
+				.constructType(RawDrop.class));
+		for (BeanPropertyDefinition property : description.findProperties()) {
+			if (property.hasGetter() && property.hasSetter()) {
+				PROPERTIES.put(property.getName(), property);
+			}
+		}
+	}
+
+	private final String name;
+
+	private final Method getter;
+
+	private final Method setter;
+
+	public DropField(String name) {
+		this.name = name;
+		BeanPropertyDefinition property = PROPERTIES.get(name);
+		if (property != null) {
+			getter = property.getGetter().getAnnotated();
+			setter = property.getSetter().getAnnotated();
+		} else {
+			getter = null;
+			setter = null;
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return <code>true</code> if the field is kept among the drop's
+	 *         additional properties
+	 */
+	public boolean isAdditional() {
+		return getter == null;
+	}
+
+	public Object get(RawDrop drop) {
+		if (getter == null) {
+			return drop.getAdditionalProperties().get(name);
+		}
+		return invoke(getter, drop);
+	}
+
+	public void set(RawDrop drop, Object value) {
+		if (setter == null) {
+			drop.setAdditionalProperty(name, value);
+		} else if (value != null || !setter.getParameterTypes()[0].isPrimitive()) {
+			invoke(setter, drop, value);
+		}
+	}
+
+	private static Object invoke(Method method, RawDrop drop, Object... args) {
+		try {
+			return method.invoke(drop, args);
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException(e);
+		} catch (InvocationTargetException e) {
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	public String toString() {
+		return name;
+	}
+}
@@ -0,0 +1,192 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/agpl.html>
+ * 
+ * Copyright (C) Ushahidi Inc. All Rights Reserved.
+ */
+package com.ushahidi.swiftriver.core.dropqueue.support;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonParseException;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.springframework.amqp.core.Message;
+
+/**
+ * Identifies a drop by its channel, its original ID in the channel and the
+ * rivers and channels it was pushed for, so that the same drop pushed again
+ * by a channel app can be recognised. The drop's title and content can be
+ * made part of the identity too, so that an item edited since it was last
+ * crawled is not taken for a copy.
+ * 
+ * The fields are streamed from the message body without binding the drop
+ * and hashed to 128 bits with MD5, which makes two different drops sharing
+ * a fingerprint too unlikely to matter.
+ * 
+ */
+public final class DropFingerprint {
+
+	private static final ThreadLocal<MessageDigest> DIGEST = new ThreadLocal<MessageDigest>() {
+		protected MessageDigest initialValue() {
+			try {
+				return MessageDigest.getInstance("MD5");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	};
+
+	private final long high;
+
+	private final long low;
+
+	DropFingerprint(long high, long low) {
+		this.high = high;
+		this.low = low;
+	}
+
+	/**
+	 * Reads the fingerprint of the drop in a message body, checking on the
+	 * way that the body is a single well-formed JSON object.
+	 * 
+	 * @param jsonFactory
+	 * @param message
+	 * @param withContent whether the title and content are part of the
+	 *            fingerprint
+	 * @return the fingerprint or <code>null</code> if the drop has no
+	 *         original ID
+	 * @throws IOException if the body is not a JSON object
+	 */
+	public static DropFingerprint read(JsonFactory jsonFactory,
+			Message message, boolean withContent) throws IOException {
+		String channel = null;
+		String originalId = null;
+		String title = null;
+		String content = null;
+		String channelIds = null;
+		String riverIds = null;
+
+		JsonParser parser = RawDropDecoder.createParser(jsonFactory, message);
+		try {
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				throw new JsonParseException("Expected a drop object",
+						parser.getCurrentLocation());
+			}
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String name = parser.getCurrentName();
+				parser.nextToken();
+				if (name.equals("channel")) {
+					channel = value(parser);
+				} else if (name.equals("droplet_orig_id")) {
+					originalId = value(parser);
+				} else if (name.equals("channel_ids")) {
+					channelIds = value(parser);
+				} else if (name.equals("river_id")) {
+					riverIds = value(parser);
+				} else if (withContent && name.equals("droplet_title")) {
+					title = value(parser);
+				} else if (withContent && name.equals("droplet_content")) {
+					content = value(parser);
+				} else {
+					parser.skipChildren();
+				}
+			}
+		} finally {
+			parser.close();
+		}
+
+		if (originalId == null) {
+			return null;
+		}
+		MessageDigest digest = DIGEST.get();
+		update(digest, channel);
+		update(digest, originalId);
+		update(digest, channelIds);
+		update(digest, riverIds);
+		update(digest, title);
+		update(digest, content);
+		byte[] hash = digest.digest();
+		return new DropFingerprint(toLong(hash, 0), toLong(hash, 8));
+	}
+
+	/**
+	 * @return the text of the scalar or the array of scalars the parser is
+	 *         at, or <code>null</code> for anything else
+	 */
+	private static String value(JsonParser parser) throws IOException {
+		JsonToken token = parser.getCurrentToken();
+		if (token == JsonToken.START_ARRAY) {
+			StringBuilder text = new StringBuilder();
+			while (parser.nextToken() != JsonToken.END_ARRAY) {
+				parser.skipChildren();
+				text.append(parser.getText()).append(',');
+			}
+			return text.toString();
+		}
+		if (token == JsonToken.VALUE_NULL || !token.isScalarValue()) {
+			parser.skipChildren();
+			return null;
+		}
+		return parser.getText();
+	}
+
+	/**
+	 * Adds a field to the digest, prefixed with its length so that the
+	 * boundaries between fields are part of the hash
+	 */
+	private static void update(MessageDigest digest, String value)
+			throws IOException {
+		if (value == null) {
+			digest.update((byte) 0);
+			return;
+		}
+		byte[] bytes = value.getBytes("UTF-8");
+		digest.update((byte) 1);
+		digest.update((byte) (bytes.length >>> 24));
+		digest.update((byte) (bytes.length >>> 16));
+		digest.update((byte) (bytes.length >>> 8));
+		digest.update((byte) bytes.length);
+		digest.update(bytes);
+	}
+
+	private static long toLong(byte[] bytes, int offset) {
+		long value = 0;
+		for (int i = offset; i < offset + 8; i++) {
+			value = (value << 8) | (bytes[i] & 0xFF);
+		}
+		return value;
+	}
+
+	public int hashCode() {
+		return (int) low;
+	}
+
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof DropFingerprint)) {
+			return false;
+		}
+		DropFingerprint other = (DropFingerprint) obj;
+		return high == other.high && low == other.low;
+	}
+
+	public String toString() {
+		return String.format("%016x%016x", high, low);
+	}
+}
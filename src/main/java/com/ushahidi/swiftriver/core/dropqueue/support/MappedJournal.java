@@ -0,0 +1,389 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/agpl.html>
+ * 
+ * Copyright (C) Ushahidi Inc. All Rights Reserved.
+ */
+package com.ushahidi.swiftriver.core.dropqueue.support;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only journal of keyed records kept in memory-mapped segment files.
+ * 
+ * Each record carries a type, a <code>long</code> key, a payload and a
+ * CRC32 checksum. Records are appended to the active segment; a full
+ * segment is forced to disk, sealed and replaced by a new one. Appends only
+ * write to the mapped memory, which the operating system persists even if
+ * the process dies. {@link #sync()} forces everything appended since the
+ * last call to the disk at once, so a single flush commits a whole group of
+ * appends.
+ * 
+ * A {@link #TOMBSTONE} record removes every earlier record with its key.
+ * {@link #compact()} rewrites the sealed segments into a single segment
+ * holding only the records of keys that have not been removed.
+ * 
+ * {@link #open} replays the existing segments in the order they were
+ * written, stopping at the first torn or corrupt record of each segment.
+ * 
+ */
+public class MappedJournal {
+
+	/**
+	 * Receives replayed records
+	 */
+	public interface Handler {
+
+		void record(byte type, long key, byte[] payload) throws IOException;
+	}
+
+	/** Type of the records that remove a key */
+	public static final byte TOMBSTONE = 0;
+
+	/** Payload length, checksum, type and key */
+	private static final int HEADER_SIZE = 4 + 4 + 1 + 8;
+
+	private static final String PREFIX = "journal-";
+
+	private static final String SUFFIX = ".log";
+
+	private static final byte[] NO_PAYLOAD = new byte[0];
+
+	private static final Logger LOG = LoggerFactory.getLogger(MappedJournal.class);
+
+	private final File directory;
+
+	private final int segmentSize;
+
+	/** Used by appends, under the journal's lock */
+	private final CRC32 crc = new CRC32();
+
+	private final byte[] header = new byte[9];
+
+	/** Sealed segments in the order they were written */
+	private final List<File> sealed = new ArrayList<File>();
+
+	private MappedByteBuffer active;
+
+	private long nextSegment;
+
+	private boolean dirty;
+
+	/**
+	 * @param directory directory holding the segment files
+	 * @param segmentSize size in bytes of each segment file
+	 */
+	public MappedJournal(File directory, int segmentSize) {
+		if (segmentSize < HEADER_SIZE) {
+			throw new IllegalArgumentException("Segment size is too small");
+		}
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+	}
+
+	/**
+	 * Replays the records of the existing segments and opens a new active
+	 * segment for appends.
+	 * 
+	 * @param handler
+	 * @throws IOException
+	 */
+	public synchronized void open(Handler handler) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Unable to create journal directory " + directory);
+		}
+
+		// Left behind by an interrupted compaction
+		for (File tmp : directory.listFiles(new SuffixFilter(SUFFIX + ".tmp"))) {
+			tmp.delete();
+		}
+
+		File[] segments = directory.listFiles(new SuffixFilter(SUFFIX));
+		Arrays.sort(segments, new Comparator<File>() {
+			public int compare(File a, File b) {
+				long x = sequenceOf(a);
+				long y = sequenceOf(b);
+				return x < y ? -1 : (x == y ? 0 : 1);
+			}
+		});
+		for (File segment : segments) {
+			replay(segment, handler);
+			sealed.add(segment);
+			nextSegment = sequenceOf(segment) + 1;
+		}
+		roll(0);
+	}
+
+	/**
+	 * Appends a record.
+	 * 
+	 * @param type
+	 * @param key
+	 * @param payload
+	 * @throws IOException
+	 */
+	public synchronized void append(byte type, long key, byte[] payload)
+			throws IOException {
+		if (active == null) {
+			throw new IOException("Journal is not open");
+		}
+		int size = HEADER_SIZE + payload.length;
+		if (active.remaining() < size) {
+			roll(size);
+		}
+
+		header[0] = type;
+		for (int i = 0; i < 8; i++) {
+			header[8 - i] = (byte) (key >>> (i * 8));
+		}
+		crc.reset();
+		crc.update(header, 0, header.length);
+		crc.update(payload, 0, payload.length);
+
+		active.putInt(payload.length);
+		active.putInt((int) crc.getValue());
+		active.put(header);
+		active.put(payload);
+		dirty = true;
+	}
+
+	/**
+	 * Appends a {@link #TOMBSTONE} for a key
+	 * 
+	 * @param key
+	 * @throws IOException
+	 */
+	public void remove(long key) throws IOException {
+		append(TOMBSTONE, key, NO_PAYLOAD);
+	}
+
+	/**
+	 * Forces the records appended since the last sync to the disk. Appends
+	 * carry on while the active segment is being forced.
+	 * 
+	 * @throws IOException
+	 */
+	public void sync() throws IOException {
+		MappedByteBuffer segment;
+		synchronized (this) {
+			if (!dirty) {
+				return;
+			}
+			dirty = false;
+			segment = active;
+		}
+		segment.force();
+	}
+
+	/**
+	 * @return the number of sealed segments
+	 */
+	public synchronized int getSealedCount() {
+		return sealed.size();
+	}
+
+	/**
+	 * Rewrites the live records of the sealed segments into the newest of
+	 * them and deletes the rest. Appends carry on in the active segment
+	 * meanwhile. Only one thread may compact at a time.
+	 * 
+	 * @throws IOException
+	 */
+	public void compact() throws IOException {
+		List<File> segments;
+		synchronized (this) {
+			if (sealed.size() < 2) {
+				return;
+			}
+			segments = new ArrayList<File>(sealed);
+		}
+
+		// Gather the records of the keys that have not been removed
+		final Map<Long, List<Object[]>> live = new LinkedHashMap<Long, List<Object[]>>();
+		int removed = 0;
+		for (File segment : segments) {
+			replay(segment, new Handler() {
+				public void record(byte type, long key, byte[] payload) {
+					if (type == TOMBSTONE) {
+						live.remove(key);
+						return;
+					}
+					List<Object[]> records = live.get(key);
+					if (records == null) {
+						records = new ArrayList<Object[]>();
+						live.put(key, records);
+					}
+					records.add(new Object[] {type, payload});
+				}
+			});
+		}
+
+		File target = segments.get(segments.size() - 1);
+		File tmp = new File(directory, target.getName() + ".tmp");
+		RandomAccessFile file = new RandomAccessFile(tmp, "rw");
+		try {
+			FileChannel channel = file.getChannel();
+			for (Map.Entry<Long, List<Object[]>> entry : live.entrySet()) {
+				for (Object[] record : entry.getValue()) {
+					channel.write(encode((Byte) record[0], entry.getKey(),
+							(byte[]) record[1]));
+				}
+			}
+			channel.force(true);
+		} finally {
+			file.close();
+		}
+
+		if (!tmp.renameTo(target) && !(target.delete() && tmp.renameTo(target))) {
+			throw new IOException("Unable to replace " + target);
+		}
+		for (File segment : segments.subList(0, segments.size() - 1)) {
+			segment.delete();
+			removed++;
+		}
+		synchronized (this) {
+			sealed.removeAll(segments.subList(0, segments.size() - 1));
+		}
+		LOG.info("Compacted {} journal segments, {} keys live", removed + 1,
+				live.size());
+	}
+
+	/**
+	 * Forces the active segment to disk. The journal cannot be appended to
+	 * once closed.
+	 * 
+	 * @throws IOException
+	 */
+	public synchronized void close() throws IOException {
+		if (active != null) {
+			active.force();
+			active = null;
+		}
+	}
+
+	/**
+	 * Seals the active segment and maps a new one of at least the given
+	 * size
+	 */
+	private void roll(int minSize) throws IOException {
+		if (active != null) {
+			active.force();
+			sealed.add(segmentFile(nextSegment - 1));
+		}
+
+		RandomAccessFile file = new RandomAccessFile(segmentFile(nextSegment), "rw");
+		try {
+			int size = Math.max(segmentSize, minSize);
+			file.setLength(size);
+			active = file.getChannel().map(MapMode.READ_WRITE, 0, size);
+		} finally {
+			file.close();
+		}
+		nextSegment++;
+	}
+
+	private static ByteBuffer encode(byte type, long key, byte[] payload) {
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+		buffer.putInt(payload.length);
+		buffer.putInt(0);
+		buffer.put(type);
+		buffer.putLong(key);
+		buffer.put(payload);
+
+		CRC32 checksum = new CRC32();
+		checksum.update(buffer.array(), 8, buffer.capacity() - 8);
+		buffer.putInt(4, (int) checksum.getValue());
+		buffer.flip();
+		return buffer;
+	}
+
+	private void replay(File segment, Handler handler) throws IOException {
+		ByteBuffer buffer;
+		RandomAccessFile file = new RandomAccessFile(segment, "r");
+		try {
+			buffer = file.getChannel().map(MapMode.READ_ONLY, 0, file.length());
+		} finally {
+			file.close();
+		}
+
+		CRC32 checksum = new CRC32();
+		byte[] recordHeader = new byte[9];
+		while (buffer.remaining() >= HEADER_SIZE) {
+			int length = buffer.getInt();
+			if (length == 0 && buffer.getInt(buffer.position()) == 0) {
+				// Unwritten remainder of the segment
+				return;
+			}
+			int expected = buffer.getInt();
+			if (length < 0 || length > buffer.remaining() - recordHeader.length) {
+				LOG.warn("Truncated record in journal segment {}", segment);
+				return;
+			}
+			buffer.get(recordHeader);
+			byte[] payload = new byte[length];
+			buffer.get(payload);
+
+			checksum.reset();
+			checksum.update(recordHeader, 0, recordHeader.length);
+			checksum.update(payload, 0, length);
+			if ((int) checksum.getValue() != expected) {
+				LOG.warn("Corrupt record in journal segment {}", segment);
+				return;
+			}
+
+			long key = ByteBuffer.wrap(recordHeader, 1, 8).getLong();
+			handler.record(recordHeader[0], key, payload);
+		}
+	}
+
+	private File segmentFile(long sequence) {
+		return new File(directory, String.format("%s%016d%s", PREFIX,
+				sequence, SUFFIX));
+	}
+
+	private static long sequenceOf(File segment) {
+		String name = segment.getName();
+		return Long.parseLong(name.substring(PREFIX.length(), name.length()
+				- SUFFIX.length()));
+	}
+
+	private static final class SuffixFilter implements FilenameFilter {
+
+		private final String suffix;
+
+		SuffixFilter(String suffix) {
+			this.suffix = suffix;
+		}
+
+		public boolean accept(File dir, String name) {
+			return name.startsWith(PREFIX) && name.endsWith(suffix);
+		}
+	}
+}
@@ -0,0 +1,149 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/agpl.html>
+ * 
+ * Copyright (C) Ushahidi Inc. All Rights Reserved.
+ */
+package com.ushahidi.swiftriver.core.dropqueue.support;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonParseException;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.ObjectReader;
+import org.codehaus.jackson.util.TokenBuffer;
+import org.springframework.amqp.core.Message;
+
+import com.ushahidi.swiftriver.core.dropqueue.model.RawDrop;
+
+/**
+ * Decodes replies from the metadata extractors and the rules processor.
+ * 
+ * A reply echoes the whole drop but each source only contributes a few
+ * fields. The decoder streams through the reply and copies only the
+ * <code>source</code> field and the fields owned by that source into a
+ * token buffer which is then bound to a {@link RawDrop}. Everything else,
+ * including the large <code>droplet_raw</code> and
+ * <code>droplet_content</code> values, is skipped at the token level without
+ * being decoded.
+ * 
+ * Fields that appear before <code>source</code> are kept if any source
+ * owns them. Owned fields that {@link RawDrop} has no property for are kept
+ * among the reply's additional properties; no other field is.
+ * 
+ */
+public class MetadataReplyDecoder {
+
+	private static final String SOURCE_FIELD = "source";
+
+	private final JsonFactory jsonFactory;
+
+	private final ObjectMapper objectMapper;
+
+	private ObjectReader reader;
+
+	private Map<String, Set<String>> sourceFields = new HashMap<String, Set<String>>();
+
+	private Set<String> allFields = new HashSet<String>();
+
+	public MetadataReplyDecoder(ObjectMapper objectMapper) {
+		this.jsonFactory = objectMapper.getJsonFactory();
+		this.objectMapper = objectMapper;
+
+		Map<String, List<String>> defaults = new HashMap<String, List<String>>();
+		defaults.put("mediaextractor", Arrays.asList("media", "links"));
+		defaults.put("semantics", Arrays.asList("tags", "places"));
+		defaults.put("rules", Arrays.asList("bucket_id", "river_id", "mark_as_read"));
+		setSourceFields(defaults);
+	}
+
+	/**
+	 * Sets the JSON fields that each source contributes to a drop
+	 * 
+	 * @param sourceFields map of source name to field names
+	 */
+	public void setSourceFields(Map<String, List<String>> sourceFields) {
+		Map<String, Set<String>> fields = new HashMap<String, Set<String>>();
+		Set<String> all = new HashSet<String>();
+		for (Map.Entry<String, List<String>> entry : sourceFields.entrySet()) {
+			fields.put(entry.getKey(), new HashSet<String>(entry.getValue()));
+			all.addAll(entry.getValue());
+		}
+		Set<String> additional = new HashSet<String>();
+		for (String name : all) {
+			if (new DropField(name).isAdditional()) {
+				additional.add(name);
+			}
+		}
+		this.sourceFields = fields;
+		this.allFields = all;
+		this.reader = RawDropDecoder.createReader(objectMapper, additional);
+	}
+
+	/**
+	 * Decodes the source and the fields it owns from a reply. Replies from
+	 * unknown sources decode to a drop with only the source set.
+	 * 
+	 * @param message
+	 * @return
+	 * @throws IOException
+	 */
+	public RawDrop decode(Message message) throws IOException {
+		JsonParser parser = RawDropDecoder.createParser(jsonFactory, message);
+		try {
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				throw new JsonParseException("Expected a JSON object",
+						parser.getCurrentLocation());
+			}
+
+			TokenBuffer buffer = new TokenBuffer(null);
+			buffer.writeStartObject();
+
+			// Fields to keep; until the source is known keep all owned fields
+			Set<String> fields = allFields;
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String name = parser.getCurrentName();
+				parser.nextToken();
+
+				if (SOURCE_FIELD.equals(name)) {
+					String source = parser.getText();
+					fields = sourceFields.get(source);
+					if (fields == null) {
+						fields = Collections.emptySet();
+					}
+					buffer.writeStringField(SOURCE_FIELD, source);
+				} else if (fields.contains(name)) {
+					buffer.writeFieldName(name);
+					buffer.copyCurrentStructure(parser);
+				} else {
+					parser.skipChildren();
+				}
+			}
+			buffer.writeEndObject();
+
+			return reader.readValue(buffer.asParser());
+		} finally {
+			parser.close();
+		}
+	}
+}
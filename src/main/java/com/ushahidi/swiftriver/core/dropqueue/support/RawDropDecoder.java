@@ -0,0 +1,236 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/agpl.html>
+ * 
+ * Copyright (C) Ushahidi Inc. All Rights Reserved.
+ */
+package com.ushahidi.swiftriver.core.dropqueue.support;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonParseException;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.codehaus.jackson.map.DeserializationConfig;
+import org.codehaus.jackson.map.DeserializationContext;
+import org.codehaus.jackson.map.DeserializationProblemHandler;
+import org.codehaus.jackson.map.JsonDeserializer;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.ObjectReader;
+import org.codehaus.jackson.map.deser.std.UntypedObjectDeserializer;
+import org.springframework.amqp.core.Message;
+
+import com.ushahidi.swiftriver.core.dropqueue.model.RawDrop;
+
+/**
+ * Decodes {@link RawDrop}s straight from AMQP message bodies.
+ * 
+ * Jackson parses the bytes directly, detecting UTF-8/16/32 itself and
+ * using its per-thread recycled buffers, so no intermediate String copy of
+ * the payload is made. The {@link ObjectReader} is created once and shared
+ * by all threads. Bodies declaring any other content encoding are decoded
+ * through a reader for that charset.
+ * 
+ * Fields {@link RawDrop} has no property for are skipped unless they are
+ * listed in <code>additionalFields</code>, in which case they are kept
+ * among the drop's additional properties.
+ * 
+ */
+public class RawDropDecoder {
+
+	private final ObjectMapper objectMapper;
+
+	private ObjectReader reader;
+
+	private final JsonFactory jsonFactory;
+
+	public RawDropDecoder(ObjectMapper objectMapper) {
+		this.objectMapper = objectMapper;
+		this.reader = createReader(objectMapper, Collections.<String> emptySet());
+		this.jsonFactory = objectMapper.getJsonFactory();
+	}
+
+	/**
+	 * @param additionalFields names of the fields without a property of
+	 *            their own to keep in the drops
+	 */
+	public void setAdditionalFields(Collection<String> additionalFields) {
+		this.reader = createReader(objectMapper, additionalFields);
+	}
+
+	public RawDrop decode(Message message) throws IOException {
+		byte[] body = message.getBody();
+		String encoding = message.getMessageProperties().getContentEncoding();
+		if (encoding != null && !isUnicode(encoding)) {
+			return reader.readValue(new InputStreamReader(
+					new ByteArrayInputStream(body), encoding));
+		}
+		return reader.readValue(body, 0, body.length);
+	}
+
+	/**
+	 * Decodes the UTF-8 JSON between the buffer's position and limit without
+	 * changing the buffer's position.
+	 * 
+	 * @param buffer
+	 * @return
+	 * @throws IOException
+	 */
+	public RawDrop decode(ByteBuffer buffer) throws IOException {
+		if (buffer.hasArray()) {
+			return reader.readValue(buffer.array(), buffer.arrayOffset()
+					+ buffer.position(), buffer.remaining());
+		}
+		return reader.readValue(new ByteBufferInputStream(buffer.duplicate()));
+	}
+
+	/**
+	 * Checks that a message body holds a single well-formed JSON object
+	 * without binding any of its fields.
+	 * 
+	 * @param message
+	 * @throws IOException if the body is not a JSON object
+	 */
+	public void validate(Message message) throws IOException {
+		JsonParser parser = createParser(jsonFactory, message);
+		try {
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				throw new JsonParseException("Expected a drop object",
+						parser.getCurrentLocation());
+			}
+			parser.skipChildren();
+		} finally {
+			parser.close();
+		}
+	}
+
+	/**
+	 * Creates a parser over a message body, honouring any non-Unicode
+	 * content encoding declared on the message.
+	 * 
+	 * @param jsonFactory
+	 * @param message
+	 * @return
+	 * @throws IOException
+	 */
+	static JsonParser createParser(JsonFactory jsonFactory, Message message)
+			throws IOException {
+		byte[] body = message.getBody();
+		String encoding = message.getMessageProperties().getContentEncoding();
+		if (encoding != null && !isUnicode(encoding)) {
+			return jsonFactory.createJsonParser(new InputStreamReader(
+					new ByteArrayInputStream(body), encoding));
+		}
+		return jsonFactory.createJsonParser(body, 0, body.length);
+	}
+
+	/**
+	 * Creates a reader of {@link RawDrop}s that keeps only the given fields
+	 * among their additional properties. The mapper itself is not changed.
+	 * 
+	 * @param objectMapper
+	 * @param additionalFields
+	 * @return
+	 */
+	static ObjectReader createReader(ObjectMapper objectMapper,
+			Collection<String> additionalFields) {
+		DeserializationConfig config = objectMapper.copyDeserializationConfig();
+		config.addHandler(new AdditionalFieldHandler(additionalFields));
+		return new DropReader(objectMapper, config).withType(RawDrop.class);
+	}
+
+	private static boolean isUnicode(String encoding) {
+		return encoding.regionMatches(true, 0, "UTF", 0, 3);
+	}
+
+	/**
+	 * Gives access to the reader constructor that takes its own config
+	 */
+	private static final class DropReader extends ObjectReader {
+
+		DropReader(ObjectMapper objectMapper, DeserializationConfig config) {
+			super(objectMapper, config);
+		}
+	}
+
+	/**
+	 * Binds the listed fields a {@link RawDrop} has no property for to its
+	 * additional properties and skips the others without decoding them
+	 */
+	private static final class AdditionalFieldHandler extends
+			DeserializationProblemHandler {
+
+		private final Set<String> additionalFields;
+
+		private final UntypedObjectDeserializer valueDeserializer = new UntypedObjectDeserializer();
+
+		AdditionalFieldHandler(Collection<String> additionalFields) {
+			this.additionalFields = new HashSet<String>(additionalFields);
+		}
+
+		public boolean handleUnknownProperty(DeserializationContext ctxt,
+				JsonDeserializer<?> deserializer, Object beanOrClass,
+				String propertyName) throws IOException {
+			if (!(beanOrClass instanceof RawDrop)) {
+				return false;
+			}
+
+			JsonParser parser = ctxt.getParser();
+			if (additionalFields.contains(propertyName)) {
+				((RawDrop) beanOrClass).setAdditionalProperty(propertyName,
+						valueDeserializer.deserialize(parser, ctxt));
+			} else {
+				parser.skipChildren();
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Streams a (direct) buffer into Jackson's own read buffer
+	 */
+	private static final class ByteBufferInputStream extends InputStream {
+
+		private final ByteBuffer buffer;
+
+		ByteBufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+		}
+
+		public int read(byte[] bytes, int offset, int length) {
+			if (!buffer.hasRemaining()) {
+				return -1;
+			}
+			length = Math.min(length, buffer.remaining());
+			buffer.get(bytes, offset, length);
+			return length;
+		}
+
+		public int available() {
+			return buffer.remaining();
+		}
+	}
+}
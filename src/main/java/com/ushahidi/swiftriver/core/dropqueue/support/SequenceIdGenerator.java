@@ -0,0 +1,85 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/agpl.html>
+ * 
+ * Copyright (C) Ushahidi Inc. All Rights Reserved.
+ */
+package com.ushahidi.swiftriver.core.dropqueue.support;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates correlation IDs from a node ID and a monotonic counter.
+ * 
+ * The low <code>nodeBits</code> bits of each ID hold the node ID and the
+ * bits above them the counter, so processors sharing a broker with
+ * distinct node IDs never hand out the same ID and a late reply meant for
+ * one never matches a drop in flight on another. With no node bits IDs
+ * simply count up from 1.
+ * 
+ */
+public class SequenceIdGenerator implements CorrelationIdGenerator {
+
+	private final AtomicLong counter = new AtomicLong();
+
+	private final int nodeId;
+
+	private final int nodeBits;
+
+	public SequenceIdGenerator() {
+		this(0, 0);
+	}
+
+	/**
+	 * @param nodeId
+	 * @param nodeBits number of low bits holding the node ID
+	 */
+	public SequenceIdGenerator(int nodeId, int nodeBits) {
+		if (nodeBits < 0 || nodeBits > 16) {
+			throw new IllegalArgumentException("Node bits must be 0 to 16");
+		}
+		if (nodeId < 0 || nodeId >= 1 << nodeBits) {
+			throw new IllegalArgumentException("Node ID " + nodeId
+					+ " does not fit in " + nodeBits + " bits");
+		}
+		this.nodeId = nodeId;
+		this.nodeBits = nodeBits;
+	}
+
+	/**
+	 * @param clockSeeded whether the counter starts from the current time
+	 *            in microseconds rather than 1, so that IDs handed out by
+	 *            earlier runs are not reused while they may still be
+	 *            replied to
+	 */
+	public void setClockSeeded(boolean clockSeeded) {
+		if (clockSeeded) {
+			advance(System.currentTimeMillis() * 1000);
+		}
+	}
+
+	public long nextId() {
+		return counter.incrementAndGet() << nodeBits | nodeId;
+	}
+
+	public void skipPast(long id) {
+		advance(id >>> nodeBits);
+	}
+
+	private void advance(long value) {
+		long current;
+		do {
+			current = counter.get();
+		} while (current < value && !counter.compareAndSet(current, value));
+	}
+}
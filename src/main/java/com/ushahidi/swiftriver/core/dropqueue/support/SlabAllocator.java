@@ -0,0 +1,186 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/agpl.html>
+ * 
+ * Copyright (C) Ushahidi Inc. All Rights Reserved.
+ */
+package com.ushahidi.swiftriver.core.dropqueue.support;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Allocates byte records from direct (off-heap) memory.
+ * 
+ * Memory is reserved in slabs of <code>slabSize</code> bytes, up to
+ * <code>capacity</code> bytes in all, and each slab is carved into blocks of
+ * a single power of two size between 512 bytes and the slab size. A record
+ * occupies the smallest block it fits in. Freed blocks are reused by later
+ * records of the same size class; slabs are never released.
+ * 
+ * Records live outside the Java heap so large numbers of them add nothing
+ * to the garbage collector's work. The allocator is thread safe.
+ * 
+ */
+public class SlabAllocator {
+
+	private static final int MIN_BLOCK_SHIFT = 9;
+
+	private final long capacity;
+
+	private final int slabSize;
+
+	private final SizeClass[] sizeClasses;
+
+	private final AtomicLong reservedBytes = new AtomicLong();
+
+	private final AtomicLong usedBytes = new AtomicLong();
+
+	/**
+	 * @param capacity maximum bytes of direct memory to reserve
+	 * @param slabSize bytes reserved at a time, rounded up to a power of two
+	 */
+	public SlabAllocator(long capacity, int slabSize) {
+		if (capacity < 0) {
+			throw new IllegalArgumentException("Capacity must not be negative");
+		}
+		int shift = MIN_BLOCK_SHIFT;
+		while ((1 << shift) < slabSize) {
+			shift++;
+		}
+		this.capacity = capacity;
+		this.slabSize = 1 << shift;
+
+		sizeClasses = new SizeClass[shift - MIN_BLOCK_SHIFT + 1];
+		for (int i = 0; i < sizeClasses.length; i++) {
+			sizeClasses[i] = new SizeClass(1 << (MIN_BLOCK_SHIFT + i));
+		}
+	}
+
+	/**
+	 * Copies bytes into a newly allocated record.
+	 * 
+	 * @param bytes
+	 * @return a buffer whose position and limit frame the copy or
+	 *         <code>null</code> if the bytes are larger than a slab or the
+	 *         allocator is out of memory
+	 */
+	public ByteBuffer store(byte[] bytes) {
+		if (bytes.length > slabSize) {
+			return null;
+		}
+		SizeClass sizeClass = sizeClasses[indexFor(bytes.length)];
+		ByteBuffer block = sizeClass.allocate();
+		if (block == null) {
+			return null;
+		}
+		usedBytes.addAndGet(sizeClass.blockSize);
+		block.clear();
+		block.put(bytes);
+		block.flip();
+		return block;
+	}
+
+	/**
+	 * Returns a record's block for reuse. The record must not be read after
+	 * it has been freed.
+	 * 
+	 * @param record a buffer returned by {@link #store}
+	 */
+	public void free(ByteBuffer record) {
+		SizeClass sizeClass = sizeClasses[indexFor(record.capacity())];
+		usedBytes.addAndGet(-sizeClass.blockSize);
+		sizeClass.free.add(record);
+	}
+
+	public long getCapacity() {
+		return capacity;
+	}
+
+	public int getSlabSize() {
+		return slabSize;
+	}
+
+	/**
+	 * @return bytes of direct memory reserved in slabs
+	 */
+	public long getReservedBytes() {
+		return reservedBytes.get();
+	}
+
+	/**
+	 * @return bytes of the reserved memory taken up by live records'
+	 *         blocks
+	 */
+	public long getUsedBytes() {
+		return usedBytes.get();
+	}
+
+	private static int indexFor(int size) {
+		int index = 0;
+		while ((1 << (MIN_BLOCK_SHIFT + index)) < size) {
+			index++;
+		}
+		return index;
+	}
+
+	private boolean reserveSlab() {
+		long reserved;
+		do {
+			reserved = reservedBytes.get();
+			if (reserved + slabSize > capacity) {
+				return false;
+			}
+		} while (!reservedBytes.compareAndSet(reserved, reserved + slabSize));
+		return true;
+	}
+
+	/**
+	 * Free blocks of a single size
+	 */
+	private final class SizeClass {
+
+		private final int blockSize;
+
+		private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<ByteBuffer>();
+
+		SizeClass(int blockSize) {
+			this.blockSize = blockSize;
+		}
+
+		ByteBuffer allocate() {
+			ByteBuffer block = free.poll();
+			return block != null ? block : grow();
+		}
+
+		/**
+		 * Carves a new slab into blocks, keeping the first
+		 */
+		private synchronized ByteBuffer grow() {
+			// Another thread may have grown the class while we waited
+			ByteBuffer block = free.poll();
+			if (block != null || !reserveSlab()) {
+				return block;
+			}
+
+			ByteBuffer slab = ByteBuffer.allocateDirect(slabSize);
+			for (int offset = blockSize; offset < slabSize; offset += blockSize) {
+				slab.limit(offset + blockSize).position(offset);
+				free.add(slab.slice());
+			}
+			slab.limit(blockSize).position(0);
+			return slab.slice();
+		}
+	}
+}
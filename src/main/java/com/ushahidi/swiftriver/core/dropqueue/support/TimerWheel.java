@@ -0,0 +1,134 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/agpl.html>
+ * 
+ * Copyright (C) Ushahidi Inc. All Rights Reserved.
+ */
+package com.ushahidi.swiftriver.core.dropqueue.support;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Hashed timer wheel for large numbers of coarse grained timeouts.
+ * 
+ * Any thread may {@link #schedule} an item. A single ticker thread calls
+ * {@link #expire} periodically to collect the items whose deadlines have
+ * passed. Scheduling only appends to a lock-free queue; the ticker moves
+ * new items into the wheel's buckets on its next tick so the buckets
+ * themselves are never shared.
+ * 
+ * Timeouts cannot be cancelled. Owners are expected to ignore expired
+ * items that are no longer relevant.
+ * 
+ * @param <T> type of the scheduled items
+ */
+public class TimerWheel<T> {
+
+	private final long tickDuration;
+
+	private final long startTime;
+
+	private final List<Timeout<T>>[] buckets;
+
+	private final int mask;
+
+	private final ConcurrentLinkedQueue<Timeout<T>> pending = new ConcurrentLinkedQueue<Timeout<T>>();
+
+	/** The next tick to be processed */
+	private long tick;
+
+	/**
+	 * @param tickDuration duration of a single tick in milliseconds
+	 * @param ticksPerWheel number of buckets, rounded up to a power of two 
+	 * @param startTime time in milliseconds of the first tick 
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public TimerWheel(long tickDuration, int ticksPerWheel, long startTime) {
+		int size = 1;
+		while (size < ticksPerWheel) {
+			size <<= 1;
+		}
+		this.tickDuration = tickDuration;
+		this.startTime = startTime;
+		this.mask = size - 1;
+		this.buckets = new List[size];
+		for (int i = 0; i < size; i++) {
+			buckets[i] = new ArrayList<Timeout<T>>();
+		}
+	}
+
+	/**
+	 * Schedules an item to expire at the given time
+	 * 
+	 * @param item
+	 * @param deadline time in milliseconds
+	 */
+	public void schedule(T item, long deadline) {
+		pending.add(new Timeout<T>(item, deadline));
+	}
+
+	/**
+	 * Advances the wheel to <code>now</code> and collects expired items.
+	 * Must only be called from a single thread.
+	 * 
+	 * @param now time in milliseconds
+	 * @param expired collection to add the expired items to
+	 */
+	public void expire(long now, Collection<? super T> expired) {
+		long targetTick = (now - startTime) / tickDuration;
+		while (tick <= targetTick) {
+			transferPending();
+
+			List<Timeout<T>> bucket = buckets[(int) (tick & mask)];
+			for (int i = bucket.size() - 1; i >= 0; i--) {
+				Timeout<T> timeout = bucket.get(i);
+				if (timeout.deadlineTick <= tick) {
+					expired.add(timeout.item);
+
+					// Swap remove
+					int last = bucket.size() - 1;
+					bucket.set(i, bucket.get(last));
+					bucket.remove(last);
+				}
+			}
+			tick++;
+		}
+	}
+
+	private void transferPending() {
+		Timeout<T> timeout;
+		while ((timeout = pending.poll()) != null) {
+			// Round up so that nothing expires before its deadline
+			timeout.deadlineTick = Math.max((timeout.deadline - startTime
+					+ tickDuration - 1) / tickDuration, tick);
+			buckets[(int) (timeout.deadlineTick & mask)].add(timeout);
+		}
+	}
+
+	private static final class Timeout<T> {
+
+		final T item;
+
+		final long deadline;
+
+		long deadlineTick;
+
+		Timeout(T item, long deadline) {
+			this.item = item;
+			this.deadline = deadline;
+		}
+	}
+}
@@ -0,0 +1,174 @@
+/**
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as
+ *  published by the Free Software Foundation, either version 3 of the
+ *  License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.ushahidi.swiftriver.core.dropqueue;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.amqp.rabbit.connection.ChannelProxy;
+
+import com.rabbitmq.client.Channel;
+
+public class AckTrackerTest {
+
+	private Channel mockChannel;
+
+	private AckTracker ackTracker;
+
+	@Before
+	public void setup() {
+		mockChannel = mock(Channel.class);
+		when(mockChannel.isOpen()).thenReturn(true);
+
+		// Flushed by the tests only
+		ackTracker = new AckTracker();
+		ackTracker.setFlushInterval(60000);
+		ackTracker.setBatchSize(1000);
+		ackTracker.start();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		ackTracker.shutdown();
+	}
+
+	private DeliveryFrame deliver(long deliveryTag) {
+		DeliveryFrame deliveryFrame = new DeliveryFrame(deliveryTag, mockChannel);
+		ackTracker.register(deliveryFrame);
+		return deliveryFrame;
+	}
+
+	@Test
+	public void coalesceContiguousAcks() throws Exception {
+		for (long tag = 1; tag <= 100; tag++) {
+			ackTracker.ack(deliver(tag));
+		}
+		ackTracker.flush();
+
+		verify(mockChannel).basicAck(100, true);
+		verify(mockChannel, times(1)).basicAck(anyLong(), anyBoolean());
+		assertEquals(100, ackTracker.getAckedCount());
+		assertEquals(1, ackTracker.getAckFrameCount());
+	}
+
+	@Test
+	public void holdAcksBehindOutstandingDelivery() throws Exception {
+		DeliveryFrame first = deliver(1);
+		DeliveryFrame second = deliver(2);
+		ackTracker.ack(deliver(3));
+		ackTracker.ack(first);
+		ackTracker.flush();
+
+		// Tag 2 is still in flight so only tag 1 can be acked
+		verify(mockChannel).basicAck(1, true);
+
+		ackTracker.ack(second);
+		ackTracker.flush();
+		verify(mockChannel).basicAck(3, true);
+		verify(mockChannel, times(2)).basicAck(anyLong(), anyBoolean());
+	}
+
+	@Test
+	public void nackSettlesDelivery() throws Exception {
+		ackTracker.ack(deliver(1));
+		ackTracker.nack(deliver(2), true);
+		ackTracker.ack(deliver(3));
+		ackTracker.flush();
+
+		verify(mockChannel).basicNack(2, false, true);
+		verify(mockChannel).basicAck(3, true);
+		verify(mockChannel, times(1)).basicAck(anyLong(), anyBoolean());
+	}
+
+	@Test
+	public void sendFullBatchOnOwningThread() throws Exception {
+		ackTracker.setBatchSize(10);
+		for (long tag = 1; tag <= 10; tag++) {
+			ackTracker.ack(deliver(tag));
+		}
+		verify(mockChannel, never()).basicAck(anyLong(), anyBoolean());
+
+		// Drained when the consumer registers its next delivery
+		deliver(11);
+		verify(mockChannel).basicAck(10, true);
+	}
+
+	@Test
+	public void abandonClosedChannel() throws Exception {
+		ackTracker.ack(deliver(1));
+		ackTracker.ack(deliver(2));
+		doThrow(new RuntimeException("closed")).when(mockChannel).basicAck(2, true);
+		ackTracker.flush();
+		assertEquals(2, ackTracker.getAbandonedCount());
+
+		// Later settlements for the channel are dropped
+		when(mockChannel.isOpen()).thenReturn(false);
+		ackTracker.ack(new DeliveryFrame(3, mockChannel));
+		ackTracker.flush();
+		verify(mockChannel, times(1)).basicAck(anyLong(), anyBoolean());
+	}
+
+	@Test
+	public void closeChannelOnError() throws Exception {
+		ackTracker.ack(deliver(1));
+		doThrow(new IOException()).when(mockChannel).basicAck(1, true);
+		ackTracker.flush();
+
+		verify(mockChannel).abort();
+		assertEquals(1, ackTracker.getAbandonedCount());
+	}
+
+	@Test
+	public void ignoreStaleTagsAfterReconnect() throws Exception {
+		Channel first = mock(Channel.class);
+		when(first.isOpen()).thenReturn(true);
+		Channel second = mock(Channel.class);
+		when(second.isOpen()).thenReturn(true);
+		ChannelProxy proxy = mock(ChannelProxy.class);
+		when(proxy.getTargetChannel()).thenReturn(first);
+
+		DeliveryFrame stale = new DeliveryFrame(5, AckTracker.targetChannel(proxy));
+		ackTracker.register(stale);
+
+		// The proxy reconnects and the new channel restarts its tags
+		when(first.isOpen()).thenReturn(false);
+		when(proxy.getTargetChannel()).thenReturn(second);
+		DeliveryFrame current = new DeliveryFrame(1, AckTracker.targetChannel(proxy));
+		ackTracker.register(current);
+
+		ackTracker.ack(stale);
+		ackTracker.ack(current);
+		ackTracker.flush();
+
+		verify(first, never()).basicAck(anyLong(), anyBoolean());
+		verify(second).basicAck(1, true);
+		verify(second, never()).basicAck(5, true);
+	}
+
+	@Test
+	public void ackImmediatelyWhenNotStarted() throws Exception {
+		AckTracker unstarted = new AckTracker();
+		DeliveryFrame deliveryFrame = new DeliveryFrame(7, mockChannel);
+		unstarted.register(deliveryFrame);
+		unstarted.ack(deliveryFrame);
+
+		verify(mockChannel).basicAck(7, false);
+	}
+}
@@ -0,0 +1,148 @@
+/**
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as
+ *  published by the Free Software Foundation, either version 3 of the
+ *  License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.ushahidi.swiftriver.core.dropqueue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonParseException;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+
+import com.ushahidi.swiftriver.core.dropqueue.support.DropFingerprint;
+
+public class DropDeduplicatorTest {
+
+	private DropDeduplicator dropDeduplicator;
+
+	@Before
+	public void setup() {
+		dropDeduplicator = new DropDeduplicator();
+		dropDeduplicator.setCapacity(16);
+		dropDeduplicator.setWindow(1000);
+	}
+
+	private Message message(String body) throws Exception {
+		return new Message(body.getBytes("UTF-8"), new MessageProperties());
+	}
+
+	private DropFingerprint fingerprint(String originalId) throws Exception {
+		return DropFingerprint.read(new JsonFactory(), message("{\"channel\": \"twitter\","
+				+ " \"droplet_orig_id\": \"" + originalId + "\"}"), false);
+	}
+
+	@Test
+	public void dropCopies() throws Exception {
+		String body = "{\"channel\": \"twitter\", \"droplet_orig_id\": \"42\","
+				+ " \"droplet_title\": \"title\", \"river_id\": [2]}";
+
+		assertFalse(dropDeduplicator.isDuplicate(message(body)));
+		assertTrue(dropDeduplicator.isDuplicate(message(body)));
+		// Field order and fields outside the identity make no difference
+		assertTrue(dropDeduplicator.isDuplicate(message("{\"river_id\": [2],"
+				+ " \"links\": [{\"url\": \"http://example.com\"}],"
+				+ " \"droplet_orig_id\": \"42\", \"droplet_title\": \"edited\","
+				+ " \"channel\": \"twitter\"}")));
+		assertEquals(3, dropDeduplicator.getCheckedCount());
+		assertEquals(2, dropDeduplicator.getDuplicateCount());
+		assertEquals(1, dropDeduplicator.size());
+	}
+
+	@Test
+	public void keepDistinctDrops() throws Exception {
+		assertFalse(dropDeduplicator.isDuplicate(message(
+				"{\"channel\": \"twitter\", \"droplet_orig_id\": \"42\", \"river_id\": [2]}")));
+		assertFalse(dropDeduplicator.isDuplicate(message(
+				"{\"channel\": \"rss\", \"droplet_orig_id\": \"42\", \"river_id\": [2]}")));
+		assertFalse(dropDeduplicator.isDuplicate(message(
+				"{\"channel\": \"twitter\", \"droplet_orig_id\": \"42\", \"river_id\": [3]}")));
+		assertFalse(dropDeduplicator.isDuplicate(message(
+				"{\"channel\": \"twitter\", \"droplet_orig_id\": \"43\", \"river_id\": [2]}")));
+
+		// Without an original ID there is nothing to go by
+		assertFalse(dropDeduplicator.isDuplicate(message("{\"channel\": \"twitter\"}")));
+		assertFalse(dropDeduplicator.isDuplicate(message("{\"channel\": \"twitter\"}")));
+		assertEquals(0, dropDeduplicator.getDuplicateCount());
+	}
+
+	@Test
+	public void keepEditedDropsWithContentHash() throws Exception {
+		dropDeduplicator.setHashContent(true);
+
+		assertFalse(dropDeduplicator.isDuplicate(message(
+				"{\"droplet_orig_id\": \"42\", \"droplet_content\": \"first\"}")));
+		assertFalse(dropDeduplicator.isDuplicate(message(
+				"{\"droplet_orig_id\": \"42\", \"droplet_content\": \"second\"}")));
+		assertTrue(dropDeduplicator.isDuplicate(message(
+				"{\"droplet_orig_id\": \"42\", \"droplet_content\": \"first\"}")));
+	}
+
+	@Test
+	public void passRedeliveredDrops() throws Exception {
+		String body = "{\"channel\": \"twitter\", \"droplet_orig_id\": \"42\"}";
+		assertFalse(dropDeduplicator.isDuplicate(message(body)));
+
+		Message redelivered = message(body);
+		redelivered.getMessageProperties().setRedelivered(true);
+		assertFalse(dropDeduplicator.isDuplicate(redelivered));
+	}
+
+	@Test
+	public void forgetDropsOutsideWindow() throws Exception {
+		assertFalse(dropDeduplicator.isDuplicate(fingerprint("1"), 0));
+		assertFalse(dropDeduplicator.isDuplicate(fingerprint("2"), 500));
+		assertTrue(dropDeduplicator.isDuplicate(fingerprint("1"), 999));
+
+		assertFalse(dropDeduplicator.isDuplicate(fingerprint("1"), 1001));
+		assertTrue(dropDeduplicator.isDuplicate(fingerprint("2"), 1001));
+	}
+
+	@Test
+	public void forgetOldestDropsAtCapacity() throws Exception {
+		for (int i = 0; i < 1000; i++) {
+			dropDeduplicator.isDuplicate(fingerprint(Integer.toString(i)), 0);
+		}
+
+		assertTrue(dropDeduplicator.size() <= 16);
+		assertTrue(dropDeduplicator.isDuplicate(fingerprint("999"), 0));
+		assertFalse(dropDeduplicator.isDuplicate(fingerprint("0"), 0));
+	}
+
+	@Test
+	public void disabledByDefault() throws Exception {
+		dropDeduplicator = new DropDeduplicator();
+		String body = "{\"channel\": \"twitter\", \"droplet_orig_id\": \"42\"}";
+
+		assertFalse(dropDeduplicator.isDuplicate(message(body)));
+		assertFalse(dropDeduplicator.isDuplicate(message(body)));
+		assertEquals(0, dropDeduplicator.getCheckedCount());
+	}
+
+	@Test(expected = JsonParseException.class)
+	public void rejectMalformedDrop() throws Exception {
+		dropDeduplicator.isDuplicate(message("[\"droplet_orig_id\"]"));
+	}
+
+	@Test
+	public void noFingerprintWithoutOriginalId() throws Exception {
+		assertNull(DropFingerprint.read(new JsonFactory(),
+				message("{\"droplet_orig_id\": null}"), true));
+	}
+}
@@ -0,0 +1,170 @@
+/**
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as
+ *  published by the Free Software Foundation, either version 3 of the
+ *  License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.ushahidi.swiftriver.core.dropqueue;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.amqp.rabbit.connection.Connection;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.amqp.support.converter.JsonMessageConverter;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+import com.ushahidi.swiftriver.core.dropqueue.model.RawDrop;
+
+public class DropFilterPublisherTest {
+
+	private InFlightDropStore inFlightDropStore;
+
+	private List<InFlightDrop> scheduled;
+
+	private CountDownLatch allScheduled;
+
+	private Connection mockConnection;
+
+	private LinkedBlockingQueue<InFlightDrop> dropFilterQueue;
+
+	private DropFilterPublisher dropFilterPublisher;
+
+	private Stage rules;
+
+	private List<InFlightDrop> inFlightDrops;
+
+	@Before
+	public void setup() throws Exception {
+		inFlightDropStore = new InFlightDropStore(100);
+		scheduled = new ArrayList<InFlightDrop>();
+		allScheduled = new CountDownLatch(100);
+		ConnectionFactory mockConnectionFactory = mock(ConnectionFactory.class);
+		mockConnection = mock(Connection.class);
+		when(mockConnectionFactory.createConnection()).thenReturn(mockConnection);
+		when(mockConnection.createChannel(false)).thenAnswer(new Answer<Channel>() {
+			public Channel answer(InvocationOnMock invocation) throws Throwable {
+				return confirmingChannel();
+			}
+		});
+
+		dropFilterQueue = new LinkedBlockingQueue<InFlightDrop>();
+		dropFilterPublisher = new DropFilterPublisher();
+		dropFilterPublisher.setDropFilterQueue(dropFilterQueue);
+		dropFilterPublisher.setConnectionFactory(mockConnectionFactory);
+		dropFilterPublisher.setMessageConverter(new JsonMessageConverter());
+		dropFilterPublisher.setCallbackQueueName("callback");
+		dropFilterPublisher.setInFlightDropStore(inFlightDropStore);
+		dropFilterPublisher.setInFlightDropExpiry(new InFlightDropExpiry() {
+			public void schedule(InFlightDrop inFlightDrop, Stage stage) {
+				assertSame(rules, stage);
+				synchronized (scheduled) {
+					scheduled.add(inFlightDrop);
+				}
+				allScheduled.countDown();
+			}
+		});
+		dropFilterPublisher.setDispatchers(2);
+		dropFilterPublisher.setBatchSize(10);
+
+		Stage media = new Stage("media", "mediaextractor", "media", "links");
+		Stage semantics = new Stage("semantics", "semantics", "tags", "places");
+		rules = new Stage("rules", "rules", "bucket_id", "river_id", "mark_as_read");
+		rules.setPublisher(dropFilterPublisher);
+		rules.setDependsOn(Arrays.asList(media, semantics));
+		new Pipeline(media, semantics, rules);
+
+		inFlightDrops = new ArrayList<InFlightDrop>();
+		for (int i = 0; i < 100; i++) {
+			InFlightDrop inFlightDrop = inFlightDropStore.register(new RawDrop(),
+					new DeliveryFrame(i, mock(Channel.class)));
+			inFlightDrop.complete(media);
+			inFlightDrop.complete(semantics);
+			inFlightDrops.add(inFlightDrop);
+		}
+	}
+
+	/**
+	 * A channel that confirms each message as soon as it is published
+	 */
+	private Channel confirmingChannel() throws Exception {
+		final Channel channel = mock(Channel.class);
+		final long[] seqNo = {1};
+		final List<ConfirmListener> listeners = new ArrayList<ConfirmListener>();
+
+		when(channel.isOpen()).thenReturn(true);
+		when(channel.getNextPublishSeqNo()).thenAnswer(new Answer<Long>() {
+			public Long answer(InvocationOnMock invocation) {
+				return seqNo[0];
+			}
+		});
+		doAnswer(new Answer<Void>() {
+			public Void answer(InvocationOnMock invocation) {
+				listeners.add((ConfirmListener) invocation.getArguments()[0]);
+				return null;
+			}
+		}).when(channel).addConfirmListener(any(ConfirmListener.class));
+		doAnswer(new Answer<Void>() {
+			public Void answer(InvocationOnMock invocation) throws Throwable {
+				for (ConfirmListener listener : listeners) {
+					listener.handleAck(seqNo[0], false);
+				}
+				seqNo[0]++;
+				return null;
+			}
+		}).when(channel).basicPublish(eq("dropFilter"), eq(""),
+				any(BasicProperties.class), any(byte[].class));
+		return channel;
+	}
+
+	@Test
+	public void publishFromDispatcherPool() throws Exception {
+		dropFilterPublisher.start();
+		dropFilterQueue.addAll(inFlightDrops);
+
+		assertTrue(allScheduled.await(1, TimeUnit.SECONDS));
+		assertEquals(new HashSet<InFlightDrop>(inFlightDrops), new HashSet<InFlightDrop>(scheduled));
+		verify(mockConnection, times(2)).createChannel(false);
+		assertEquals(0, dropFilterPublisher.getQueueDepth());
+		assertEquals(0, dropFilterPublisher.getOutstanding());
+		assertEquals(100, dropFilterPublisher.getPublishLatency().getCount());
+		assertTrue(dropFilterPublisher.getBatchSizes().getMax() <= 10);
+
+		dropFilterPublisher.shutdown();
+	}
+
+	@Test
+	public void shutdownDrainsQueue() throws Exception {
+		dropFilterQueue.addAll(inFlightDrops);
+		assertEquals(100, dropFilterPublisher.getQueueDepth());
+
+		dropFilterPublisher.start();
+		dropFilterPublisher.shutdown();
+
+		assertEquals(0, dropFilterPublisher.getQueueDepth());
+		assertEquals(100, scheduled.size());
+	}
+}
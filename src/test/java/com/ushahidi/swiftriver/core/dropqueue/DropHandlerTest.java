@@ -18,57 +18,75 @@ import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.codehaus.jackson.JsonParseException;
 import org.codehaus.jackson.map.JsonMappingException;
 import org.codehaus.jackson.map.ObjectMapper;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
-import org.mockito.ArgumentCaptor;
-import org.springframework.amqp.core.AmqpTemplate;
+import org.junit.rules.TemporaryFolder;
 import org.springframework.amqp.core.Message;
-import org.springframework.amqp.core.MessagePostProcessor;
-import org.springframework.amqp.core.Queue;
 import org.springframework.amqp.core.MessageProperties;
 
 import com.rabbitmq.client.Channel;
 import com.ushahidi.swiftriver.core.dropqueue.model.RawDrop;
+import com.ushahidi.swiftriver.core.dropqueue.support.RawDropDecoder;
+import com.ushahidi.swiftriver.core.dropqueue.support.SlabAllocator;
 
 public class DropHandlerTest {
 
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
 	private ObjectMapper objectMapper = new ObjectMapper();
 
-	private AmqpTemplate mockAmqpTemplate;
+	private MetadataPublisher mockMetadataPublisher;
+
+	private InFlightDropStore inFlightDropStore;
 
-	private Map<String, RawDrop> dropsMap;
+	private Stage media;
 
-	private Queue mockCallbackQueue;
+	private Stage semantics;
+
+	private Stage rules;
 
 	private DropHandler dropHandler;
-	
-	private Map<String, DeliveryFrame> deliveryFramesMap;
 
 	@Before
 	public void setup() {
-		mockAmqpTemplate = mock(AmqpTemplate.class);
-		dropsMap = new HashMap<String, RawDrop>();
-		mockCallbackQueue = mock(Queue.class);
-		deliveryFramesMap = new ConcurrentHashMap<String, DeliveryFrame>();
+		mockMetadataPublisher = mock(MetadataPublisher.class);
+		inFlightDropStore = new InFlightDropStore(1000);
+
+		media = new Stage("media", "mediaextractor", "media", "links");
+		media.setPublisher(mockMetadataPublisher);
+		semantics = new Stage("semantics", "semantics", "tags", "places");
+		semantics.setPublisher(mockMetadataPublisher);
+		rules = new Stage("rules", "rules", "bucket_id", "river_id", "mark_as_read");
+		rules.setPublisher(mock(DropFilterPublisher.class));
+		rules.setDependsOn(Arrays.asList(media, semantics));
+		
+		Pipeline pipeline = new Pipeline(media, semantics, rules);
+		inFlightDropStore.setPipeline(pipeline);
 		
 		dropHandler = new DropHandler();
-		dropHandler.setAmqpTemplate(mockAmqpTemplate);
-		dropHandler.setCallbackQueue(mockCallbackQueue);
-		dropHandler.setDropsMap(dropsMap);
-		dropHandler.setObjectMapper(objectMapper);
-		dropHandler.setDeliveryFramesMap(deliveryFramesMap);
+		dropHandler.setPipeline(pipeline);
+		dropHandler.setInFlightDropStore(inFlightDropStore);
+		dropHandler.setDropDecoder(new RawDropDecoder(objectMapper));
 	}
 
 	@Test
 	public void onMessage() throws JsonParseException, JsonMappingException,
-			IOException {
+			IOException, InterruptedException {
 		Message mockMessage = mock(Message.class);
 		MessageProperties mockMessageProperties = mock(MessageProperties.class);
 		Channel mockChannel = mock(Channel.class);
@@ -77,26 +95,138 @@ public class DropHandlerTest {
 		when(mockMessage.getBody()).thenReturn(body.getBytes());
 		when(mockMessage.getMessageProperties()).thenReturn(mockMessageProperties);
 		when(mockMessageProperties.getDeliveryTag()).thenReturn(22L);
-		when(mockCallbackQueue.getName()).thenReturn("callback");
 		
 		dropHandler.onMessage(mockMessage, mockChannel);
 
-		assertTrue(dropsMap.size() > 0);
-		assertTrue(deliveryFramesMap.size() > 0);
-		String correlationId = (String)dropsMap.keySet().toArray()[0];
+		assertEquals(1, inFlightDropStore.size());
+		InFlightDrop inFlightDrop = inFlightDropStore.get(1);
+		assertEquals(22L, inFlightDrop.getDeliveryFrame().getDeliveryTag());
+		assertEquals(mockChannel, inFlightDrop.getDeliveryFrame().getChannel());
 		
-		ArgumentCaptor<RawDrop> dropArgument = ArgumentCaptor
-				.forClass(RawDrop.class);
-		ArgumentCaptor<MessagePostProcessor> processorArgument = ArgumentCaptor
-				.forClass(MessagePostProcessor.class);
-		verify(mockAmqpTemplate).convertAndSend(dropArgument.capture(), processorArgument.capture());
-		RawDrop drop = dropArgument.getValue();
-		assertTrue(dropsMap.containsValue(drop));
-		assertEquals("Antibiotic resistance 'threat to UK'", drop.getTitle());
-		
-		MessagePostProcessor postProcessor = processorArgument.getValue();
-		postProcessor.postProcessMessage(mockMessage);
-		verify(mockMessageProperties).setReplyTo("callback");
-		verify(mockMessageProperties).setCorrelationId(correlationId.getBytes());
+		assertEquals("Antibiotic resistance 'threat to UK'", inFlightDrop.getDrop().getTitle());
+		verify(mockMetadataPublisher).publish(inFlightDrop);
+	}
+	
+	@Test
+	public void onMessageKeepsDropCompact() throws Exception {
+		inFlightDropStore.setSlabAllocator(new SlabAllocator(1 << 20, 4096));
+		inFlightDropStore.setDropDecoder(new RawDropDecoder(objectMapper));
+		String body = "{\"droplet_title\": \"title\", \"channel\": \"twitter\", \"river_id\": [2]}";
+
+		dropHandler.onMessage(new Message(body.getBytes("UTF-8"), new MessageProperties()),
+				mock(Channel.class));
+
+		InFlightDrop inFlightDrop = inFlightDropStore.get(1);
+		assertNotNull(inFlightDrop.getRecord());
+		assertEquals("title", inFlightDropStore.getDrop(inFlightDrop).getTitle());
+		verify(mockMetadataPublisher).publish(inFlightDrop);
+	}
+
+	@Test
+	public void onMessageAcksCopyOfRecentDrop() throws Exception {
+		DropDeduplicator dropDeduplicator = new DropDeduplicator();
+		dropDeduplicator.setCapacity(100);
+		dropHandler.setDropDeduplicator(dropDeduplicator);
+		Channel mockChannel = mock(Channel.class);
+		String body = "{\"droplet_orig_id\": \"42\", \"channel\": \"twitter\", \"river_id\": [2]}";
+
+		for (long deliveryTag = 1; deliveryTag <= 2; deliveryTag++) {
+			MessageProperties messageProperties = new MessageProperties();
+			messageProperties.setDeliveryTag(deliveryTag);
+			dropHandler.onMessage(new Message(body.getBytes(), messageProperties), mockChannel);
+		}
+
+		assertEquals(1, inFlightDropStore.size());
+		verify(mockMetadataPublisher, times(1)).publish(any(InFlightDrop.class));
+		verify(mockChannel).basicAck(2, false);
+		assertEquals(1, dropDeduplicator.getDuplicateCount());
+	}
+
+	@Test(expected = JsonParseException.class)
+	public void onMessageRejectsMalformedCompactDrop() throws Exception {
+		inFlightDropStore.setSlabAllocator(new SlabAllocator(1 << 20, 4096));
+
+		try {
+			dropHandler.onMessage(new Message("{\"droplet_title\": ".getBytes("UTF-8"),
+					new MessageProperties()), mock(Channel.class));
+		} finally {
+			assertEquals(0, inFlightDropStore.size());
+		}
+	}
+
+	@Test
+	public void onMessageResumesJournalledDrop() throws Exception {
+		RawDropDecoder dropDecoder = new RawDropDecoder(objectMapper);
+		DropJournal dropJournal = new DropJournal();
+		dropJournal.setDirectory(folder.getRoot().getPath());
+		dropJournal.setObjectMapper(objectMapper);
+		dropJournal.setDropDecoder(dropDecoder);
+		dropJournal.setInFlightDropStore(inFlightDropStore);
+		dropJournal.open();
+
+		String body = "{\"droplet_title\": \"title\", \"channel\": \"twitter\", \"river_id\": [2]}";
+		dropJournal.registered(40, body.getBytes());
+		dropJournal.merged(40, media, new RawDrop());
+		dropJournal.merged(40, semantics, dropDecoder.decode(ByteBuffer.wrap(
+				"{\"places\": [{\"place_name\": \"Nairobi\"}]}".getBytes())));
+		dropJournal.close();
+		dropJournal.open();
+
+		MetadataResponseHandler mockMetadataResponseHandler = mock(MetadataResponseHandler.class);
+		dropHandler.setDropJournal(dropJournal);
+		dropHandler.setMetadataResponseHandler(mockMetadataResponseHandler);
+		try {
+			dropHandler.onMessage(new Message(body.getBytes(), new MessageProperties()),
+					mock(Channel.class));
+		} finally {
+			dropJournal.close();
+		}
+
+		// Goes straight on to the rules stage
+		InFlightDrop inFlightDrop = inFlightDropStore.get(40);
+		assertTrue(inFlightDrop.isComplete(media));
+		assertTrue(inFlightDrop.isComplete(semantics));
+		assertEquals("title", inFlightDrop.getDrop().getTitle());
+		assertEquals(1, inFlightDrop.getDrop().getPlaces().size());
+		verify(mockMetadataResponseHandler).advance(inFlightDrop, rules.mask());
+		verify(mockMetadataPublisher, never()).publish(any(InFlightDrop.class));
+	}
+
+	@Test
+	public void onMessageFromConcurrentConsumers() throws Exception {
+		final int numConsumers = 8;
+		final int dropsPerConsumer = 50;
+		final Channel mockChannel = mock(Channel.class);
+		final String body = "{\"droplet_title\": \"title\", \"channel\": \"twitter\", \"river_id\": [2]}";
+
+		final CountDownLatch startSignal = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(numConsumers);
+		List<Future<Void>> results = new ArrayList<Future<Void>>();
+		for (int i = 0; i < numConsumers; i++) {
+			final long firstTag = i * dropsPerConsumer;
+			results.add(executor.submit(new Callable<Void>() {
+				public Void call() throws Exception {
+					startSignal.await();
+					for (int j = 0; j < dropsPerConsumer; j++) {
+						MessageProperties messageProperties = new MessageProperties();
+						messageProperties.setDeliveryTag(firstTag + j);
+						dropHandler.onMessage(new Message(body.getBytes(), messageProperties), mockChannel);
+					}
+					return null;
+				}
+			}));
+		}
+		startSignal.countDown();
+		for (Future<Void> result : results) {
+			result.get();
+		}
+		executor.shutdown();
+
+		int total = numConsumers * dropsPerConsumer;
+		assertEquals(total, inFlightDropStore.size());
+		for (int id = 1; id <= total; id++) {
+			assertNotNull(inFlightDropStore.get(id));
+		}
+		verify(mockMetadataPublisher, times(total)).publish(any(InFlightDrop.class));
 	}
 }
@@ -0,0 +1,177 @@
+/**
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as
+ *  published by the Free Software Foundation, either version 3 of the
+ *  License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.ushahidi.swiftriver.core.dropqueue;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.ushahidi.swiftriver.core.dropqueue.model.RawDrop;
+import com.ushahidi.swiftriver.core.dropqueue.support.RawDropDecoder;
+
+public class DropJournalTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private ObjectMapper objectMapper = new ObjectMapper();
+
+	private RawDropDecoder dropDecoder = new RawDropDecoder(objectMapper);
+
+	private InFlightDropStore inFlightDropStore;
+
+	private LinkedBlockingQueue<RawDrop> publishQueue;
+
+	private DropJournal dropJournal;
+
+	private Stage media = new Stage("media", "mediaextractor", "media", "links");
+
+	private Stage semantics = new Stage("semantics", "semantics", "tags", "places");
+
+	private Stage rules = new Stage("rules", "rules", "bucket_id", "river_id", "mark_as_read");
+
+	private byte[] body = "{\"droplet_title\": \"title\", \"river_id\": [2]}".getBytes();
+
+	@Before
+	public void setup() throws Exception {
+		new Pipeline(media, semantics, rules);
+		dropJournal = open();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		dropJournal.close();
+	}
+
+	private DropJournal open() throws Exception {
+		inFlightDropStore = new InFlightDropStore(10);
+		publishQueue = new LinkedBlockingQueue<RawDrop>();
+
+		DropJournal journal = new DropJournal();
+		journal.setDirectory(folder.getRoot().getPath());
+		journal.setObjectMapper(objectMapper);
+		journal.setDropDecoder(dropDecoder);
+		journal.setInFlightDropStore(inFlightDropStore);
+		journal.setPublishQueue(publishQueue);
+		journal.open();
+		return journal;
+	}
+
+	private DropJournal reopen() throws Exception {
+		dropJournal.close();
+		dropJournal = open();
+		return dropJournal;
+	}
+
+	private RawDrop decode(String json) throws Exception {
+		return dropDecoder.decode(ByteBuffer.wrap(json.getBytes()));
+	}
+
+	@Test
+	public void claimRedeliveredDrop() throws Exception {
+		dropJournal.registered(5, body);
+		dropJournal.merged(5, semantics,
+				decode("{\"source\": \"semantics\", \"tags\": [{\"tag_name\": \"Nairobi\", \"tag_type\": \"place\"}]}"));
+		dropJournal.registered(6, "{}".getBytes());
+		dropJournal.removed(6);
+
+		reopen();
+		assertEquals(1, dropJournal.getRecoveredCount());
+		assertNull(dropJournal.claim("{}".getBytes()));
+
+		DropJournal.Recovered recovered = dropJournal.claim(body);
+		assertEquals(5, recovered.getId());
+		assertNull(recovered.getUpdate(media));
+		assertEquals("Nairobi", recovered.getUpdate(semantics).getTags().get(0).getName());
+		assertNull(dropJournal.claim(body));
+
+		// Correlation IDs carry on after the journalled ones
+		assertEquals(7, inFlightDropStore.register(new RawDrop(), null).getId());
+	}
+
+	@Test
+	public void keepRepliesForDropsNotYetRedelivered() throws Exception {
+		dropJournal.registered(5, body);
+
+		reopen();
+		assertFalse(dropJournal.mergeRecovered(6, rules, new RawDrop()));
+		assertTrue(dropJournal.mergeRecovered(5, rules,
+				decode("{\"source\": \"rules\", \"river_id\": [4]}")));
+
+		// Kept across another restart too
+		reopen();
+		DropJournal.Recovered recovered = dropJournal.claim(body);
+		assertEquals(Arrays.asList(4L), recovered.getUpdate(rules).getRiverIds());
+		assertFalse(dropJournal.mergeRecovered(5, media, new RawDrop()));
+	}
+
+	@Test
+	public void postAckedCompletedDrop() throws Exception {
+		RawDrop drop = decode("{\"droplet_title\": \"title\", \"river_id\": [2]}");
+		drop.setCorrelationId(3);
+		dropJournal.registered(3, body);
+		dropJournal.completed(drop, true);
+
+		reopen();
+		RawDrop queued = publishQueue.poll(1, TimeUnit.SECONDS);
+		assertEquals("title", queued.getTitle());
+		assertEquals(Arrays.asList(2L), queued.getRiverIds());
+		assertEquals(3, queued.getCorrelationId());
+		assertEquals(0, dropJournal.getRecoveredCount());
+
+		// Posted
+		dropJournal.removed(3);
+		reopen();
+		assertNull(publishQueue.poll(100, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void forgetUnclaimedDrops() throws Exception {
+		dropJournal.registered(1, body);
+		dropJournal.close();
+
+		dropJournal = new DropJournal();
+		dropJournal.setDirectory(folder.getRoot().getPath());
+		dropJournal.setDropDecoder(dropDecoder);
+		dropJournal.setInFlightDropStore(inFlightDropStore);
+		dropJournal.setRecoveryTimeout(10);
+		dropJournal.open();
+		Thread.sleep(200);
+		assertEquals(0, dropJournal.getRecoveredCount());
+
+		reopen();
+		assertEquals(0, dropJournal.getRecoveredCount());
+	}
+
+	@Test
+	public void disabledWithoutDirectory() throws Exception {
+		DropJournal disabled = new DropJournal();
+		disabled.open();
+		assertFalse(disabled.isOpen());
+		disabled.registered(1, body);
+		assertNull(disabled.claim(body));
+		disabled.close();
+	}
+}
@@ -0,0 +1,187 @@
+/**
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as
+ *  published by the Free Software Foundation, either version 3 of the
+ *  License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.ushahidi.swiftriver.core.dropqueue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.rabbitmq.client.Channel;
+import com.ushahidi.swiftriver.core.dropqueue.InFlightDropExpiry.ExpiryAction;
+import com.ushahidi.swiftriver.core.dropqueue.model.RawDrop;
+
+public class InFlightDropExpiryTest {
+
+	private InFlightDropStore inFlightDropStore;
+
+	private BlockingQueue<RawDrop> publishQueue;
+
+	private BlockingQueue<InFlightDrop> metadataQueue;
+
+	private BlockingQueue<InFlightDrop> dropFilterQueue;
+
+	private Channel mockChannel;
+
+	private Stage media;
+
+	private Stage semantics;
+
+	private Stage rules;
+
+	private InFlightDropExpiry inFlightDropExpiry;
+
+	private InFlightDrop inFlightDrop;
+
+	@Before
+	public void setup() throws Exception {
+		inFlightDropStore = new InFlightDropStore(10);
+		publishQueue = new LinkedBlockingQueue<RawDrop>();
+		metadataQueue = new LinkedBlockingQueue<InFlightDrop>();
+		dropFilterQueue = new LinkedBlockingQueue<InFlightDrop>();
+		mockChannel = mock(Channel.class);
+
+		MetadataPublisher metadataPublisher = new MetadataPublisher();
+		metadataPublisher.setMetadataQueue(metadataQueue);
+		DropFilterPublisher dropFilterPublisher = new DropFilterPublisher();
+		dropFilterPublisher.setDropFilterQueue(dropFilterQueue);
+
+		media = new Stage("media", "mediaextractor", "media", "links");
+		media.setPublisher(metadataPublisher);
+		semantics = new Stage("semantics", "semantics", "tags", "places");
+		semantics.setPublisher(metadataPublisher);
+		rules = new Stage("rules", "rules", "bucket_id", "river_id", "mark_as_read");
+		rules.setPublisher(dropFilterPublisher);
+		rules.setDependsOn(Arrays.asList(media, semantics));
+
+		MetadataResponseHandler metadataResponseHandler = new MetadataResponseHandler();
+		metadataResponseHandler.setInFlightDropStore(inFlightDropStore);
+		metadataResponseHandler.setPublishQueue(publishQueue);
+		metadataResponseHandler.setPipeline(new Pipeline(media, semantics, rules));
+
+		inFlightDropExpiry = new InFlightDropExpiry();
+		inFlightDropExpiry.setInFlightDropStore(inFlightDropStore);
+		inFlightDropExpiry.setMetadataResponseHandler(metadataResponseHandler);
+		inFlightDropExpiry.setMaxAttempts(1);
+
+		RawDrop drop = new RawDrop();
+		List<Long> riverIds = new ArrayList<Long>();
+		riverIds.add(2L);
+		drop.setRiverIds(riverIds);
+		inFlightDrop = inFlightDropStore.register(drop, new DeliveryFrame(22, mockChannel));
+	}
+
+	@Test
+	public void nackRequeue() throws Exception {
+		inFlightDropExpiry.setExpiryAction(ExpiryAction.NACK_REQUEUE);
+
+		inFlightDropExpiry.expire(inFlightDrop.getId(), media, 0);
+
+		assertNull(inFlightDropStore.get(inFlightDrop.getId()));
+		verify(mockChannel).basicNack(22, false, true);
+		assertEquals(1, inFlightDropExpiry.getExpiredCount(media));
+	}
+
+	@Test
+	public void republishMetadata() throws Exception {
+		inFlightDrop.complete(media);
+
+		inFlightDropExpiry.expire(inFlightDrop.getId(), semantics, 0);
+
+		assertSame(inFlightDrop, metadataQueue.poll());
+		assertEquals(1, inFlightDrop.getExpiryAttempts(semantics));
+		assertEquals(0, inFlightDrop.getExpiryAttempts(media));
+		assertEquals(0, inFlightDropExpiry.getExpiredCount(media));
+		assertEquals(1, inFlightDropExpiry.getExpiredCount(semantics));
+
+		// Timeouts from before the retry are ignored
+		inFlightDropExpiry.expire(inFlightDrop.getId(), semantics, 0);
+		assertEquals(1, inFlightDropExpiry.getExpiredCount(semantics));
+	}
+
+	@Test
+	public void republishRules() throws Exception {
+		inFlightDrop.complete(media);
+		inFlightDrop.complete(semantics);
+
+		inFlightDropExpiry.expire(inFlightDrop.getId(), rules, 0);
+
+		assertSame(inFlightDrop, dropFilterQueue.poll());
+		assertEquals(1, inFlightDropExpiry.getExpiredCount(rules));
+	}
+
+	@Test
+	public void republishFallsBackToPartial() throws Exception {
+		inFlightDrop.complete(media);
+		inFlightDrop.complete(semantics);
+		inFlightDrop.setExpiryAttempts(rules, 1);
+
+		inFlightDropExpiry.expire(inFlightDrop.getId(), rules, 1);
+
+		assertTrue(publishQueue.contains(inFlightDrop.getDrop()));
+		assertNull(inFlightDropStore.get(inFlightDrop.getId()));
+		verify(mockChannel).basicAck(22, false);
+	}
+
+	@Test
+	public void republishEachStageInTurn() throws Exception {
+		inFlightDrop.complete(media);
+
+		inFlightDropExpiry.expire(inFlightDrop.getId(), semantics, 0);
+		assertSame(inFlightDrop, metadataQueue.poll());
+
+		// The retry of semantics does not use up the attempts of rules
+		inFlightDrop.complete(semantics);
+		inFlightDropExpiry.expire(inFlightDrop.getId(), rules, 0);
+
+		assertSame(inFlightDrop, dropFilterQueue.poll());
+		assertTrue(publishQueue.isEmpty());
+		assertEquals(1, inFlightDrop.getExpiryAttempts(rules));
+		assertEquals(1, inFlightDropExpiry.getExpiredCount(rules));
+	}
+
+	@Test
+	public void publishPartial() throws Exception {
+		inFlightDropExpiry.setExpiryAction(ExpiryAction.PUBLISH_PARTIAL);
+		inFlightDrop.complete(semantics);
+
+		inFlightDropExpiry.expire(inFlightDrop.getId(), media, 0);
+
+		assertTrue(inFlightDrop.isComplete(media));
+		assertSame(inFlightDrop, dropFilterQueue.poll());
+		assertEquals(1, inFlightDropExpiry.getExpiredCount(media));
+	}
+
+	@Test
+	public void ignoreCompletedStage() throws Exception {
+		inFlightDrop.complete(media);
+
+		inFlightDropExpiry.expire(inFlightDrop.getId(), media, 0);
+
+		assertTrue(metadataQueue.isEmpty());
+		assertEquals(0, inFlightDropExpiry.getExpiredCount(media));
+	}
+}
@@ -0,0 +1,141 @@
+/**
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as
+ *  published by the Free Software Foundation, either version 3 of the
+ *  License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.ushahidi.swiftriver.core.dropqueue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ushahidi.swiftriver.core.dropqueue.model.RawDrop;
+import com.ushahidi.swiftriver.core.dropqueue.support.RawDropDecoder;
+import com.ushahidi.swiftriver.core.dropqueue.support.SequenceIdGenerator;
+import com.ushahidi.swiftriver.core.dropqueue.support.SlabAllocator;
+
+public class InFlightDropStoreTest {
+
+	private InFlightDropStore inFlightDropStore;
+
+	@Before
+	public void setup() {
+		inFlightDropStore = new InFlightDropStore(4);
+	}
+
+	@Test
+	public void registerAndRemove() throws Exception {
+		RawDrop drop = new RawDrop();
+		DeliveryFrame deliveryFrame = new DeliveryFrame(22, null);
+
+		InFlightDrop inFlightDrop = inFlightDropStore.register(drop, deliveryFrame);
+		assertSame(drop, inFlightDrop.getDrop());
+		assertSame(deliveryFrame, inFlightDrop.getDeliveryFrame());
+		assertSame(inFlightDrop, inFlightDropStore.get(inFlightDrop.getId()));
+		assertEquals(1, inFlightDropStore.size());
+
+		assertSame(inFlightDrop, inFlightDropStore.remove(inFlightDrop.getId()));
+		assertNull(inFlightDropStore.get(inFlightDrop.getId()));
+		assertNull(inFlightDropStore.remove(inFlightDrop.getId()));
+		assertEquals(0, inFlightDropStore.size());
+	}
+
+	@Test
+	public void registerCompactDrop() throws Exception {
+		SlabAllocator slabAllocator = new SlabAllocator(1 << 20, 4096);
+		inFlightDropStore.setSlabAllocator(slabAllocator);
+		inFlightDropStore.setDropDecoder(new RawDropDecoder(new ObjectMapper()));
+		inFlightDropStore.setPipeline(new Pipeline(
+				new Stage("rules", "rules", "bucket_id", "river_id", "mark_as_read")));
+		String body = "{\"droplet_title\": \"title\", \"river_id\": [2], \"bucket_id\": [7]}";
+
+		InFlightDrop inFlightDrop = inFlightDropStore.register(body.getBytes("UTF-8"), null);
+		assertTrue(inFlightDrop.getRecord().isDirect());
+		assertNull(inFlightDrop.getDrop().getTitle());
+
+		inFlightDrop.getDrop().setRiverIds(Arrays.asList(3L));
+		RawDrop drop = inFlightDropStore.getDrop(inFlightDrop);
+		assertEquals("title", drop.getTitle());
+		assertEquals(Arrays.asList(3L), drop.getRiverIds());
+		assertEquals(Arrays.asList(7L), drop.getBucketIds());
+
+		assertEquals(512, slabAllocator.getUsedBytes());
+		inFlightDropStore.remove(inFlightDrop.getId());
+		assertNull(inFlightDrop.getRecord());
+		assertEquals(0, slabAllocator.getUsedBytes());
+	}
+
+	@Test
+	public void registerCompactDropWithoutRoom() throws Exception {
+		assertNull(inFlightDropStore.register(new byte[] {'{', '}'}, null));
+
+		inFlightDropStore.setSlabAllocator(new SlabAllocator(512, 512));
+		assertFalse(inFlightDropStore.register(new byte[] {'{', '}'}, null) == null);
+		assertNull(inFlightDropStore.register(new byte[] {'{', '}'}, null));
+		assertEquals(1, inFlightDropStore.size());
+	}
+
+	@Test
+	public void clockSeededCorrelationIds() throws Exception {
+		long start = System.currentTimeMillis() * 1000;
+		SequenceIdGenerator idGenerator = new SequenceIdGenerator();
+		idGenerator.setClockSeeded(true);
+		inFlightDropStore.setIdGenerator(idGenerator);
+
+		assertTrue(inFlightDropStore.register(new RawDrop(), null).getId() > start);
+	}
+
+	@Test
+	public void correlationIdsAreUnique() throws Exception {
+		InFlightDropStore store = new InFlightDropStore(1000);
+		for (int i = 0; i < 1000; i++) {
+			store.register(new RawDrop(), null);
+		}
+		for (long id = 1; id <= 1000; id++) {
+			assertEquals(id, store.get(id).getId());
+		}
+	}
+
+	@Test
+	public void registerBlocksWhenFull() throws Exception {
+		for (int i = 0; i < inFlightDropStore.getCapacity(); i++) {
+			inFlightDropStore.register(new RawDrop(), null);
+		}
+
+		final CountDownLatch registered = new CountDownLatch(1);
+		Thread consumer = new Thread() {
+			public void run() {
+				try {
+					inFlightDropStore.register(new RawDrop(), null);
+					registered.countDown();
+				} catch (InterruptedException e) {
+				}
+			}
+		};
+		consumer.start();
+		assertFalse(registered.await(200, TimeUnit.MILLISECONDS));
+
+		inFlightDropStore.remove(1);
+		assertTrue(registered.await(5, TimeUnit.SECONDS));
+		assertEquals(inFlightDropStore.getCapacity(), inFlightDropStore.size());
+	}
+}
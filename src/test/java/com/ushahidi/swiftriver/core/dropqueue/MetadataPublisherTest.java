@@ -0,0 +1,209 @@
+/**
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as
+ *  published by the Free Software Foundation, either version 3 of the
+ *  License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.ushahidi.swiftriver.core.dropqueue;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.amqp.rabbit.connection.Connection;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.amqp.support.converter.JsonMessageConverter;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
+import com.ushahidi.swiftriver.core.dropqueue.model.RawDrop;
+import com.ushahidi.swiftriver.core.dropqueue.support.SlabAllocator;
+
+public class MetadataPublisherTest {
+
+	private InFlightDropStore inFlightDropStore;
+
+	private InFlightDropExpiry mockInFlightDropExpiry;
+
+	private Connection mockConnection;
+
+	private Channel mockChannel;
+
+	private Channel mockDeliveryChannel;
+
+	private LinkedBlockingQueue<InFlightDrop> metadataQueue;
+
+	private MetadataPublisher metadataPublisher;
+
+	private Stage media;
+
+	private Stage semantics;
+
+	private InFlightDrop first;
+
+	private InFlightDrop second;
+
+	@Before
+	public void setup() throws Exception {
+		inFlightDropStore = new InFlightDropStore(10);
+		mockInFlightDropExpiry = mock(InFlightDropExpiry.class);
+		ConnectionFactory mockConnectionFactory = mock(ConnectionFactory.class);
+		mockConnection = mock(Connection.class);
+		mockChannel = mock(Channel.class);
+		mockDeliveryChannel = mock(Channel.class);
+
+		when(mockConnectionFactory.createConnection()).thenReturn(mockConnection);
+		when(mockConnection.createChannel(false)).thenReturn(mockChannel);
+		when(mockChannel.isOpen()).thenReturn(true);
+		when(mockChannel.getNextPublishSeqNo()).thenReturn(1L, 2L, 3L);
+
+		metadataPublisher = new MetadataPublisher();
+		metadataQueue = new LinkedBlockingQueue<InFlightDrop>();
+		metadataPublisher.setMetadataQueue(metadataQueue);
+		metadataPublisher.setLinger(100);
+		metadataPublisher.setDrainTimeout(100);
+		metadataPublisher.setConnectionFactory(mockConnectionFactory);
+		metadataPublisher.setMessageConverter(new JsonMessageConverter());
+		metadataPublisher.setCallbackQueueName("callback");
+		metadataPublisher.setInFlightDropStore(inFlightDropStore);
+		metadataPublisher.setInFlightDropExpiry(mockInFlightDropExpiry);
+
+		media = new Stage("media", "mediaextractor", "media", "links");
+		media.setPublisher(metadataPublisher);
+		semantics = new Stage("semantics", "semantics", "tags", "places");
+		semantics.setPublisher(metadataPublisher);
+		new Pipeline(media, semantics);
+
+		first = inFlightDropStore.register(new RawDrop(), new DeliveryFrame(21, mockDeliveryChannel));
+		second = inFlightDropStore.register(new RawDrop(), new DeliveryFrame(22, mockDeliveryChannel));
+		metadataPublisher.start();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		metadataPublisher.shutdown();
+	}
+
+	private void publish(InFlightDrop... inFlightDrops) throws Exception {
+		metadataQueue.addAll(Arrays.asList(inFlightDrops));
+		verify(mockChannel, timeout(1000).times(inFlightDrops.length)).basicPublish(
+				eq("metadata"), eq(""), any(BasicProperties.class), any(byte[].class));
+	}
+
+	private ConfirmListener confirmListener() {
+		ArgumentCaptor<ConfirmListener> listener = ArgumentCaptor.forClass(ConfirmListener.class);
+		verify(mockChannel).addConfirmListener(listener.capture());
+		return listener.getValue();
+	}
+
+	@Test
+	public void publishBatch() throws Exception {
+		publish(first, second);
+
+		verify(mockChannel).confirmSelect();
+		ArgumentCaptor<BasicProperties> properties = ArgumentCaptor.forClass(BasicProperties.class);
+		verify(mockChannel, times(2)).basicPublish(eq("metadata"), eq(""),
+				properties.capture(), any(byte[].class));
+		assertEquals("callback", properties.getAllValues().get(0).getReplyTo());
+		assertEquals("1", properties.getAllValues().get(0).getCorrelationId());
+		assertEquals("2", properties.getAllValues().get(1).getCorrelationId());
+		assertEquals(2, metadataPublisher.getOutstanding());
+		assertEquals(1, metadataPublisher.getBatchSizes().getCount());
+		assertEquals(2, metadataPublisher.getBatchSizes().getMax());
+
+		// Not in flight until confirmed
+		verifyZeroInteractions(mockInFlightDropExpiry);
+	}
+
+	@Test
+	public void publishCompactDropAsItArrived() throws Exception {
+		inFlightDropStore.setSlabAllocator(new SlabAllocator(1 << 20, 4096));
+		byte[] body = "{\"droplet_title\": \"title\"}".getBytes("UTF-8");
+		InFlightDrop compact = inFlightDropStore.register(body, new DeliveryFrame(23, mockDeliveryChannel));
+
+		publish(compact);
+
+		ArgumentCaptor<BasicProperties> properties = ArgumentCaptor.forClass(BasicProperties.class);
+		ArgumentCaptor<byte[]> sent = ArgumentCaptor.forClass(byte[].class);
+		verify(mockChannel).basicPublish(eq("metadata"), eq(""),
+				properties.capture(), sent.capture());
+		assertArrayEquals(body, sent.getValue());
+		assertEquals("application/json", properties.getValue().getContentType());
+		assertEquals("3", properties.getValue().getCorrelationId());
+	}
+
+	@Test
+	public void confirmStartsExpiry() throws Exception {
+		publish(first, second);
+		confirmListener().handleAck(2, true);
+
+		verify(mockInFlightDropExpiry).schedule(first, media);
+		verify(mockInFlightDropExpiry).schedule(first, semantics);
+		verify(mockInFlightDropExpiry).schedule(second, media);
+		verify(mockInFlightDropExpiry).schedule(second, semantics);
+		assertEquals(0, metadataPublisher.getOutstanding());
+		assertEquals(2, metadataPublisher.getPublishLatency().getCount());
+	}
+
+	@Test
+	public void nackRequeuesDelivery() throws Exception {
+		publish(first, second);
+		ConfirmListener listener = confirmListener();
+		listener.handleAck(1, false);
+		listener.handleNack(2, false);
+
+		assertTrue(second.isRemoved());
+		assertNull(inFlightDropStore.get(second.getId()));
+		assertSame(first, inFlightDropStore.get(first.getId()));
+		verify(mockDeliveryChannel).basicNack(22, false, true);
+		verify(mockInFlightDropExpiry, never()).schedule(second, media);
+		assertEquals(1, metadataPublisher.getFailedCount());
+	}
+
+	@Test
+	public void channelShutdownFailsOutstanding() throws Exception {
+		publish(first);
+		ArgumentCaptor<ShutdownListener> listener = ArgumentCaptor.forClass(ShutdownListener.class);
+		verify(mockChannel).addShutdownListener(listener.capture());
+
+		listener.getValue().shutdownCompleted(new ShutdownSignalException(false, false, null, mockChannel));
+
+		assertTrue(first.isRemoved());
+		verify(mockDeliveryChannel).basicNack(21, false, true);
+		assertEquals(0, metadataPublisher.getOutstanding());
+
+		// The next batch goes out on a new channel
+		when(mockChannel.isOpen()).thenReturn(false);
+		metadataQueue.add(second);
+		verify(mockConnection, timeout(1000).times(2)).createChannel(false);
+	}
+
+	@Test
+	public void removedDropsAreNotPublished() throws Exception {
+		inFlightDropStore.remove(first.getId());
+		metadataQueue.add(first);
+		publish(second);
+
+		assertEquals(0, metadataQueue.size());
+		verify(mockChannel, times(1)).basicPublish(eq("metadata"), eq(""),
+				any(BasicProperties.class), any(byte[].class));
+	}
+}
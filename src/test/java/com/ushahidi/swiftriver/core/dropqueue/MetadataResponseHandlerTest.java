@@ -15,16 +15,21 @@
 package com.ushahidi.swiftriver.core.dropqueue;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyLong;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.LinkedBlockingQueue;
 
 import org.codehaus.jackson.map.ObjectMapper;
@@ -35,34 +40,54 @@ import org.springframework.amqp.core.MessageProperties;
 
 import com.rabbitmq.client.Channel;
 import com.ushahidi.swiftriver.core.dropqueue.model.RawDrop;
+import com.ushahidi.swiftriver.core.dropqueue.support.CorrelationIds;
+import com.ushahidi.swiftriver.core.dropqueue.support.MetadataReplyDecoder;
 
 public class MetadataResponseHandlerTest {
 	
 	private ObjectMapper objectMapper = new ObjectMapper();
 	
-	private Map<String, RawDrop> dropsMap;
+	private InFlightDropStore inFlightDropStore;
 	
 	private BlockingQueue<RawDrop> publishQueue;
 	
-	private BlockingQueue<String> dropFilterQueue;
-	
-	private Map<String, DeliveryFrame> deliveryFramesMap;
+	private BlockingQueue<InFlightDrop> metadataQueue;
+
+	private BlockingQueue<InFlightDrop> dropFilterQueue;
+
+	private Stage media;
+
+	private Stage semantics;
+
+	private Stage rules;
 
 	private MetadataResponseHandler metadataResponseHandler;
 
 	@Before
 	public void setup() {
-		dropsMap = new HashMap<String, RawDrop>();
+		inFlightDropStore = new InFlightDropStore(100);
 		publishQueue = new LinkedBlockingQueue<RawDrop>();
-		dropFilterQueue = new LinkedBlockingQueue<String>();
-		deliveryFramesMap = new ConcurrentHashMap<String, DeliveryFrame>();
+		metadataQueue = new LinkedBlockingQueue<InFlightDrop>();
+		dropFilterQueue = new LinkedBlockingQueue<InFlightDrop>();
+
+		MetadataPublisher metadataPublisher = new MetadataPublisher();
+		metadataPublisher.setMetadataQueue(metadataQueue);
+		DropFilterPublisher dropFilterPublisher = new DropFilterPublisher();
+		dropFilterPublisher.setDropFilterQueue(dropFilterQueue);
+
+		media = new Stage("media", "mediaextractor", "media", "links");
+		media.setPublisher(metadataPublisher);
+		semantics = new Stage("semantics", "semantics", "tags", "places");
+		semantics.setPublisher(metadataPublisher);
+		rules = new Stage("rules", "rules", "bucket_id", "river_id", "mark_as_read");
+		rules.setDependsOn(Arrays.asList(media, semantics));
+		rules.setPublisher(dropFilterPublisher);
 		
 		metadataResponseHandler = new MetadataResponseHandler();
-		metadataResponseHandler.setDropsMap(dropsMap);
-		metadataResponseHandler.setObjectMapper(objectMapper);
+		metadataResponseHandler.setInFlightDropStore(inFlightDropStore);
+		metadataResponseHandler.setReplyDecoder(new MetadataReplyDecoder(objectMapper));
 		metadataResponseHandler.setPublishQueue(publishQueue);
-		metadataResponseHandler.setDropFilterQueue(dropFilterQueue);
-		metadataResponseHandler.setDeliveryFramesMap(deliveryFramesMap);
+		metadataResponseHandler.setPipeline(new Pipeline(media, semantics, rules));
 	}
 	
 	@Test
@@ -74,14 +99,19 @@ public class MetadataResponseHandlerTest {
 		String body = "{\"source\":\"mediaextractor\",\"identity_orig_id\": \"http://feeds.bbci.co.uk/news/rss.xml\", \"droplet_raw\": \"The danger of growing resistance to antibiotics should be treated as seriously as the threat of terrorism, England's chief medical officer says.\", \"droplet_orig_id\": \"c558d88a44fc70da36d04746574e05e4\", \"droplet_locale\": \"en-gb\", \"identity_username\": \"http://www.bbc.co.uk/news/#sa-ns_mchannel=rss&ns_source=PublicRSS20-sa\", \"droplet_date_pub\": \"Mon, 11 Mar 2013 07:32:59 +0000\", \"droplet_type\": \"original\", \"identity_avatar\": \"http://news.bbcimg.co.uk/nol/shared/img/bbc_news_120x60.gif\", \"droplet_title\": \"Antibiotic resistance 'threat to UK'\", \"links\": [{\"url\": \"http://www.bbc.co.uk/news/health-21737844#sa-ns_mchannel=rss&ns_source=PublicRSS20-sa\", \"original_url\": true}], \"droplet_content\": \"The danger of growing resistance to antibiotics should be treated as seriously as the threat of terrorism, England's chief medical officer says.\", \"identity_name\": \"BBC News - Home\", \"channel\": \"rss\", \"river_id\": [2]}";
 		when(mockMessage.getBody()).thenReturn(body.getBytes());
 		when(mockMessage.getMessageProperties()).thenReturn(mockMessageProperties);
-		when(mockMessageProperties.getCorrelationId()).thenReturn("correlation_id".getBytes());
 		
-		RawDrop rawDrop = new RawDrop(); 
-		dropsMap.put("correlation_id", rawDrop);
+		InFlightDrop inFlightDrop = inFlightDropStore.register(new RawDrop(), 
+				new DeliveryFrame(22, mockChannel));
+		when(mockMessageProperties.getCorrelationId()).thenReturn(
+				CorrelationIds.toBytes(inFlightDrop.getId()));
+		inFlightDrop.publishedAt = System.nanoTime();
 		
 		metadataResponseHandler.onMessage(mockMessage, mockChannel);
 		
-		assertTrue(rawDrop.isMediaComplete());
+		assertTrue(inFlightDrop.isComplete(media));
+		assertEquals(1, inFlightDrop.getDrop().getLinks().size());
+		assertEquals(1, metadataResponseHandler.getReplyLatency(media).getCount());
+		assertEquals(0, metadataResponseHandler.getReplyLatency(semantics).getCount());
 	}
 	
 	@Test
@@ -93,14 +123,15 @@ public class MetadataResponseHandlerTest {
 		String body = "{\"source\":\"semantics\",\"identity_orig_id\": \"http://feeds.bbci.co.uk/news/rss.xml\", \"droplet_raw\": \"The danger of growing resistance to antibiotics should be treated as seriously as the threat of terrorism, England's chief medical officer says.\", \"droplet_orig_id\": \"c558d88a44fc70da36d04746574e05e4\", \"droplet_locale\": \"en-gb\", \"identity_username\": \"http://www.bbc.co.uk/news/#sa-ns_mchannel=rss&ns_source=PublicRSS20-sa\", \"droplet_date_pub\": \"Mon, 11 Mar 2013 07:32:59 +0000\", \"droplet_type\": \"original\", \"identity_avatar\": \"http://news.bbcimg.co.uk/nol/shared/img/bbc_news_120x60.gif\", \"droplet_title\": \"Antibiotic resistance 'threat to UK'\", \"links\": [{\"url\": \"http://www.bbc.co.uk/news/health-21737844#sa-ns_mchannel=rss&ns_source=PublicRSS20-sa\", \"original_url\": true}], \"droplet_content\": \"The danger of growing resistance to antibiotics should be treated as seriously as the threat of terrorism, England's chief medical officer says.\", \"identity_name\": \"BBC News - Home\", \"channel\": \"rss\", \"river_id\": [2]}";
 		when(mockMessage.getBody()).thenReturn(body.getBytes());
 		when(mockMessage.getMessageProperties()).thenReturn(mockMessageProperties);
-		when(mockMessageProperties.getCorrelationId()).thenReturn("correlation_id".getBytes());
 		
-		RawDrop rawDrop = new RawDrop(); 
-		dropsMap.put("correlation_id", rawDrop);
+		InFlightDrop inFlightDrop = inFlightDropStore.register(new RawDrop(), 
+				new DeliveryFrame(22, mockChannel));
+		when(mockMessageProperties.getCorrelationId()).thenReturn(
+				CorrelationIds.toBytes(inFlightDrop.getId()));
 		
 		metadataResponseHandler.onMessage(mockMessage, mockChannel);
 		
-		assertTrue(rawDrop.isSemanticsComplete());
+		assertTrue(inFlightDrop.isComplete(semantics));
 	}
 	
 	@Test
@@ -112,13 +143,14 @@ public class MetadataResponseHandlerTest {
 		String body = "{\"source\":\"rules\",\"identity_orig_id\": \"http://feeds.bbci.co.uk/news/rss.xml\", \"droplet_raw\": \"The danger of growing resistance to antibiotics should be treated as seriously as the threat of terrorism, England's chief medical officer says.\", \"droplet_orig_id\": \"c558d88a44fc70da36d04746574e05e4\", \"droplet_locale\": \"en-gb\", \"identity_username\": \"http://www.bbc.co.uk/news/#sa-ns_mchannel=rss&ns_source=PublicRSS20-sa\", \"droplet_date_pub\": \"Mon, 11 Mar 2013 07:32:59 +0000\", \"droplet_type\": \"original\", \"identity_avatar\": \"http://news.bbcimg.co.uk/nol/shared/img/bbc_news_120x60.gif\", \"droplet_title\": \"Antibiotic resistance 'threat to UK'\", \"links\": [{\"url\": \"http://www.bbc.co.uk/news/health-21737844#sa-ns_mchannel=rss&ns_source=PublicRSS20-sa\", \"original_url\": true}], \"droplet_content\": \"The danger of growing resistance to antibiotics should be treated as seriously as the threat of terrorism, England's chief medical officer says.\", \"identity_name\": \"BBC News - Home\", \"channel\": \"rss\", \"river_id\": [2]}";
 		when(mockMessage.getBody()).thenReturn(body.getBytes());
 		when(mockMessage.getMessageProperties()).thenReturn(mockMessageProperties);
-		when(mockMessageProperties.getCorrelationId()).thenReturn("correlation_id".getBytes());
 		
-		RawDrop rawDrop = new RawDrop();
-		dropsMap.put("correlation_id", rawDrop);
+		InFlightDrop inFlightDrop = inFlightDropStore.register(new RawDrop(), 
+				new DeliveryFrame(22, mockChannel));
+		when(mockMessageProperties.getCorrelationId()).thenReturn(
+				CorrelationIds.toBytes(inFlightDrop.getId()));
 		
 		metadataResponseHandler.onMessage(mockMessage, mockChannel);
-		assertTrue(rawDrop.isRulesComplete());
+		assertTrue(inFlightDrop.isComplete(rules));
 	}
 	
 	@Test
@@ -130,24 +162,144 @@ public class MetadataResponseHandlerTest {
 		String body = "{\"source\":\"rules\",\"identity_orig_id\": \"http://feeds.bbci.co.uk/news/rss.xml\", \"droplet_raw\": \"The danger of growing resistance to antibiotics should be treated as seriously as the threat of terrorism, England's chief medical officer says.\", \"droplet_orig_id\": \"c558d88a44fc70da36d04746574e05e4\", \"droplet_locale\": \"en-gb\", \"identity_username\": \"http://www.bbc.co.uk/news/#sa-ns_mchannel=rss&ns_source=PublicRSS20-sa\", \"droplet_date_pub\": \"Mon, 11 Mar 2013 07:32:59 +0000\", \"droplet_type\": \"original\", \"identity_avatar\": \"http://news.bbcimg.co.uk/nol/shared/img/bbc_news_120x60.gif\", \"droplet_title\": \"Antibiotic resistance 'threat to UK'\", \"links\": [{\"url\": \"http://www.bbc.co.uk/news/health-21737844#sa-ns_mchannel=rss&ns_source=PublicRSS20-sa\", \"original_url\": true}], \"droplet_content\": \"The danger of growing resistance to antibiotics should be treated as seriously as the threat of terrorism, England's chief medical officer says.\", \"identity_name\": \"BBC News - Home\", \"channel\": \"rss\", \"river_id\": [2]}";
 		when(mockMessage.getBody()).thenReturn(body.getBytes());
 		when(mockMessage.getMessageProperties()).thenReturn(mockMessageProperties);
-		when(mockMessageProperties.getCorrelationId()).thenReturn("correlation_id".getBytes());
 		
 		RawDrop rawDrop = new RawDrop();
 		List<Long> riverIds = new ArrayList<Long>();
 		riverIds.add(2L);
-
-		rawDrop.setSemanticsComplete(true);
-		rawDrop.setMediaComplete(true);
-		rawDrop.setRulesComplete(true);
 		rawDrop.setRiverIds(riverIds);
-		dropsMap.put("correlation_id", rawDrop);
-		deliveryFramesMap.put("correlation_id", new DeliveryFrame(22, mockChannel));
 
-		int size = dropFilterQueue.size();
+		InFlightDrop inFlightDrop = inFlightDropStore.register(rawDrop, 
+				new DeliveryFrame(22, mockChannel));
+		inFlightDrop.complete(semantics);
+		assertEquals(rules.mask(),
+				inFlightDrop.complete(media));
+		when(mockMessageProperties.getCorrelationId()).thenReturn(
+				CorrelationIds.toBytes(inFlightDrop.getId()));
+
 		metadataResponseHandler.onMessage(mockMessage, mockChannel);
-		assertTrue(dropsMap.isEmpty());
+		assertNull(inFlightDropStore.get(inFlightDrop.getId()));
+		assertEquals(0, inFlightDropStore.size());
 		assertTrue(publishQueue.contains(rawDrop));
-		assertEquals(size + 1, dropFilterQueue.size());
-		assertTrue(deliveryFramesMap.isEmpty());
+
+		// The rules reply does not send the drop for rules processing again
+		assertTrue(dropFilterQueue.isEmpty());
+		verify(mockChannel).basicAck(22, false);
+	}
+
+	@Test
+	public void onDuplicateMessage() throws Exception {
+		InFlightDrop inFlightDrop = inFlightDropStore.register(new RawDrop(),
+				new DeliveryFrame(22, mock(Channel.class)));
+		MessageProperties messageProperties = new MessageProperties();
+		messageProperties.setCorrelationId(CorrelationIds.toBytes(inFlightDrop.getId()));
+
+		// A republished drop gets a second reply from each extractor
+		String mediaReply = "{\"source\":\"mediaextractor\"}";
+		String semanticsReply = "{\"source\":\"semantics\"}";
+		for (String body : new String[] {mediaReply, semanticsReply, mediaReply, semanticsReply}) {
+			metadataResponseHandler.onMessage(new Message(body.getBytes(),
+					messageProperties), mock(Channel.class));
+		}
+
+		assertEquals(1, dropFilterQueue.size());
+		assertEquals(2, metadataResponseHandler.getDuplicateCount());
+	}
+
+	@Test
+	public void onUnmatchedMessage() throws Exception {
+		Channel mockChannel = mock(Channel.class);
+		MessageProperties messageProperties = new MessageProperties();
+		messageProperties.setCorrelationId(CorrelationIds.toBytes(42L));
+		messageProperties.setDeliveryTag(7);
+
+		metadataResponseHandler.onMessage(new Message(
+				"{\"source\":\"mediaextractor\"}".getBytes(), messageProperties),
+				mockChannel);
+
+		// The listener container acks the reply
+		verify(mockChannel, never()).basicAck(anyLong(), anyBoolean());
+	}
+
+	@Test
+	public void ackAfterPublish() throws Exception {
+		Channel mockChannel = mock(Channel.class);
+		metadataResponseHandler.setAckAfterPublish(true);
+
+		RawDrop rawDrop = new RawDrop();
+		List<Long> riverIds = new ArrayList<Long>();
+		riverIds.add(2L);
+		rawDrop.setRiverIds(riverIds);
+		InFlightDrop inFlightDrop = inFlightDropStore.register(rawDrop,
+				new DeliveryFrame(22, mockChannel));
+		inFlightDrop.complete(semantics);
+		inFlightDrop.complete(media);
+		inFlightDrop.complete(rules);
+
+		// A drop with no rivers is not posted so it is acked right away
+		InFlightDrop unpublished = inFlightDropStore.register(new RawDrop(),
+				new DeliveryFrame(23, mockChannel));
+		unpublished.complete(semantics);
+		unpublished.complete(media);
+		unpublished.complete(rules);
+
+		metadataResponseHandler.advance(inFlightDrop, Pipeline.FINISH);
+		metadataResponseHandler.advance(unpublished, Pipeline.FINISH);
+
+		assertTrue(publishQueue.contains(rawDrop));
+		assertSame(inFlightDrop.getDeliveryFrame(), rawDrop.getDeliveryFrame());
+		verify(mockChannel, never()).basicAck(22, false);
+		verify(mockChannel).basicAck(23, false);
+	}
+	
+	@Test
+	public void onConcurrentMetadataMessages() throws Exception {
+		final Channel mockChannel = mock(Channel.class);
+		final List<InFlightDrop> inFlightDrops = new ArrayList<InFlightDrop>();
+		for (int i = 0; i < 100; i++) {
+			inFlightDrops.add(inFlightDropStore.register(new RawDrop(),
+					new DeliveryFrame(i, mockChannel)));
+		}
+
+		// Media and semantics replies for the same drops arrive on two
+		// consumers at the same time
+		final CountDownLatch startSignal = new CountDownLatch(1);
+		final List<Throwable> errors = new ArrayList<Throwable>();
+		Thread[] consumers = new Thread[2];
+		final String[] sources = {"mediaextractor", "semantics"};
+		for (int i = 0; i < consumers.length; i++) {
+			final String body = "{\"source\":\"" + sources[i] + "\"}";
+			consumers[i] = new Thread() {
+				public void run() {
+					try {
+						startSignal.await();
+						for (InFlightDrop inFlightDrop : inFlightDrops) {
+							MessageProperties messageProperties = new MessageProperties();
+							messageProperties.setCorrelationId(
+									CorrelationIds.toBytes(inFlightDrop.getId()));
+							metadataResponseHandler.onMessage(new Message(
+									body.getBytes(), messageProperties), mockChannel);
+						}
+					} catch (Throwable t) {
+						synchronized (errors) {
+							errors.add(t);
+						}
+					}
+				}
+			};
+			consumers[i].start();
+		}
+		startSignal.countDown();
+		for (Thread consumer : consumers) {
+			consumer.join();
+		}
+
+		assertTrue(errors.isEmpty());
+		
+		// Each drop is submitted for rules processing exactly once
+		assertEquals(inFlightDrops.size(), dropFilterQueue.size());
+		for (InFlightDrop inFlightDrop : inFlightDrops) {
+			assertTrue(inFlightDrop.isComplete(media));
+			assertTrue(inFlightDrop.isComplete(semantics));
+		}
 	}
 }
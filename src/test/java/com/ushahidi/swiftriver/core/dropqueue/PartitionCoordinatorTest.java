@@ -0,0 +1,213 @@
+/**
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as
+ *  published by the Free Software Foundation, either version 3 of the
+ *  License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.ushahidi.swiftriver.core.dropqueue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ushahidi.swiftriver.core.dropqueue.model.RawDrop;
+
+/**
+ * Runs several processors in one JVM, passing views between them in place
+ * of the heartbeats exchanged through the broker.
+ */
+public class PartitionCoordinatorTest {
+
+	private static final int PARTITIONS = 16;
+
+	/**
+	 * Stands in for the reply queue consumers
+	 */
+	private static class Consumers implements PartitionCoordinator.Listener {
+
+		private final Set<Integer> consuming = new TreeSet<Integer>();
+
+		public void start(int partition) {
+			assertTrue(consuming.add(partition));
+		}
+
+		public void stop(int partition) {
+			assertTrue(consuming.remove(partition));
+		}
+	}
+
+	private static class Node {
+
+		private final PartitionCoordinator coordinator = new PartitionCoordinator();
+
+		private final InFlightDropStore store = new InFlightDropStore(100);
+
+		private final Consumers consumers = new Consumers();
+
+		private boolean leaving;
+
+		Node(String name, long handoffTimeout) {
+			coordinator.setNodeId(name);
+			coordinator.setPartitionCount(PARTITIONS);
+			coordinator.setHandoffTimeout(handoffTimeout);
+			coordinator.setInFlightDropStore(store);
+			coordinator.setListener(consumers);
+			store.setPartitionCoordinator(coordinator);
+		}
+	}
+
+	private List<Node> nodes;
+
+	@Before
+	public void setup() {
+		nodes = new ArrayList<Node>();
+	}
+
+	private Node join(String name) {
+		Node node = new Node(name, 60000);
+		nodes.add(node);
+		return node;
+	}
+
+	/**
+	 * Gives every processor the view of the cluster a round of heartbeats
+	 * would
+	 */
+	private void heartbeat() {
+		Map<String, Set<Integer>> claims = new HashMap<String, Set<Integer>>();
+		Set<String> leaving = new HashSet<String>();
+		for (Node node : nodes) {
+			claims.put(node.coordinator.getNodeId(), node.coordinator.getClaimed());
+			if (node.leaving) {
+				leaving.add(node.coordinator.getNodeId());
+			}
+		}
+		for (Node node : nodes) {
+			Map<String, Set<Integer>> peers = new HashMap<String, Set<Integer>>(claims);
+			peers.remove(node.coordinator.getNodeId());
+			node.coordinator.viewChanged(peers, leaving);
+		}
+	}
+
+	private void assertEachPartitionConsumedOnce() {
+		int[] consumers = new int[PARTITIONS];
+		for (Node node : nodes) {
+			assertEquals(node.consumers.consuming, node.coordinator.getClaimed());
+			for (Integer partition : node.consumers.consuming) {
+				consumers[partition]++;
+			}
+		}
+		for (int partition = 0; partition < PARTITIONS; partition++) {
+			assertEquals("partition " + partition, 1, consumers[partition]);
+		}
+	}
+
+	@Test
+	public void disabledByDefault() throws Exception {
+		InFlightDropStore store = new InFlightDropStore(10);
+		store.setPartitionCoordinator(new PartitionCoordinator());
+
+		assertEquals(1, store.register(new RawDrop(), null).getId());
+	}
+
+	@Test
+	public void partitionsAreSharedOut() throws Exception {
+		Node a = join("a");
+		Node b = join("b");
+		Node c = join("c");
+		heartbeat();
+
+		assertEachPartitionConsumedOnce();
+		for (Node node : Arrays.asList(a, b, c)) {
+			assertFalse(node.consumers.consuming.isEmpty());
+			for (int i = 0; i < 20; i++) {
+				long id = node.store.register(new RawDrop(), null).getId();
+				assertTrue(node.consumers.consuming.contains(node.coordinator.partitionOf(id)));
+			}
+		}
+	}
+
+	@Test
+	public void joiningNodeTakesOverOnceDrained() throws Exception {
+		Node a = join("a");
+		heartbeat();
+		assertEquals(PARTITIONS, a.consumers.consuming.size());
+
+		// A drop in flight in every partition
+		List<Long> ids = new ArrayList<Long>();
+		for (int i = 0; i < PARTITIONS; i++) {
+			ids.add(a.store.register(new RawDrop(), null).getId());
+		}
+
+		Node b = join("b");
+		heartbeat();
+		heartbeat();
+		// The partitions b owns are still being drained by a
+		assertTrue(b.consumers.consuming.isEmpty());
+		assertEachPartitionConsumedOnce();
+
+		for (Long id : ids) {
+			a.store.remove(id);
+		}
+		heartbeat();
+		heartbeat();
+		assertFalse(b.consumers.consuming.isEmpty());
+		assertTrue(a.consumers.consuming.size() < PARTITIONS);
+		assertEachPartitionConsumedOnce();
+	}
+
+	@Test
+	public void leavingNodeHandsOver() throws Exception {
+		Node a = join("a");
+		Node b = join("b");
+		heartbeat();
+
+		b.leaving = true;
+		b.coordinator.leave();
+		heartbeat();
+		heartbeat();
+		heartbeat();
+
+		assertTrue(b.coordinator.getClaimed().isEmpty());
+		assertEquals(PARTITIONS, a.consumers.consuming.size());
+		nodes.remove(b);
+		assertEachPartitionConsumedOnce();
+	}
+
+	@Test
+	public void handoffTimesOut() throws Exception {
+		Node a = new Node("a", 0);
+		nodes.add(a);
+		heartbeat();
+		a.store.register(new RawDrop(), null);
+
+		a.leaving = true;
+		a.coordinator.leave();
+		heartbeat();
+		heartbeat();
+
+		assertTrue(a.coordinator.getClaimed().isEmpty());
+		assertEquals(Collections.<Integer> emptySet(), a.consumers.consuming);
+	}
+}
@@ -0,0 +1,136 @@
+/**
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as
+ *  published by the Free Software Foundation, either version 3 of the
+ *  License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.ushahidi.swiftriver.core.dropqueue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.never;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ushahidi.swiftriver.core.dropqueue.model.RawDrop;
+import com.ushahidi.swiftriver.core.dropqueue.support.RawDropDecoder;
+
+public class PipelineTest {
+
+	private MetadataPublisher mockMetadataPublisher;
+
+	private InFlightDropPublisher mockLanguagePublisher;
+
+	private DropFilterPublisher mockDropFilterPublisher;
+
+	private Stage media;
+
+	private Stage semantics;
+
+	private Stage language;
+
+	private Stage rules;
+
+	private InFlightDrop inFlightDrop;
+
+	@Before
+	public void setup() {
+		mockMetadataPublisher = mock(MetadataPublisher.class);
+		mockLanguagePublisher = mock(InFlightDropPublisher.class);
+		mockDropFilterPublisher = mock(DropFilterPublisher.class);
+
+		media = new Stage("media", "mediaextractor", "media", "links");
+		media.setPublisher(mockMetadataPublisher);
+		semantics = new Stage("semantics", "semantics", "tags", "places");
+		semantics.setPublisher(mockMetadataPublisher);
+		language = new Stage("language", "language", "language");
+		language.setPublisher(mockLanguagePublisher);
+		rules = new Stage("rules", "rules", "bucket_id", "river_id", "mark_as_read");
+		rules.setPublisher(mockDropFilterPublisher);
+		rules.setDependsOn(Arrays.asList(media, semantics, language));
+
+		inFlightDrop = new InFlightDrop(1, new RawDrop(), null);
+	}
+
+	@Test
+	public void orderStagesAfterTheirDependencies() {
+		Pipeline pipeline = new Pipeline(rules, language, media, semantics);
+
+		assertEquals(Arrays.asList(language, media, semantics, rules),
+				pipeline.getStages());
+		assertSame(media, pipeline.getStage("mediaextractor"));
+		assertSame(pipeline, rules.getPipeline());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectCycle() {
+		media.setDependsOn(Arrays.asList(rules));
+
+		new Pipeline(media, semantics, language, rules);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectDependencyOutsidePipeline() {
+		new Pipeline(media, semantics, rules);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectSharedPublisherWithDifferentDependencies() {
+		semantics.setDependsOn(Collections.singletonList(media));
+
+		new Pipeline(media, semantics, language, rules);
+	}
+
+	@Test
+	public void independentStagesRunInParallel() throws Exception {
+		Pipeline pipeline = new Pipeline(media, semantics, language, rules);
+
+		int ready = pipeline.next(inFlightDrop);
+		assertEquals(media.mask() | semantics.mask() | language.mask(), ready);
+
+		pipeline.dispatch(inFlightDrop, ready);
+		verify(mockMetadataPublisher).publish(inFlightDrop);
+		verify(mockLanguagePublisher).publish(inFlightDrop);
+		verify(mockDropFilterPublisher, never()).publish(any(InFlightDrop.class));
+
+		// Only the last of the three replies sends the drop on
+		assertEquals(0, inFlightDrop.complete(language));
+		assertEquals(0, inFlightDrop.complete(media));
+		assertEquals(0, inFlightDrop.complete(language));
+		assertEquals(rules.mask(), inFlightDrop.complete(semantics));
+		assertEquals(Pipeline.FINISH, inFlightDrop.complete(rules));
+	}
+
+	@Test
+	public void mergeAdditionalField() throws Exception {
+		Pipeline pipeline = new Pipeline(media, semantics, language, rules);
+		RawDropDecoder dropDecoder = new RawDropDecoder(new ObjectMapper());
+		dropDecoder.setAdditionalFields(pipeline.getAdditionalFields());
+		RawDrop reply = dropDecoder.decode(ByteBuffer.wrap(
+				"{\"source\": \"language\", \"language\": \"sw\", \"places\": []}".getBytes()));
+		RawDrop drop = new RawDrop();
+
+		language.merge(drop, reply);
+
+		assertEquals("sw", drop.getAdditionalProperties().get("language"));
+		assertNull(drop.getPlaces());
+	}
+}
@@ -15,23 +15,49 @@
 package com.ushahidi.swiftriver.core.dropqueue;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyListOf;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
 
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.rabbitmq.client.Channel;
 import com.ushahidi.swiftriver.core.api.client.SwiftRiverClient;
 import com.ushahidi.swiftriver.core.api.client.model.Drop;
 import com.ushahidi.swiftriver.core.dropqueue.model.RawDrop;
+import com.ushahidi.swiftriver.core.dropqueue.support.ApiDropWriter;
+import com.ushahidi.swiftriver.core.dropqueue.support.Backoff;
+import com.ushahidi.swiftriver.core.dropqueue.support.CircuitBreaker;
 
 public class PublisherTest {
 	
@@ -144,4 +170,473 @@ public class PublisherTest {
 		assertEquals(1.0f, drop.getPlaces().get(0).getLatitude(), 0);
 		assertEquals(2.0f, drop.getPlaces().get(0).getLongitude(), 0);
 	}
+
+	@Test
+	public void postDropsAsJson() throws IOException {
+		final List<MockLowLevelHttpRequest> requests = new ArrayList<MockLowLevelHttpRequest>();
+		final AtomicInteger status = new AtomicInteger(200);
+		MockHttpTransport transport = new MockHttpTransport() {
+			public LowLevelHttpRequest buildPostRequest(String url) {
+				MockLowLevelHttpRequest request = new MockLowLevelHttpRequest(url);
+				request.setResponse(new MockLowLevelHttpResponse()
+						.setStatusCode(status.get()));
+				requests.add(request);
+				return request;
+			}
+		};
+		ObjectMapper objectMapper = new ObjectMapper();
+		publisher.setRequestFactory(transport.createRequestFactory());
+		publisher.setDropPostUrl("http://localhost/v1/drops");
+		publisher.setDropWriter(new ApiDropWriter(objectMapper));
+
+		assertTrue(publisher.postDrops(Arrays.asList(rawDrop("first"), rawDrop("second"))));
+		assertEquals(1, requests.size());
+		assertEquals("http://localhost/v1/drops", requests.get(0).getUrl());
+		JsonNode drops = objectMapper.readTree(requests.get(0).getContentAsString());
+		assertEquals(2, drops.size());
+		assertEquals("first", drops.get(0).get("title").getTextValue());
+		assertEquals("second", drops.get(1).get("title").getTextValue());
+		assertEquals(2, publisher.getPostedCount());
+
+		status.set(500);
+		assertFalse(publisher.postDrops(Arrays.asList(rawDrop("third"))));
+		assertEquals(1, publisher.getFailedPostCount());
+		verify(mockApiClient, never()).postDrops(anyListOf(Drop.class));
+	}
+
+	/**
+	 * Writes request bodies as a connection would, when the request is
+	 * executed, and records them.
+	 */
+	private static class StreamingTransport extends MockHttpTransport {
+
+		final List<ByteArrayOutputStream> bodies = Collections
+				.synchronizedList(new ArrayList<ByteArrayOutputStream>());
+
+		final List<MockLowLevelHttpRequest> requests = Collections
+				.synchronizedList(new ArrayList<MockLowLevelHttpRequest>());
+
+		final AtomicInteger completed = new AtomicInteger();
+
+		public LowLevelHttpRequest buildPostRequest(String url) {
+			MockLowLevelHttpRequest request = new MockLowLevelHttpRequest(url) {
+				public LowLevelHttpResponse execute() throws IOException {
+					assertEquals(-1, getContent().getLength());
+					ByteArrayOutputStream body = new ByteArrayOutputStream();
+					bodies.add(body);
+					getContent().writeTo(body);
+					completed.incrementAndGet();
+					return new MockLowLevelHttpResponse();
+				}
+			};
+			requests.add(request);
+			return request;
+		}
+	}
+
+	private ObjectMapper streamTo(StreamingTransport transport) {
+		ObjectMapper objectMapper = new ObjectMapper();
+		publisher.setRequestFactory(transport.createRequestFactory());
+		publisher.setDropPostUrl("http://localhost/v1/drops");
+		publisher.setDropWriter(new ApiDropWriter(objectMapper));
+		publisher.setStreaming(true);
+		publisher.setStreamBufferSize(16);
+		return objectMapper;
+	}
+
+	@Test
+	public void streamBatchWhileItFills() throws Exception {
+		final StreamingTransport transport = new StreamingTransport();
+		ObjectMapper objectMapper = streamTo(transport);
+		publisher.setDropBatchSize(3);
+		publisher.setLinger(60000);
+		publisher.start();
+
+		// The first drop reaches the API before the batch is full
+		publishQueue.put(rawDrop("drop 0"));
+		await(new Callable<Boolean>() {
+			public Boolean call() {
+				return !transport.bodies.isEmpty()
+						&& transport.bodies.get(0).toString().contains("drop 0");
+			}
+		});
+		assertEquals(0, transport.completed.get());
+
+		publishQueue.put(rawDrop("drop 1"));
+		publishQueue.put(rawDrop("drop 2"));
+		await(new Callable<Boolean>() {
+			public Boolean call() {
+				return transport.completed.get() == 1;
+			}
+		});
+		publisher.shutdown();
+
+		JsonNode drops = objectMapper.readTree(transport.bodies.get(0).toByteArray());
+		assertEquals(3, drops.size());
+		assertEquals("drop 2", drops.get(2).get("title").getTextValue());
+		assertEquals(3, publisher.getPostedCount());
+	}
+
+	@Test
+	public void gzipStreamedBody() throws Exception {
+		StreamingTransport transport = new StreamingTransport();
+		ObjectMapper objectMapper = streamTo(transport);
+		publisher.setGzip(true);
+
+		assertTrue(publisher.postDrops(Arrays.asList(rawDrop("first"))));
+
+		assertEquals("gzip", transport.requests.get(0).getContent().getEncoding());
+		JsonNode drops = objectMapper.readTree(new GZIPInputStream(
+				new ByteArrayInputStream(transport.bodies.get(0).toByteArray())));
+		assertEquals("first", drops.get(0).get("title").getTextValue());
+	}
+
+	@Test
+	public void ackPostedDrops() throws Exception {
+		Channel mockChannel = mock(Channel.class);
+		when(mockApiClient.postDrops(anyListOf(Drop.class))).thenAnswer(new Answer<List<Drop>>() {
+			@SuppressWarnings("unchecked")
+			public List<Drop> answer(InvocationOnMock invocation) {
+				List<Drop> drops = (List<Drop>) invocation.getArguments()[0];
+				return drops.get(0).getTitle().equals("poison") ? null : drops;
+			}
+		});
+		publisher.setMaxAttempts(1);
+		publisher.setBackoff(fastBackoff());
+		publisher.setMaxInFlightBatches(2);
+
+		RawDrop posted = rawDrop("drop");
+		posted.setDeliveryFrame(new DeliveryFrame(1, mockChannel));
+		RawDrop poison = rawDrop("poison");
+		poison.setDeliveryFrame(new DeliveryFrame(2, mockChannel));
+		// The poison drop is discarded once the API has taken the other
+		publishQueue.put(poison);
+		publishQueue.put(posted);
+		publisher.setDropBatchSize(1);
+		publisher.start();
+		await(new Callable<Boolean>() {
+			public Boolean call() {
+				return publisher.getDiscardedCount() == 1 && publisher.getInFlightBatches() == 0;
+			}
+		});
+		publisher.shutdown();
+
+		verify(mockChannel).basicAck(1, false);
+		verify(mockChannel).basicNack(2, false, false);
+	}
+
+	private RawDrop rawDrop(String title) {
+		RawDrop rawDrop = new RawDrop();
+		rawDrop.setTitle(title);
+		return rawDrop;
+	}
+
+	@Test
+	public void flushOnBatchSize() throws Exception {
+		final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<Integer>());
+		final CountDownLatch posted = new CountDownLatch(2);
+		when(mockApiClient.postDrops(anyListOf(Drop.class))).thenAnswer(new Answer<List<Drop>>() {
+			@SuppressWarnings("unchecked")
+			public List<Drop> answer(InvocationOnMock invocation) {
+				List<Drop> drops = (List<Drop>) invocation.getArguments()[0];
+				batchSizes.add(drops.size());
+				posted.countDown();
+				return drops;
+			}
+		});
+
+		// The linger is long enough that only full batches go out
+		publisher.setDropBatchSize(3);
+		publisher.setLinger(60000);
+		publisher.start();
+		for (int i = 0; i < 6; i++) {
+			publishQueue.put(rawDrop("drop " + i));
+		}
+
+		assertTrue(posted.await(5, TimeUnit.SECONDS));
+		assertEquals(3, (int) batchSizes.get(0));
+		assertEquals(3, (int) batchSizes.get(1));
+		publisher.shutdown();
+	}
+
+	@Test
+	public void flushOnLinger() throws Exception {
+		final CountDownLatch posted = new CountDownLatch(1);
+		when(mockApiClient.postDrops(anyListOf(Drop.class))).thenAnswer(new Answer<List<Drop>>() {
+			@SuppressWarnings("unchecked")
+			public List<Drop> answer(InvocationOnMock invocation) {
+				posted.countDown();
+				return (List<Drop>) invocation.getArguments()[0];
+			}
+		});
+
+		publisher.setLinger(50);
+		publisher.start();
+		publishQueue.put(rawDrop("title"));
+
+		assertTrue(posted.await(5, TimeUnit.SECONDS));
+		publisher.shutdown();
+	}
+
+	@Test
+	public void limitBatchesInFlight() throws Exception {
+		final AtomicInteger posting = new AtomicInteger();
+		final AtomicInteger maxPosting = new AtomicInteger();
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch started = new CountDownLatch(2);
+		when(mockApiClient.postDrops(anyListOf(Drop.class))).thenAnswer(new Answer<List<Drop>>() {
+			@SuppressWarnings("unchecked")
+			public List<Drop> answer(InvocationOnMock invocation) throws Exception {
+				int now = posting.incrementAndGet();
+				synchronized (maxPosting) {
+					maxPosting.set(Math.max(maxPosting.get(), now));
+				}
+				started.countDown();
+				release.await();
+				posting.decrementAndGet();
+				return (List<Drop>) invocation.getArguments()[0];
+			}
+		});
+
+		publisher.setDropBatchSize(1);
+		publisher.setLinger(0);
+		publisher.setMaxInFlightBatches(2);
+		publisher.start();
+		for (int i = 0; i < 5; i++) {
+			publishQueue.put(rawDrop("drop " + i));
+		}
+
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		Thread.sleep(200);
+		assertEquals(2, publisher.getInFlightBatches());
+		assertEquals(2, maxPosting.get());
+
+		// The rest go out once the posts complete, including on shutdown
+		release.countDown();
+		publisher.shutdown();
+		assertEquals(0, publishQueue.size());
+		assertEquals(2, maxPosting.get());
+	}
+
+	private Backoff fastBackoff() {
+		Backoff backoff = new Backoff();
+		backoff.setInitialDelay(1);
+		backoff.setMaxDelay(1);
+		return backoff;
+	}
+
+	private void await(Callable<Boolean> condition) throws Exception {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!condition.call()) {
+			assertTrue(System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+	}
+
+	@Test
+	public void isolatePoisonDrop() throws Exception {
+		when(mockApiClient.postDrops(anyListOf(Drop.class))).thenAnswer(new Answer<List<Drop>>() {
+			@SuppressWarnings("unchecked")
+			public List<Drop> answer(InvocationOnMock invocation) {
+				List<Drop> drops = (List<Drop>) invocation.getArguments()[0];
+				for (Drop drop : drops) {
+					if (drop.getTitle().equals("poison")) {
+						return null;
+					}
+				}
+				return drops;
+			}
+		});
+
+		publisher.setLinger(60000);
+		publisher.setDropBatchSize(4);
+		publisher.setMaxAttempts(2);
+		publisher.setBackoff(fastBackoff());
+		publisher.start();
+		publishQueue.put(rawDrop("drop 0"));
+		publishQueue.put(rawDrop("poison"));
+		publishQueue.put(rawDrop("drop 2"));
+		publishQueue.put(rawDrop("drop 3"));
+
+		await(new Callable<Boolean>() {
+			public Boolean call() {
+				return publisher.getDiscardedCount() == 1 && publisher.getInFlightBatches() == 0;
+			}
+		});
+		assertEquals(3, publisher.getPostedCount());
+		assertEquals(CircuitBreaker.State.CLOSED, publisher.getCircuitBreaker().getState());
+		publisher.shutdown();
+	}
+
+	@Test
+	public void isolatePoisonDropInBatchBeyondBreakerThreshold() throws Exception {
+		when(mockApiClient.postDrops(anyListOf(Drop.class))).thenAnswer(new Answer<List<Drop>>() {
+			@SuppressWarnings("unchecked")
+			public List<Drop> answer(InvocationOnMock invocation) {
+				List<Drop> drops = (List<Drop>) invocation.getArguments()[0];
+				for (Drop drop : drops) {
+					if (drop.getTitle().equals("poison")) {
+						return null;
+					}
+				}
+				return drops;
+			}
+		});
+
+		// Isolating the drop takes more rejected posts than the breaker's
+		// threshold of 5
+		publisher.setLinger(60000);
+		publisher.setDropBatchSize(64);
+		publisher.setMaxAttempts(2);
+		publisher.setBackoff(fastBackoff());
+		publisher.start();
+		publishQueue.put(rawDrop("poison"));
+		for (int i = 1; i < 64; i++) {
+			publishQueue.put(rawDrop("drop " + i));
+		}
+
+		await(new Callable<Boolean>() {
+			public Boolean call() {
+				return publisher.getDiscardedCount() == 1 && publisher.getInFlightBatches() == 0;
+			}
+		});
+		assertEquals(63, publisher.getPostedCount());
+		assertEquals(0, publisher.getCircuitBreaker().getOpenCount());
+		publisher.shutdown();
+	}
+
+	@Test
+	public void keepBatchWholeWhileApiUnavailable() throws Exception {
+		final AtomicInteger calls = new AtomicInteger();
+		MockHttpTransport transport = new MockHttpTransport() {
+			public LowLevelHttpRequest buildPostRequest(String url) {
+				calls.incrementAndGet();
+				return new MockLowLevelHttpRequest(url).setResponse(
+						new MockLowLevelHttpResponse().setStatusCode(500));
+			}
+		};
+		publisher.setRequestFactory(transport.createRequestFactory());
+		publisher.setDropPostUrl("http://localhost/v1/drops");
+		publisher.setDropWriter(new ApiDropWriter(new ObjectMapper()));
+		publisher.setStreaming(false);
+
+		CircuitBreaker circuitBreaker = new CircuitBreaker();
+		circuitBreaker.setFailureThreshold(3);
+		circuitBreaker.setOpenTime(60000);
+		publisher.setCircuitBreaker(circuitBreaker);
+		publisher.setBackoff(fastBackoff());
+		publisher.setLinger(60000);
+		publisher.setDropBatchSize(4);
+		publisher.setMaxAttempts(1);
+		publisher.start();
+		for (int i = 0; i < 4; i++) {
+			publishQueue.put(rawDrop("drop " + i));
+		}
+
+		await(new Callable<Boolean>() {
+			public Boolean call() {
+				return publisher.getCircuitBreaker().getState() == CircuitBreaker.State.OPEN;
+			}
+		});
+		Thread.sleep(100);
+
+		// Neither split nor discarded
+		assertEquals(3, calls.get());
+		assertEquals(0, publisher.getDiscardedCount());
+		assertEquals(1, publisher.getInFlightBatches());
+	}
+
+	@Test
+	public void isolateDropTheClientFailsOn() throws Exception {
+		when(mockApiClient.postDrops(anyListOf(Drop.class))).thenAnswer(new Answer<List<Drop>>() {
+			@SuppressWarnings("unchecked")
+			public List<Drop> answer(InvocationOnMock invocation) {
+				List<Drop> drops = (List<Drop>) invocation.getArguments()[0];
+				for (Drop drop : drops) {
+					if (drop.getTitle().equals("poison")) {
+						throw new IllegalArgumentException("Cannot serialize drop");
+					}
+				}
+				return drops;
+			}
+		});
+
+		publisher.setLinger(60000);
+		publisher.setDropBatchSize(2);
+		publisher.setMaxAttempts(1);
+		publisher.setBackoff(fastBackoff());
+		publisher.start();
+		publishQueue.put(rawDrop("poison"));
+		publishQueue.put(rawDrop("drop 1"));
+
+		await(new Callable<Boolean>() {
+			public Boolean call() {
+				return publisher.getDiscardedCount() == 1 && publisher.getInFlightBatches() == 0;
+			}
+		});
+		assertEquals(1, publisher.getPostedCount());
+		publisher.shutdown();
+	}
+
+	@Test
+	public void keepDropWhileApiTakesNothing() throws Exception {
+		when(mockApiClient.postDrops(anyListOf(Drop.class))).thenReturn(null);
+
+		CircuitBreaker circuitBreaker = new CircuitBreaker();
+		circuitBreaker.setFailureThreshold(3);
+		circuitBreaker.setOpenTime(60000);
+		publisher.setCircuitBreaker(circuitBreaker);
+		publisher.setBackoff(fastBackoff());
+		publisher.setLinger(60000);
+		publisher.setDropBatchSize(2);
+		publisher.setMaxAttempts(1);
+		publisher.start();
+		publishQueue.put(rawDrop("drop 0"));
+		publishQueue.put(rawDrop("drop 1"));
+
+		await(new Callable<Boolean>() {
+			public Boolean call() {
+				return publisher.getCircuitBreaker().getState() == CircuitBreaker.State.OPEN;
+			}
+		});
+		Thread.sleep(100);
+
+		// The drops are not discarded by an API that takes none of them
+		assertEquals(0, publisher.getDiscardedCount());
+		assertEquals(1, publisher.getInFlightBatches());
+	}
+
+	@Test
+	public void stopPostingWhileCircuitOpen() throws Exception {
+		final AtomicInteger calls = new AtomicInteger();
+		when(mockApiClient.postDrops(anyListOf(Drop.class))).thenAnswer(new Answer<List<Drop>>() {
+			public List<Drop> answer(InvocationOnMock invocation) {
+				calls.incrementAndGet();
+				return null;
+			}
+		});
+
+		CircuitBreaker circuitBreaker = new CircuitBreaker();
+		circuitBreaker.setFailureThreshold(3);
+		circuitBreaker.setOpenTime(60000);
+		publisher.setCircuitBreaker(circuitBreaker);
+		publisher.setBackoff(fastBackoff());
+		publisher.setLinger(0);
+		publisher.setMaxAttempts(100);
+		publisher.start();
+		publishQueue.put(rawDrop("title"));
+
+		await(new Callable<Boolean>() {
+			public Boolean call() {
+				return publisher.getCircuitBreaker().getState() == CircuitBreaker.State.OPEN;
+			}
+		});
+		Thread.sleep(100);
+
+		// Nothing more is posted or discarded while the API is down and the
+		// batch keeps its in-flight slot
+		assertEquals(3, calls.get());
+		assertEquals(0, publisher.getDiscardedCount());
+		assertEquals(1, publisher.getInFlightBatches());
+	}
 }
@@ -0,0 +1,67 @@
+/**
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as
+ *  published by the Free Software Foundation, either version 3 of the
+ *  License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.ushahidi.swiftriver.core.dropqueue.metrics;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class HistogramTest {
+
+	@Test
+	public void smallValuesAreExact() {
+		Histogram histogram = new Histogram();
+		for (int i = 1; i <= 10; i++) {
+			histogram.record(i);
+		}
+
+		assertEquals(10, histogram.getCount());
+		assertEquals(5, histogram.getPercentile(50));
+		assertEquals(10, histogram.getPercentile(100));
+		assertEquals(5.5, histogram.getMean(), 0.001);
+	}
+
+	@Test
+	public void percentilesWithinBucketError() {
+		Histogram histogram = new Histogram();
+		for (int i = 1; i <= 100000; i++) {
+			histogram.record(i);
+		}
+
+		assertEquals(50000, histogram.getPercentile(50), 50000 * 0.07);
+		assertEquals(99000, histogram.getPercentile(99), 99000 * 0.07);
+		assertEquals(100000, histogram.getMax());
+		assertTrue(histogram.getPercentile(99.9) <= histogram.getMax());
+	}
+
+	@Test
+	public void bucketsCoverLongRange() {
+		for (long value : new long[] {0, 15, 16, 17, 1000, Integer.MAX_VALUE, Long.MAX_VALUE}) {
+			int index = Histogram.bucketIndex(value);
+			assertTrue(Histogram.bucketUpperBound(index) >= value);
+			assertTrue(index == 0 || Histogram.bucketUpperBound(index - 1) < value);
+		}
+	}
+
+	@Test
+	public void reset() {
+		Histogram histogram = new Histogram();
+		histogram.record(42);
+		histogram.reset();
+
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getPercentile(50));
+	}
+}
@@ -0,0 +1,76 @@
+/**
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as
+ *  published by the Free Software Foundation, either version 3 of the
+ *  License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.ushahidi.swiftriver.core.dropqueue.metrics;
+
+import static org.junit.Assert.*;
+
+import java.lang.management.ManagementFactory;
+import java.util.SortedMap;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+public class MetricRegistryTest {
+
+	@Test
+	public void snapshotFlattensHistograms() {
+		MetricRegistry metricRegistry = new MetricRegistry();
+		metricRegistry.counter("drops").add(3);
+		metricRegistry.histogram("latency").record(10);
+		metricRegistry.register("depth", new Gauge() {
+			public long getValue() {
+				return 7;
+			}
+		});
+
+		SortedMap<String, Number> snapshot = metricRegistry.snapshot();
+		assertEquals(3L, snapshot.get("drops"));
+		assertEquals(7L, snapshot.get("depth"));
+		assertEquals(1L, snapshot.get("latency.count"));
+		assertEquals(10L, snapshot.get("latency.p99"));
+		assertEquals(10L, snapshot.get("latency.max"));
+	}
+
+	@Test
+	public void namedMetricsAreShared() throws Exception {
+		MetricRegistry metricRegistry = new MetricRegistry();
+		assertSame(metricRegistry.counter("drops"), metricRegistry.counter("drops"));
+		assertSame(metricRegistry.histogram("latency"), metricRegistry.histogram("latency"));
+
+		metricRegistry.counter("drops").increment();
+		metricRegistry.histogram("latency").record(2);
+		StringBuilder text = new StringBuilder();
+		metricRegistry.writeText(text);
+		assertTrue(text.toString().startsWith("drops 1\nlatency.count 1\nlatency.max 2\nlatency.mean 2.000\n"));
+	}
+
+	@Test
+	public void exposedOverJmx() throws Exception {
+		MetricRegistry metricRegistry = new MetricRegistry();
+		metricRegistry.counter("drops").add(5);
+
+		MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName("com.ushahidi.swiftriver.dropqueue:type=MetricsTest");
+		mBeanServer.registerMBean(new MetricsMBean(metricRegistry), name);
+		try {
+			assertEquals(5L, mBeanServer.getAttribute(name, "drops"));
+			assertEquals(1, mBeanServer.getMBeanInfo(name).getAttributes().length);
+		} finally {
+			mBeanServer.unregisterMBean(name);
+		}
+	}
+}
@@ -0,0 +1,66 @@
+/**
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as
+ *  published by the Free Software Foundation, either version 3 of the
+ *  License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.ushahidi.swiftriver.core.dropqueue.metrics;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+
+import org.junit.Test;
+
+public class MetricsHttpServerTest {
+
+	@Test
+	public void servesTextSnapshot() throws Exception {
+		MetricRegistry metricRegistry = new MetricRegistry();
+		metricRegistry.counter("drops").add(42);
+
+		ServerSocket probe = new ServerSocket(0);
+		int port = probe.getLocalPort();
+		probe.close();
+
+		MetricsHttpServer server = new MetricsHttpServer();
+		server.setMetricRegistry(metricRegistry);
+		server.setPort(port);
+		server.start();
+		try {
+			HttpURLConnection connection = (HttpURLConnection) new URL(
+					"http://127.0.0.1:" + port + "/metrics").openConnection();
+			assertEquals(200, connection.getResponseCode());
+			BufferedReader reader = new BufferedReader(new InputStreamReader(
+					connection.getInputStream(), "UTF-8"));
+			assertEquals("drops 42", reader.readLine());
+			assertNull(reader.readLine());
+			reader.close();
+		} finally {
+			server.shutdown();
+		}
+		assertEquals(-1, server.getLocalPort());
+	}
+
+	@Test
+	public void disabledWithoutPort() throws Exception {
+		MetricsHttpServer server = new MetricsHttpServer();
+		server.setMetricRegistry(new MetricRegistry());
+		server.start();
+
+		assertEquals(-1, server.getLocalPort());
+		server.shutdown();
+	}
+}
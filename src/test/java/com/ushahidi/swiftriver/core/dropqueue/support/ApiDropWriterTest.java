@@ -0,0 +1,138 @@
+/**
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as
+ *  published by the Free Software Foundation, either version 3 of the
+ *  License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.ushahidi.swiftriver.core.dropqueue.support;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.Test;
+
+import com.ushahidi.swiftriver.core.dropqueue.model.RawDrop;
+
+public class ApiDropWriterTest {
+
+	private ObjectMapper objectMapper = new ObjectMapper();
+
+	private ApiDropWriter dropWriter = new ApiDropWriter(objectMapper);
+
+	@Test
+	public void writeDrops() throws IOException {
+		RawDrop rawDrop = new RawDrop();
+		rawDrop.setTitle("title");
+		rawDrop.setContent("content");
+		rawDrop.setChannel("channel");
+		rawDrop.setDatePublished("date pub");
+		rawDrop.setDropOriginalId("drop original id");
+		rawDrop.setRiverIds(Arrays.asList(1L, 2L));
+		rawDrop.setBucketIds(Arrays.asList(3L));
+		rawDrop.setMarkAsRead(Arrays.asList(2L));
+		rawDrop.setIdentityAvatar("identity avatar");
+		rawDrop.setIdentityName("identity name");
+		rawDrop.setIdentityOriginalId("identity orig id");
+		rawDrop.setIdentityUsername("identity username");
+
+		RawDrop.Link link = new RawDrop.Link();
+		link.setUrl("link url");
+		RawDrop.Link originalLink = new RawDrop.Link();
+		originalLink.setUrl("original url");
+		originalLink.setOriginalUrl(true);
+		rawDrop.setLinks(Arrays.asList(link, originalLink));
+
+		RawDrop.Tag tag = new RawDrop.Tag();
+		tag.setName("tag name");
+		tag.setType("tag type");
+		rawDrop.setTags(Arrays.asList(tag));
+
+		RawDrop.Place place = new RawDrop.Place();
+		place.setName("place name");
+		place.setLatitude(1.5f);
+		place.setLongitude(-2.25f);
+		rawDrop.setPlaces(Arrays.asList(place));
+
+		RawDrop.Media m = new RawDrop.Media();
+		m.setUrl("media url");
+		m.setType("image");
+		m.setDropImage(true);
+		RawDrop.Thumbnail thumbnail = new RawDrop.Thumbnail();
+		thumbnail.setSize(100);
+		thumbnail.setUrl("thumbnail url");
+		m.setThumbnails(Arrays.asList(thumbnail));
+		rawDrop.setMedia(Arrays.asList(m));
+
+		JsonNode drops = write(Arrays.asList(rawDrop));
+
+		assertEquals(1, drops.size());
+		JsonNode drop = drops.get(0);
+		assertEquals("title", drop.get("title").getTextValue());
+		assertEquals("content", drop.get("content").getTextValue());
+		assertEquals("channel", drop.get("channel").getTextValue());
+		assertEquals("date pub", drop.get("date_published").getTextValue());
+		assertEquals("drop original id", drop.get("original_id").getTextValue());
+		assertEquals("[1,2]", drop.get("river_ids").toString());
+		assertEquals("[3]", drop.get("bucket_ids").toString());
+		assertEquals("[2]", drop.get("mark_as_read").toString());
+		assertEquals("identity avatar", drop.get("identity").get("avatar").getTextValue());
+		assertEquals("identity name", drop.get("identity").get("name").getTextValue());
+		assertEquals("identity orig id", drop.get("identity").get("origin_id").getTextValue());
+		assertEquals("identity username", drop.get("identity").get("username").getTextValue());
+		assertEquals(2, drop.get("links").size());
+		assertEquals("link url", drop.get("links").get(0).get("url").getTextValue());
+		assertEquals("original url", drop.get("original_url").getTextValue());
+		assertEquals("tag name", drop.get("tags").get(0).get("tag").getTextValue());
+		assertEquals("tag type", drop.get("tags").get(0).get("type").getTextValue());
+		assertEquals("media url", drop.get("media").get(0).get("url").getTextValue());
+		assertEquals("image", drop.get("media").get(0).get("type").getTextValue());
+		assertEquals("media url", drop.get("image").getTextValue());
+		JsonNode thumbnailNode = drop.get("media").get(0).get("thumbnails").get(0);
+		assertEquals(100, thumbnailNode.get("size").getIntValue());
+		assertEquals("thumbnail url", thumbnailNode.get("url").getTextValue());
+		assertEquals("place name", drop.get("places").get(0).get("name").getTextValue());
+		assertEquals(1.5, drop.get("places").get(0).get("latitude").getDoubleValue(), 0);
+		assertEquals(-2.25, drop.get("places").get(0).get("longitude").getDoubleValue(), 0);
+	}
+
+	@Test
+	public void contentFallsBackToTitle() throws IOException {
+		RawDrop rawDrop = new RawDrop();
+		rawDrop.setTitle("title");
+
+		JsonNode drop = write(Arrays.asList(rawDrop)).get(0);
+
+		assertEquals("title", drop.get("content").getTextValue());
+		assertFalse(drop.has("channel"));
+		assertFalse(drop.has("links"));
+		assertFalse(drop.has("original_url"));
+		assertFalse(drop.has("image"));
+		assertEquals(0, drop.get("identity").size());
+	}
+
+	@Test
+	public void writeEmptyBatch() throws IOException {
+		assertEquals(0, write(new ArrayList<RawDrop>()).size());
+	}
+
+	private JsonNode write(List<RawDrop> rawDrops) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		dropWriter.writeDrops(rawDrops, out);
+		return objectMapper.readTree(out.toByteArray());
+	}
+}
@@ -0,0 +1,38 @@
+/**
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as
+ *  published by the Free Software Foundation, either version 3 of the
+ *  License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.ushahidi.swiftriver.core.dropqueue.support;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class BackoffTest {
+
+	@Test
+	public void growsToMaximum() {
+		Backoff backoff = new Backoff();
+		backoff.setInitialDelay(100);
+		backoff.setMaxDelay(1000);
+
+		for (int i = 0; i < 100; i++) {
+			long first = backoff.delay(1);
+			assertTrue(first >= 50 && first <= 100);
+			long third = backoff.delay(3);
+			assertTrue(third >= 200 && third <= 400);
+			long capped = backoff.delay(40);
+			assertTrue(capped >= 500 && capped <= 1000);
+		}
+	}
+}
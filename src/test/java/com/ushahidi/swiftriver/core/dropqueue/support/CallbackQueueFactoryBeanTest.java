@@ -0,0 +1,49 @@
+/**
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as
+ *  published by the Free Software Foundation, either version 3 of the
+ *  License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.ushahidi.swiftriver.core.dropqueue.support;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+import org.springframework.amqp.core.Queue;
+
+public class CallbackQueueFactoryBeanTest {
+
+	@Test
+	public void transientQueue() throws Exception {
+		Queue queue = new CallbackQueueFactoryBean().getObject();
+
+		assertTrue(queue.getName().startsWith("DROP_CB_QUEUE_"));
+		assertFalse(queue.isDurable());
+		assertTrue(queue.isExclusive());
+		assertTrue(queue.isAutoDelete());
+		assertFalse(queue.getName().equals(new CallbackQueueFactoryBean().getObject().getName()));
+	}
+
+	@Test
+	public void durableQueueNamedAfterInstance() throws Exception {
+		CallbackQueueFactoryBean factoryBean = new CallbackQueueFactoryBean();
+		factoryBean.setDurable(true);
+		factoryBean.setInstanceId("processor-1");
+		factoryBean.setExpires(60000);
+		Queue queue = factoryBean.getObject();
+
+		assertEquals("DROP_CB_QUEUE_processor-1", queue.getName());
+		assertTrue(queue.isDurable());
+		assertFalse(queue.isExclusive());
+		assertFalse(queue.isAutoDelete());
+		assertEquals(60000, queue.getArguments().get("x-expires"));
+	}
+}
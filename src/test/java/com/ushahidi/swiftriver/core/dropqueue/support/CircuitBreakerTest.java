@@ -0,0 +1,64 @@
+/**
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as
+ *  published by the Free Software Foundation, either version 3 of the
+ *  License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.ushahidi.swiftriver.core.dropqueue.support;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.ushahidi.swiftriver.core.dropqueue.support.CircuitBreaker.State;
+
+public class CircuitBreakerTest {
+
+	@Test
+	public void opensAfterConsecutiveFailures() {
+		CircuitBreaker circuitBreaker = new CircuitBreaker();
+		circuitBreaker.setFailureThreshold(3);
+
+		assertTrue(circuitBreaker.recordFailure());
+		assertTrue(circuitBreaker.recordFailure());
+		circuitBreaker.recordSuccess();
+		assertTrue(circuitBreaker.recordFailure());
+		assertTrue(circuitBreaker.recordFailure());
+		assertFalse(circuitBreaker.recordFailure());
+
+		assertEquals(State.OPEN, circuitBreaker.getState());
+		assertTrue(circuitBreaker.allowRequest() > 0);
+		assertEquals(1, circuitBreaker.getOpenCount());
+	}
+
+	@Test
+	public void trialCallAfterOpenTime() throws Exception {
+		CircuitBreaker circuitBreaker = new CircuitBreaker();
+		circuitBreaker.setFailureThreshold(1);
+		circuitBreaker.setOpenTime(20);
+		circuitBreaker.recordFailure();
+		Thread.sleep(30);
+
+		// One trial call; everyone else waits for its outcome
+		assertEquals(0, circuitBreaker.allowRequest());
+		assertEquals(State.HALF_OPEN, circuitBreaker.getState());
+		assertTrue(circuitBreaker.allowRequest() > 0);
+
+		circuitBreaker.recordFailure();
+		assertEquals(State.OPEN, circuitBreaker.getState());
+		Thread.sleep(30);
+
+		assertEquals(0, circuitBreaker.allowRequest());
+		circuitBreaker.recordSuccess();
+		assertEquals(State.CLOSED, circuitBreaker.getState());
+		assertEquals(0, circuitBreaker.allowRequest());
+	}
+}
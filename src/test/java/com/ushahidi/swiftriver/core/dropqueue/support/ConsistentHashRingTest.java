@@ -0,0 +1,63 @@
+/**
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as
+ *  published by the Free Software Foundation, either version 3 of the
+ *  License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.ushahidi.swiftriver.core.dropqueue.support;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class ConsistentHashRingTest {
+
+	@Test
+	public void sameNodesMapKeysTheSameWay() {
+		ConsistentHashRing ring = new ConsistentHashRing(Arrays.asList("a", "b", "c"), 100);
+		ConsistentHashRing other = new ConsistentHashRing(Arrays.asList("c", "a", "b"), 100);
+		for (long key = 0; key < 1000; key++) {
+			assertEquals(ring.ownerOf(key), other.ownerOf(key));
+		}
+	}
+
+	@Test
+	public void removingNodeOnlyMovesItsKeys() {
+		ConsistentHashRing ring = new ConsistentHashRing(Arrays.asList("a", "b", "c"), 100);
+		ConsistentHashRing smaller = new ConsistentHashRing(Arrays.asList("a", "b"), 100);
+
+		Map<String, Integer> owned = new HashMap<String, Integer>();
+		for (long key = 0; key < 3000; key++) {
+			String owner = ring.ownerOf(key);
+			if (!owner.equals("c")) {
+				assertEquals(owner, smaller.ownerOf(key));
+			}
+			Integer count = owned.get(owner);
+			owned.put(owner, count == null ? 1 : count + 1);
+		}
+		// Roughly a third each
+		for (Integer count : owned.values()) {
+			assertTrue(count > 600 && count < 1400);
+		}
+	}
+
+	@Test
+	public void emptyRing() {
+		assertNull(new ConsistentHashRing(Collections.<String> emptyList(), 100).ownerOf(1));
+	}
+}
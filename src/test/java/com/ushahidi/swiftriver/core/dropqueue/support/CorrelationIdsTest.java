@@ -0,0 +1,42 @@
+/**
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as
+ *  published by the Free Software Foundation, either version 3 of the
+ *  License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.ushahidi.swiftriver.core.dropqueue.support;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class CorrelationIdsTest {
+
+	@Test
+	public void roundTrip() {
+		long[] ids = {0, 7, 10, 1234567890123L, Long.MAX_VALUE};
+		for (long id : ids) {
+			assertArrayEquals(Long.toString(id).getBytes(), CorrelationIds.toBytes(id));
+			assertEquals(id, CorrelationIds.fromBytes(CorrelationIds.toBytes(id)));
+		}
+	}
+
+	@Test
+	public void invalidIds() {
+		assertEquals(-1, CorrelationIds.fromBytes(null));
+		assertEquals(-1, CorrelationIds.fromBytes(new byte[0]));
+		assertEquals(-1, CorrelationIds.fromBytes("12a".getBytes()));
+		assertEquals(-1, CorrelationIds.fromBytes("9223372036854775808".getBytes()));
+		assertEquals(-1, CorrelationIds.fromBytes("12345678901234567890".getBytes()));
+		assertEquals(-1, CorrelationIds.fromBytes("0a8c4e0e-4f1b-4c1e-9f0e-6e2b9d1c7a55".getBytes()));
+	}
+}
@@ -0,0 +1,112 @@
+/**
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as
+ *  published by the Free Software Foundation, either version 3 of the
+ *  License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.ushahidi.swiftriver.core.dropqueue.support;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MappedJournalTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private List<String> replayed = new ArrayList<String>();
+
+	private MappedJournal.Handler handler = new MappedJournal.Handler() {
+		public void record(byte type, long key, byte[] payload) {
+			replayed.add(type + ":" + key + ":" + new String(payload));
+		}
+	};
+
+	private MappedJournal reopen(int segmentSize) throws IOException {
+		replayed.clear();
+		MappedJournal journal = new MappedJournal(folder.getRoot(), segmentSize);
+		journal.open(handler);
+		return journal;
+	}
+
+	@Test
+	public void replayAfterReopen() throws Exception {
+		MappedJournal journal = reopen(4096);
+		journal.append((byte) 1, 7, "a".getBytes());
+		journal.append((byte) 2, 8, "bc".getBytes());
+		journal.remove(7);
+		journal.sync();
+		journal.close();
+
+		reopen(4096).close();
+		assertEquals("[1:7:a, 2:8:bc, 0:7:]", replayed.toString());
+	}
+
+	@Test
+	public void replayStopsAtCorruptRecord() throws Exception {
+		MappedJournal journal = reopen(4096);
+		journal.append((byte) 1, 7, "first".getBytes());
+		journal.append((byte) 1, 8, "second".getBytes());
+		journal.close();
+
+		// Damage the payload of the second record
+		File segment = folder.getRoot().listFiles()[0];
+		RandomAccessFile file = new RandomAccessFile(segment, "rw");
+		file.seek(17 + 5 + 17);
+		file.write('x');
+		file.close();
+
+		reopen(4096).close();
+		assertEquals("[1:7:first]", replayed.toString());
+	}
+
+	@Test
+	public void rollAndCompact() throws Exception {
+		MappedJournal journal = reopen(64);
+		for (int key = 1; key <= 6; key++) {
+			journal.append((byte) 1, key, "0123456789".getBytes());
+		}
+		journal.remove(2);
+		journal.remove(5);
+		// Seal the tombstones
+		journal.append((byte) 1, 7, "0123456789".getBytes());
+		journal.append((byte) 1, 8, "0123456789".getBytes());
+		assertEquals(4, journal.getSealedCount());
+
+		journal.compact();
+		assertEquals(1, journal.getSealedCount());
+		journal.close();
+
+		reopen(64).close();
+		assertEquals(6, replayed.size());
+		assertFalse(replayed.toString().contains(":2:"));
+		assertFalse(replayed.toString().contains(":5:"));
+	}
+
+	@Test
+	public void oversizedRecordGetsItsOwnSegment() throws Exception {
+		MappedJournal journal = reopen(64);
+		journal.append((byte) 1, 1, new byte[200]);
+		journal.close();
+
+		reopen(64).close();
+		assertEquals(1, replayed.size());
+	}
+}
@@ -0,0 +1,108 @@
+/**
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as
+ *  published by the Free Software Foundation, either version 3 of the
+ *  License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.ushahidi.swiftriver.core.dropqueue.support;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.Test;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+
+import com.ushahidi.swiftriver.core.dropqueue.model.RawDrop;
+
+public class MetadataReplyDecoderTest {
+
+	private MetadataReplyDecoder replyDecoder = new MetadataReplyDecoder(new ObjectMapper());
+
+	private RawDrop decode(String body) throws Exception {
+		return replyDecoder.decode(new Message(body.getBytes("UTF-8"),
+				new MessageProperties()));
+	}
+
+	@Test
+	public void decodeMediaReply() throws Exception {
+		RawDrop drop = decode("{\"droplet_title\": \"title\", \"droplet_raw\": {\"nested\": [1, 2, {\"a\": \"b\"}]}, \"source\": \"mediaextractor\", \"tags\": [{\"tag_name\": \"Nairobi\", \"tag_type\": \"place\"}], \"media\": [{\"url\": \"http://example.com/a.jpg\", \"type\": \"image\", \"droplet_image\": true, \"thumbnails\": [{\"size\": 200, \"url\": \"http://example.com/t.jpg\"}]}], \"links\": [{\"url\": \"http://example.com\", \"original_url\": true}], \"river_id\": [2]}");
+
+		assertEquals("mediaextractor", drop.getSource());
+		assertEquals(1, drop.getMedia().size());
+		assertEquals("http://example.com/a.jpg", drop.getMedia().get(0).getUrl());
+		assertEquals(1, drop.getLinks().size());
+		assertNull(drop.getTitle());
+		assertNull(drop.getRaw());
+		assertNull(drop.getTags());
+		assertNull(drop.getRiverIds());
+	}
+
+	@Test
+	public void decodeSourceAfterFields() throws Exception {
+		RawDrop drop = decode("{\"tags\": [{\"tag_name\": \"Nairobi\", \"tag_type\": \"place\"}], \"droplet_content\": \"content\", \"places\": [], \"media\": [], \"source\": \"semantics\"}");
+
+		assertEquals("semantics", drop.getSource());
+		assertEquals("Nairobi", drop.getTags().get(0).getName());
+		assertEquals(0, drop.getPlaces().size());
+		assertNull(drop.getContent());
+	}
+
+	@Test
+	public void decodeRulesReply() throws Exception {
+		RawDrop drop = decode("{\"source\": \"rules\", \"droplet_title\": \"title\", \"river_id\": [2, 3], \"bucket_id\": [4], \"mark_as_read\": [3], \"links\": []}");
+
+		assertEquals(Arrays.asList(2L, 3L), drop.getRiverIds());
+		assertEquals(Arrays.asList(4L), drop.getBucketIds());
+		assertEquals(Arrays.asList(3L), drop.getMarkAsRead());
+		assertNull(drop.getLinks());
+		assertNull(drop.getTitle());
+	}
+
+	@Test
+	public void decodeUnknownSource() throws Exception {
+		RawDrop drop = decode("{\"source\": \"other\", \"tags\": [], \"river_id\": [2]}");
+
+		assertEquals("other", drop.getSource());
+		assertNull(drop.getTags());
+		assertNull(drop.getRiverIds());
+	}
+
+	@Test
+	public void decodeConfiguredSourceFields() throws Exception {
+		Map<String, List<String>> sourceFields = new HashMap<String, List<String>>();
+		sourceFields.put("semantics", Arrays.asList("tags"));
+		replyDecoder.setSourceFields(sourceFields);
+
+		RawDrop drop = decode("{\"source\": \"semantics\", \"tags\": [], \"places\": []}");
+
+		assertEquals(0, drop.getTags().size());
+		assertNull(drop.getPlaces());
+	}
+
+	@Test
+	public void decodeOwnedAdditionalFields() throws Exception {
+		Map<String, List<String>> sourceFields = new HashMap<String, List<String>>();
+		sourceFields.put("language", Arrays.asList("language"));
+		replyDecoder.setSourceFields(sourceFields);
+
+		RawDrop drop = decode("{\"source\": \"language\", \"language\": \"sw\", \"river_id\": [2], \"injected\": true}");
+
+		assertEquals("sw", drop.getAdditionalProperties().get("language"));
+		assertEquals(1, drop.getAdditionalProperties().size());
+		assertNull(drop.getRiverIds());
+	}
+}
@@ -0,0 +1,85 @@
+/**
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as
+ *  published by the Free Software Foundation, either version 3 of the
+ *  License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.ushahidi.swiftriver.core.dropqueue.support;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.Test;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+
+import com.ushahidi.swiftriver.core.dropqueue.model.RawDrop;
+
+public class RawDropDecoderTest {
+
+	private static final String BODY = "{\"droplet_title\": \"Café na Mji wa Nairobi – 日本\", \"channel\": \"rss\", \"river_id\": [2]}";
+
+	private RawDropDecoder dropDecoder = new RawDropDecoder(new ObjectMapper());
+
+	@Test
+	public void decodeUtf8Body() throws Exception {
+		RawDrop drop = dropDecoder.decode(new Message(BODY.getBytes("UTF-8"),
+				new MessageProperties()));
+
+		assertEquals("Café na Mji wa Nairobi – 日本", drop.getTitle());
+		assertEquals("rss", drop.getChannel());
+		assertEquals(1, drop.getRiverIds().size());
+	}
+
+	@Test
+	public void decodeDeclaredEncoding() throws Exception {
+		String body = "{\"droplet_title\": \"Café\"}";
+		MessageProperties messageProperties = new MessageProperties();
+		messageProperties.setContentEncoding("ISO-8859-1");
+
+		RawDrop drop = dropDecoder.decode(new Message(body.getBytes("ISO-8859-1"),
+				messageProperties));
+
+		assertEquals("Café", drop.getTitle());
+	}
+
+	@Test
+	public void decodeDirectBuffer() throws Exception {
+		byte[] bytes = BODY.getBytes("UTF-8");
+		ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length + 10);
+		buffer.position(10);
+		buffer.put(bytes);
+		buffer.position(10);
+
+		RawDrop drop = dropDecoder.decode(buffer);
+
+		assertEquals("Café na Mji wa Nairobi – 日本", drop.getTitle());
+		assertEquals(10, buffer.position());
+	}
+
+	@Test
+	public void keepOnlyAdditionalFields() throws Exception {
+		String body = "{\"droplet_title\": \"title\", \"language\": \"sw\", \"tracking\": {\"id\": [1, 2]}}";
+
+		RawDrop drop = dropDecoder.decode(ByteBuffer.wrap(body.getBytes("UTF-8")));
+		assertEquals("title", drop.getTitle());
+		assertTrue(drop.getAdditionalProperties().isEmpty());
+
+		dropDecoder.setAdditionalFields(Arrays.asList("language"));
+		drop = dropDecoder.decode(ByteBuffer.wrap(body.getBytes("UTF-8")));
+		assertEquals(1, drop.getAdditionalProperties().size());
+		assertEquals("sw", drop.getAdditionalProperties().get("language"));
+	}
+}
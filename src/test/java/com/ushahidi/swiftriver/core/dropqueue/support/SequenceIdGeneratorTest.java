@@ -0,0 +1,60 @@
+/**
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as
+ *  published by the Free Software Foundation, either version 3 of the
+ *  License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.ushahidi.swiftriver.core.dropqueue.support;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class SequenceIdGeneratorTest {
+
+	@Test
+	public void countsFromOne() {
+		SequenceIdGenerator idGenerator = new SequenceIdGenerator();
+
+		assertEquals(1, idGenerator.nextId());
+		assertEquals(2, idGenerator.nextId());
+	}
+
+	@Test
+	public void nodeIdInLowBits() {
+		SequenceIdGenerator idGenerator = new SequenceIdGenerator(5, 4);
+
+		assertEquals(1 << 4 | 5, idGenerator.nextId());
+		assertEquals(2 << 4 | 5, idGenerator.nextId());
+
+		idGenerator.skipPast(100 << 4 | 3);
+		assertEquals(101 << 4 | 5, idGenerator.nextId());
+		idGenerator.skipPast(7);
+		assertEquals(102 << 4 | 5, idGenerator.nextId());
+	}
+
+	@Test
+	public void clockSeeded() {
+		long start = System.currentTimeMillis() * 1000;
+		SequenceIdGenerator idGenerator = new SequenceIdGenerator(1, 8);
+		idGenerator.setClockSeeded(true);
+
+		long id = idGenerator.nextId();
+		assertTrue(id >>> 8 > start);
+		assertEquals(id, CorrelationIds.fromBytes(CorrelationIds.toBytes(id)));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void nodeIdMustFit() {
+		new SequenceIdGenerator(16, 4);
+	}
+}
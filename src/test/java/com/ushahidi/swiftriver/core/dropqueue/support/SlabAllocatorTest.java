@@ -0,0 +1,65 @@
+/**
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as
+ *  published by the Free Software Foundation, either version 3 of the
+ *  License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.ushahidi.swiftriver.core.dropqueue.support;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class SlabAllocatorTest {
+
+	@Test
+	public void storeCopiesIntoSmallestBlock() {
+		SlabAllocator slabAllocator = new SlabAllocator(1 << 20, 4096);
+
+		ByteBuffer record = slabAllocator.store(new byte[] {1, 2, 3});
+		assertTrue(record.isDirect());
+		assertEquals(0, record.position());
+		assertEquals(3, record.remaining());
+		assertEquals(512, record.capacity());
+		assertEquals(2, record.get(1));
+
+		assertEquals(1024, slabAllocator.store(new byte[513]).capacity());
+		assertEquals(4096, slabAllocator.getReservedBytes() / 2);
+		assertEquals(512 + 1024, slabAllocator.getUsedBytes());
+	}
+
+	@Test
+	public void freedBlocksAreReused() {
+		SlabAllocator slabAllocator = new SlabAllocator(4096, 4096);
+
+		ByteBuffer[] records = new ByteBuffer[8];
+		for (int i = 0; i < records.length; i++) {
+			records[i] = slabAllocator.store(new byte[500]);
+		}
+		assertNull(slabAllocator.store(new byte[500]));
+
+		slabAllocator.free(records[3]);
+		assertEquals(7 * 512, slabAllocator.getUsedBytes());
+		assertSame(records[3], slabAllocator.store(new byte[] {9}));
+		assertEquals(4096, slabAllocator.getReservedBytes());
+	}
+
+	@Test
+	public void oversizedRecordsAreNotStored() {
+		SlabAllocator slabAllocator = new SlabAllocator(1 << 20, 1000);
+
+		assertEquals(1024, slabAllocator.getSlabSize());
+		assertNull(slabAllocator.store(new byte[1025]));
+		assertEquals(0, slabAllocator.getReservedBytes());
+	}
+}
@@ -0,0 +1,77 @@
+/**
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as
+ *  published by the Free Software Foundation, either version 3 of the
+ *  License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.ushahidi.swiftriver.core.dropqueue.support;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TimerWheelTest {
+
+	private TimerWheel<String> timerWheel;
+
+	private List<String> expired;
+
+	@Before
+	public void setup() {
+		timerWheel = new TimerWheel<String>(100, 8, 0);
+		expired = new ArrayList<String>();
+	}
+
+	@Test
+	public void expire() {
+		timerWheel.schedule("a", 250);
+		timerWheel.schedule("b", 450);
+
+		timerWheel.expire(200, expired);
+		assertTrue(expired.isEmpty());
+
+		timerWheel.expire(300, expired);
+		assertEquals(1, expired.size());
+		assertEquals("a", expired.get(0));
+
+		expired.clear();
+		timerWheel.expire(500, expired);
+		assertEquals(1, expired.size());
+		assertEquals("b", expired.get(0));
+	}
+
+	@Test
+	public void expireAfterSeveralRounds() {
+		// 8 ticks per wheel so this lands in the same bucket as tick 1
+		timerWheel.schedule("later", 2500);
+
+		timerWheel.expire(900, expired);
+		timerWheel.expire(1700, expired);
+		assertTrue(expired.isEmpty());
+
+		timerWheel.expire(2500, expired);
+		assertEquals(1, expired.size());
+	}
+
+	@Test
+	public void expirePastDeadline() {
+		timerWheel.expire(1000, expired);
+		timerWheel.schedule("overdue", 100);
+
+		timerWheel.expire(1100, expired);
+		assertEquals(1, expired.size());
+	}
+}